@@ -11,6 +11,8 @@ import org.zstack.core.logging.Log;
 import org.zstack.core.logging.LogLevel;
 import org.zstack.header.allocator.AbstractHostAllocatorFlow;
 import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.host.HostState;
+import org.zstack.header.host.HostStatus;
 import org.zstack.header.host.HostVO;
 import org.zstack.header.network.l2.L2NetworkClusterRefVO;
 import org.zstack.utils.Utils;
@@ -24,6 +26,8 @@ public class AttachedL2NetworkAllocatorFlow extends AbstractHostAllocatorFlow {
 
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
     @Transactional(readOnly = true)
     private List<HostVO> allocate(Collection<String> l3NetworkUuids, Collection<String> hostUuids) {
@@ -64,6 +68,27 @@ public class AttachedL2NetworkAllocatorFlow extends AbstractHostAllocatorFlow {
             return new ArrayList<>();
         }
 
+        if (hostUuids.isEmpty() && capacityIndex.isReady()) {
+            List<String> huuids = capacityIndex.findHostUuids(clusterUuids, spec.getHypervisorType(), spec.getCpuCapacity(), spec.getMemoryCapacity());
+            if (!huuids.isEmpty()) {
+                // the index may be behind, check the state and status the database has
+                sql = "select h from HostVO h where h.uuid in (:huuids) and h.state = :state and h.status = :status";
+                TypedQuery<HostVO> hq = dbf.getEntityManager().createQuery(sql, HostVO.class);
+                hq.setParameter("huuids", huuids);
+                hq.setParameter("state", HostState.Enabled);
+                hq.setParameter("status", HostStatus.Connected);
+
+                if (usePagination()) {
+                    hq.setFirstResult(paginationInfo.getOffset());
+                    hq.setMaxResults(paginationInfo.getLimit());
+                }
+
+                return hq.getResultList();
+            }
+
+            // no host fits by the index, let the database and the flows after tell why
+        }
+
         if (hostUuids.isEmpty()) {
             sql = "select h from HostVO h where h.clusterUuid in (:cuuids)";
             TypedQuery<HostVO> hq = dbf.getEntityManager().createQuery(sql, HostVO.class);
@@ -20,4 +20,8 @@ public class HostAllocatorGlobalConfig {
     public static GlobalConfig USE_PAGINATION = new GlobalConfig(CATEGORY, "usePagination");
     @GlobalConfigValidation
     public static GlobalConfig PAGINATION_LIMIT = new GlobalConfig(CATEGORY, "paginationLimit");
+    @GlobalConfigValidation
+    public static GlobalConfig CAPACITY_INDEX = new GlobalConfig(CATEGORY, "capacityIndex");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig CAPACITY_INDEX_SYNC_INTERVAL = new GlobalConfig(CATEGORY, "capacityIndex.syncInterval");
 }
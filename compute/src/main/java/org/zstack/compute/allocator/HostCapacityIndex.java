@@ -0,0 +1,389 @@
+package org.zstack.compute.allocator;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.allocator.HostCapacityOverProvisioningManager;
+import org.zstack.header.host.*;
+import org.zstack.header.host.HostCanonicalEvents.HostDeletedData;
+import org.zstack.header.host.HostCanonicalEvents.HostStatusChangedData;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * An in-memory index of host state, status and available cpu/memory for the allocator flows.
+ *
+ * Every host sits in sorted sets ordered by available memory: one for all hosts and one for
+ * each of its hypervisor type, cluster and zone, so finding hosts with enough memory is a
+ * tail set walk instead of loading every HostVO. The index is kept current by
+ * HostCapacityUpdater commits and host state/status/deletion events, and is reloaded from the
+ * DB every hostAllocator.capacityIndex.syncInterval seconds to pick up changes made by other
+ * management nodes.
+ *
+ * The index is only used to narrow down candidates; flows load the chosen hosts from the DB
+ * and HostCapacityUpdater still reserves capacity under the row lock of HostCapacityVO.
+ */
+public class HostCapacityIndex implements Component, HostChangeStateExtensionPoint {
+    private static final CLogger logger = Utils.getLogger(HostCapacityIndex.class);
+
+    private static final String ALL = "all";
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private EventFacade evtf;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private HostCapacityOverProvisioningManager ratioMgr;
+
+    private final ConcurrentHashMap<String, IndexedHost> hosts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<IndexedHost>> groups = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    private static final Comparator<IndexedHost> BY_MEMORY = (h1, h2) -> {
+        int c = Long.compare(h1.availableMemory, h2.availableMemory);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compare(h1.availableCpu, h2.availableCpu);
+        if (c != 0) {
+            return c;
+        }
+        c = h1.uuid.compareTo(h2.uuid);
+        return c != 0 ? c : Long.compare(h1.version, h2.version);
+    };
+
+    /**
+     * an immutable snapshot of a host, replaced as a whole on every change
+     */
+    public static class IndexedHost {
+        private final String uuid;
+        private final String zoneUuid;
+        private final String clusterUuid;
+        private final String hypervisorType;
+        private final String state;
+        private final String status;
+        private final long availableCpu;
+        private final long availableMemory;
+        private final long version = System.nanoTime();
+
+        IndexedHost(String uuid, String zoneUuid, String clusterUuid, String hypervisorType, String state, String status,
+                    long availableCpu, long availableMemory) {
+            this.uuid = uuid;
+            this.zoneUuid = zoneUuid;
+            this.clusterUuid = clusterUuid;
+            this.hypervisorType = hypervisorType;
+            this.state = state;
+            this.status = status;
+            this.availableCpu = availableCpu;
+            this.availableMemory = availableMemory;
+        }
+
+        IndexedHost withCapacity(long cpu, long memory) {
+            return new IndexedHost(uuid, zoneUuid, clusterUuid, hypervisorType, state, status, cpu, memory);
+        }
+
+        IndexedHost withState(String state, String status) {
+            return new IndexedHost(uuid, zoneUuid, clusterUuid, hypervisorType, state, status, availableCpu, availableMemory);
+        }
+
+        boolean isUsable() {
+            return HostState.Enabled.toString().equals(state) && HostStatus.Connected.toString().equals(status);
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public String getZoneUuid() {
+            return zoneUuid;
+        }
+
+        public String getClusterUuid() {
+            return clusterUuid;
+        }
+
+        public String getHypervisorType() {
+            return hypervisorType;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public long getAvailableCpu() {
+            return availableCpu;
+        }
+
+        public long getAvailableMemory() {
+            return availableMemory;
+        }
+    }
+
+    private static List<String> groupKeys(IndexedHost h) {
+        return Arrays.asList(ALL, "hv:" + h.hypervisorType, "cluster:" + h.clusterUuid, "zone:" + h.zoneUuid);
+    }
+
+    private ConcurrentSkipListSet<IndexedHost> group(String key) {
+        return groups.computeIfAbsent(key, k -> new ConcurrentSkipListSet<>(BY_MEMORY));
+    }
+
+    // must be called inside hosts.compute() of the host so changes of one host don't interleave
+    private void unlink(IndexedHost h) {
+        for (String key : groupKeys(h)) {
+            ConcurrentSkipListSet<IndexedHost> g = groups.get(key);
+            if (g != null) {
+                g.remove(h);
+            }
+        }
+    }
+
+    private void link(IndexedHost h) {
+        for (String key : groupKeys(h)) {
+            group(key).add(h);
+        }
+    }
+
+    private void put(IndexedHost h) {
+        hosts.compute(h.uuid, (k, old) -> {
+            if (old != null) {
+                unlink(old);
+            }
+            link(h);
+            return h;
+        });
+    }
+
+    private void change(String hostUuid, Function<IndexedHost, IndexedHost> changer) {
+        hosts.computeIfPresent(hostUuid, (k, old) -> {
+            IndexedHost h = changer.apply(old);
+            unlink(old);
+            link(h);
+            return h;
+        });
+    }
+
+    void remove(String hostUuid) {
+        hosts.computeIfPresent(hostUuid, (k, old) -> {
+            unlink(old);
+            return null;
+        });
+    }
+
+    /**
+     * called by HostCapacityUpdater after its transaction commits
+     */
+    void updateCapacity(String hostUuid, long availableCpu, long availableMemory) {
+        change(hostUuid, old -> old.withCapacity(availableCpu, availableMemory));
+    }
+
+    public boolean isReady() {
+        return ready && HostAllocatorGlobalConfig.CAPACITY_INDEX.value(Boolean.class);
+    }
+
+    public IndexedHost get(String hostUuid) {
+        return hosts.get(hostUuid);
+    }
+
+    /**
+     * @param clusterUuids only hosts in the clusters if not null
+     * @param hypervisorType only hosts of the type if not null
+     * @return uuids, in alphabetical order, of Enabled and Connected hosts that may have the cpu and memory,
+     * memory over-provisioning is taken into account with the largest ratio of all hosts
+     */
+    public List<String> findHostUuids(Collection<String> clusterUuids, String hypervisorType, long cpu, long memory) {
+        double ratio = ratioMgr.getMemoryGlobalRatio();
+        for (double r : ratioMgr.getAllMemoryRatio().values()) {
+            ratio = Math.max(ratio, r);
+        }
+        long memoryLowerBound = (long) Math.floor(memory / ratio);
+        IndexedHost probe = new IndexedHost("", null, null, null, null, null, Long.MIN_VALUE, memoryLowerBound);
+
+        List<String> keys = new ArrayList<>();
+        if (clusterUuids != null) {
+            for (String cuuid : clusterUuids) {
+                keys.add("cluster:" + cuuid);
+            }
+        } else if (hypervisorType != null) {
+            keys.add("hv:" + hypervisorType);
+        } else {
+            keys.add(ALL);
+        }
+
+        List<String> ret = new ArrayList<>();
+        for (String key : keys) {
+            ConcurrentSkipListSet<IndexedHost> g = groups.get(key);
+            if (g == null) {
+                continue;
+            }
+
+            for (IndexedHost h : g.tailSet(probe)) {
+                // a reader may run into the old copy of a host being replaced, only count the current one
+                if (hosts.get(h.uuid) != h || !h.isUsable() || h.availableCpu < cpu) {
+                    continue;
+                }
+                if (hypervisorType != null && !hypervisorType.equals(h.hypervisorType)) {
+                    continue;
+                }
+
+                ret.add(h.uuid);
+            }
+        }
+
+        Collections.sort(ret);
+        return ret;
+    }
+
+    @Transactional(readOnly = true)
+    private List<Tuple> loadHosts() {
+        String sql = "select h.uuid, h.zoneUuid, h.clusterUuid, h.hypervisorType, h.state, h.status, c.availableCpu, c.availableMemory" +
+                " from HostVO h, HostCapacityVO c where h.uuid = c.uuid";
+        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+        return q.getResultList();
+    }
+
+    /**
+     * reload every host from the DB, hosts changed locally after the reload started keep the newer copy
+     */
+    public void sync() {
+        long start = System.nanoTime();
+        List<Tuple> tuples = loadHosts();
+
+        Set<String> seen = new HashSet<>(tuples.size());
+        for (Tuple t : tuples) {
+            IndexedHost h = new IndexedHost(
+                    t.get(0, String.class),
+                    t.get(1, String.class),
+                    t.get(2, String.class),
+                    t.get(3, String.class),
+                    t.get(4, HostState.class).toString(),
+                    t.get(5, HostStatus.class).toString(),
+                    t.get(6, Long.class),
+                    t.get(7, Long.class)
+            );
+            seen.add(h.uuid);
+
+            hosts.compute(h.uuid, (k, old) -> {
+                if (old != null && old.version > start) {
+                    return old;
+                }
+                if (old != null) {
+                    unlink(old);
+                }
+                link(h);
+                return h;
+            });
+        }
+
+        for (IndexedHost h : hosts.values()) {
+            if (!seen.contains(h.uuid) && h.version < start) {
+                remove(h.uuid);
+            }
+        }
+
+        ready = true;
+        logger.debug(String.format("[Host Capacity Index] synced %s hosts in %s ms", tuples.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    private void startSyncTask() {
+        thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return HostAllocatorGlobalConfig.CAPACITY_INDEX_SYNC_INTERVAL.value(Long.class);
+            }
+
+            @Override
+            public String getName() {
+                return "sync-host-capacity-index";
+            }
+
+            @Override
+            public void run() {
+                if (!HostAllocatorGlobalConfig.CAPACITY_INDEX.value(Boolean.class)) {
+                    ready = false;
+                    return;
+                }
+
+                try {
+                    sync();
+                } catch (Throwable t) {
+                    logger.warn("[Host Capacity Index] failed to sync hosts from the database", t);
+                }
+            }
+        });
+    }
+
+    private void installEventListeners() {
+        evtf.on(HostCanonicalEvents.HOST_STATUS_CHANGED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                HostStatusChangedData d = (HostStatusChangedData) data;
+                HostInventory inv = d.getInventory();
+                if (inv == null) {
+                    change(d.getHostUuid(), old -> old.withState(old.state, d.getNewStatus()));
+                } else if (hosts.containsKey(inv.getUuid())) {
+                    change(inv.getUuid(), old -> old.withState(inv.getState(), d.getNewStatus()));
+                } else if (inv.getAvailableCpuCapacity() != null && inv.getAvailableMemoryCapacity() != null) {
+                    put(new IndexedHost(inv.getUuid(), inv.getZoneUuid(), inv.getClusterUuid(), inv.getHypervisorType(),
+                            inv.getState(), d.getNewStatus(), inv.getAvailableCpuCapacity(), inv.getAvailableMemoryCapacity()));
+                }
+            }
+        });
+
+        evtf.on(HostCanonicalEvents.HOST_DELETED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                remove(((HostDeletedData) data).getHostUuid());
+            }
+        });
+    }
+
+    @Override
+    public boolean start() {
+        installEventListeners();
+        startSyncTask();
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+
+    @Override
+    public void preChangeHostState(HostInventory inventory, HostStateEvent event, HostState nextState) throws HostException {
+    }
+
+    @Override
+    public void beforeChangeHostState(HostInventory inventory, HostStateEvent event, HostState nextState) {
+    }
+
+    @Override
+    public void afterChangeHostState(HostInventory inventory, HostStateEvent event, HostState previousState) {
+        change(inventory.getUuid(), old -> old.withState(inventory.getState(), old.status));
+    }
+}
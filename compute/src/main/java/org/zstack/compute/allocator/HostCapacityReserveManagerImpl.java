@@ -22,6 +22,7 @@ import org.zstack.utils.function.Function;
 import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.Tuple;
+import javax.persistence.metamodel.SingularAttribute;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -64,8 +65,28 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
 
     private class ReservedCapacityFinder {
         List<String> hostUuids;
+        // the hosts if the caller already has them loaded, spares querying HostVO for their clusters, zones and hypervisor types
+        Map<String, HostVO> hosts;
         Map<String, ReservedHostCapacity> result = new HashMap<>();
 
+        private Map<String, String> getHostField(SingularAttribute field, java.util.function.Function<HostVO, String> getter) {
+            Map<String, String> ret = new HashMap<>(hostUuids.size());
+            if (hosts != null) {
+                for (String huuid : hostUuids) {
+                    ret.put(huuid, getter.apply(hosts.get(huuid)));
+                }
+                return ret;
+            }
+
+            SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
+            q.select(HostVO_.uuid, field);
+            q.add(HostVO_.uuid, Op.IN, hostUuids);
+            for (Tuple t : q.listTuple()) {
+                ret.put(t.get(0, String.class), t.get(1, String.class));
+            }
+            return ret;
+        }
+
         private void findReservedCapacityByHostTag() {
             if (!HostAllocatorGlobalConfig.HOST_LEVEL_RESERVE_CAPACITY.value(Boolean.class)) {
                 return;
@@ -91,15 +112,12 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
                 return;
             }
 
-            SimpleQuery<HostVO> clusterq = dbf.createQuery(HostVO.class);
-            clusterq.select(HostVO_.uuid, HostVO_.clusterUuid);
-            clusterq.add(HostVO_.uuid, Op.IN, hostUuids);
-            List<Tuple> clusterTuple = clusterq.listTuple();
-            Map<String, List<String>> clusterHostUuidMap = new HashMap<>(clusterTuple.size());
-            List<String> clusterUuids = new ArrayList<>(clusterTuple.size());
-            for (Tuple t : clusterTuple) {
-                String huuid = t.get(0, String.class);
-                String cuuid = t.get(1, String.class);
+            Map<String, String> hostClusters = getHostField(HostVO_.clusterUuid, HostVO::getClusterUuid);
+            Map<String, List<String>> clusterHostUuidMap = new HashMap<>(hostClusters.size());
+            List<String> clusterUuids = new ArrayList<>(hostClusters.size());
+            for (Entry<String, String> t : hostClusters.entrySet()) {
+                String huuid = t.getKey();
+                String cuuid = t.getValue();
                 List<String> huuids = clusterHostUuidMap.get(cuuid);
                 if (huuids == null) {
                     huuids = new ArrayList<>();
@@ -143,15 +161,12 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
                 return;
             }
 
-            SimpleQuery<HostVO> zoneq = dbf.createQuery(HostVO.class);
-            zoneq.select(HostVO_.uuid, HostVO_.zoneUuid);
-            zoneq.add(HostVO_.uuid, Op.IN, hostUuids);
-            List<Tuple> zoneTuples = zoneq.listTuple();
+            Map<String, String> hostZones = getHostField(HostVO_.zoneUuid, HostVO::getZoneUuid);
             List<String> zoneUuids = new ArrayList<>();
             Map<String, List<String>> zoneHostUuidMap = new HashMap<>();
-            for (Tuple t : zoneTuples) {
-                String huuid = t.get(0, String.class);
-                String zuuid = t.get(1, String.class);
+            for (Entry<String, String> t : hostZones.entrySet()) {
+                String huuid = t.getKey();
+                String zuuid = t.getValue();
                 List<String> huuids = zoneHostUuidMap.get(zuuid);
                 if (huuids == null) {
                     huuids = new ArrayList<>();
@@ -192,14 +207,10 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
         }
 
         private void findReservedCapacityByHypervisorType() {
-            SimpleQuery<HostVO> hq = dbf.createQuery(HostVO.class);
-            hq.select(HostVO_.uuid, HostVO_.hypervisorType);
-            hq.add(HostVO_.uuid, Op.IN, hostUuids);
-            List<Tuple> tuples = hq.listTuple();
-
-            for (Tuple t : tuples) {
-                String huuid = t.get(0, String.class);
-                String hvType = t.get(1, String.class);
+            Map<String, String> hostHypervisorTypes = getHostField(HostVO_.hypervisorType, HostVO::getHypervisorType);
+            for (Entry<String, String> t : hostHypervisorTypes.entrySet()) {
+                String huuid = t.getKey();
+                String hvType = t.getValue();
 
                 HostReservedCapacityExtensionPoint ext = exts.get(hvType);
                 if (ext == null) {
@@ -279,6 +290,10 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
                 return arg.getUuid();
             }
         });
+        finder.hosts = new HashMap<>(candidates.size());
+        for (HostVO hvo : candidates) {
+            finder.hosts.put(hvo.getUuid(), hvo);
+        }
 
         Map<String, ReservedHostCapacity> reserves = finder.find();
         List<HostVO> ret = new ArrayList<>(candidates.size());
@@ -4,6 +4,8 @@ import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.DeadlockAutoRestart;
 import org.zstack.header.allocator.HostCapacityVO;
@@ -23,6 +25,8 @@ public class HostCapacityUpdater {
 
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
     private String hostUuid;
     private TypedQuery<HostCapacityVO> query;
@@ -95,6 +99,16 @@ public class HostCapacityUpdater {
     private void merge() {
         capacityVO = dbf.getEntityManager().merge(capacityVO);
         logCapacityChange();
+
+        final String uuid = capacityVO.getUuid();
+        final long availableCpu = capacityVO.getAvailableCpu();
+        final long availableMemory = capacityVO.getAvailableMemory();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                capacityIndex.updateCapacity(uuid, availableCpu, availableMemory);
+            }
+        });
     }
 
     @Transactional
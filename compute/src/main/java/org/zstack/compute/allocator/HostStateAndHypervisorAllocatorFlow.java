@@ -25,9 +25,21 @@ public class HostStateAndHypervisorAllocatorFlow extends AbstractHostAllocatorFl
 
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
     private List<HostVO> allocate(String hypervisorType) {
+        List<String> huuids = null;
+        if (capacityIndex.isReady()) {
+            huuids = capacityIndex.findHostUuids(null, hypervisorType, spec.getCpuCapacity(), spec.getMemoryCapacity());
+            // no host fits by the index, let the database and the flows after tell why
+        }
+
         SimpleQuery<HostVO> query = dbf.createQuery(HostVO.class);
+        if (huuids != null && !huuids.isEmpty()) {
+            // the index may be behind, the state and status the database has are checked below
+            query.add(HostVO_.uuid, Op.IN, huuids);
+        }
         query.add(HostVO_.state, Op.EQ, HostState.Enabled);
         query.add(HostVO_.status, Op.EQ, HostStatus.Connected);
         if (hypervisorType != null) {
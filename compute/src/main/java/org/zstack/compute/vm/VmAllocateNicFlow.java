@@ -11,6 +11,7 @@ import org.zstack.core.cloudbus.CloudBusListCallBack;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.core.workflow.Flow;
+import org.zstack.header.core.workflow.FlowDependsOn;
 import org.zstack.header.core.workflow.FlowException;
 import org.zstack.header.core.workflow.FlowRollback;
 import org.zstack.header.core.workflow.FlowTrigger;
@@ -28,6 +29,8 @@ import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 
+// allocating ips only needs l3 networks of the vm, it doesn't wait for the host or volumes
+@FlowDependsOn({})
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class VmAllocateNicFlow implements Flow {
     private static final CLogger logger = Utils.getLogger(VmAllocateNicFlow.class);
@@ -4,16 +4,18 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.cloudbus.EventCallback;
 import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.logging.Event;
 import org.zstack.core.thread.SyncTask;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.exception.CloudRuntimeException;
-import org.zstack.header.vm.VmInstanceConstant;
-import org.zstack.header.vm.VmInstanceState;
-import org.zstack.header.vm.VmInstanceVO;
-import org.zstack.header.vm.VmStateChangedOnHostMsg;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.*;
+import org.zstack.header.vm.VmCanonicalEvents.VmStateChangedData;
+import org.zstack.header.vm.VmTracerCanonicalEvents.VmStateChangedOnHostData;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
@@ -22,10 +24,18 @@ import javax.persistence.TypedQuery;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.CollectionDSL.list;
 
 /**
+ * Compares vm states reported by hosts with states in the database.
+ *
+ * A host reports either all its vms, which are compared with the vms of the host loaded from the database,
+ * or only vms whose states changed, which are compared with an expected-state table of the host kept in memory.
+ * The table is filled by full reports and followed by vm state change events afterwards, so a round
+ * of changes costs no query.
  */
 public abstract class VmTracer {
     private static final CLogger logger = Utils.getLogger(VmTracer.class);
@@ -39,8 +49,16 @@ public abstract class VmTracer {
     @Autowired
     private EventFacade evtf;
 
+    // host uuid -> vm uuid -> vm state in the database
+    private final Map<String, Map<String, VmInstanceState>> expectedStates = new ConcurrentHashMap<String, Map<String, VmInstanceState>>();
+    // vm uuid -> uuid of the host whose table has the vm
+    private final Map<String, String> vmHosts = new ConcurrentHashMap<String, String>();
+    // bumped on every vm state change, a table loaded across a change may be stale and is not kept
+    private final AtomicLong changes = new AtomicLong();
+
     private class Tracer {
         String hostUuid;
+        boolean full;
         Map<String, VmInstanceState> hostSideStates;
         Map<String, VmInstanceState> mgmtSideStates;
 
@@ -59,12 +77,23 @@ public abstract class VmTracer {
             }
         }
 
+        private void loadManagementServerSideVmStates() {
+            long gen = changes.get();
+            buildManagementServerSideVmStates();
+            putExpectedStates(hostUuid, mgmtSideStates, gen);
+        }
+
         private void checkFromHostSide() {
             for (Map.Entry<String, VmInstanceState> e : hostSideStates.entrySet()) {
                 String vmUuid = e.getKey();
                 VmInstanceState actualState = e.getValue();
 
                 VmInstanceState expectedState = mgmtSideStates.get(vmUuid);
+                if (expectedState == null && !full && actualState == VmInstanceState.Stopped) {
+                    // a vm we don't know has gone, nothing to do
+                    continue;
+                }
+
                 if (expectedState == null) {
                     // an anonymous vm showing on this host
                     handleAnonymousVm(vmUuid, actualState, expectedState);
@@ -81,8 +110,27 @@ public abstract class VmTracer {
             msg.setVmInstanceUuid(vmUuid);
             msg.setStateOnHost(actualState);
             msg.setHostUuid(hostUuid);
-            bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vmUuid);
-            bus.send(msg);
+            send(msg);
+        }
+
+        private void send(final VmStateChangedOnHostMsg msg) {
+            bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, msg.getVmInstanceUuid());
+            if (full) {
+                bus.send(msg);
+                return;
+            }
+
+            bus.send(msg, new CloudBusCallBack() {
+                @Override
+                public void run(MessageReply reply) {
+                    if (!reply.isSuccess()) {
+                        // the host won't report the vm again until its state changes, only a full sync can find it
+                        logger.warn(String.format("failed to handle the state[%s] of the vm[uuid:%s] on the host[uuid:%s], %s",
+                                msg.getStateOnHost(), msg.getVmInstanceUuid(), hostUuid, reply.getError()));
+                        fullSyncRequired(hostUuid);
+                    }
+                }
+            });
         }
 
         private void handleAnonymousVm(final String vmUuid, final VmInstanceState actualState, VmInstanceState expected) {
@@ -120,24 +168,136 @@ public abstract class VmTracer {
             msg.setHostUuid(hostUuid);
             msg.setVmInstanceUuid(vmUuid);
             msg.setStateOnHost(VmInstanceState.Stopped);
-            bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vmUuid);
-            bus.send(msg);
+            send(msg);
         }
 
         void trace() {
-            buildManagementServerSideVmStates();
+            if (full) {
+                loadManagementServerSideVmStates();
+                checkFromHostSide();
+                checkFromManagementServerSide();
+                return;
+            }
+
+            mgmtSideStates = expectedStates.get(hostUuid);
+            if (mgmtSideStates == null) {
+                loadManagementServerSideVmStates();
+            }
             checkFromHostSide();
-            checkFromManagementServerSide();
         }
     }
 
-    protected void reportVmState(final String hostUuid, final Map<String, VmInstanceState> vmStates) {
+    private void putExpectedStates(String hostUuid, Map<String, VmInstanceState> states, long gen) {
+        synchronized (expectedStates) {
+            Map<String, VmInstanceState> old = expectedStates.remove(hostUuid);
+            if (old != null) {
+                for (String vmUuid : old.keySet()) {
+                    vmHosts.remove(vmUuid, hostUuid);
+                }
+            }
+
+            if (changes.get() != gen) {
+                logger.debug(String.format("vm states changed while loading vms of the host[uuid:%s], not keep them", hostUuid));
+                return;
+            }
+
+            Map<String, VmInstanceState> table = new ConcurrentHashMap<String, VmInstanceState>(states);
+            for (String vmUuid : table.keySet()) {
+                String other = vmHosts.put(vmUuid, hostUuid);
+                if (other != null && !other.equals(hostUuid)) {
+                    Map<String, VmInstanceState> otherTable = expectedStates.get(other);
+                    if (otherTable != null) {
+                        otherTable.remove(vmUuid);
+                    }
+                }
+            }
+            expectedStates.put(hostUuid, table);
+        }
+    }
+
+    private void vmStateChanged(String vmUuid, VmInstanceState state, String hostUuid) {
+        synchronized (expectedStates) {
+            changes.incrementAndGet();
+
+            String old = vmHosts.remove(vmUuid);
+            if (old != null) {
+                Map<String, VmInstanceState> table = expectedStates.get(old);
+                if (table != null) {
+                    table.remove(vmUuid);
+                }
+            }
+
+            if (hostUuid == null || state == null || state == VmInstanceState.Destroyed || state == VmInstanceState.Destroying) {
+                return;
+            }
+
+            // a host without a table loads it when traced next time
+            Map<String, VmInstanceState> table = expectedStates.get(hostUuid);
+            if (table != null) {
+                table.put(vmUuid, state);
+                vmHosts.put(vmUuid, hostUuid);
+            }
+        }
+    }
+
+    /**
+     * keeps expected-state tables up to date, must be called before reporting state changes
+     */
+    protected void trackVmStateChanges() {
+        evtf.on(VmCanonicalEvents.VM_FULL_STATE_CHANGED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                VmStateChangedData d = (VmStateChangedData) data;
+                VmInstanceInventory vm = d.getInventory();
+                String hostUuid = vm == null ? null : vm.getHostUuid() != null ? vm.getHostUuid() : vm.getLastHostUuid();
+                vmStateChanged(d.getVmUuid(), VmInstanceState.valueOf(d.getNewState()), hostUuid);
+            }
+        });
+
+        // a vm can move to another host without changing its state
+        evtf.on(VmTracerCanonicalEvents.VM_STATE_CHANGED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                VmStateChangedOnHostData d = (VmStateChangedOnHostData) data;
+                String hostUuid = d.getCurrentHostUuid() != null ? d.getCurrentHostUuid() : d.getOriginalHostUuid();
+                vmStateChanged(d.getVmUuid(), d.getTo(), hostUuid);
+            }
+        });
+    }
+
+    /**
+     * called when a state change of the host can't be handled, the next report of the host should be a full one
+     */
+    protected void fullSyncRequired(String hostUuid) {
+        expectedStates.remove(hostUuid);
+    }
+
+    private void validateStates(Map<String, VmInstanceState> vmStates) {
         for (VmInstanceState state : vmStates.values()) {
             if (state != VmInstanceState.Running && state != VmInstanceState.Stopped && state != VmInstanceState.Paused) {
                 throw new CloudRuntimeException(String.format("host can only report vm state as Running, Stopped or Paused, got %s", state));
             }
         }
+    }
+
+    /**
+     * @param vmStates all vms on the host
+     */
+    protected void reportVmState(final String hostUuid, final Map<String, VmInstanceState> vmStates) {
+        validateStates(vmStates);
+        trace(hostUuid, vmStates, true);
+    }
+
+    /**
+     * @param vmStates vms whose states changed on the host since its last report, a vm gone from
+     *                 the host is reported as Stopped
+     */
+    protected void reportVmStateChanges(final String hostUuid, final Map<String, VmInstanceState> vmStates) {
+        validateStates(vmStates);
+        trace(hostUuid, vmStates, false);
+    }
 
+    private void trace(final String hostUuid, final Map<String, VmInstanceState> vmStates, final boolean full) {
         if (!CoreGlobalProperty.VM_TRACER_ON) {
             logger.debug(String.format("vm tracer is off, skip reporting vm state on host[uuid:%s]", hostUuid));
             return;
@@ -163,6 +323,7 @@ public abstract class VmTracer {
             public Object call() throws Exception {
                 Tracer t = new Tracer();
                 t.hostUuid = hostUuid;
+                t.full = full;
                 t.hostSideStates = vmStates;
                 t.trace();
                 return null;
@@ -13,3 +13,11 @@ CREATE TABLE `zstack`.`VCenterDatacenterVO` (
 
 # Foreign keys for table VCenterDatacenterVO
 ALTER TABLE VCenterDatacenterVO ADD CONSTRAINT fkVCenterDatacenterVOVCenterVO FOREIGN KEY (vCenterUuid) REFERENCES VCenterVO (uuid) ON DELETE CASCADE;
+
+CREATE TABLE `zstack`.`GlobalLockVO` (
+    `name` varchar(255) NOT NULL UNIQUE COMMENT 'lock name',
+    `owner` varchar(32) DEFAULT NULL COMMENT 'uuid of the current lease, NULL if the lock is free',
+    `fencingToken` bigint unsigned NOT NULL DEFAULT 0 COMMENT 'increased every time the lock is taken',
+    `expireDate` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT 'when the current lease expires',
+    PRIMARY KEY  (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -34,6 +34,20 @@ public class CoreGlobalProperty {
     public static int REST_FACADE_READ_TIMEOUT;
     @GlobalProperty(name = "RESTFacade.connectTimeout", defaultValue = "300000")
     public static int REST_FACADE_CONNECT_TIMEOUT;
+    @GlobalProperty(name = "RESTFacade.maxPerRoute", defaultValue = "16")
+    public static int REST_FACADE_MAX_PER_ROUTE;
+    @GlobalProperty(name = "RESTFacade.maxTotal", defaultValue = "2000")
+    public static int REST_FACADE_MAX_TOTAL;
+    @GlobalProperty(name = "RESTFacade.nonBlockingAsyncJsonPost", defaultValue = "false")
+    public static boolean REST_FACADE_NON_BLOCKING_ASYNC_JSON_POST;
+    @GlobalProperty(name = "RESTApiFacade.resultTTL", defaultValue = "3600")
+    public static int REST_API_RESULT_TTL;
+    @GlobalProperty(name = "RESTApiFacade.maxResults", defaultValue = "10000")
+    public static int REST_API_MAX_RESULTS;
+    @GlobalProperty(name = "RESTApiFacade.writeBehind", defaultValue = "true")
+    public static boolean REST_API_WRITE_BEHIND;
+    @GlobalProperty(name = "RESTApiFacade.maxWaitTime", defaultValue = "60")
+    public static int REST_API_MAX_WAIT_TIME;
     @GlobalProperty(name = "upgradeStartOn", defaultValue = "false")
     public static boolean IS_UPGRADE_START;
     @GlobalProperty(name = "shadowEntityOn", defaultValue = "false")
@@ -249,6 +249,11 @@ public class Platform {
                     url = String.format("%s/zstack", dbUrl);
                 }
 
+                // lets the driver send a JDBC batch of INSERTs as multi-row INSERTs, see DatabaseFacade.bulkInsert()
+                if (!url.contains("rewriteBatchedStatements")) {
+                    url = String.format("%s%srewriteBatchedStatements=true", url, url.contains("?") ? "&" : "?");
+                }
+
                 System.setProperty("DbFacadeDataSource.jdbcUrl", url);
                 logger.debug(String.format("default DbFacadeDataSource.jdbcUrl to DB.url [%s]", url));
             }
@@ -314,6 +319,10 @@ public class Platform {
                 logger.debug(String.format("default RESTApiDataSource.idleConnectionTestPeriod to DB.idleConnectionTestPeriod [%s]", DatabaseGlobalProperty.DbIdleConnectionTestPeriod));
             }
         }
+        if (getGlobalProperty("DbFacadeDataSource.batchSize") == null) {
+            System.setProperty("DbFacadeDataSource.batchSize", String.valueOf(DatabaseGlobalProperty.BATCH_SIZE));
+            logger.debug(String.format("default DbFacadeDataSource.batchSize to DB.batchSize [%s]", DatabaseGlobalProperty.BATCH_SIZE));
+        }
     }
 
     static {
@@ -3,6 +3,7 @@ package org.zstack.core.ansible;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.DirectoryWalker;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.ini4j.Wini;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.zstack.core.CoreGlobalProperty;
@@ -10,7 +11,9 @@ import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.errorcode.ErrorFacade;
-import org.zstack.core.thread.SyncTask;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.Task;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.core.Completion;
@@ -19,6 +22,7 @@ import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.message.Message;
 import org.zstack.utils.DebugUtils;
+import org.zstack.utils.ShellResult;
 import org.zstack.utils.ShellUtils;
 import org.zstack.utils.ShellUtils.ShellException;
 import org.zstack.utils.StringDSL;
@@ -33,6 +37,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  */
@@ -162,97 +169,299 @@ public class AnsibleFacadeImpl extends AbstractService implements AnsibleFacade
         }
     }
 
+    private Map<String, Object> buildArguments(RunAnsibleMsg msg) {
+        Map<String, Object> arguments = new HashMap<String, Object>();
+        if (msg.getArguments() != null) {
+            arguments.putAll(msg.getArguments());
+        }
+        arguments.put("host", msg.getTargetIp());
+        arguments.put("zstack_root", AnsibleGlobalProperty.ZSTACK_ROOT);
+        arguments.put("pkg_zstacklib", AnsibleGlobalProperty.ZSTACKLIB_PACKAGE_NAME);
+        arguments.putAll(getVariables());
+        String playBookPath = msg.getPlayBookPath();
+        if ( ! playBookPath.contains("py")) {
+           arguments.put("ansible_ssh_user", arguments.get("remote_user"));
+           arguments.put("ansible_ssh_port", arguments.get("remote_port"));
+           arguments.put("ansible_ssh_pass", arguments.get("remote_pass"));
+           arguments.remove("remote_user");
+           arguments.remove("remote_pass");
+           arguments.remove("remote_port");
+           if  ( ! arguments.get("ansible_ssh_user").equals("root")) {
+               arguments.put("ansible_become", "yes");
+               arguments.put("become_user", "root");
+               arguments.put("ansible_become_pass", arguments.get("ansible_ssh_pass"));
+           }
+        }
+        return arguments;
+    }
+
+    private void runAnsible(RunAnsibleMsg msg, Map<String, Object> arguments, String executable) {
+        new PrepareAnsible().setTargetIp(msg.getTargetIp()).prepare();
+
+        logger.debug(String.format("start running ansible for playbook[%s]", msg.getPlayBookPath()));
+        String playBookPath = msg.getPlayBookPath();
+        try {
+            String output;
+            if (AnsibleGlobalProperty.DEBUG_MODE2) {
+                output = ShellUtils.run(String.format("PYTHONPATH=%s %s %s -i %s -vvvv --private-key %s -e '%s' | tee -a %s",
+                                AnsibleConstant.ZSTACKLIB_ROOT, executable, playBookPath, AnsibleConstant.INVENTORY_FILE, msg.getPrivateKeyFile(), JSONObjectUtil.toJsonString(arguments), AnsibleConstant.LOG_PATH),
+                        AnsibleConstant.ROOT_DIR);
+            } else if (AnsibleGlobalProperty.DEBUG_MODE) {
+                output = ShellUtils.run(String.format("PYTHONPATH=%s %s %s -i %s -vvvv --private-key %s -e '%s'",
+                                AnsibleConstant.ZSTACKLIB_ROOT, executable, playBookPath, AnsibleConstant.INVENTORY_FILE, msg.getPrivateKeyFile(), JSONObjectUtil.toJsonString(arguments)),
+                        AnsibleConstant.ROOT_DIR);
+            } else {
+                output = ShellUtils.run(String.format("PYTHONPATH=%s %s %s -i %s --private-key %s -e '%s'",
+                                AnsibleConstant.ZSTACKLIB_ROOT, executable, playBookPath, AnsibleConstant.INVENTORY_FILE, msg.getPrivateKeyFile(), JSONObjectUtil.toJsonString(arguments)),
+                        AnsibleConstant.ROOT_DIR);
+            }
+
+            if (output.contains("skipping: no hosts matched")) {
+                throw new OperationFailureException(errf.stringToOperationError(output));
+            }
+
+        } catch (ShellException se) {
+            logger.warn(se.getMessage(), se);
+            throw new OperationFailureException(errf.stringToOperationError(se.getMessage()));
+        }
+    }
+
+    private boolean isBatchable(String executable) {
+        // a python playbook deploys the one host in its arguments, batching it would still run a process
+        // per host; only ansible-playbook serves all hosts of a batch by one invocation
+        return AnsibleGlobalProperty.BATCH_DEPLOY && executable.contains("ansible-playbook");
+    }
+
     private void handle(final RunAnsibleMsg msg) {
-        thdf.syncSubmit(new SyncTask<Object>() {
+        thdf.chainSubmit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return String.format("run-anisble-for-host-%s", msg.getTargetIp());
             }
 
             @Override
-            public int getSyncLevel() {
-                return 1;
+            public void run(final SyncTaskChain chain) {
+                final RunAnsibleReply reply = new RunAnsibleReply();
+                Completion completion = new Completion(msg, chain) {
+                    @Override
+                    public void success() {
+                        bus.reply(msg, reply);
+                        chain.next();
+                    }
+
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        reply.setError(errorCode);
+                        bus.reply(msg, reply);
+                        chain.next();
+                    }
+                };
+
+                Map<String, Object> arguments = buildArguments(msg);
+                String executable = msg.getAnsibleExecutable() == null ? AnsibleGlobalProperty.EXECUTABLE : msg.getAnsibleExecutable();
+                if (isBatchable(executable)) {
+                    batch(msg, arguments, executable, completion);
+                    return;
+                }
+
+                try {
+                    runAnsible(msg, arguments, executable);
+                } catch (OperationFailureException e) {
+                    completion.fail(e.getErrorCode());
+                    return;
+                }
+
+                completion.success();
             }
 
             @Override
             public String getName() {
                 return getSyncSignature();
             }
+        });
+    }
 
-            private void run(Completion completion) {
-                new PrepareAnsible().setTargetIp(msg.getTargetIp()).prepare();
+    private class Batch {
+        final String key;
+        final String playBookPath;
+        final String executable;
+        final String privateKeyFile;
+        // host ip -> arguments of the host
+        final Map<String, Map<String, Object>> hostArguments = new LinkedHashMap<String, Map<String, Object>>();
+        final Map<String, Completion> completions = new HashMap<String, Completion>();
+
+        Batch(String key, RunAnsibleMsg msg, String executable) {
+            this.key = key;
+            this.playBookPath = msg.getPlayBookPath();
+            this.executable = executable;
+            this.privateKeyFile = msg.getPrivateKeyFile();
+        }
 
-                logger.debug(String.format("start running ansible for playbook[%s]", msg.getPlayBookPath()));
-                Map<String, Object> arguments = new HashMap<String, Object>();
-                if (msg.getArguments() != null) {
-                    arguments.putAll(msg.getArguments());
-                }
-                arguments.put("host", msg.getTargetIp());
-                arguments.put("zstack_root", AnsibleGlobalProperty.ZSTACK_ROOT);
-                arguments.put("pkg_zstacklib", AnsibleGlobalProperty.ZSTACKLIB_PACKAGE_NAME);
-                arguments.putAll(getVariables());
-                String playBookPath = msg.getPlayBookPath();
-                if ( ! playBookPath.contains("py")) {
-                   arguments.put("ansible_ssh_user", arguments.get("remote_user"));
-                   arguments.put("ansible_ssh_port", arguments.get("remote_port"));
-                   arguments.put("ansible_ssh_pass", arguments.get("remote_pass"));
-                   arguments.remove("remote_user");
-                   arguments.remove("remote_pass");
-                   arguments.remove("remote_port");
-                   if  ( ! arguments.get("ansible_ssh_user").equals("root")) {
-                       arguments.put("ansible_become", "yes");
-                       arguments.put("become_user", "root");
-                       arguments.put("ansible_become_pass", arguments.get("ansible_ssh_pass"));
-                   }
-                }
-                String executable = msg.getAnsibleExecutable() == null ? AnsibleGlobalProperty.EXECUTABLE : msg.getAnsibleExecutable();
-                try {
-                    String output;
-                    if (AnsibleGlobalProperty.DEBUG_MODE2) {
-                        output = ShellUtils.run(String.format("PYTHONPATH=%s %s %s -i %s -vvvv --private-key %s -e '%s' | tee -a %s",
-                                        AnsibleConstant.ZSTACKLIB_ROOT, executable, playBookPath, AnsibleConstant.INVENTORY_FILE, msg.getPrivateKeyFile(), JSONObjectUtil.toJsonString(arguments), AnsibleConstant.LOG_PATH),
-                                AnsibleConstant.ROOT_DIR);
-                    } else if (AnsibleGlobalProperty.DEBUG_MODE) {
-                        output = ShellUtils.run(String.format("PYTHONPATH=%s %s %s -i %s -vvvv --private-key %s -e '%s'",
-                                        AnsibleConstant.ZSTACKLIB_ROOT, executable, playBookPath, AnsibleConstant.INVENTORY_FILE, msg.getPrivateKeyFile(), JSONObjectUtil.toJsonString(arguments)),
-                                AnsibleConstant.ROOT_DIR);
-                    } else {
-                        output = ShellUtils.run(String.format("PYTHONPATH=%s %s %s -i %s --private-key %s -e '%s'",
-                                        AnsibleConstant.ZSTACKLIB_ROOT, executable, playBookPath, AnsibleConstant.INVENTORY_FILE, msg.getPrivateKeyFile(), JSONObjectUtil.toJsonString(arguments)),
-                                AnsibleConstant.ROOT_DIR);
+        void submit() {
+            thdf.submit(new Task<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Map<String, ErrorCode> errors;
+                    try {
+                        errors = runBatch();
+                    } catch (Throwable t) {
+                        logger.warn(String.format("failed to run ansible for playbook[%s] on hosts%s", playBookPath, hostArguments.keySet()), t);
+                        ErrorCode err = errf.stringToOperationError(t.getMessage());
+                        errors = new HashMap<String, ErrorCode>();
+                        for (String ip : hostArguments.keySet()) {
+                            errors.put(ip, err);
+                        }
                     }
 
-                    if (output.contains("skipping: no hosts matched")) {
-                        throw new OperationFailureException(errf.stringToOperationError(output));
+                    for (Map.Entry<String, Completion> e : completions.entrySet()) {
+                        ErrorCode err = errors.get(e.getKey());
+                        if (err == null) {
+                            e.getValue().success();
+                        } else {
+                            e.getValue().fail(err);
+                        }
                     }
+                    return null;
+                }
 
-                } catch (ShellException se) {
-                    logger.warn(se.getMessage(), se);
-                    throw new OperationFailureException(errf.stringToOperationError(se.getMessage()));
+                @Override
+                public String getName() {
+                    return String.format("run-ansible-batch-%s", key);
                 }
+            });
+        }
 
-                completion.success();
+        private Map<String, ErrorCode> runBatch() throws IOException {
+            File dir = Files.createTempDirectory(Paths.get(AnsibleConstant.ROOT_DIR), "batch-").toFile();
+            try {
+                // per-host arguments are host variables next to the inventory so one run serves all hosts
+                File inventory = new File(dir, "hosts");
+                FileUtils.writeStringToFile(inventory, StringUtils.join(hostArguments.keySet(), "\n"));
+                File hostVars = new File(dir, "host_vars");
+                hostVars.mkdirs();
+                for (Map.Entry<String, Map<String, Object>> e : hostArguments.entrySet()) {
+                    FileUtils.writeStringToFile(new File(hostVars, e.getKey()), JSONObjectUtil.toJsonString(e.getValue()));
+                }
+
+                int forks = Math.min(hostArguments.size(), maxForks);
+                logger.debug(String.format("start running ansible for playbook[%s] on %s hosts with %s forks",
+                        playBookPath, hostArguments.size(), forks));
+                ShellResult ret = ShellUtils.runAndReturn(String.format("PYTHONPATH=%s %s %s -i %s %s --forks %s --private-key %s",
+                        AnsibleConstant.ZSTACKLIB_ROOT, executable, playBookPath, inventory.getAbsolutePath(),
+                        AnsibleGlobalProperty.DEBUG_MODE || AnsibleGlobalProperty.DEBUG_MODE2 ? "-vvvv" : "",
+                        forks, privateKeyFile), AnsibleConstant.ROOT_DIR, false);
+                return collectErrors(ret);
+            } finally {
+                FileUtils.deleteQuietly(dir);
             }
+        }
 
-            @Override
-            public Object call() throws Exception {
-                final RunAnsibleReply reply = new RunAnsibleReply();
-                run(new Completion(msg) {
-                    @Override
-                    public void success() {
-                        bus.reply(msg, reply);
-                    }
+        /**
+         * the lines ansible-playbook prints when the host fails, e.g. "fatal: [ip]: FAILED! => {...}" and what
+         * follows it up to the next task or host
+         */
+        private String getHostLog(String output, String ip) {
+            String tag = String.format("[%s]", ip);
+            // ok: [ip], fatal: [ip]: ..., TASK [name] ***, PLAY RECAP ***
+            Pattern entry = Pattern.compile("^(\\w+: \\[|TASK |PLAY |RUNNING HANDLER )");
+            StringBuilder sb = new StringBuilder();
+            boolean inHost = false;
+            for (String line : output.split("\n")) {
+                if (line.trim().isEmpty() || entry.matcher(line).find()) {
+                    inHost = line.contains(tag) && !line.startsWith("ok:") && !line.startsWith("changed:") && !line.startsWith("skipping:");
+                }
 
-                    @Override
-                    public void fail(ErrorCode errorCode) {
-                        reply.setError(errorCode);
-                        bus.reply(msg, reply);
-                    }
-                });
+                if (inHost) {
+                    sb.append(line).append("\n");
+                }
+            }
+            return sb.toString().trim();
+        }
+
+        private Map<String, ErrorCode> collectErrors(ShellResult ret) {
+            String output = ret.getStdout() == null ? "" : ret.getStdout();
+            // host : ok=3    changed=1    unreachable=0    failed=0
+            Pattern recap = Pattern.compile("^(\\S+)\\s*:\\s*ok=\\d+\\s+changed=\\d+\\s+unreachable=(\\d+)\\s+failed=(\\d+)");
+            Set<String> succeeded = new HashSet<String>();
+            boolean inRecap = false;
+            for (String line : output.split("\n")) {
+                if (line.startsWith("PLAY RECAP")) {
+                    inRecap = true;
+                    continue;
+                }
 
-                return null;
+                Matcher m = recap.matcher(line.trim());
+                if (inRecap && m.find() && Integer.parseInt(m.group(2)) == 0 && Integer.parseInt(m.group(3)) == 0) {
+                    succeeded.add(m.group(1));
+                }
             }
-        });
+
+            Map<String, ErrorCode> errors = new HashMap<String, ErrorCode>();
+            for (String ip : hostArguments.keySet()) {
+                if (!succeeded.contains(ip)) {
+                    String log = getHostLog(output, ip);
+                    // e.g. ansible-playbook failed before running any task
+                    errors.put(ip, errf.stringToOperationError(String.format("failed to run ansible for playbook[%s] on the host[%s], %s",
+                            playBookPath, ip, log.isEmpty() ? ret.getExecutionLog() : log)));
+                }
+            }
+
+            if (!errors.isEmpty()) {
+                logger.warn(String.format("ansible for playbook[%s] failed on hosts%s of %s hosts",
+                        playBookPath, errors.keySet(), hostArguments.size()));
+            }
+
+            return errors;
+        }
+    }
+
+    // pending batches keyed by executable, playbook and private key
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    private void batch(RunAnsibleMsg msg, Map<String, Object> arguments, String executable, Completion completion) {
+        final String key = String.format("%s-%s-%s", executable, msg.getPlayBookPath(), msg.getPrivateKeyFile());
+        final Batch batch;
+        boolean fresh = false;
+        boolean full = false;
+        synchronized (batches) {
+            Batch b = batches.get(key);
+            if (b == null) {
+                b = new Batch(key, msg, executable);
+                batches.put(key, b);
+                fresh = true;
+            }
+
+            // runs on a host are serialized by its sync signature, so a host is never twice in a batch
+            DebugUtils.Assert(!b.hostArguments.containsKey(msg.getTargetIp()), String.format("host[%s] is already in the batch", msg.getTargetIp()));
+            b.hostArguments.put(msg.getTargetIp(), arguments);
+            b.completions.put(msg.getTargetIp(), completion);
+            if (b.hostArguments.size() >= AnsibleGlobalProperty.BATCH_DEPLOY_MAX_HOSTS) {
+                batches.remove(key);
+                full = true;
+            }
+
+            batch = b;
+        }
+
+        if (full) {
+            batch.submit();
+        } else if (fresh) {
+            thdf.submitTimeoutTask(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (batches) {
+                        if (batches.get(key) != batch) {
+                            // submitted when it became full
+                            return;
+                        }
+
+                        batches.remove(key);
+                    }
+
+                    batch.submit();
+                }
+            }, TimeUnit.MILLISECONDS, AnsibleGlobalProperty.BATCH_DEPLOY_WINDOW_IN_MS);
+        }
     }
 
     @Override
@@ -23,4 +23,10 @@ public class AnsibleGlobalProperty {
     public static boolean DEBUG_MODE;
     @GlobalProperty(name = "Ansible.debugMode2", defaultValue = "false")
     public static boolean DEBUG_MODE2;
+    @GlobalProperty(name = "Ansible.batchDeploy", defaultValue = "false")
+    public static boolean BATCH_DEPLOY;
+    @GlobalProperty(name = "Ansible.batchDeployWindowInMs", defaultValue = "500")
+    public static long BATCH_DEPLOY_WINDOW_IN_MS;
+    @GlobalProperty(name = "Ansible.batchDeployMaxHosts", defaultValue = "100")
+    public static int BATCH_DEPLOY_MAX_HOSTS;
 }
@@ -225,6 +225,7 @@ public class AnsibleRunner {
         ssh.setPassword(password);
         ssh.setPort(sshPort);
         ssh.setUsername(username);
+        ssh.setPooled(true);
 
         if (privateKey != null) {
             try {
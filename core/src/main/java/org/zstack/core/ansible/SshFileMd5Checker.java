@@ -1,7 +1,6 @@
 package org.zstack.core.ansible;
 
-import org.zstack.utils.ShellResult;
-import org.zstack.utils.ShellUtils;
+import org.zstack.utils.Digest;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.path.PathUtil;
@@ -35,36 +34,40 @@ public class SshFileMd5Checker implements AnsibleChecker {
 
     public static final String ZSTACKLIB_SRC_PATH = PathUtil.findFileOnClassPath(String.format("ansible/zstacklib/%s", AnsibleGlobalProperty.ZSTACKLIB_PACKAGE_NAME), true).getAbsolutePath();
 
+    private Ssh newSsh() {
+        return new Ssh().setUsername(username).setPrivateKey(privateKey)
+                .setPassword(password).setPort(sshPort)
+                .setHostname(targetIp).setPooled(true);
+    }
+
     @Override
     public boolean needDeploy() {
-        Ssh ssh = new Ssh();
-        ssh.setUsername(username).setPrivateKey(privateKey)
-                .setPassword(password).setPort(sshPort)
-                .setHostname(targetIp);
-        try {
-            for (SrcDestPair b : srcDestPairs) {
-                String sourceFilePath = b.srcPath;
-                String destFilePath = b.destPath;
-
-                ssh.command(String.format("md5sum %s", destFilePath));
-                SshResult ret = ssh.run();
-                if (ret.getReturnCode() != 0) {
-                    return true;
-                }
-                ssh.reset();
-
-                String destMd5 =  ret.getStdout().split(" ")[0];
-                ShellResult sret = ShellUtils.runAndReturn(String.format("md5sum %s", sourceFilePath));
-                sret.raiseExceptionIfFail();
-                String srcMd5 = sret.getStdout().split(" ")[0];
-                if (!destMd5.equals(srcMd5)) {
-                    logger.debug(String.format("file MD5 changed, src[%s, md5:%s] dest[%s, md5, %s]", sourceFilePath,
-                            srcMd5, destFilePath, destMd5));
-                    return true;
-                }
+        if (srcDestPairs.isEmpty()) {
+            return false;
+        }
+
+        // md5sum of all dest files in one command, it fails if any of them is missing
+        StringBuilder cmd = new StringBuilder("md5sum");
+        for (SrcDestPair b : srcDestPairs) {
+            cmd.append(" ").append(b.destPath);
+        }
+
+        SshResult ret = newSsh().command(cmd.toString()).runAndClose();
+        if (ret.getReturnCode() != 0) {
+            return true;
+        }
+
+        String[] lines = ret.getStdout().split("\n");
+        for (int i = 0; i < srcDestPairs.size(); i++) {
+            SrcDestPair b = srcDestPairs.get(i);
+            String destMd5 = i < lines.length ? lines[i].split(" ")[0] : null;
+            // the local artifacts are the same for all hosts, don't hash them again for each host
+            String srcMd5 = Digest.getCachedMD5(b.srcPath);
+            if (!srcMd5.equals(destMd5)) {
+                logger.debug(String.format("file MD5 changed, src[%s, md5:%s] dest[%s, md5, %s]", b.srcPath,
+                        srcMd5, b.destPath, destMd5));
+                return true;
             }
-        } finally {
-            ssh.close();
         }
 
         return false;
@@ -74,10 +77,7 @@ public class SshFileMd5Checker implements AnsibleChecker {
     public void deleteDestFile() {
         for (SrcDestPair b : srcDestPairs) {
             String destFilePath = b.destPath;
-            Ssh ssh = new Ssh();
-            ssh.setUsername(username).setPrivateKey(privateKey)
-                    .setPassword(password).setPort(sshPort)
-                    .setHostname(targetIp).command(String.format("rm -f %s", destFilePath)).runAndClose();
+            newSsh().command(String.format("rm -f %s", destFilePath)).runAndClose();
             logger.debug(String.format("delete dest file[%s]", destFilePath));
         }
     }
@@ -0,0 +1,436 @@
+package org.zstack.core.cloudbus;
+
+import com.rabbitmq.client.*;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Publishes messages in batches on a dedicated channel in publisher-confirm mode.
+ *
+ * publish() only enqueues the message and returns; a flusher thread collects what arrives within the
+ * batch window (or until the batch size is reached), groups it by exchange and routing key and publishes
+ * the whole batch back to back, then waits for the confirms of the batch before the next one. Confirms
+ * are resolved against the map of outstanding sequence numbers. Nacked publishes, and ones failed or
+ * unconfirmed when the channel shuts down, are queued again in their original order ahead of newer
+ * messages, so messages of a routing key are not reordered by the retry. Only a message acked in the
+ * same batch after a nacked one of the same routing key can overtake it.
+ *
+ * A message not confirmed in the confirm timeout is given up, it's not published any more if still
+ * queued, and its PublishCallback is failed.
+ *
+ * The return listener and the callbacks run on a callback thread of the publisher instead of the
+ * connection's I/O thread, they are free to publish again.
+ */
+public class BatchingPublisher {
+    private static final CLogger logger = Utils.getLogger(BatchingPublisher.class);
+
+    // upper bounds of histogram buckets, the last bucket collects everything above
+    private static final long[] BATCH_SIZE_BUCKETS = {1, 4, 16, 64, 256};
+    private static final long[] LATENCY_BUCKETS_IN_MILLIS = {1, 5, 20, 100, 1000};
+
+    public interface PublishCallback {
+        /**
+         * called on the callback thread of the publisher when the broker doesn't confirm the message
+         * in the confirm timeout
+         */
+        void fail(String reason);
+    }
+
+    private static class Publish implements Comparable<Publish> {
+        final long order;
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties props;
+        final byte[] data;
+        final PublishCallback callback;
+        final long enqueueTime = System.nanoTime();
+        // counted down every time the broker acks or nacks the publish, replaced before each try
+        volatile CountDownLatch confirmLatch;
+        volatile boolean cancelled;
+
+        Publish(long order, String exchange, String routingKey, AMQP.BasicProperties props, byte[] data, PublishCallback callback) {
+            this.order = order;
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.data = data;
+            this.callback = callback;
+        }
+
+        @Override
+        public int compareTo(Publish o) {
+            return Long.compare(order, o.order);
+        }
+    }
+
+    private final Channel channel;
+    private final int batchSize;
+    private final long windowNanos;
+    private final long confirmTimeoutInMillis;
+    private final AtomicLong orderGenerator = new AtomicLong();
+    // ordered by when the messages are published, so ones queued again go ahead of newer ones
+    private final PriorityBlockingQueue<Publish> queue = new PriorityBlockingQueue<>();
+    private final ConcurrentSkipListMap<Long, Publish> unconfirmed = new ConcurrentSkipListMap<>();
+    private final Thread flusher;
+    // runs the return listener and the callbacks off the connection's I/O thread
+    private final ExecutorService callbackExecutor;
+    private volatile boolean stopped;
+
+    private final AtomicLongArray batchSizeHistogram = new AtomicLongArray(BATCH_SIZE_BUCKETS.length + 1);
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS_IN_MILLIS.length + 1);
+
+    BatchingPublisher(Connection conn, ReturnListener returnListener, int batchSize, long windowInMillis, long confirmTimeoutInMillis) {
+        this(createChannel(conn), returnListener, batchSize, windowInMillis, confirmTimeoutInMillis);
+    }
+
+    public BatchingPublisher(Channel chan, ReturnListener returnListener, int batchSize, long windowInMillis, long confirmTimeoutInMillis) {
+        this.channel = chan;
+        this.batchSize = batchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowInMillis);
+        this.confirmTimeoutInMillis = confirmTimeoutInMillis;
+        this.callbackExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "zs-cloudbus-batch-publisher-callback");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            channel.confirmSelect();
+            if (returnListener != null) {
+                channel.addReturnListener(new ReturnListener() {
+                    @Override
+                    public void handleReturn(final int replyCode, final String replyText, final String exchange, final String routingKey,
+                                             final AMQP.BasicProperties properties, final byte[] body) throws IOException {
+                        runCallback(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    returnListener.handleReturn(replyCode, replyText, exchange, routingKey, properties, body);
+                                } catch (IOException e) {
+                                    logger.warn(e.getMessage(), e);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+            channel.addConfirmListener(new ConfirmListener() {
+                @Override
+                public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+                    for (Publish p : confirmed(deliveryTag, multiple)) {
+                        record(latencyHistogram, LATENCY_BUCKETS_IN_MILLIS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - p.enqueueTime));
+                        p.confirmLatch.countDown();
+                    }
+                }
+
+                @Override
+                public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+                    List<Publish> nacked = confirmed(deliveryTag, multiple);
+                    logger.warn(String.format("the broker nacked %s messages, publish them again", nacked.size()));
+                    retry(nacked);
+                }
+            });
+            channel.addShutdownListener(new ShutdownListener() {
+                @Override
+                public void shutdownCompleted(ShutdownSignalException cause) {
+                    // delivery tags restart on a recovered channel, outstanding confirms will never come
+                    List<Publish> lost = confirmed(Long.MAX_VALUE, true);
+                    if (!lost.isEmpty()) {
+                        logger.warn(String.format("the publisher channel is shut down with %s messages unconfirmed, publish them again", lost.size()));
+                        retry(lost);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new CloudRuntimeException(e);
+        }
+
+        flusher = new Thread(this::runFlusher, "zs-cloudbus-batch-publisher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private static Channel createChannel(Connection conn) {
+        try {
+            return conn.createChannel();
+        } catch (IOException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    public void publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] data) {
+        publish(exchange, routingKey, props, data, null);
+    }
+
+    /**
+     * never blocks, the callback is failed if the broker doesn't confirm the message in the confirm timeout
+     */
+    public void publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] data, PublishCallback callback) {
+        queue.add(new Publish(orderGenerator.incrementAndGet(), exchange, routingKey, props, data, callback));
+    }
+
+    private void runCallback(Runnable r) {
+        try {
+            callbackExecutor.execute(r);
+        } catch (RejectedExecutionException e) {
+            logger.warn("the publisher is destroyed, drop the callback");
+        }
+    }
+
+    private boolean isExpired(Publish p) {
+        return System.nanoTime() - p.enqueueTime > TimeUnit.MILLISECONDS.toNanos(confirmTimeoutInMillis);
+    }
+
+    private void giveUp(final Publish p) {
+        p.cancelled = true;
+        if (p.callback == null) {
+            return;
+        }
+
+        runCallback(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    p.callback.fail(String.format("the broker didn't confirm the message published to %s with routing key %s in %sms",
+                            p.exchange, p.routingKey, confirmTimeoutInMillis));
+                } catch (Throwable t) {
+                    logger.warn("unhandled throwable", t);
+                }
+            }
+        });
+    }
+
+    private void requeue(List<Publish> ps) {
+        for (Publish p : ps) {
+            if (!p.cancelled) {
+                queue.add(p);
+            }
+        }
+    }
+
+    // queued again before the flusher waiting for the confirms is released, so they go ahead of the next batch
+    private void retry(List<Publish> ps) {
+        List<CountDownLatch> latches = new ArrayList<>(ps.size());
+        for (Publish p : ps) {
+            latches.add(p.confirmLatch);
+        }
+
+        requeue(ps);
+        for (CountDownLatch l : latches) {
+            l.countDown();
+        }
+    }
+
+    private List<Publish> confirmed(long deliveryTag, boolean multiple) {
+        List<Publish> ret = new ArrayList<>();
+        if (multiple) {
+            Map<Long, Publish> head = unconfirmed.headMap(deliveryTag, true);
+            ret.addAll(head.values());
+            head.clear();
+        } else {
+            Publish p = unconfirmed.remove(deliveryTag);
+            if (p != null) {
+                ret.add(p);
+            }
+        }
+
+        return ret;
+    }
+
+    private static void record(AtomicLongArray histogram, long[] buckets, long value) {
+        int i = 0;
+        while (i < buckets.length && value > buckets[i]) {
+            i++;
+        }
+        histogram.incrementAndGet(i);
+    }
+
+    private Publish take(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            Publish p = queue.poll(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+            if (p == null) {
+                return null;
+            }
+
+            if (p.cancelled) {
+                continue;
+            }
+
+            if (isExpired(p)) {
+                giveUp(p);
+                continue;
+            }
+
+            return p;
+        }
+    }
+
+    private List<Publish> collectBatch() throws InterruptedException {
+        Publish first = take(1, TimeUnit.SECONDS);
+        if (first == null) {
+            return Collections.emptyList();
+        }
+
+        List<Publish> batch = new ArrayList<>(batchSize);
+        batch.add(first);
+
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < batchSize) {
+            Publish p = take(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (p == null) {
+                break;
+            }
+
+            batch.add(p);
+        }
+
+        return batch;
+    }
+
+    /**
+     * @return publishes of the batch not handed to the broker because of a failure
+     */
+    private List<Publish> flush(List<Publish> batch) {
+        Map<String, List<Publish>> groups = new LinkedHashMap<>();
+        for (Publish p : batch) {
+            String key = p.exchange + "/" + p.routingKey;
+            List<Publish> g = groups.get(key);
+            if (g == null) {
+                g = new ArrayList<>();
+                groups.put(key, g);
+            }
+            g.add(p);
+        }
+
+        List<Publish> ordered = new ArrayList<>(batch.size());
+        for (List<Publish> g : groups.values()) {
+            ordered.addAll(g);
+        }
+
+        record(batchSizeHistogram, BATCH_SIZE_BUCKETS, batch.size());
+
+        for (Publish p : ordered) {
+            p.confirmLatch = new CountDownLatch(1);
+        }
+
+        for (int i = 0; i < ordered.size(); i++) {
+            Publish p = ordered.get(i);
+            long seq = -1;
+            try {
+                seq = channel.getNextPublishSeqNo();
+                unconfirmed.put(seq, p);
+                channel.basicPublish(p.exchange, p.routingKey, true, p.props, p.data);
+            } catch (Throwable t) {
+                if (seq != -1) {
+                    confirmed(seq, false);
+                }
+
+                logger.warn(String.format("failed to publish a batch of %s messages, %s of them will be published again",
+                        ordered.size(), ordered.size() - i), t);
+                List<Publish> failed = ordered.subList(i, ordered.size());
+                for (Publish f : failed) {
+                    f.confirmLatch.countDown();
+                }
+                waitForConfirms(ordered.subList(0, i));
+                return failed;
+            }
+        }
+
+        waitForConfirms(ordered);
+        return Collections.emptyList();
+    }
+
+    // the next batch is not published before this one is confirmed, so it can't overtake messages nacked here
+    private void waitForConfirms(List<Publish> ps) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(confirmTimeoutInMillis);
+        for (Publish p : ps) {
+            try {
+                if (p.confirmLatch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                if (stopped) {
+                    return;
+                }
+            }
+
+            int num = 0;
+            for (Publish u : ps) {
+                if (u.confirmLatch.getCount() > 0 && unconfirmed.values().remove(u)) {
+                    giveUp(u);
+                    num++;
+                }
+            }
+            logger.warn(String.format("%s messages are not confirmed in %sms, give up waiting for them", num, confirmTimeoutInMillis));
+            return;
+        }
+    }
+
+    private void runFlusher() {
+        while (!stopped) {
+            List<Publish> batch;
+            try {
+                batch = collectBatch();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            List<Publish> failed = flush(batch);
+            if (!failed.isEmpty()) {
+                requeue(failed);
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private static Map<String, Long> toMap(AtomicLongArray histogram, long[] buckets, String unit) {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        long lower = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            ret.put(String.format("%s-%s%s", lower, buckets[i], unit), histogram.get(i));
+            lower = buckets[i] + 1;
+        }
+        ret.put(String.format(">%s%s", buckets[buckets.length - 1], unit), histogram.get(buckets.length));
+        return ret;
+    }
+
+    public PublisherStatistic getStatistic() {
+        return new PublisherStatistic(
+                queue.size(),
+                unconfirmed.size(),
+                toMap(batchSizeHistogram, BATCH_SIZE_BUCKETS, ""),
+                toMap(latencyHistogram, LATENCY_BUCKETS_IN_MILLIS, "ms")
+        );
+    }
+
+    public void destruct() {
+        stopped = true;
+        flusher.interrupt();
+        callbackExecutor.shutdown();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            channel.abort();
+        }
+    }
+}
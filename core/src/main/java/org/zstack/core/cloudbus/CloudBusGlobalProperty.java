@@ -37,6 +37,34 @@ public class CloudBusGlobalProperty {
     public static int RABBITMQ_NETWORK_RECOVER_INTERVAL;
     @GlobalProperty(name="CloudBus.compressNonApiMessage", defaultValue = "false")
     public static boolean COMPRESS_NON_API_MESSAGE;
+    /**
+     * content-type of the codec encoding outbound messages, see MessageCodec
+     */
+    @GlobalProperty(name="CloudBus.wireCodec", defaultValue = JsonMessageCodec.CONTENT_TYPE)
+    public static String WIRE_CODEC;
+    @GlobalProperty(name="CloudBus.batchPublish", defaultValue = "false")
+    public static boolean BATCH_PUBLISH;
+    @GlobalProperty(name="CloudBus.batchPublishSize", defaultValue = "200")
+    public static int BATCH_PUBLISH_SIZE;
+    @GlobalProperty(name="CloudBus.batchPublishWindowInMillis", defaultValue = "2")
+    public static long BATCH_PUBLISH_WINDOW_IN_MILLIS;
+    /**
+     * how long a batched message may wait for the broker's confirm before it's given up, send() and publish()
+     * don't wait for it; the message is then failed with an error reply if it's waiting for one
+     */
+    @GlobalProperty(name="CloudBus.batchPublishConfirmTimeoutInMillis", defaultValue = "30000")
+    public static long BATCH_PUBLISH_CONFIRM_TIMEOUT_IN_MILLIS;
+    /**
+     * see ResourceDestinationHashType
+     */
+    @GlobalProperty(name="CloudBus.resourceDestinationHash", defaultValue = "ConsistentHash")
+    public static String RESOURCE_DESTINATION_HASH;
+    @GlobalProperty(name="CloudBus.resourceDestinationPartitionNum", defaultValue = "16384")
+    public static int RESOURCE_DESTINATION_PARTITION_NUM;
+    @GlobalProperty(name="CloudBus.resourceDestinationLoadFactor", defaultValue = "1.1")
+    public static double RESOURCE_DESTINATION_LOAD_FACTOR;
+    @GlobalProperty(name="CloudBus.resourceDestinationCacheSize", defaultValue = "100000")
+    public static int RESOURCE_DESTINATION_CACHE_SIZE;
     @GlobalProperty(name="CloudBus.channelPoolSize", defaultValue = "100")
     public static int CHANNEL_POOL_SIZE;
     @GlobalProperty(name="CloudBus.messageTTL", defaultValue = "300")
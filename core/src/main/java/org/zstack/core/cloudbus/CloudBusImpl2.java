@@ -58,6 +58,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private Connection conn;
     private BusQueue outboundQueue;
     private ChannelPool channelPool;
+    private BatchingPublisher batchingPublisher;
 
     @Autowired
     private ResourceDestinationMaker destMaker;
@@ -148,6 +149,34 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private class ChannelPool {
         BlockingQueue<Channel> pool;
 
+        private final ReturnListener returnListener = new ReturnListener() {
+            @Override
+            public void handleReturn(int i, String s, String s2, String s3, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
+                try {
+                    Message msg = wire.toMessage(bytes, basicProperties);
+                    if (msg instanceof NeedReplyMessage) {
+                        Envelope e = envelopes.get(msg.getId());
+                        if (e == null) {
+                            retry(msg);
+                            logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
+                                    msg.getServiceId(), wire.dumpMessage(msg)));
+                        } else {
+                            MessageReply reply = new MessageReply();
+                            reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR,
+                                    String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if any consumers on that queue", msg.getServiceId())));
+                            e.ack(reply);
+                        }
+                    } else {
+                        retry(msg);
+                        logger.warn(String.format("unable to deliver an event; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
+                                wire.dumpMessage(msg)));
+                    }
+                } catch (Throwable t) {
+                    logger.warn("unhandled throwable", t);
+                }
+            }
+        };
+
         @AsyncThread
         private void retry(Message msg) {
             try {
@@ -169,33 +198,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 for (int i = 0; i < size; i++) {
                     Channel chan = connection.createChannel();
                     pool.add(chan);
-                    chan.addReturnListener(new ReturnListener() {
-                        @Override
-                        public void handleReturn(int i, String s, String s2, String s3, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
-                            try {
-                                Message msg = wire.toMessage(bytes, basicProperties);
-                                if (msg instanceof NeedReplyMessage) {
-                                    Envelope e = envelopes.get(msg.getId());
-                                    if (e == null) {
-                                        retry(msg);
-                                        logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
-                                                msg.getServiceId(), wire.dumpMessage(msg)));
-                                    } else {
-                                        MessageReply reply = new MessageReply();
-                                        reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR,
-                                                String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if any consumers on that queue", msg.getServiceId())));
-                                        e.ack(reply);
-                                    }
-                                } else {
-                                    retry(msg);
-                                    logger.warn(String.format("unable to deliver an event; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
-                                            wire.dumpMessage(msg)));
-                                }
-                            } catch (Throwable t) {
-                                logger.warn("unhandled throwable", t);
-                            }
-                        }
-                    });
+                    chan.addReturnListener(returnListener);
                 }
                 logger.debug(String.format("created channel pool with size[%s]", CloudBusGlobalProperty.CHANNEL_POOL_SIZE));
             } catch (Exception e) {
@@ -390,15 +393,38 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 }
         }).create();
 
+        private final Map<String, MessageCodec> codecs = new HashMap<String, MessageCodec>();
+        private final MessageCodec defaultCodec = new JsonMessageCodec(gson);
+        private final MessageCodec outboundCodec;
+
+        {
+            codecs.put(defaultCodec.getContentType(), defaultCodec);
+            MessageCodec streaming = new StreamingJsonMessageCodec(gson);
+            codecs.put(streaming.getContentType(), streaming);
+
+            outboundCodec = codecs.get(CloudBusGlobalProperty.WIRE_CODEC);
+            if (outboundCodec == null) {
+                throw new CloudRuntimeException(String.format("unknown CloudBus.wireCodec[%s], valid values are %s",
+                        CloudBusGlobalProperty.WIRE_CODEC, codecs.keySet()));
+            }
+        }
+
+        private MessageCodec getCodec(AMQP.BasicProperties basicProperties) {
+            MessageCodec codec = basicProperties.getContentType() == null ? null : codecs.get(basicProperties.getContentType());
+            return codec == null ? defaultCodec : codec;
+        }
+
         private class RecoverableSend {
             Channel chan;
             byte[] data;
             String serviceId;
             Message msg;
+            AMQP.BasicProperties props;
             BusExchange exchange;
 
             RecoverableSend(Channel chan, Message msg, String serviceId, BusExchange exchange) throws IOException {
                 data = compressMessageIfNeeded(msg);
+                props = msg.getAMQPProperties().builder().contentType(outboundCodec.getContentType()).build();
                 this.chan = chan;
                 this.serviceId = serviceId;
                 this.msg = msg;
@@ -408,7 +434,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             void send() throws IOException {
                 try {
                     chan.basicPublish(exchange.toString(), serviceId,
-                            true, msg.getAMQPProperties(), data);
+                            true, props, data);
                 } catch (ShutdownSignalException e) {
                     if (!(conn instanceof AutorecoveringConnection) || serverIps.size() <= 1 || !Platform.IS_RUNNING) {
                         // the connection is not recoverable
@@ -426,11 +452,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
             private byte[] compressMessageIfNeeded(Message msg) throws IOException {
                 if (!CloudBusGlobalProperty.COMPRESS_NON_API_MESSAGE || msg instanceof APIEvent || msg instanceof APIMessage) {
-                    return gson.toJson(msg, Message.class).getBytes();
+                    return outboundCodec.encode(msg, false);
                 }
 
                 msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__COMPRESSED, "true");
-                return Compresser.deflate(gson.toJson(msg, Message.class).getBytes());
+                return outboundCodec.encode(msg, true);
             }
 
             private boolean recoverSend() throws IOException {
@@ -460,7 +486,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
                     try {
                         chan.basicPublish(exchange.toString(), serviceId,
-                                true, msg.getAMQPProperties(), data);
+                                true, props, data);
                         return true;
                     } catch (ShutdownSignalException e) {
                         logger.warn(String.format("recoverable send fails %s times, will continue to retry %s times; %s",
@@ -528,6 +554,28 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
+        private void batchPublish(final Message msg, String routingKey, BusExchange exchange) {
+            try {
+                RecoverableSend s = new RecoverableSend(null, msg, routingKey, exchange);
+                batchingPublisher.publish(exchange.toString(), routingKey, s.props, s.data, new BatchingPublisher.PublishCallback() {
+                    @Override
+                    public void fail(String reason) {
+                        Envelope e = msg instanceof NeedReplyMessage ? envelopes.get(msg.getId()) : null;
+                        if (e == null) {
+                            logger.warn(String.format("%s; message dump:\n%s", reason, wire.dumpMessage(msg)));
+                            return;
+                        }
+
+                        MessageReply reply = new MessageReply();
+                        reply.setError(errf.instantiateErrorCode(SysErrors.OPERATION_ERROR, reason));
+                        e.ack(reply);
+                    }
+                });
+            } catch (IOException e) {
+                throw new CloudRuntimeException(e);
+            }
+        }
+
         private void buildSchema(Message msg) {
             msg.putHeaderEntry("schema", MessageJsonSchemaBuilder.buildSchema(msg));
         }
@@ -548,6 +596,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 logger.trace(String.format("[msg send]: %s", wire.dumpMessage(msg)));
             }
 
+            if (batchingPublisher != null) {
+                batchPublish(msg, serviceId, outboundQueue.getBusExchange());
+                return;
+            }
+
             Channel chan = channelPool.acquire();
             try {
                 new RecoverableSend(chan, msg, serviceId, outboundQueue.getBusExchange()).send();
@@ -574,6 +627,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 logger.trace(String.format("[event publish]: %s", wire.dumpMessage(evt)));
             }
 
+            if (batchingPublisher != null) {
+                batchPublish(evt, evt.getType().toString(), BusExchange.BROADCAST);
+                return;
+            }
+
             Channel chan = channelPool.acquire();
             try {
                 new RecoverableSend(chan, evt, evt.getType().toString(), BusExchange.BROADCAST).send();
@@ -613,13 +671,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             return exp;
         }
 
-        private void restoreFromSchema(Message msg, byte[] binary) throws ClassNotFoundException {
+        private void restoreFromSchema(Message msg, MessageCodec codec, byte[] binary, boolean compressed) throws ClassNotFoundException, IOException {
             Map<String, List<String>> schema = msg.getHeaderEntry("schema");
-            if (schema == null) {
+            if (schema == null || schema.isEmpty()) {
                 return;
             }
 
-            Map raw = JSONObjectUtil.toObject(new String(binary), LinkedHashMap.class);
+            Map raw = codec.decodeRaw(binary, compressed);
             raw = (Map) raw.values().iterator().next();
             for (Map.Entry<String, List<String>> e : schema.entrySet()) {
                 String rawClassName = e.getKey();
@@ -683,18 +741,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             watch.start();
             */
             try {
-                byte[] data;
-                if (basicProperties.getHeaders() != null && basicProperties.getHeaders().containsKey(AMQP_PROPERTY_HEADER__COMPRESSED)) {
-                    data = Compresser.inflate(binary);
-                } else {
-                    data = binary;
-                }
-
-                Message msg = gson.fromJson(new String(data), Message.class);
+                boolean compressed = basicProperties.getHeaders() != null && basicProperties.getHeaders().containsKey(AMQP_PROPERTY_HEADER__COMPRESSED);
+                MessageCodec codec = getCodec(basicProperties);
+                Message msg = codec.decode(binary, compressed);
                 msg.setAMQPProperties(basicProperties);
 
                 try {
-                    restoreFromSchema(msg, data);
+                    restoreFromSchema(msg, codec, binary, compressed);
                 } catch (Exception e) {
                     logger.warn(String.format("error to restore the msg:\n%s", JSONObjectUtil.toJsonString(msg)), e);
                     throw new CloudRuntimeException(e);
@@ -1210,6 +1263,10 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             });
 
             channelPool = new ChannelPool(CloudBusGlobalProperty.CHANNEL_POOL_SIZE, conn);
+            if (CloudBusGlobalProperty.BATCH_PUBLISH) {
+                batchingPublisher = new BatchingPublisher(conn, channelPool.returnListener, CloudBusGlobalProperty.BATCH_PUBLISH_SIZE,
+                        CloudBusGlobalProperty.BATCH_PUBLISH_WINDOW_IN_MILLIS, CloudBusGlobalProperty.BATCH_PUBLISH_CONFIRM_TIMEOUT_IN_MILLIS);
+            }
             createExchanges();
             outboundQueue = new BusQueue(makeMessageQueueName(SERVICE_ID), BusExchange.P2P);
             Channel chan = channelPool.acquire();
@@ -2457,6 +2514,9 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             @Override
             public void run() {
                 try {
+                    if (batchingPublisher != null) {
+                        batchingPublisher.destruct();
+                    }
                     channelPool.destruct();
                 } catch (IOException e) {
                     throw new CloudRuntimeException(e);
@@ -2513,6 +2573,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         return ret;
     }
 
+    @Override
+    public PublisherStatistic getPublisherStatistic() {
+        return batchingPublisher == null ? null : batchingPublisher.getStatistic();
+    }
+
     @Override
     public WaitingMessageSummaryStatistic getWaitingReplyMessageSummaryStatistic() {
         List<WaitingReplyMessageStatistic> ret = getWaitingReplyMessageStatistic();
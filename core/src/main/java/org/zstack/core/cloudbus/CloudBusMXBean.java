@@ -11,4 +11,6 @@ public interface CloudBusMXBean {
     List<WaitingReplyMessageStatistic> getWaitingReplyMessageStatistic();
 
     WaitingMessageSummaryStatistic getWaitingReplyMessageSummaryStatistic();
+
+    PublisherStatistic getPublisherStatistic();
 }
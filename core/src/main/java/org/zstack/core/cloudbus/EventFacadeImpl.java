@@ -19,32 +19,60 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
     @Autowired
     private CloudBus bus;
 
-    private final Map<String, CallbackWrapper> global = Collections.synchronizedMap(new HashMap<>());
-    private final Map<String, CallbackWrapper> local =  Collections.synchronizedMap(new HashMap<>());
+    private final EventPathIndex<CallbackWrapper> global = new EventPathIndex<>();
+    private final EventPathIndex<CallbackWrapper> local = new EventPathIndex<>();
 
     private EventSubscriberReceipt unsubscriber;
 
     private class CallbackWrapper {
         String path;
         String glob;
+        String regex;
+        // positions of '{token}' segments in the path
+        List<Integer> tokenIndexes = new ArrayList<>();
+        List<String> tokenNames = new ArrayList<>();
         AbstractEventFacadeCallback callback;
         AtomicBoolean hasRun;
 
         CallbackWrapper(String path, AbstractEventFacadeCallback callback) {
             this.path = path;
-            this.glob = createRegexFromGlob(path.replaceAll("\\{.*\\}", ".*"));
+            this.glob = path.replaceAll("\\{.*\\}", ".*");
+            this.regex = createRegexFromGlob(glob);
             this.callback = callback;
             if (callback instanceof AutoOffEventCallback) {
                 hasRun = new AtomicBoolean(false);
             }
+
+            StringTokenizer token = new StringTokenizer(path, "/");
+            for (int i = 0; token.hasMoreTokens(); i++) {
+                String key = token.nextToken();
+                if (key.startsWith("{") && key.endsWith("}")) {
+                    tokenIndexes.add(i);
+                    tokenNames.add(key.replaceAll("\\{", "").replaceAll("\\}", ""));
+                }
+            }
         }
 
-        Object getIdentity() {
-            return callback;
+        private Map<String, String> tokenize(String eventPath) {
+            Map<String, String> ret = new HashMap<>();
+            if (tokenIndexes.isEmpty()) {
+                return ret;
+            }
+
+            List<String> origins = new ArrayList<>();
+            StringTokenizer token = new StringTokenizer(eventPath, "/");
+            while (token.hasMoreElements()) {
+                origins.add(token.nextToken());
+            }
+
+            for (int i = 0; i < tokenIndexes.size() && tokenIndexes.get(i) < origins.size(); i++) {
+                ret.put(tokenNames.get(i), origins.get(tokenIndexes.get(i)));
+            }
+            return ret;
         }
 
-        public String getGlob() {
-            return glob;
+        Object getIdentity() {
+            return callback;
         }
 
         @AsyncThread
@@ -52,7 +80,7 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
             if (callback instanceof EventRunnable) {
                 ((EventRunnable) callback).run();
             } else {
-                Map<String, String> tokens = tokenize(e.getPath(), path);
+                Map<String, String> tokens = tokenize(e.getPath());
                 tokens.put(EventFacade.META_DATA_MANAGEMENT_NODE_ID, e.getManagementNodeId());
                 Object data = null;
                 if (e.getContent() != null) {
@@ -93,46 +121,23 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
         return out;
     }
 
-    private Map<String, String> tokenize(String str1, String str2) {
-        StringTokenizer token = new StringTokenizer(str1, "/");
-        List<String> origins =  new ArrayList<String>();
-        while (token.hasMoreElements()) {
-            origins.add(token.nextToken());
-        }
-
-        token = new StringTokenizer(str2, "/");
-        List<String> t = new ArrayList<String>();
-        while (token.hasMoreElements()) {
-            t.add(token.nextToken());
-        }
-
-        Map ret = new HashMap();
-        for (int i=0;i<t.size(); i++) {
-            String key = t.get(i);
-            if (!key.startsWith("{") || !key.endsWith("}")) {
-                continue;
-            }
-
-            key = key.replaceAll("\\{", "").replaceAll("\\}", "");
-            ret.put(key, origins.get(i));
-        }
-
-        return ret;
+    private void subscribe(EventPathIndex<CallbackWrapper> index, CallbackWrapper w) {
+        index.add(w.callback.uniqueIdentity, w.glob, w.regex, w);
     }
 
     @Override
     public void on(String path, AutoOffEventCallback cb) {
-        global.put(cb.uniqueIdentity, new CallbackWrapper(path, cb));
+        subscribe(global, new CallbackWrapper(path, cb));
     }
 
     @Override
     public void on(String path, final EventCallback cb) {
-        global.put(cb.uniqueIdentity, new CallbackWrapper(path, cb));
+        subscribe(global, new CallbackWrapper(path, cb));
     }
 
     @Override
     public void on(String path, EventRunnable cb) {
-        global.put(cb.uniqueIdentity, new CallbackWrapper(path, cb));
+        subscribe(global, new CallbackWrapper(path, cb));
     }
 
     @Override
@@ -143,17 +148,17 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
 
     @Override
     public void onLocal(String path, AutoOffEventCallback cb) {
-        local.put(cb.uniqueIdentity, new CallbackWrapper(path, cb));
+        subscribe(local, new CallbackWrapper(path, cb));
     }
 
     @Override
     public void onLocal(String path, EventCallback cb) {
-        local.put(cb.uniqueIdentity, new CallbackWrapper(path, cb));
+        subscribe(local, new CallbackWrapper(path, cb));
     }
 
     @Override
     public void onLocal(String path, EventRunnable cb) {
-        local.put(cb.uniqueIdentity, new CallbackWrapper(path, cb));
+        subscribe(local, new CallbackWrapper(path, cb));
     }
 
     @Override
@@ -178,13 +183,8 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
     }
 
     private void fireLocal(CanonicalEvent cevt) {
-        Map<String, CallbackWrapper> wrappers = new HashMap<>();
-        wrappers.putAll(local);
-
-        for (CallbackWrapper w : wrappers.values()) {
-            if (cevt.getPath().matches(w.getGlob())) {
-                w.call(cevt);
-            }
+        for (CallbackWrapper w : local.match(cevt.getPath())) {
+            w.call(cevt);
         }
     }
 
@@ -200,12 +200,8 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
         }
 
         CanonicalEvent cevt = (CanonicalEvent)evt;
-        Map<String, CallbackWrapper> wrappers = new HashMap<>();
-        wrappers.putAll(global);
-        for (CallbackWrapper w : wrappers.values()) {
-            if (cevt.getPath().matches(w.getGlob())) {
-                w.call(cevt);
-            }
+        for (CallbackWrapper w : global.match(cevt.getPath())) {
+            w.call(cevt);
         }
 
         return false;
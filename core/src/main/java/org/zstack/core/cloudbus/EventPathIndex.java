@@ -0,0 +1,173 @@
+package org.zstack.core.cloudbus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Indexes canonical event subscriptions by path so an event is only matched against
+ * subscriptions that can match it.
+ *
+ * A subscription without wildcards is looked up by its path. Others are put in a trie of
+ * path segments at the end of their leading literal segments, so an event only tests the
+ * compiled patterns found along its own segments. Most subscriptions are literal paths,
+ * matching an event costs a map lookup plus a walk as deep as the event path.
+ *
+ * add() and remove() are serialized, match() doesn't lock.
+ */
+public class EventPathIndex<T> {
+    // characters keeping a segment of a glob from being compared literally, the glob is used as a regex
+    private static final String NON_LITERAL_CHARS = "*?.[]()+^$|{}\\";
+
+    private static class Node<T> {
+        final Node<T> parent;
+        final String segment;
+        final Map<String, Node<T>> children = new ConcurrentHashMap<String, Node<T>>();
+        final Map<Object, Subscription<T>> patterns = new ConcurrentHashMap<Object, Subscription<T>>();
+
+        Node(Node<T> parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+    }
+
+    private static class Subscription<T> {
+        final Object id;
+        final T value;
+        final String path;
+        final Pattern pattern;
+        final Node<T> node;
+
+        Subscription(Object id, T value, String path, Pattern pattern, Node<T> node) {
+            this.id = id;
+            this.value = value;
+            this.path = path;
+            this.pattern = pattern;
+            this.node = node;
+        }
+    }
+
+    private final Node<T> root = new Node<T>(null, null);
+    private final Map<String, Map<Object, Subscription<T>>> exacts = new ConcurrentHashMap<String, Map<Object, Subscription<T>>>();
+    private final Map<Object, Subscription<T>> subscriptions = new ConcurrentHashMap<Object, Subscription<T>>();
+
+    private static boolean isLiteral(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            if (NON_LITERAL_CHARS.indexOf(segment.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param id    identity of the subscription, replaces the subscription of the same identity
+     * @param glob  the path subscribed, with '{token}' already replaced
+     * @param regex the regex the glob is compiled into
+     */
+    public synchronized void add(Object id, String glob, String regex, T value) {
+        remove(id);
+
+        String[] segments = glob.split("/", -1);
+        int literalNum = 0;
+        while (literalNum < segments.length && isLiteral(segments[literalNum])) {
+            literalNum++;
+        }
+
+        if (literalNum == segments.length) {
+            Map<Object, Subscription<T>> subs = exacts.get(glob);
+            if (subs == null) {
+                subs = new ConcurrentHashMap<Object, Subscription<T>>();
+                exacts.put(glob, subs);
+            }
+
+            Subscription<T> sub = new Subscription<T>(id, value, glob, null, null);
+            subs.put(id, sub);
+            subscriptions.put(id, sub);
+            return;
+        }
+
+        Node<T> node = root;
+        for (int i = 0; i < literalNum; i++) {
+            Node<T> child = node.children.get(segments[i]);
+            if (child == null) {
+                child = new Node<T>(node, segments[i]);
+                node.children.put(segments[i], child);
+            }
+            node = child;
+        }
+
+        Subscription<T> sub = new Subscription<T>(id, value, glob, Pattern.compile(regex), node);
+        node.patterns.put(id, sub);
+        subscriptions.put(id, sub);
+    }
+
+    private void prune(Node<T> node) {
+        while (node != root && node.patterns.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.segment);
+            node = node.parent;
+        }
+    }
+
+    public synchronized void remove(Object id) {
+        Subscription<T> sub = subscriptions.remove(id);
+        if (sub == null) {
+            return;
+        }
+
+        if (sub.node == null) {
+            Map<Object, Subscription<T>> subs = exacts.get(sub.path);
+            subs.remove(id);
+            if (subs.isEmpty()) {
+                exacts.remove(sub.path);
+            }
+        } else {
+            sub.node.patterns.remove(id);
+            prune(sub.node);
+        }
+    }
+
+    public synchronized void clear() {
+        subscriptions.clear();
+        exacts.clear();
+        root.children.clear();
+        root.patterns.clear();
+    }
+
+    /**
+     * @return values of subscriptions matching the path
+     */
+    public List<T> match(String path) {
+        List<T> ret = new ArrayList<T>();
+        Map<Object, Subscription<T>> subs = exacts.get(path);
+        if (subs != null) {
+            for (Subscription<T> sub : subs.values()) {
+                ret.add(sub.value);
+            }
+        }
+
+        String[] segments = path.split("/", -1);
+        Node<T> node = root;
+        int i = 0;
+        while (node != null) {
+            for (Subscription<T> sub : node.patterns.values()) {
+                if (sub.pattern.matcher(path).matches()) {
+                    ret.add(sub.value);
+                }
+            }
+
+            if (i == segments.length) {
+                break;
+            }
+            node = node.children.get(segments[i++]);
+        }
+
+        return ret;
+    }
+
+    public int size() {
+        return subscriptions.size();
+    }
+}
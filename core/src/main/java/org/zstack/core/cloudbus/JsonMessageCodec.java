@@ -0,0 +1,46 @@
+package org.zstack.core.cloudbus;
+
+import com.google.gson.Gson;
+import org.zstack.header.message.Message;
+import org.zstack.utils.Compresser;
+import org.zstack.utils.gson.JSONObjectUtil;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * the original wire format: a JSON string of {"message class name": message}
+ */
+public class JsonMessageCodec implements MessageCodec {
+    public static final String CONTENT_TYPE = "application/json";
+
+    private final Gson gson;
+
+    public JsonMessageCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(Message msg, boolean compress) throws IOException {
+        byte[] data = gson.toJson(msg, Message.class).getBytes();
+        return compress ? Compresser.deflate(data) : data;
+    }
+
+    @Override
+    public Message decode(byte[] data, boolean compressed) throws IOException {
+        byte[] raw = compressed ? Compresser.inflate(data) : data;
+        return gson.fromJson(new String(raw), Message.class);
+    }
+
+    @Override
+    public Map decodeRaw(byte[] data, boolean compressed) throws IOException {
+        byte[] raw = compressed ? Compresser.inflate(data) : data;
+        return JSONObjectUtil.toObject(new String(raw), LinkedHashMap.class);
+    }
+}
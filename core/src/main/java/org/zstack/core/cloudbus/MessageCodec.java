@@ -0,0 +1,24 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.message.Message;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * encodes messages into the AMQP body. The codec used by the sender is recorded in the
+ * AMQP content-type so a receiver can always pick the matching codec, messages without
+ * a known content-type are decoded by JsonMessageCodec.
+ */
+public interface MessageCodec {
+    String getContentType();
+
+    byte[] encode(Message msg, boolean compress) throws IOException;
+
+    Message decode(byte[] data, boolean compressed) throws IOException;
+
+    /**
+     * @return the message body as the raw JSON object, only used to restore fields listed in the message schema
+     */
+    Map decodeRaw(byte[] data, boolean compressed) throws IOException;
+}
@@ -0,0 +1,37 @@
+package org.zstack.core.cloudbus;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ */
+public class PublisherStatistic {
+    private int queuedMessageNum;
+    private int unconfirmedMessageNum;
+    private Map<String, Long> batchSizeHistogram;
+    private Map<String, Long> publishLatencyHistogram;
+
+    @ConstructorProperties({"queuedMessageNum", "unconfirmedMessageNum", "batchSizeHistogram", "publishLatencyHistogram"})
+    public PublisherStatistic(int queuedMessageNum, int unconfirmedMessageNum, Map<String, Long> batchSizeHistogram, Map<String, Long> publishLatencyHistogram) {
+        this.queuedMessageNum = queuedMessageNum;
+        this.unconfirmedMessageNum = unconfirmedMessageNum;
+        this.batchSizeHistogram = batchSizeHistogram;
+        this.publishLatencyHistogram = publishLatencyHistogram;
+    }
+
+    public int getQueuedMessageNum() {
+        return queuedMessageNum;
+    }
+
+    public int getUnconfirmedMessageNum() {
+        return unconfirmedMessageNum;
+    }
+
+    public Map<String, Long> getBatchSizeHistogram() {
+        return batchSizeHistogram;
+    }
+
+    public Map<String, Long> getPublishLatencyHistogram() {
+        return publishLatencyHistogram;
+    }
+}
@@ -0,0 +1,16 @@
+package org.zstack.core.cloudbus;
+
+/**
+ * how ResourceDestinationMakerImpl maps resources to management nodes,
+ * all management nodes must use the same type
+ */
+public enum ResourceDestinationHashType {
+    /**
+     * ConsistentHash with 500 virtual nodes per management node
+     */
+    ConsistentHash,
+    /**
+     * BoundedLoadHash, no management node holds more than loadFactor times the average share of resources
+     */
+    BoundedLoad
+}
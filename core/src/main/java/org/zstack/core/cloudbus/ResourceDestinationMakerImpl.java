@@ -9,11 +9,14 @@ import org.zstack.header.managementnode.ManagementNodeChangeListener;
 import org.zstack.header.managementnode.ManagementNodeVO;
 import org.zstack.header.managementnode.ManagementNodeVO_;
 import org.zstack.utils.hash.ApacheHash;
+import org.zstack.utils.hash.BoundedLoadHash;
 import org.zstack.utils.hash.ConsistentHash;
+import org.zstack.utils.hash.HashRing;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created with IntelliJ IDEA.
@@ -22,24 +25,44 @@ import java.util.List;
  * To change this template use File | Settings | File Templates.
  */
 public class ResourceDestinationMakerImpl implements ManagementNodeChangeListener, ResourceDestinationMaker {
-    private ConsistentHash<String> nodeHash = new ConsistentHash<String>(new ApacheHash(), 500, new ArrayList<String>()) ;
+    private final HashRing<String> nodeHash;
+    // resource uuid -> management node uuid, replaced as a whole after the ring changes
+    private volatile ConcurrentHashMap<String, String> destinations = new ConcurrentHashMap<String, String>();
+    private final int destinationCacheSize = CloudBusGlobalProperty.RESOURCE_DESTINATION_CACHE_SIZE;
 
     @Autowired
     private DatabaseFacade dbf;
 
+    public ResourceDestinationMakerImpl() {
+        ResourceDestinationHashType type = ResourceDestinationHashType.valueOf(CloudBusGlobalProperty.RESOURCE_DESTINATION_HASH);
+        if (type == ResourceDestinationHashType.BoundedLoad) {
+            nodeHash = new BoundedLoadHash<String>(CloudBusGlobalProperty.RESOURCE_DESTINATION_PARTITION_NUM,
+                    CloudBusGlobalProperty.RESOURCE_DESTINATION_LOAD_FACTOR, new ArrayList<String>());
+        } else {
+            nodeHash = new ConsistentHash<String>(new ApacheHash(), 500, new ArrayList<String>());
+        }
+    }
+
+    private void clearDestinations() {
+        destinations = new ConcurrentHashMap<String, String>();
+    }
+
     @Override
     public void nodeJoin(String nodeId) {
         nodeHash.add(nodeId);
+        clearDestinations();
     }
 
     @Override
     public void nodeLeft(String nodeId) {
         nodeHash.remove(nodeId);
+        clearDestinations();
     }
 
     @Override
     public void iAmDead(String nodeId) {
         nodeHash.remove(nodeId);
+        clearDestinations();
     }
 
     @Override
@@ -50,15 +73,29 @@ public class ResourceDestinationMakerImpl implements ManagementNodeChangeListene
         for (String id : nodeIds) {
             nodeHash.add(id);
         }
+        clearDestinations();
     }
 
     @Override
     public String makeDestination(String resourceUuid) {
-        String nodeUuid = nodeHash.get(resourceUuid);
+        // read the cache before the ring, a result computed from a stale ring can only land in a discarded cache
+        ConcurrentHashMap<String, String> cache = destinations;
+        String nodeUuid = cache.get(resourceUuid);
+        if (nodeUuid != null) {
+            return nodeUuid;
+        }
+
+        nodeUuid = nodeHash.get(resourceUuid);
         if (nodeUuid == null) {
             throw new CloudRuntimeException("Cannot find any available management node to send message");
         }
 
+        if (cache.size() >= destinationCacheSize) {
+            clearDestinations();
+        } else {
+            cache.put(resourceUuid, nodeUuid);
+        }
+
         return nodeUuid;
     }
 
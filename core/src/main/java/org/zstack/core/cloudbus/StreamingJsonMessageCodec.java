@@ -0,0 +1,70 @@
+package org.zstack.core.cloudbus;
+
+import com.google.gson.Gson;
+import org.zstack.header.message.Message;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * the same JSON document as JsonMessageCodec, but Gson writes into and reads from the
+ * byte streams directly, so neither the JSON String nor the uncompressed byte[] is
+ * materialized; compression happens while writing and decompression while parsing.
+ */
+public class StreamingJsonMessageCodec implements MessageCodec {
+    public static final String CONTENT_TYPE = "application/x-zstack-json-stream";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Gson gson;
+
+    public StreamingJsonMessageCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(Message msg, boolean compress) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(BUFFER_SIZE);
+        OutputStream out = compress ? new DeflaterOutputStream(bos, new Deflater(), BUFFER_SIZE) : bos;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8), BUFFER_SIZE)) {
+            gson.toJson(msg, Message.class, writer);
+        }
+
+        return bos.toByteArray();
+    }
+
+    private Reader reader(byte[] data, boolean compressed) {
+        InputStream in = new ByteArrayInputStream(data);
+        if (compressed) {
+            in = new InflaterInputStream(in, new Inflater(), BUFFER_SIZE);
+        }
+
+        return new BufferedReader(new InputStreamReader(in, UTF8), BUFFER_SIZE);
+    }
+
+    @Override
+    public Message decode(byte[] data, boolean compressed) throws IOException {
+        try (Reader reader = reader(data, compressed)) {
+            return gson.fromJson(reader, Message.class);
+        }
+    }
+
+    @Override
+    public Map decodeRaw(byte[] data, boolean compressed) throws IOException {
+        try (Reader reader = reader(data, compressed)) {
+            return gson.fromJson(reader, LinkedHashMap.class);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.zstack.core.db;
+
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.PostInsertIdentifierGenerator;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.type.Type;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * inserts entities of a class mapped to one table by a JDBC batch of a prepared INSERT, the statement
+ * and the bound values are taken from the hibernate mapping so they are the same as what the
+ * entity manager writes.
+ */
+class BulkInsert {
+    private final SessionImplementor session;
+    private final AbstractEntityPersister persister;
+    private final boolean insertId;
+    private final List<Integer> properties = new ArrayList<Integer>();
+    private final String sql;
+
+    private BulkInsert(SessionImplementor session, AbstractEntityPersister persister) {
+        this.session = session;
+        this.persister = persister;
+        // ids generated by the database(AUTO_INCREMENT) are not in the statement
+        insertId = !(persister.getIdentifierGenerator() instanceof PostInsertIdentifierGenerator);
+
+        List<String> columns = new ArrayList<String>();
+        if (insertId) {
+            for (String c : persister.getIdentifierColumnNames()) {
+                columns.add(c);
+            }
+        }
+
+        boolean[] insertable = persister.getPropertyInsertability();
+        Type[] types = persister.getPropertyTypes();
+        for (int i = 0; i < insertable.length; i++) {
+            if (!insertable[i] || types[i].getColumnSpan(session.getFactory()) == 0) {
+                continue;
+            }
+
+            properties.add(i);
+            for (String c : persister.getPropertyColumnNames(i)) {
+                columns.add(c);
+            }
+        }
+
+        List<String> params = new ArrayList<String>();
+        for (int i = 0; i < columns.size(); i++) {
+            params.add("?");
+        }
+
+        sql = String.format("insert into %s (%s) values (%s)", persister.getTableName(),
+                StringUtils.join(columns, ", "), StringUtils.join(params, ", "));
+    }
+
+    /**
+     * @return null if the entities can't be inserted by one statement, e.g. the class is in a
+     * hierarchy of entities or has a version
+     */
+    static BulkInsert create(SessionImplementor session, Class entityClass) {
+        EntityPersister p = session.getFactory().getEntityPersister(entityClass.getName());
+        if (!(p instanceof SingleTableEntityPersister) || p.isInherited()
+                || p.getEntityMetamodel().hasSubclasses() || p.isVersioned()) {
+            return null;
+        }
+
+        return new BulkInsert(session, (AbstractEntityPersister) p);
+    }
+
+    private void bind(PreparedStatement ps, Object entity) throws SQLException {
+        int index = 1;
+        if (insertId) {
+            Type idType = persister.getIdentifierType();
+            idType.nullSafeSet(ps, persister.getIdentifier(entity, session), index, session);
+            index += idType.getColumnSpan(session.getFactory());
+        }
+
+        Object[] values = persister.getPropertyValues(entity);
+        Type[] types = persister.getPropertyTypes();
+        for (int i : properties) {
+            types[i].nullSafeSet(ps, values[i], index, session);
+            index += types[i].getColumnSpan(session.getFactory());
+        }
+    }
+
+    void insert(final List entities) {
+        ((Session) session).doWork(new Work() {
+            @Override
+            public void execute(Connection conn) throws SQLException {
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    for (Object e : entities) {
+                        bind(ps, e);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            }
+        });
+    }
+}
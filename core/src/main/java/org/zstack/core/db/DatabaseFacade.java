@@ -23,6 +23,13 @@ public interface DatabaseFacade {
     <T> T persist(T entity);
 
     void persistCollection(Collection entities);
+
+    /**
+     * inserts the entities with JDBC batches, without making them managed; it's much faster than
+     * persistCollection() for thousands of rows. Entity classes mapped to more than one table fall back to
+     * persistCollection(). Ids generated by the database are not set back to the entities.
+     */
+    void bulkInsert(Collection entities);
     
     <T> T persistAndRefresh(T entity);
     
@@ -44,6 +51,13 @@ public interface DatabaseFacade {
 
     void hardDeleteCollectionSelectedBySQL(String sql, Class entityClass);
 
+    /**
+     * tells the second-level cache that entities are changed by a JPQL bulk update/delete or native SQL;
+     * they are evicted on all management nodes after the transaction commits.
+     * @param ids null if which entities are changed is unknown
+     */
+    void entityChanged(Class entityClass, Collection ids);
+
     CriteriaBuilder  getCriteriaBuilder();
     
     <T> SimpleQuery<T> createQuery(Class<T> entityClass);
@@ -77,4 +91,6 @@ public interface DatabaseFacade {
     String getDbVersion();
 
     void installEntityLifeCycleCallback(Class entityClass, EntityEvent evt, EntityLifeCycleCallback cb);
+
+    void installEntityBatchLifeCycleCallback(Class entityClass, EntityEvent evt, EntityBatchLifeCycleCallback cb);
 }
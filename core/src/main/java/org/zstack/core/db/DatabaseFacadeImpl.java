@@ -2,6 +2,7 @@ package org.zstack.core.db;
 
 import com.mysql.jdbc.exceptions.jdbc4.MySQLIntegrityConstraintViolationException;
 import org.apache.commons.lang.StringUtils;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.transaction.annotation.Propagation;
@@ -42,6 +43,8 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
 
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private DbEntityCache cache;
 
     private DataSource dataSource = null;
     private DataSource extraDataSource = null;
@@ -55,6 +58,10 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
     private Map<Class, EntityInfo> entityInfoMap = new HashMap<Class, EntityInfo>();
     private String dbVersion;
 
+    // entity events raised by the collection writes of a thread, handed to EntityBatchLifeCycleCallback a batch at a time
+    private static final ThreadLocal<Map<EntityInfo, Map<EntityEvent, List<Object>>>> batchEvents =
+            new ThreadLocal<Map<EntityInfo, Map<EntityEvent, List<Object>>>>();
+
     class EntityInfo {
         Field voPrimaryKeyField;
         Field eoPrimaryKeyField;
@@ -62,6 +69,7 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
         Class eoClass;
         Class voClass;
         Map<EntityEvent, EntityLifeCycleCallback> listeners = new HashMap<EntityEvent, EntityLifeCycleCallback>();
+        Map<EntityEvent, EntityBatchLifeCycleCallback> batchListeners = new HashMap<EntityEvent, EntityBatchLifeCycleCallback>();
 
         EntityInfo(Class voClazz) {
             voClass = voClazz;
@@ -321,6 +329,7 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
                 q.setParameter("date", new Timestamp(new Date().getTime()).toString());
                 q.executeUpdate();
             }
+            cache.entityChanged(eoClass, ids);
             fireSoftDeleteExtension(ids, voClass);
             fireSoftDeleteExtensionByEOClass(ids, eoClass);
         }
@@ -352,6 +361,7 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
                 q.setParameter("ids", ids);
                 q.executeUpdate();
             }
+            cache.entityChanged(hasEO() ? eoClass : voClass, ids);
             fireHardDeleteExtension(ids);
         }
 
@@ -391,14 +401,63 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
             }
         }
 
+        private List loadByPrimaryKeys(Class clz, Field primaryKey, Collection ids) {
+            String sql = String.format("select e from %s e where e.%s in (:ids)", clz.getSimpleName(), primaryKey.getName());
+            Query q = getEntityManager().createQuery(sql);
+            q.setParameter("ids", ids);
+            return q.getResultList();
+        }
+
         @Transactional(propagation = Propagation.REQUIRES_NEW)
         void removeCollection(Collection entities) {
+            List hardDeleteIds = new ArrayList();
+            List softDeleteIds = new ArrayList();
             for (Object entity : entities) {
                 if (!entity.getClass().isAnnotationPresent(EO.class)) {
-                    hardDelete(entity);
+                    hardDeleteIds.add(getVOPrimaryKeyValue(entity));
                 } else {
-                    softDelete(entity);
+                    Object idval = getEOPrimaryKeyValue(entity);
+                    // null means the entity is physically deleted
+                    if (idval != null) {
+                        softDeleteIds.add(idval);
+                    }
+                }
+            }
+
+            // load a batch of entities in one query and let hibernate send their DELETE/UPDATE in one JDBC batch,
+            // rather than a SELECT and a DELETE/UPDATE for each of them
+            List hardDeleted = new ArrayList();
+            List softDeleted = new ArrayList();
+            boolean owner = beginBatchEvents();
+            try {
+                for (List ids : partition(hardDeleteIds)) {
+                    for (Object e : loadByPrimaryKeys(voClass, voPrimaryKeyField, ids)) {
+                        getEntityManager().remove(e);
+                        hardDeleted.add(getVOPrimaryKeyValue(e));
+                    }
+                    flushBatch();
+                }
+
+                String date = new Timestamp(new Date().getTime()).toString();
+                for (List ids : partition(softDeleteIds)) {
+                    for (Object eo : loadByPrimaryKeys(eoClass, eoPrimaryKeyField, ids)) {
+                        eoSoftDeleteColumn.set(eo, date);
+                        softDeleted.add(getEOPrimaryKeyValue(eo));
+                    }
+                    flushBatch();
                 }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException(e);
+            } finally {
+                endBatchEvents(owner);
+            }
+
+            if (!hardDeleted.isEmpty()) {
+                fireHardDeleteExtension(hardDeleted);
+            }
+            if (!softDeleted.isEmpty()) {
+                fireSoftDeleteExtension(softDeleted, voClass);
+                fireSoftDeleteExtensionByEOClass(softDeleted, eoClass);
             }
         }
 
@@ -438,11 +497,45 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
             listeners.put(evt, l);
         }
 
+        void installBatchLifeCycleCallback(EntityEvent evt, EntityBatchLifeCycleCallback l) {
+            batchListeners.put(evt, l);
+        }
+
         void fireLifeCycleEvent(EntityEvent evt, Object o) {
             EntityLifeCycleCallback cb = listeners.get(evt);
             if (cb != null) {
                 cb.entityLifeCycleEvent(evt, o);
             }
+
+            EntityBatchLifeCycleCallback bcb = batchListeners.get(evt);
+            if (bcb == null) {
+                return;
+            }
+
+            Map<EntityInfo, Map<EntityEvent, List<Object>>> events = batchEvents.get();
+            if (events == null) {
+                bcb.entityLifeCycleEvent(evt, voClass, list(o));
+                return;
+            }
+
+            Map<EntityEvent, List<Object>> evts = events.get(this);
+            if (evts == null) {
+                evts = new LinkedHashMap<EntityEvent, List<Object>>();
+                events.put(this, evts);
+            }
+            List<Object> entities = evts.get(evt);
+            if (entities == null) {
+                entities = new ArrayList<Object>();
+                evts.put(evt, entities);
+            }
+            entities.add(o);
+        }
+
+        void fireBatchLifeCycleEvent(EntityEvent evt, List entities) {
+            EntityBatchLifeCycleCallback bcb = batchListeners.get(evt);
+            if (bcb != null) {
+                bcb.entityLifeCycleEvent(evt, voClass, entities);
+            }
         }
     }
 
@@ -561,6 +654,11 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
         info.hardDelete(ids);
     }
 
+    @Override
+    public void entityChanged(Class entityClass, Collection ids) {
+        cache.entityChanged(entityClass, ids);
+    }
+
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     private <T> T doPersist(T entity, boolean isRefresh) {
         this.entityForTranscationCallback(Operation.PERSIST, entity.getClass());
@@ -639,10 +737,80 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
         return (T) getEntityInfo(entity.getClass()).reload(entity);
 	}
 
+    private boolean beginBatchEvents() {
+        if (batchEvents.get() != null) {
+            // inside another collection write, which delivers the events
+            return false;
+        }
+
+        batchEvents.set(new LinkedHashMap<EntityInfo, Map<EntityEvent, List<Object>>>());
+        return true;
+    }
+
+    private void deliverBatchEvents() {
+        Map<EntityInfo, Map<EntityEvent, List<Object>>> events = batchEvents.get();
+        if (events == null) {
+            return;
+        }
+
+        // callbacks may write entities as well, their events are delivered in the next round
+        while (!events.isEmpty()) {
+            Map<EntityInfo, Map<EntityEvent, List<Object>>> evts = new LinkedHashMap<EntityInfo, Map<EntityEvent, List<Object>>>(events);
+            events.clear();
+            for (Map.Entry<EntityInfo, Map<EntityEvent, List<Object>>> e : evts.entrySet()) {
+                for (Map.Entry<EntityEvent, List<Object>> ee : e.getValue().entrySet()) {
+                    e.getKey().fireBatchLifeCycleEvent(ee.getKey(), ee.getValue());
+                }
+            }
+        }
+    }
+
+    private void endBatchEvents(boolean owner) {
+        if (owner) {
+            batchEvents.remove();
+        }
+    }
+
+    // sends the pending statements in JDBC batches and detaches the written entities, so the persistence context
+    // doesn't grow with the collection
+    private void flushBatch() {
+        // PRE_PERSIST is raised when persist() is called
+        deliverBatchEvents();
+        getEntityManager().flush();
+        getEntityManager().clear();
+        deliverBatchEvents();
+    }
+
+    private static List<List> partition(List lst) {
+        List<List> ret = new ArrayList<List>();
+        for (int i = 0; i < lst.size(); i += DatabaseGlobalProperty.BATCH_SIZE) {
+            ret.add(lst.subList(i, Math.min(i + DatabaseGlobalProperty.BATCH_SIZE, lst.size())));
+        }
+        return ret;
+    }
+
+    private static Class<?>[] getEntityClasses(Collection entities) {
+        Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+        for (Object e : entities) {
+            classes.add(e.getClass());
+        }
+        return classes.toArray(new Class<?>[classes.size()]);
+    }
+
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     private void doUpdateCollection(Collection entities) {
-        for (Object e : entities) {
-            getEntityManager().merge(e);
+        boolean owner = beginBatchEvents();
+        try {
+            int num = 0;
+            for (Object e : entities) {
+                getEntityManager().merge(e);
+                if (++num % DatabaseGlobalProperty.BATCH_SIZE == 0) {
+                    flushBatch();
+                }
+            }
+            flushBatch();
+        } finally {
+            endBatchEvents(owner);
         }
     }
 
@@ -696,10 +864,81 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
     @Override
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     public void persistCollection(Collection entities) {
+        if (entities.isEmpty()) {
+            return;
+        }
+
+        this.entityForTranscationCallback(Operation.PERSIST, getEntityClasses(entities));
+        boolean owner = beginBatchEvents();
+        try {
+            persistInBatches(entities);
+        } finally {
+            endBatchEvents(owner);
+        }
+    }
+
+    private void persistInBatches(Collection entities) {
+        int num = 0;
         for (Object e : entities) {
-            this.entityForTranscationCallback(Operation.PERSIST, e.getClass());
             this.getEntityManager().persist(e);
+            if (++num % DatabaseGlobalProperty.BATCH_SIZE == 0) {
+                flushBatch();
+            }
+        }
+        flushBatch();
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    private void doBulkInsert(Collection entities) {
+        Map<Class, List<Object>> byClass = new LinkedHashMap<Class, List<Object>>();
+        for (Object e : entities) {
+            List<Object> lst = byClass.get(e.getClass());
+            if (lst == null) {
+                lst = new ArrayList<Object>();
+                byClass.put(e.getClass(), lst);
+            }
+            lst.add(e);
+        }
+
+        this.entityForTranscationCallback(Operation.PERSIST, byClass.keySet().toArray(new Class<?>[byClass.size()]));
+        boolean owner = beginBatchEvents();
+        try {
+            SessionImplementor session = getEntityManager().unwrap(SessionImplementor.class);
+            for (Map.Entry<Class, List<Object>> e : byClass.entrySet()) {
+                BulkInsert bi = BulkInsert.create(session, e.getKey());
+                if (bi == null) {
+                    logger.debug(String.format("entity[%s] is not mapped to a single table, insert it by the entity manager", e.getKey().getName()));
+                    persistInBatches(e.getValue());
+                    continue;
+                }
+
+                for (List batch : partition(e.getValue())) {
+                    for (Object o : batch) {
+                        entityEvent(EntityEvent.PRE_PERSIST, o);
+                    }
+                    deliverBatchEvents();
+
+                    bi.insert(batch);
+
+                    for (Object o : batch) {
+                        entityEvent(EntityEvent.POST_PERSIST, o);
+                    }
+                    deliverBatchEvents();
+                }
+            }
+        } finally {
+            endBatchEvents(owner);
+        }
+    }
+
+    @Override
+    @DeadlockAutoRestart
+    public void bulkInsert(Collection entities) {
+        if (entities.isEmpty()) {
+            return;
         }
+
+        doBulkInsert(entities);
     }
 
     @Override
@@ -827,6 +1066,19 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
         }
     }
 
+    @Override
+    public void installEntityBatchLifeCycleCallback(Class clz, EntityEvent evt, EntityBatchLifeCycleCallback cb) {
+        if (clz != null) {
+            EntityInfo info = entityInfoMap.get(clz);
+            DebugUtils.Assert(info != null, String.format("cannot find EntityInfo for the class[%s]", clz));
+            info.installBatchLifeCycleCallback(evt, cb);
+        } else {
+            for (EntityInfo info : entityInfoMap.values()) {
+                info.installBatchLifeCycleCallback(evt, cb);
+            }
+        }
+    }
+
     @Override
     public boolean stop() {
         return true;
@@ -840,5 +1092,9 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
         }
 
         info.fireLifeCycleEvent(evt, entity);
+
+        if (evt == EntityEvent.POST_PERSIST || evt == EntityEvent.POST_UPDATE || evt == EntityEvent.POST_REMOVE) {
+            cache.entityChanged(entity.getClass(), list(info.getVOPrimaryKeyValue(entity)));
+        }
     }
 }
@@ -3,6 +3,8 @@ package org.zstack.core.db;
 import org.zstack.core.GlobalProperty;
 import org.zstack.core.GlobalPropertyDefinition;
 
+import java.util.Map;
+
 /**
  */
 @GlobalPropertyDefinition
@@ -19,4 +21,46 @@ public class DatabaseGlobalProperty {
     public static String DbIdleConnectionTestPeriod;
     @GlobalProperty(name="DB.maxIdleTime")
     public static String DbMaxIdleTime;
+    /**
+     * statements sent to the database in one JDBC batch, and entities flushed at a time by
+     * persistCollection(), updateCollection(), removeCollection() and bulkInsert()
+     */
+    @GlobalProperty(name="DB.batchSize", defaultValue = "50")
+    public static int BATCH_SIZE;
+    /**
+     * see GLockBackendType
+     */
+    @GlobalProperty(name="GLock.backend", defaultValue = "MysqlGetLock")
+    public static String GLOCK_BACKEND;
+    @GlobalProperty(name="GLock.leaseInSeconds", defaultValue = "30")
+    public static long GLOCK_LEASE_IN_SECONDS;
+    @GlobalProperty(name="GLock.maxPollIntervalInMillis", defaultValue = "500")
+    public static long GLOCK_MAX_POLL_INTERVAL_IN_MILLIS;
+    /**
+     * route reads marked by ReadReplica to DbReadReplicaDataSource
+     */
+    @GlobalProperty(name="DB.readReplica.enabled", defaultValue = "false")
+    public static boolean READ_REPLICA_ENABLED;
+    /**
+     * the replica is used while the lag of the last check plus the time passed since the check is within it
+     */
+    @GlobalProperty(name="DB.readReplica.maxLagInSeconds", defaultValue = "3")
+    public static long READ_REPLICA_MAX_LAG_IN_SECONDS;
+    /**
+     * the lag is checked at least this often, and sooner when the allowance of maxLagInSeconds is used up
+     */
+    @GlobalProperty(name="DB.readReplica.lagCheckIntervalInSeconds", defaultValue = "5")
+    public static long READ_REPLICA_LAG_CHECK_INTERVAL_IN_SECONDS;
+    @GlobalProperty(name="DB.statementMetrics.enabled", defaultValue = "true")
+    public static boolean STATEMENT_METRICS_ENABLED;
+    /**
+     * the second-level cache of the read-mostly entities in DbEntityCache
+     */
+    @GlobalProperty(name="DB.cache.enabled", defaultValue = "false")
+    public static boolean CACHE_ENABLED;
+    /**
+     * e.g. DB.cache.entity.SystemTagVO = false stops caching SystemTagVO
+     */
+    @GlobalProperty(name="DB.cache.entity.")
+    public static Map<String, String> CACHE_ENTITIES;
 }
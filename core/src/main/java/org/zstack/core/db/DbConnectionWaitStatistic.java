@@ -0,0 +1,30 @@
+package org.zstack.core.db;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class DbConnectionWaitStatistic {
+    private long acquiredNum;
+    private long averageWaitTimeInMillis;
+    private long maxWaitTimeInMillis;
+
+    @ConstructorProperties({"acquiredNum", "averageWaitTimeInMillis", "maxWaitTimeInMillis"})
+    public DbConnectionWaitStatistic(long acquiredNum, long averageWaitTimeInMillis, long maxWaitTimeInMillis) {
+        this.acquiredNum = acquiredNum;
+        this.averageWaitTimeInMillis = averageWaitTimeInMillis;
+        this.maxWaitTimeInMillis = maxWaitTimeInMillis;
+    }
+
+    public long getAcquiredNum() {
+        return acquiredNum;
+    }
+
+    public long getAverageWaitTimeInMillis() {
+        return averageWaitTimeInMillis;
+    }
+
+    public long getMaxWaitTimeInMillis() {
+        return maxWaitTimeInMillis;
+    }
+}
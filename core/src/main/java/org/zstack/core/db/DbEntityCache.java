@@ -0,0 +1,365 @@
+package org.zstack.core.db;
+
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.config.GlobalConfigVO;
+import org.zstack.core.jmx.JmxFacade;
+import org.zstack.header.Component;
+import org.zstack.header.cluster.ClusterVO;
+import org.zstack.header.configuration.DiskOfferingVO;
+import org.zstack.header.configuration.InstanceOfferingVO;
+import org.zstack.header.image.ImageVO;
+import org.zstack.header.message.NeedJsonSchema;
+import org.zstack.header.network.l3.L3NetworkVO;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.vo.EO;
+import org.zstack.header.zone.ZoneVO;
+import org.zstack.utils.TypeUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * the hibernate second-level and query cache of read-mostly entities.
+ *
+ * entities written by DatabaseFacade are evicted along with the cached queries of their class after the transaction
+ * commits, and the write is broadcast to other management nodes, which evict them too. Each class caches its queries
+ * in a region of its own, so a write only drops the queries of its class. JPQL bulk updates/deletes and
+ * native SQL must report the change by DatabaseFacade.entityChanged(), otherwise they are only caught up by
+ * the time-to-live in zstack-ehcache.xml.
+ */
+public class DbEntityCache implements Component, DbEntityCacheMXBean {
+    private static final CLogger logger = Utils.getLogger(DbEntityCache.class);
+
+    public static final String EVICT_EVENT_PATH = "/db/cache/evict/{entity}";
+    private static final String QUERY_CACHE = "queries";
+    private static final String QUERY_REGION_PREFIX = "query.";
+
+    // read on nearly every VM operation but rarely changed; classes in an entity hierarchy must be the root
+    private static final List<Class> CACHEABLE_ENTITIES = Arrays.<Class>asList(
+            InstanceOfferingVO.class,
+            DiskOfferingVO.class,
+            ImageVO.class,
+            ZoneVO.class,
+            ClusterVO.class,
+            L3NetworkVO.class,
+            GlobalConfigVO.class,
+            SystemTagVO.class
+    );
+
+    @PersistenceUnit(unitName = "zstack.jpa")
+    private EntityManagerFactory entityManagerFactory;
+    @Autowired
+    private EventFacade evtf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    private SessionFactory sessionFactory;
+    private List<Class> entities;
+    private final Map<Class, Class> eoToVo = new HashMap<Class, Class>();
+    private volatile boolean started;
+
+    @NeedJsonSchema
+    public static class EvictEvent {
+        private List<String> ids;
+
+        public List<String> getIds() {
+            return ids;
+        }
+
+        public void setIds(List<String> ids) {
+            this.ids = ids;
+        }
+    }
+
+    private static List<Class> getEnabledEntities() {
+        List<Class> ret = new ArrayList<Class>();
+        if (!DatabaseGlobalProperty.CACHE_ENABLED) {
+            return ret;
+        }
+
+        for (Class clz : CACHEABLE_ENTITIES) {
+            if (!"false".equalsIgnoreCase(DatabaseGlobalProperty.CACHE_ENTITIES.get(clz.getSimpleName()))) {
+                ret.add(clz);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * the JPA properties turning the cache on for the enabled entities, set to the entity manager factory
+     */
+    public static Map<String, String> makeJpaProperties() {
+        Map<String, String> props = new HashMap<String, String>();
+        List<Class> entities = getEnabledEntities();
+        if (entities.isEmpty()) {
+            props.put("hibernate.cache.use_second_level_cache", "false");
+            props.put("hibernate.cache.use_query_cache", "false");
+            return props;
+        }
+
+        props.put("hibernate.cache.use_second_level_cache", "true");
+        props.put("hibernate.cache.use_query_cache", "true");
+        props.put("hibernate.cache.region.factory_class", "org.hibernate.cache.ehcache.SingletonEhCacheRegionFactory");
+        props.put("net.sf.ehcache.configurationResourceName", "/zstack-ehcache.xml");
+        for (Class clz : entities) {
+            props.put(String.format("hibernate.ejb.classcache.%s", clz.getName()), "read-write");
+        }
+
+        logger.debug(String.format("second-level cache is enabled for entities: %s", entities));
+        return props;
+    }
+
+    void init() {
+        entities = getEnabledEntities();
+        if (entities.isEmpty()) {
+            return;
+        }
+
+        for (Class clz : entities) {
+            EO at = (EO) clz.getAnnotation(EO.class);
+            if (at != null) {
+                eoToVo.put(at.EOClazz(), clz);
+            }
+        }
+
+        sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+        sessionFactory.getStatistics().setStatisticsEnabled(true);
+
+        evtf.on(EVICT_EVENT_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                if (evtf.isFromThisManagementNode(tokens)) {
+                    return;
+                }
+
+                evictRemoteChange((String) tokens.get("entity"), ((EvictEvent) data).getIds());
+            }
+        });
+
+        jmxf.registerBean("DbEntityCache", this);
+    }
+
+    boolean isCacheable(Class clz) {
+        return getCachedClass(clz) != null;
+    }
+
+    /**
+     * the query cache region of the class, see the hint org.hibernate.cacheRegion
+     */
+    String getQueryRegion(Class clz) {
+        Class c = getCachedClass(clz);
+        return c == null ? null : QUERY_REGION_PREFIX + c.getName();
+    }
+
+    private Class getCachedClass(Class clz) {
+        if (sessionFactory == null) {
+            return null;
+        }
+
+        for (Class c : entities) {
+            if (c.isAssignableFrom(clz)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private class Invalidation extends TransactionSynchronizationAdapter {
+        // null means all entities of the class
+        final Map<Class, Set<Object>> changes = new HashMap<Class, Set<Object>>();
+
+        void add(Class clz, Collection ids) {
+            if (changes.containsKey(clz) && changes.get(clz) == null) {
+                return;
+            }
+
+            if (ids == null) {
+                changes.put(clz, null);
+                return;
+            }
+
+            Set<Object> s = changes.get(clz);
+            if (s == null) {
+                s = new HashSet<Object>();
+                changes.put(clz, s);
+            }
+            s.addAll(ids);
+        }
+
+        @Override
+        public void afterCommit() {
+            invalidate(this);
+        }
+    }
+
+    private Invalidation getCurrentInvalidation() {
+        // synchronizations of a suspended transaction are not in the list, a REQUIRES_NEW transaction gets its own
+        for (TransactionSynchronization s : TransactionSynchronizationManager.getSynchronizations()) {
+            if (s instanceof Invalidation) {
+                return (Invalidation) s;
+            }
+        }
+
+        Invalidation inv = new Invalidation();
+        TransactionSynchronizationManager.registerSynchronization(inv);
+        return inv;
+    }
+
+    /**
+     * @param ids null if which entities are changed is unknown, e.g. a bulk update
+     */
+    void entityChanged(Class entityClass, Collection ids) {
+        if (sessionFactory == null) {
+            return;
+        }
+
+        Class clz = getCachedClass(entityClass);
+        if (clz == null) {
+            clz = eoToVo.get(entityClass);
+            if (clz == null) {
+                return;
+            }
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            getCurrentInvalidation().add(clz, ids);
+        } else {
+            Invalidation inv = new Invalidation();
+            inv.add(clz, ids);
+            invalidate(inv);
+        }
+    }
+
+    private void evict(Cache cache, Class clz, Collection ids) {
+        if (ids == null) {
+            cache.evictEntityRegion(clz);
+        } else {
+            for (Object id : ids) {
+                cache.evictEntity(clz, (Serializable) id);
+            }
+        }
+        // hibernate doesn't invalidate the cached queries of a VO for writes through its EO or bulkInsert()
+        cache.evictQueryRegion(QUERY_REGION_PREFIX + clz.getName());
+    }
+
+    private void invalidate(Invalidation inv) {
+        try {
+            // columns filled by the database, e.g. createDate and lastOpDate, are not in the entities hibernate
+            // puts into the cache on writes, let them be loaded again
+            Cache cache = sessionFactory.getCache();
+            for (Map.Entry<Class, Set<Object>> e : inv.changes.entrySet()) {
+                evict(cache, e.getKey(), e.getValue());
+            }
+
+            if (!started) {
+                // the bus is not ready, other nodes will be caught up by the time-to-live
+                return;
+            }
+
+            for (Map.Entry<Class, Set<Object>> e : inv.changes.entrySet()) {
+                EvictEvent evt = new EvictEvent();
+                if (e.getValue() != null) {
+                    evt.setIds(new ArrayList<String>());
+                    for (Object id : e.getValue()) {
+                        evt.getIds().add(id.toString());
+                    }
+                }
+
+                evtf.fire(EVICT_EVENT_PATH.replace("{entity}", e.getKey().getName()), evt);
+            }
+        } catch (Throwable t) {
+            logger.warn("unhandled exception when invalidating the second-level cache", t);
+        }
+    }
+
+    private void evictRemoteChange(String entityName, List<String> ids) {
+        Class clz = null;
+        for (Class c : entities) {
+            if (c.getName().equals(entityName)) {
+                clz = c;
+                break;
+            }
+        }
+
+        if (clz == null) {
+            // the entity is not cached on this node
+            return;
+        }
+
+        List<Object> idvals = null;
+        if (ids != null) {
+            Class idType = sessionFactory.getClassMetadata(clz).getIdentifierType().getReturnedClass();
+            idvals = new ArrayList<Object>(ids.size());
+            for (String id : ids) {
+                idvals.add(TypeUtils.stringToValue(id, idType));
+            }
+        }
+        evict(sessionFactory.getCache(), clz, idvals);
+
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("evicted entities[%s, ids:%s] changed by other management node", entityName, ids));
+        }
+    }
+
+    @Override
+    public boolean start() {
+        started = true;
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        started = false;
+        return true;
+    }
+
+    @Override
+    public Map<String, DbEntityCacheStatistic> getEntityCacheStatistics() {
+        Map<String, DbEntityCacheStatistic> ret = new HashMap<String, DbEntityCacheStatistic>();
+        if (sessionFactory == null) {
+            return ret;
+        }
+
+        Statistics stats = sessionFactory.getStatistics();
+        for (Class clz : entities) {
+            SecondLevelCacheStatistics s = stats.getSecondLevelCacheStatistics(clz.getName());
+            if (s != null) {
+                ret.put(clz.getSimpleName(), new DbEntityCacheStatistic(s.getHitCount(), s.getMissCount(),
+                        s.getPutCount(), s.getElementCountInMemory()));
+            }
+        }
+
+        ret.put(QUERY_CACHE, new DbEntityCacheStatistic(stats.getQueryCacheHitCount(), stats.getQueryCacheMissCount(),
+                stats.getQueryCachePutCount(), 0));
+        return ret;
+    }
+
+    @Override
+    public void evictAll() {
+        if (sessionFactory == null) {
+            return;
+        }
+
+        Cache cache = sessionFactory.getCache();
+        for (Class clz : entities) {
+            cache.evictEntityRegion(clz);
+            cache.evictQueryRegion(QUERY_REGION_PREFIX + clz.getName());
+        }
+        cache.evictDefaultQueryRegion();
+        logger.debug(String.format("evicted the second-level cache of management node[uuid:%s]", Platform.getManagementServerId()));
+    }
+}
@@ -0,0 +1,11 @@
+package org.zstack.core.db;
+
+import java.util.Map;
+
+/**
+ */
+public interface DbEntityCacheMXBean {
+    Map<String, DbEntityCacheStatistic> getEntityCacheStatistics();
+
+    void evictAll();
+}
@@ -0,0 +1,36 @@
+package org.zstack.core.db;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class DbEntityCacheStatistic {
+    private long hitCount;
+    private long missCount;
+    private long putCount;
+    private long elementCountInMemory;
+
+    @ConstructorProperties({"hitCount", "missCount", "putCount", "elementCountInMemory"})
+    public DbEntityCacheStatistic(long hitCount, long missCount, long putCount, long elementCountInMemory) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.elementCountInMemory = elementCountInMemory;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getPutCount() {
+        return putCount;
+    }
+
+    public long getElementCountInMemory() {
+        return elementCountInMemory;
+    }
+}
@@ -0,0 +1,11 @@
+package org.zstack.core.db;
+
+import java.util.Map;
+
+/**
+ */
+public interface DbStatementMXBean {
+    Map<String, DbStatementStatistic> getStatementStatistics();
+
+    Map<String, DbConnectionWaitStatistic> getConnectionWaitStatistics();
+}
@@ -0,0 +1,36 @@
+package org.zstack.core.db;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class DbStatementStatistic {
+    private long executedNum;
+    private long averageTimeInMicros;
+    private long maxTimeInMicros;
+    private long rowsReturned;
+
+    @ConstructorProperties({"executedNum", "averageTimeInMicros", "maxTimeInMicros", "rowsReturned"})
+    public DbStatementStatistic(long executedNum, long averageTimeInMicros, long maxTimeInMicros, long rowsReturned) {
+        this.executedNum = executedNum;
+        this.averageTimeInMicros = averageTimeInMicros;
+        this.maxTimeInMicros = maxTimeInMicros;
+        this.rowsReturned = rowsReturned;
+    }
+
+    public long getExecutedNum() {
+        return executedNum;
+    }
+
+    public long getAverageTimeInMicros() {
+        return averageTimeInMicros;
+    }
+
+    public long getMaxTimeInMicros() {
+        return maxTimeInMicros;
+    }
+
+    public long getRowsReturned() {
+        return rowsReturned;
+    }
+}
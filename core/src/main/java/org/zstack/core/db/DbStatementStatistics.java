@@ -0,0 +1,174 @@
+package org.zstack.core.db;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.jmx.JmxFacade;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * latency and returned rows of SQL statements, and the time waiting for a pooled connection,
+ * collected by wrapping the JDBC connections handed to JPA
+ */
+public class DbStatementStatistics implements DbStatementMXBean {
+    // statements built from query conditions are unbounded, ones beyond the limit are counted together
+    private static final int MAX_STATISTIC_NUM = 1000;
+    private static final String OTHER_STATEMENTS = "others";
+
+    @Autowired
+    private JmxFacade jmxf;
+
+    private final ConcurrentHashMap<String, Counter> statements = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, Counter> connectionWaits = new ConcurrentHashMap<String, Counter>();
+
+    private static class Counter {
+        final AtomicLong num = new AtomicLong();
+        final AtomicLong totalTime = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        volatile long maxTime;
+
+        void done(long time) {
+            num.incrementAndGet();
+            totalTime.addAndGet(time);
+            if (time > maxTime) {
+                maxTime = time;
+            }
+        }
+    }
+
+    void init() {
+        jmxf.registerBean("DbStatement", this);
+    }
+
+    private Counter getCounter(String sql) {
+        Counter c = statements.get(sql);
+        if (c != null) {
+            return c;
+        }
+
+        if (statements.size() >= MAX_STATISTIC_NUM) {
+            sql = OTHER_STATEMENTS;
+        }
+        return statements.computeIfAbsent(sql, k -> new Counter());
+    }
+
+    void connectionAcquired(String dataSourceName, long waitTimeInNanos) {
+        connectionWaits.computeIfAbsent(dataSourceName, k -> new Counter()).done(waitTimeInNanos);
+    }
+
+    private static Object invoke(Object target, Method m, Object[] args) throws Throwable {
+        try {
+            return m.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    Connection wrap(final Connection conn) {
+        if (!DatabaseGlobalProperty.STATEMENT_METRICS_ENABLED) {
+            return conn;
+        }
+
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                Object ret = DbStatementStatistics.invoke(conn, m, args);
+                if (ret instanceof Statement) {
+                    String sql = m.getName().startsWith("prepare") && args != null && args.length > 0 && args[0] instanceof String ?
+                            (String) args[0] : null;
+                    return wrap((Statement) ret, sql);
+                }
+
+                return ret;
+            }
+        });
+    }
+
+    private Statement wrap(final Statement stmt, final String preparedSql) {
+        Class itf = stmt instanceof CallableStatement ? CallableStatement.class :
+                stmt instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+        return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{itf}, new InvocationHandler() {
+            private Counter last;
+
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                if (m.getName().startsWith("execute")) {
+                    String sql = preparedSql;
+                    if (sql == null) {
+                        sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : OTHER_STATEMENTS;
+                    }
+
+                    last = getCounter(sql);
+                    long start = System.nanoTime();
+                    Object ret;
+                    try {
+                        ret = DbStatementStatistics.invoke(stmt, m, args);
+                    } finally {
+                        last.done(System.nanoTime() - start);
+                    }
+
+                    return ret instanceof ResultSet ? wrap((ResultSet) ret, last) : ret;
+                }
+
+                Object ret = DbStatementStatistics.invoke(stmt, m, args);
+                if (ret instanceof ResultSet && last != null && m.getName().equals("getResultSet")) {
+                    return wrap((ResultSet) ret, last);
+                }
+
+                return ret;
+            }
+        });
+    }
+
+    private ResultSet wrap(final ResultSet rs, final Counter counter) {
+        return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{ResultSet.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                Object ret = DbStatementStatistics.invoke(rs, m, args);
+                if (Boolean.TRUE.equals(ret) && m.getName().equals("next")) {
+                    counter.rows.incrementAndGet();
+                }
+                return ret;
+            }
+        });
+    }
+
+    @Override
+    public Map<String, DbStatementStatistic> getStatementStatistics() {
+        Map<String, DbStatementStatistic> ret = new HashMap<String, DbStatementStatistic>();
+        for (Map.Entry<String, Counter> e : statements.entrySet()) {
+            Counter c = e.getValue();
+            long num = c.num.get();
+            ret.put(e.getKey(), new DbStatementStatistic(
+                    num,
+                    num == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(c.totalTime.get() / num),
+                    TimeUnit.NANOSECONDS.toMicros(c.maxTime),
+                    c.rows.get()
+            ));
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, DbConnectionWaitStatistic> getConnectionWaitStatistics() {
+        Map<String, DbConnectionWaitStatistic> ret = new HashMap<String, DbConnectionWaitStatistic>();
+        for (Map.Entry<String, Counter> e : connectionWaits.entrySet()) {
+            Counter c = e.getValue();
+            long num = c.num.get();
+            ret.put(e.getKey(), new DbConnectionWaitStatistic(
+                    num,
+                    num == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(c.totalTime.get() / num),
+                    TimeUnit.NANOSECONDS.toMillis(c.maxTime)
+            ));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,15 @@
+package org.zstack.core.db;
+
+import java.util.List;
+
+/**
+ * like EntityLifeCycleCallback but receives the entities written together by
+ * persistCollection(), updateCollection(), removeCollection() and bulkInsert() in one call per batch;
+ * entities written one by one come in a list of one.
+ *
+ * the entities are handed over after the event happened to all of them, use EntityLifeCycleCallback
+ * to change an entity before it's written.
+ */
+public interface EntityBatchLifeCycleCallback {
+    void entityLifeCycleEvent(EntityEvent evt, Class entityClass, List entities);
+}
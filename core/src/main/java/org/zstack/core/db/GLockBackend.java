@@ -0,0 +1,28 @@
+package org.zstack.core.db;
+
+/**
+ * where GLock gets its mutual exclusion among management nodes, see GLockBackendType
+ */
+interface GLockBackend {
+    interface Holder {
+        /**
+         * @return a number growing every time the lock changes hands, -1 if the backend doesn't support it
+         */
+        long getFencingToken();
+
+        /**
+         * checks with the DB that the lock is still held by this holder, for calling right before committing
+         * what the lock protects
+         */
+        boolean isHeld();
+
+        void release();
+    }
+
+    /**
+     * @return null if the lock is not got in timeoutInSeconds
+     */
+    Holder lock(String name, long timeoutInSeconds);
+
+    void destroy();
+}
@@ -0,0 +1,16 @@
+package org.zstack.core.db;
+
+/**
+ * all management nodes must use the same type, locks of different backends don't exclude each other
+ */
+public enum GLockBackendType {
+    /**
+     * MySQL get_lock(), a pooled DB connection is held from lock() to unlock()
+     */
+    MysqlGetLock,
+    /**
+     * a lease on a row of GlobalLockVO with a fencing token, DB connections are only held
+     * for the statements taking, renewing and releasing the lease
+     */
+    Lease
+}
@@ -0,0 +1,9 @@
+package org.zstack.core.db;
+
+import java.util.Map;
+
+/**
+ */
+public interface GLockMXBean {
+    Map<String, GLockStatistic> getGLockStatistics();
+}
@@ -0,0 +1,120 @@
+package org.zstack.core.db;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.jmx.JmxFacade;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * owns the GLockBackend of this management node and the wait time statistics of GLocks
+ */
+public class GLockManager implements GLockMXBean {
+    private static final CLogger logger = Utils.getLogger(GLockManager.class);
+
+    // names carrying resource uuids are unbounded, ones beyond the limit are counted together
+    private static final int MAX_STATISTIC_NUM = 1000;
+    private static final String OTHER_LOCKS = "others";
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    private GLockBackend backend;
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+    private static class Counter {
+        final AtomicLong lockedNum = new AtomicLong();
+        final AtomicLong timeoutNum = new AtomicLong();
+        final AtomicInteger waitingNum = new AtomicInteger();
+        final AtomicLong totalWaitTime = new AtomicLong();
+        volatile long maxWaitTime;
+
+        void done(long waitTime, boolean locked) {
+            waitingNum.decrementAndGet();
+            if (locked) {
+                lockedNum.incrementAndGet();
+                totalWaitTime.addAndGet(waitTime);
+                if (waitTime > maxWaitTime) {
+                    maxWaitTime = waitTime;
+                }
+            } else {
+                timeoutNum.incrementAndGet();
+            }
+        }
+    }
+
+    void init() {
+        GLockBackendType type = GLockBackendType.valueOf(DatabaseGlobalProperty.GLOCK_BACKEND);
+        if (type == GLockBackendType.Lease) {
+            backend = new LeaseGLockBackend(dbf.getDataSource(), DatabaseGlobalProperty.GLOCK_LEASE_IN_SECONDS,
+                    DatabaseGlobalProperty.GLOCK_MAX_POLL_INTERVAL_IN_MILLIS);
+        } else {
+            backend = new MysqlGLockBackend(dbf.getDataSource());
+        }
+
+        logger.debug(String.format("GLock uses backend[%s]", type));
+        jmxf.registerBean("GLock", this);
+    }
+
+    void destroy() {
+        if (backend != null) {
+            backend.destroy();
+        }
+    }
+
+    private Counter getCounter(String name) {
+        Counter c = counters.get(name);
+        if (c != null) {
+            return c;
+        }
+
+        if (counters.size() >= MAX_STATISTIC_NUM) {
+            name = OTHER_LOCKS;
+        }
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    GLockBackend.Holder lock(String name, long timeoutInSeconds) {
+        Counter c = getCounter(name);
+        c.waitingNum.incrementAndGet();
+        long start = System.nanoTime();
+        GLockBackend.Holder holder = null;
+        try {
+            holder = backend.lock(name, timeoutInSeconds);
+        } finally {
+            c.done(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), holder != null);
+        }
+
+        if (holder == null) {
+            throw new CloudRuntimeException(String.format("lock[%s] failed, timeout after %s seconds", name, timeoutInSeconds));
+        }
+
+        return holder;
+    }
+
+    @Override
+    public Map<String, GLockStatistic> getGLockStatistics() {
+        Map<String, GLockStatistic> ret = new HashMap<String, GLockStatistic>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            Counter c = e.getValue();
+            long locked = c.lockedNum.get();
+            ret.put(e.getKey(), new GLockStatistic(
+                    locked,
+                    c.timeoutNum.get(),
+                    c.waitingNum.get(),
+                    locked == 0 ? 0 : c.totalWaitTime.get() / locked,
+                    c.maxWaitTime
+            ));
+        }
+        return ret;
+    }
+}
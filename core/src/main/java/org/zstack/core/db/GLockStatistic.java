@@ -0,0 +1,42 @@
+package org.zstack.core.db;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class GLockStatistic {
+    private long lockedNum;
+    private long timeoutNum;
+    private int waitingNum;
+    private long averageWaitTimeInMillis;
+    private long maxWaitTimeInMillis;
+
+    @ConstructorProperties({"lockedNum", "timeoutNum", "waitingNum", "averageWaitTimeInMillis", "maxWaitTimeInMillis"})
+    public GLockStatistic(long lockedNum, long timeoutNum, int waitingNum, long averageWaitTimeInMillis, long maxWaitTimeInMillis) {
+        this.lockedNum = lockedNum;
+        this.timeoutNum = timeoutNum;
+        this.waitingNum = waitingNum;
+        this.averageWaitTimeInMillis = averageWaitTimeInMillis;
+        this.maxWaitTimeInMillis = maxWaitTimeInMillis;
+    }
+
+    public long getLockedNum() {
+        return lockedNum;
+    }
+
+    public long getTimeoutNum() {
+        return timeoutNum;
+    }
+
+    public int getWaitingNum() {
+        return waitingNum;
+    }
+
+    public long getAverageWaitTimeInMillis() {
+        return averageWaitTimeInMillis;
+    }
+
+    public long getMaxWaitTimeInMillis() {
+        return maxWaitTimeInMillis;
+    }
+}
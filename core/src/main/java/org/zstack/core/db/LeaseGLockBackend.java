@@ -0,0 +1,303 @@
+package org.zstack.core.db;
+
+import org.zstack.core.Platform;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * A lock is a row of GlobalLockVO; it's held by whoever writes its uuid into the owner column
+ * while the row is free or its lease has expired, and every successful take bumps the fencing
+ * token. Each attempt borrows a DB connection only for its statements, waiters sleep with
+ * a growing interval in between and are woken early when a holder in this process releases.
+ *
+ * Held leases are renewed every third of the lease time on a thread of the backend's own, so
+ * a holder only loses its lock if this management node fails to reach the DB for the whole
+ * lease; Holder.isHeld() tells whether that happened. Times are the DB's clock, management
+ * node clocks don't need to agree.
+ *
+ * The row of a lock is created the first time this process takes the lock, rows are never deleted.
+ */
+class LeaseGLockBackend implements GLockBackend {
+    private static final CLogger logger = Utils.getLogger(LeaseGLockBackend.class);
+
+    private static final long MIN_POLL_INTERVAL_IN_MILLIS = 10;
+
+    private final DataSource dataSource;
+    private final long leaseInSeconds;
+    private final long maxPollIntervalInMillis;
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+    private final ConcurrentHashMap<String, Waiters> waiters = new ConcurrentHashMap<String, Waiters>();
+    // names whose rows are known to exist
+    private final Set<String> created = ConcurrentHashMap.newKeySet();
+    // not a task of ThreadFacade, whose pool can be exhausted by the threads waiting for the locks
+    private final ScheduledExecutorService renewer;
+
+    private static class Waiters {
+        int count;
+    }
+
+    private class Lease implements Holder {
+        final String name;
+        final String owner;
+        final long fencingToken;
+        volatile boolean lost;
+
+        Lease(String name, String owner, long fencingToken) {
+            this.name = name;
+            this.owner = owner;
+            this.fencingToken = fencingToken;
+        }
+
+        @Override
+        public long getFencingToken() {
+            return fencingToken;
+        }
+
+        @Override
+        public boolean isHeld() {
+            if (lost) {
+                return false;
+            }
+
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            try {
+                conn = dataSource.getConnection();
+                conn.setAutoCommit(true);
+                pstmt = conn.prepareStatement("SELECT COUNT(*) FROM GlobalLockVO WHERE name = ? AND owner = ? AND expireDate > CURRENT_TIMESTAMP");
+                pstmt.setString(1, name);
+                pstmt.setString(2, owner);
+                ResultSet rs = pstmt.executeQuery();
+                if (!rs.next() || rs.getLong(1) == 0) {
+                    lost = true;
+                }
+            } catch (SQLException e) {
+                logger.warn(String.format("[GLock] failed to check the lease of lock[%s, fencing token:%s], consider it lost", name, fencingToken), e);
+                return false;
+            } finally {
+                close(conn, pstmt);
+            }
+
+            return !lost;
+        }
+
+        @Override
+        public void release() {
+            leases.remove(owner);
+
+            int count = executeUpdate("UPDATE GlobalLockVO SET owner = NULL WHERE name = ? AND owner = ?", name, owner);
+            if (count == 0 || lost) {
+                logger.warn(String.format("[GLock] the lease of lock[%s, fencing token:%s] had expired before it's released," +
+                        " someone else may have held the lock in the meantime", name, fencingToken));
+            }
+
+            Waiters w = waiters.get(name);
+            if (w != null) {
+                synchronized (w) {
+                    w.notifyAll();
+                }
+            }
+        }
+    }
+
+    LeaseGLockBackend(DataSource dataSource, long leaseInSeconds, long maxPollIntervalInMillis) {
+        this.dataSource = dataSource;
+        this.leaseInSeconds = leaseInSeconds;
+        this.maxPollIntervalInMillis = Math.max(maxPollIntervalInMillis, MIN_POLL_INTERVAL_IN_MILLIS);
+
+        renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "zs-renew-glock-leases");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        long interval = Math.max(leaseInSeconds / 3, 1);
+        renewer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    renewLeases();
+                } catch (Throwable t) {
+                    // an exception would cancel the following runs
+                    logger.warn("[GLock] unhandled exception when renewing leases", t);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private int executeUpdate(String sql, Object... args) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(true);
+            pstmt = conn.prepareStatement(sql);
+            for (int i = 0; i < args.length; i++) {
+                pstmt.setObject(i + 1, args[i]);
+            }
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException(String.format("[GLock Error]: failed to execute %s", sql), e);
+        } finally {
+            close(conn, pstmt);
+        }
+    }
+
+    private static void close(Connection conn, PreparedStatement pstmt) {
+        try {
+            if (pstmt != null) {
+                pstmt.close();
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the fencing token, or -1 if the lock is held by others
+     */
+    private long tryAcquire(String name, String owner) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(true);
+            pstmt = conn.prepareStatement("UPDATE GlobalLockVO SET owner = ?, fencingToken = fencingToken + 1," +
+                    " expireDate = TIMESTAMPADD(SECOND, ?, CURRENT_TIMESTAMP) WHERE name = ? AND (owner IS NULL OR expireDate < CURRENT_TIMESTAMP)");
+            pstmt.setString(1, owner);
+            pstmt.setLong(2, leaseInSeconds);
+            pstmt.setString(3, name);
+            if (pstmt.executeUpdate() == 0) {
+                return -1;
+            }
+            pstmt.close();
+
+            // the owner is unique to this acquisition, nobody else can have changed the row
+            pstmt = conn.prepareStatement("SELECT fencingToken FROM GlobalLockVO WHERE name = ? AND owner = ?");
+            pstmt.setString(1, name);
+            pstmt.setString(2, owner);
+            ResultSet rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                throw new CloudRuntimeException(String.format("[GLock Error]: lost the lease of lock[%s] right after taking it", name));
+            }
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            throw new CloudRuntimeException(String.format("[GLock Error]: failed to take the lease of lock[%s]", name), e);
+        } finally {
+            close(conn, pstmt);
+        }
+    }
+
+    private void renewLeases() {
+        List<Lease> toRenew = new ArrayList<Lease>(leases.values());
+        if (toRenew.isEmpty()) {
+            return;
+        }
+
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(true);
+            pstmt = conn.prepareStatement("UPDATE GlobalLockVO SET expireDate = TIMESTAMPADD(SECOND, ?, CURRENT_TIMESTAMP) WHERE name = ? AND owner = ?");
+            for (Lease l : toRenew) {
+                pstmt.setLong(1, leaseInSeconds);
+                pstmt.setString(2, l.name);
+                pstmt.setString(3, l.owner);
+                pstmt.addBatch();
+            }
+
+            int[] counts = pstmt.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                Lease l = toRenew.get(i);
+                if (counts[i] == 0 && leases.containsKey(l.owner)) {
+                    l.lost = true;
+                    logger.warn(String.format("[GLock] failed to renew the lease of lock[%s, fencing token:%s], it has been taken by others",
+                            l.name, l.fencingToken));
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("[GLock] failed to renew %s leases, retry in the next round", toRenew.size()), e);
+        } finally {
+            close(conn, pstmt);
+        }
+    }
+
+    private Waiters enterWaiting(String name) {
+        return waiters.compute(name, (k, w) -> {
+            if (w == null) {
+                w = new Waiters();
+            }
+            w.count++;
+            return w;
+        });
+    }
+
+    private void leaveWaiting(String name) {
+        waiters.computeIfPresent(name, (k, w) -> --w.count == 0 ? null : w);
+    }
+
+    @Override
+    public Holder lock(String name, long timeoutInSeconds) {
+        if (!created.contains(name)) {
+            executeUpdate("INSERT IGNORE INTO GlobalLockVO (name, fencingToken) VALUES (?, 0)", name);
+            created.add(name);
+        }
+
+        String owner = Platform.getUuid();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutInSeconds);
+        long interval = MIN_POLL_INTERVAL_IN_MILLIS;
+        Waiters w = enterWaiting(name);
+        try {
+            while (true) {
+                long token = tryAcquire(name, owner);
+                if (token != -1) {
+                    Lease lease = new Lease(name, owner, token);
+                    leases.put(owner, lease);
+                    if (logger.isTraceEnabled()) {
+                        logger.trace(String.format("[GLock Lease]: thread: %s got lease of lock[%s], fencing token[%s]",
+                                Thread.currentThread().getName(), name, token));
+                    }
+                    return lease;
+                }
+
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return null;
+                }
+
+                synchronized (w) {
+                    w.wait(Math.min(interval, remaining));
+                }
+                interval = Math.min(interval * 2, maxPollIntervalInMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CloudRuntimeException(String.format("interrupted while waiting for lock[%s]", name), e);
+        } finally {
+            leaveWaiting(name);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        renewer.shutdownNow();
+    }
+}
@@ -0,0 +1,130 @@
+package org.zstack.core.db;
+
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ */
+class MysqlGLockBackend implements GLockBackend {
+    private static final CLogger logger = Utils.getLogger(MysqlGLockBackend.class);
+
+    private final DataSource dataSource;
+
+    MysqlGLockBackend(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    private static void closeStatement(PreparedStatement pstmt, String name) {
+        if (pstmt != null) {
+            try {
+                pstmt.close();
+            } catch (SQLException e) {
+                logger.warn("Unable to close PreparedStatement for lock: " + name, e);
+            }
+        }
+    }
+
+    private static void closeConnection(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Holder lock(final String name, long timeoutInSeconds) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(true);
+            pstmt = conn.prepareStatement(String.format("select get_lock('%s', %s)", name, timeoutInSeconds));
+            ResultSet rs = pstmt.executeQuery();
+            if (rs == null) {
+                String err = "Unable to get DB lock: " + name + ", internal database error happened";
+                throw new CloudRuntimeException(err);
+            } else if (rs.first() && rs.getInt(1) == 0) {
+                closeConnection(conn);
+                return null;
+            }
+
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("[GLock DB Lock]: thread: %s got DB lock[%s], during timeout[%s secs]", Thread.currentThread().getName(), name, timeoutInSeconds));
+            }
+        } catch (Throwable t) {
+            if (conn != null) {
+                closeConnection(conn);
+            }
+
+            if (t instanceof CloudRuntimeException) {
+                throw (CloudRuntimeException) t;
+            } else if (t instanceof SQLException) {
+                throw new CloudRuntimeException(String.format("[GLock Error]: cannon get DB connection for lock[%s]", name), t);
+            } else {
+                throw new CloudRuntimeException(t);
+            }
+        } finally {
+            closeStatement(pstmt, name);
+        }
+
+        final Connection lockConn = conn;
+        return new Holder() {
+            @Override
+            public long getFencingToken() {
+                return -1;
+            }
+
+            @Override
+            public boolean isHeld() {
+                PreparedStatement pstmt = null;
+                try {
+                    pstmt = lockConn.prepareStatement("select is_used_lock(?) = connection_id()");
+                    pstmt.setString(1, name);
+                    ResultSet rs = pstmt.executeQuery();
+                    return rs.next() && rs.getBoolean(1);
+                } catch (SQLException e) {
+                    logger.warn(String.format("[GLock] failed to check DB lock[%s], consider it lost", name), e);
+                    return false;
+                } finally {
+                    closeStatement(pstmt, name);
+                }
+            }
+
+            @Override
+            public void release() {
+                PreparedStatement pstmt = null;
+                try {
+                    pstmt = lockConn.prepareStatement(String.format("select release_lock('%s')", name));
+                    ResultSet rs = pstmt.executeQuery();
+                    if (rs == null) {
+                        throw new CloudRuntimeException("Mysql cannot find lock: " + name);
+                    } else if (rs.first() && rs.getInt(1) == 0) {
+                        String err = "Unable to release DB lock: " + name + ", lock: " + name + " is not held by this connection, internal error";
+                        throw new CloudRuntimeException(err);
+                    }
+
+                    if (logger.isTraceEnabled()) {
+                        logger.trace(String.format("[GLock Release DB Lock] thread[%s] released DB lock[%s]", Thread.currentThread().getName(), name));
+                    }
+                } catch (SQLException e) {
+                    throw new CloudRuntimeException("Unable to release lock: " + name, e);
+                } finally {
+                    closeStatement(pstmt, name);
+                    closeConnection(lockConn);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,30 @@
+package org.zstack.core.db;
+
+/**
+ * marks reads of the current thread that can be served by the read replica.
+ *
+ * Only read-only transactions inside enter()/exit() go to the replica, others still see their own writes
+ * on the primary. Reads done here may be behind the primary as much as DB.readReplica.maxLagInSeconds,
+ * so they don't put entities into the second level cache, see ReadReplicaJpaDialect.
+ */
+public class ReadReplica {
+    private static final ThreadLocal<Integer> depth = new ThreadLocal<Integer>();
+
+    public static void enter() {
+        Integer d = depth.get();
+        depth.set(d == null ? 1 : d + 1);
+    }
+
+    public static void exit() {
+        Integer d = depth.get();
+        if (d == null || d <= 1) {
+            depth.remove();
+        } else {
+            depth.set(d - 1);
+        }
+    }
+
+    public static boolean isEntered() {
+        return depth.get() != null;
+    }
+}
@@ -0,0 +1,28 @@
+package org.zstack.core.db;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.springframework.orm.jpa.vendor.HibernateJpaDialect;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import java.sql.SQLException;
+
+/**
+ * read-only transactions inside ReadReplica.enter()/exit() may read from a replica behind the primary,
+ * their sessions only read the second level cache and never put what they load into it, otherwise
+ * stale entities would be served from the cache to everybody
+ */
+public class ReadReplicaJpaDialect extends HibernateJpaDialect {
+    @Override
+    public Object beginTransaction(EntityManager entityManager, TransactionDefinition definition)
+            throws PersistenceException, SQLException, TransactionException {
+        Object data = super.beginTransaction(entityManager, definition);
+        if (definition.isReadOnly() && ReadReplica.isEntered()) {
+            entityManager.unwrap(Session.class).setCacheMode(CacheMode.GET);
+        }
+        return data;
+    }
+}
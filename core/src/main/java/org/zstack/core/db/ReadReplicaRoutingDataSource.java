@@ -0,0 +1,145 @@
+package org.zstack.core.db;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * the data source of JPA. It hands out connections of the read replica to read-only transactions
+ * inside ReadReplica.enter()/exit() while the replica is no more than DB.readReplica.maxLagInSeconds
+ * behind, counting the time since the lag was checked, and connections of the primary to everything else.
+ *
+ * It must be wrapped by a LazyConnectionDataSourceProxy, so the connection is fetched when the first
+ * statement runs and the read-only flag of the transaction is already known.
+ */
+public class ReadReplicaRoutingDataSource extends AbstractDataSource {
+    private static final CLogger logger = Utils.getLogger(ReadReplicaRoutingDataSource.class);
+
+    private static final String PRIMARY = "primary";
+    private static final String REPLICA = "replica";
+
+    private DataSource primaryDataSource;
+    private DataSource replicaDataSource;
+    private DbStatementStatistics statistics;
+
+    // Seconds_Behind_Master is in seconds, checking more often tells nothing new
+    private static final long MIN_LAG_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    // in milliseconds, -1 if the last check found the replica not replicating
+    private volatile long checkedLag = -1;
+    private volatile long lagCheckedAt;
+    private final AtomicBoolean checkingLag = new AtomicBoolean(false);
+
+    /**
+     * @return in seconds, how far the replica is behind; null if it's not replicating
+     */
+    protected Long checkLag() {
+        try (Connection conn = replicaDataSource.getConnection(); Statement st = conn.createStatement()) {
+            st.setQueryTimeout(5);
+            try (ResultSet rs = st.executeQuery("SHOW SLAVE STATUS")) {
+                if (!rs.next()) {
+                    logger.warn("the read replica is not replicating from any primary, don't use it");
+                    return null;
+                }
+
+                long lag = rs.getLong("Seconds_Behind_Master");
+                if (rs.wasNull()) {
+                    logger.warn("replication of the read replica is stopped, don't use it");
+                    return null;
+                }
+
+                return lag;
+            }
+        } catch (SQLException e) {
+            logger.warn("failed to check the lag of the read replica, don't use it", e);
+            return null;
+        }
+    }
+
+    /**
+     * the replica may fall behind by up to the time elapsed since the last check, so that time is taken
+     * from DB.readReplica.maxLagInSeconds; the lag is checked again when the interval passes or the
+     * allowance is used up, whichever comes first
+     */
+    private boolean isReplicaUsable() {
+        long now = System.currentTimeMillis();
+        long maxLag = TimeUnit.SECONDS.toMillis(DatabaseGlobalProperty.READ_REPLICA_MAX_LAG_IN_SECONDS);
+        long elapsed = now - lagCheckedAt;
+        long lag = checkedLag;
+        boolean due = elapsed > TimeUnit.SECONDS.toMillis(DatabaseGlobalProperty.READ_REPLICA_LAG_CHECK_INTERVAL_IN_SECONDS)
+                || (lag != -1 && lag + elapsed > maxLag && elapsed >= MIN_LAG_CHECK_INTERVAL);
+        if (due && checkingLag.compareAndSet(false, true)) {
+            // one thread checks, others go on with the last result
+            try {
+                Long seconds = checkLag();
+                long newLag = seconds == null ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+                boolean wasUsable = lag != -1 && lag <= maxLag;
+                boolean usable = newLag != -1 && newLag <= maxLag;
+                if (usable != wasUsable) {
+                    logger.info(String.format("the read replica becomes %s", usable ? "usable" : "unusable, route reads to the primary"));
+                }
+                checkedLag = newLag;
+                lagCheckedAt = now;
+                lag = newLag;
+                elapsed = 0;
+            } finally {
+                checkingLag.set(false);
+            }
+        }
+
+        return lag != -1 && lag + elapsed <= maxLag;
+    }
+
+    private boolean useReplica() {
+        return DatabaseGlobalProperty.READ_REPLICA_ENABLED
+                && ReadReplica.isEntered()
+                && TransactionSynchronizationManager.isCurrentTransactionReadOnly()
+                && isReplicaUsable();
+    }
+
+    private Connection getConnection(String name, DataSource ds, String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        Connection conn = username == null ? ds.getConnection() : ds.getConnection(username, password);
+        if (statistics == null) {
+            return conn;
+        }
+
+        statistics.connectionAcquired(name, System.nanoTime() - start);
+        return statistics.wrap(conn);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getConnection(null, null);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        if (replicaDataSource != null && useReplica()) {
+            return getConnection(REPLICA, replicaDataSource, username, password);
+        }
+
+        return getConnection(PRIMARY, primaryDataSource, username, password);
+    }
+
+    public void setPrimaryDataSource(DataSource primaryDataSource) {
+        this.primaryDataSource = primaryDataSource;
+    }
+
+    public void setReplicaDataSource(DataSource replicaDataSource) {
+        this.replicaDataSource = replicaDataSource;
+    }
+
+    public void setStatistics(DbStatementStatistics statistics) {
+        this.statistics = statistics;
+    }
+}
@@ -37,6 +37,8 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
     
     @Autowired
     private DatabaseFacade _dbf;
+    @Autowired
+    private DbEntityCache _cache;
     
     class Condition {
         private final SingularAttribute _attr;
@@ -76,6 +78,15 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
         _builder = _dbf.getCriteriaBuilder();
     }
 
+    private TypedQuery createQuery() {
+        TypedQuery q = _dbf.getEntityManager().createQuery(_query);
+        if (_cache.isCacheable(_entityClass)) {
+            q.setHint("org.hibernate.cacheable", true);
+            q.setHint("org.hibernate.cacheRegion", _cache.getQueryRegion(_entityClass));
+        }
+        return q;
+    }
+
     @Override
     public SimpleQuery<T> select(SingularAttribute... attrs) {
         for (int i=0; i<attrs.length; i++) {
@@ -205,7 +216,7 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
 
         T vo = null;
         try {
-            Query q = _dbf.getEntityManager().createQuery(_query);
+            Query q = createQuery();
             if (limit != null) {
                 q.setMaxResults(limit);
             }
@@ -225,7 +236,7 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
     public <K> List<K> list() {
         assert _selects.size() == 0 : "list() for entities doesn't need any parameter in Query.Select(), you have put some parameter in Query.select(..), either removing these parameters or using listValue() or listTuple()";
         done();
-        Query q = _dbf.getEntityManager().createQuery(_query);
+        Query q = createQuery();
         if (limit != null) {
             q.setMaxResults(limit);
         }
@@ -247,7 +258,7 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
         done();
         K value = null;
         try {
-            Query q = _dbf.getEntityManager().createQuery(_query);
+            Query q = createQuery();
             if (limit != null) {
                 q.setMaxResults(limit);
             }
@@ -264,7 +275,7 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
     public <K> List<K> listValue() {
         assert _selects.size() == 1 : String.format("listValue() only need one parameter in Query.Select(), you have put %s parameter in Query.select(..), either correcting the parameter or using list() or listTuple()", _selects.size());
         done();
-        Query q = _dbf.getEntityManager().createQuery(_query);
+        Query q = createQuery();
         if (limit != null) {
             q.setMaxResults(limit);
         }
@@ -282,7 +293,7 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
         done();
         Tuple ret = null;
         try {
-            Query q = _dbf.getEntityManager().createQuery(_query);
+            Query q = createQuery();
             if (limit != null) {
                 q.setMaxResults(limit);
             }
@@ -298,7 +309,7 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
     public List<Tuple> listTuple() {
         assert _selects.size() > 1 : String.format("listTuple() needs more than one parameter in Query.Select(), you have put %s parameter in Query.select(..), either correcting the parameter or using list() or listValue()", _selects.size());
         done();
-        Query q = _dbf.getEntityManager().createQuery(_query);
+        Query q = createQuery();
         if (limit != null) {
             q.setMaxResults(limit);
         }
@@ -317,7 +328,7 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
         _root = _query.from(_entityClass);
         _query.select(_builder.count(_root));
         _query.where(whereClause());
-        return (Long) _dbf.getEntityManager().createQuery(_query).getSingleResult();
+        return (Long) createQuery().getSingleResult();
     }
 
     @Override
@@ -345,7 +356,7 @@ public class SimpleQueryImpl<T> implements SimpleQuery<T> {
         _root = _query.from(_entityClass);
         _query.select(_builder.count(_root));
         _query.where(whereClause());
-        TypedQuery<Long> tq = _dbf.getEntityManager().createQuery(_query);
+        TypedQuery<Long> tq = createQuery();
         tq.setMaxResults(1);
         long count = tq.getSingleResult();
         return count >= 1;
@@ -25,6 +25,8 @@ public class UpdateQueryImpl implements UpdateQuery {
 
     @Autowired
     private DatabaseFacadeImpl dbf;
+    @Autowired
+    private DbEntityCache cache;
 
     private Class entityClass;
     private Map<SingularAttribute, Object> setValues = new HashMap<>();
@@ -164,5 +166,6 @@ public class UpdateQueryImpl implements UpdateQuery {
         }
 
         q.executeUpdate();
+        cache.entityChanged(entityClass, null);
     }
 }
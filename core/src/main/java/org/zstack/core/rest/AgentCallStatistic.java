@@ -0,0 +1,42 @@
+package org.zstack.core.rest;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class AgentCallStatistic {
+    private String agent;
+    private int inFlightCallNum;
+    private long completedCallNum;
+    private long averageLatencyInMillis;
+    private long maxLatencyInMillis;
+
+    @ConstructorProperties({"agent", "inFlightCallNum", "completedCallNum", "averageLatencyInMillis", "maxLatencyInMillis"})
+    public AgentCallStatistic(String agent, int inFlightCallNum, long completedCallNum, long averageLatencyInMillis, long maxLatencyInMillis) {
+        this.agent = agent;
+        this.inFlightCallNum = inFlightCallNum;
+        this.completedCallNum = completedCallNum;
+        this.averageLatencyInMillis = averageLatencyInMillis;
+        this.maxLatencyInMillis = maxLatencyInMillis;
+    }
+
+    public String getAgent() {
+        return agent;
+    }
+
+    public int getInFlightCallNum() {
+        return inFlightCallNum;
+    }
+
+    public long getCompletedCallNum() {
+        return completedCallNum;
+    }
+
+    public long getAverageLatencyInMillis() {
+        return averageLatencyInMillis;
+    }
+
+    public long getMaxLatencyInMillis() {
+        return maxLatencyInMillis;
+    }
+}
@@ -3,10 +3,18 @@ package org.zstack.core.rest;
 import org.apache.http.HttpStatus;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.message.APIMessage;
 import org.zstack.header.message.APISyncCallMessage;
 import org.zstack.header.rest.RESTApiFacade;
@@ -21,6 +29,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
 
 @Controller
 public class RESTApiController {
@@ -30,23 +40,42 @@ public class RESTApiController {
     @Autowired
     private RESTFacade restf;
 
+    private ResponseEntity<String> toResponseEntity(String body, int status) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(new MediaType("application", "json", Charset.forName("UTF-8")));
+        return new ResponseEntity<String>(body, headers, org.springframework.http.HttpStatus.valueOf(status));
+    }
+
     @RequestMapping(value = RESTConstant.REST_API_RESULT + "{uuid}", method = {RequestMethod.GET, RequestMethod.PUT})
-    public void queryResult(@PathVariable String uuid, HttpServletResponse rsp) throws IOException {
+    public DeferredResult<ResponseEntity<String>> queryResult(@PathVariable final String uuid,
+                                                              @RequestParam(value = "waitTime", required = false, defaultValue = "0") long waitTime) {
+        // with waitTime in milliseconds, the response is deferred until the API is done or the time is up,
+        // the servlet thread is released meanwhile. The timeout of the deferred result is only a guard
+        final DeferredResult<ResponseEntity<String>> ret = new DeferredResult<ResponseEntity<String>>(
+                TimeUnit.SECONDS.toMillis(CoreGlobalProperty.REST_API_MAX_WAIT_TIME + 30));
+
         try {
-            RestAPIResponse apiRsp = restApi.getResult(uuid);
-            if (apiRsp == null) {
-                rsp.sendError(HttpStatus.SC_NOT_FOUND, String.format("No api result[uuid:%s] found", uuid));
-                return;
-            }
-            rsp.setCharacterEncoding("UTF-8");
-            PrintWriter writer = rsp.getWriter();
-            String res = JSONObjectUtil.toJsonString(apiRsp);
-            rsp.setStatus(HttpStatus.SC_OK);
-            writer.write(res);
+            restApi.getResult(uuid, waitTime, new ReturnValueCompletion<RestAPIResponse>() {
+                @Override
+                public void success(RestAPIResponse apiRsp) {
+                    if (apiRsp == null) {
+                        ret.setResult(toResponseEntity(String.format("No api result[uuid:%s] found", uuid), HttpStatus.SC_NOT_FOUND));
+                    } else {
+                        ret.setResult(toResponseEntity(JSONObjectUtil.toJsonString(apiRsp), HttpStatus.SC_OK));
+                    }
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    ret.setResult(toResponseEntity(errorCode.toString(), HttpStatus.SC_INTERNAL_SERVER_ERROR));
+                }
+            });
         } catch (Throwable t) {
             logger.warn(t.getMessage(), t);
-            rsp.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR, t.getMessage());
+            ret.setResult(toResponseEntity(t.getMessage(), HttpStatus.SC_INTERNAL_SERVER_ERROR));
         }
+
+        return ret;
     }
 
     private String handleByMessageType(String body) {
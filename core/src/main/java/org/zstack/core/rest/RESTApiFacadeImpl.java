@@ -4,8 +4,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
 import org.springframework.core.type.filter.AssignableTypeFilter;
+import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusEventListener;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.header.core.ReturnValueCompletion;
 import org.zstack.header.apimediator.ApiMediatorConstant;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.message.*;
@@ -23,18 +28,103 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Query;
+import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Results of APIs sent by this management node are kept in memory, clients get them without touching
+ * the database and can wait for them by long polling. Results are evicted RESTApiFacade.resultTTL
+ * seconds after the APIs finish, or the oldest finished ones when there are more than RESTApiFacade.maxResults.
+ * Results of APIs still being processed are never evicted.
+ *
+ * With RESTApiFacade.writeBehind, results are also written to RestAPIVO in batches in background for
+ * audit, and a result not in memory is looked up there. A result is not evicted before it's written.
+ */
 public class RESTApiFacadeImpl implements RESTApiFacade, CloudBusEventListener {
     private static final CLogger logger = Utils.getLogger(RESTApiFacadeImpl.class);
 
+    private static final int WRITE_BATCH_SIZE = 500;
+
     private EntityManagerFactory entityManagerFactory;
     private EntityManager entityManager = null;
     private Set<String> basePkgNames;
-    private List<String> processingRequests = Collections.synchronizedList(new ArrayList<String>(100));
+    // results of APIs sent by this management node, by API uuid
+    private final Map<String, ApiResult> results = new ConcurrentHashMap<String, ApiResult>();
+    private final Queue<ApiResult> writeQueue = new ConcurrentLinkedQueue<ApiResult>();
+    private Future<Void> storeTask;
 
     @Autowired
     private CloudBus bus;
+    @Autowired
+    private ThreadFacade thdf;
+
+    private static class ApiResult {
+        final String uuid;
+        final String apiMessageName;
+        final Date createdDate = new Date();
+        // guarded by the ApiResult itself
+        final List<Waiter> waiters = new ArrayList<Waiter>();
+        volatile Date finishedDate;
+        volatile String result;
+        // whether the row has been inserted, only accessed by the write-behind task
+        boolean persisted;
+        // whether the row has been written with the result
+        volatile boolean stored;
+
+        ApiResult(String uuid, String apiMessageName) {
+            this.uuid = uuid;
+            this.apiMessageName = apiMessageName;
+        }
+
+        boolean isDone() {
+            return finishedDate != null;
+        }
+
+        RestAPIResponse toResponse() {
+            RestAPIResponse rsp = new RestAPIResponse();
+            rsp.setUuid(uuid);
+            rsp.setCreatedDate(createdDate);
+            if (isDone()) {
+                rsp.setFinishedDate(finishedDate);
+                rsp.setResult(result);
+                rsp.setState(RestAPIState.Done.toString());
+            } else {
+                rsp.setState(RestAPIState.Processing.toString());
+            }
+            return rsp;
+        }
+    }
+
+    // a client long polling the result of an API
+    private static class Waiter {
+        final ApiResult apiResult;
+        final ReturnValueCompletion<RestAPIResponse> completion;
+        final AtomicBoolean called = new AtomicBoolean(false);
+        TimeoutTaskReceipt timeoutTaskReceipt;
+
+        Waiter(ApiResult apiResult, ReturnValueCompletion<RestAPIResponse> completion) {
+            this.apiResult = apiResult;
+            this.completion = completion;
+        }
+
+        void reply(boolean timeout) {
+            if (!called.compareAndSet(false, true)) {
+                return;
+            }
+
+            if (timeout) {
+                synchronized (apiResult) {
+                    apiResult.waiters.remove(this);
+                }
+            } else {
+                timeoutTaskReceipt.cancel();
+            }
+
+            completion.success(apiResult.toResponse());
+        }
+    }
 
     void init() throws ClassNotFoundException, InstantiationException, IllegalAccessException {
         Set<APIEvent> boundEvents = new HashSet<APIEvent>(100);
@@ -55,26 +145,82 @@ public class RESTApiFacadeImpl implements RESTApiFacade, CloudBusEventListener {
         for (APIEvent e : boundEvents) {
             bus.subscribeEvent(this, e);
         }
+
+        storeTask = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return 1;
+            }
+
+            @Override
+            public String getName() {
+                return "rest-api-result-store";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    writeBehind();
+                    evict();
+                } catch (Throwable t) {
+                    logger.warn("unhandled exception when storing api results", t);
+                }
+            }
+        });
+    }
+
+    void destroy() {
+        if (storeTask != null) {
+            storeTask.cancel(true);
+        }
+
+        writeBehind();
     }
 
     public void setEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
         this.entityManagerFactory = entityManagerFactory;
     }
 
-    private RestAPIVO persist(APIMessage msg) {
+    private RestAPIVO toVO(ApiResult r) {
         RestAPIVO vo = new RestAPIVO();
-        vo.setUuid(msg.getId());
-        vo.setApiMessageName(msg.getMessageName());
-        vo.setState(RestAPIState.Processing);
+        vo.setUuid(r.uuid);
+        vo.setApiMessageName(r.apiMessageName);
+        vo.setCreateDate(new Timestamp(r.createdDate.getTime()));
+        if (r.isDone()) {
+            vo.setState(RestAPIState.Done);
+            vo.setResult(r.result);
+            vo.setLastOpDate(new Timestamp(r.finishedDate.getTime()));
+        } else {
+            vo.setState(RestAPIState.Processing);
+        }
+        return vo;
+    }
+
+    private void write(Collection<ApiResult> rs) {
+        String sql = "update RestAPIVO r set r.result = :result, r.state = :state where r.uuid = :uuid";
         EntityManager mgr = getEntityManager();
         EntityTransaction tran = mgr.getTransaction();
         try {
             tran.begin();
-            mgr.persist(vo);
-            mgr.flush();
-            mgr.refresh(vo);
+            for (ApiResult r : rs) {
+                if (!r.persisted) {
+                    mgr.persist(toVO(r));
+                } else {
+                    Query query = mgr.createQuery(sql);
+                    query.setParameter("result", r.result);
+                    query.setParameter("state", RestAPIState.Done);
+                    query.setParameter("uuid", r.uuid);
+                    if (query.executeUpdate() == 0) {
+                        logger.warn(String.format("Cannot find RestAPIVO[uuid:%s], something wrong happened", r.uuid));
+                    }
+                }
+            }
             tran.commit();
-            return vo;
         } catch (Exception e) {
             ExceptionDSL.exceptionSafe(tran::rollback);
             throw new CloudRuntimeException(e);
@@ -83,16 +229,90 @@ public class RESTApiFacadeImpl implements RESTApiFacade, CloudBusEventListener {
         }
     }
 
+    // an API sent and finished between two runs is written once, with its result
+    private synchronized void writeBehind() {
+        while (!writeQueue.isEmpty()) {
+            Map<String, ApiResult> batch = new LinkedHashMap<String, ApiResult>();
+            ApiResult r;
+            while (batch.size() < WRITE_BATCH_SIZE && (r = writeQueue.poll()) != null) {
+                batch.put(r.uuid, r);
+            }
+
+            // an API finishing during the write is queued again by handleEvent()
+            List<ApiResult> done = new ArrayList<ApiResult>();
+            for (ApiResult ar : batch.values()) {
+                if (ar.isDone()) {
+                    done.add(ar);
+                }
+            }
+
+            try {
+                write(batch.values());
+            } catch (Throwable t) {
+                logger.warn(String.format("failed to write %s api results to the database, retry them later", batch.size()), t);
+                writeQueue.addAll(batch.values());
+                return;
+            }
+
+            for (ApiResult ar : batch.values()) {
+                ar.persisted = true;
+            }
+            for (ApiResult ar : done) {
+                ar.stored = true;
+            }
+        }
+    }
+
+    private void evict() {
+        long expired = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(CoreGlobalProperty.REST_API_RESULT_TTL);
+        List<ApiResult> done = new ArrayList<ApiResult>();
+        for (ApiResult r : results.values()) {
+            // the event of an API being processed would be dropped without its result
+            if (!r.isDone() || (CoreGlobalProperty.REST_API_WRITE_BEHIND && !r.stored)) {
+                continue;
+            }
+
+            if (r.finishedDate.getTime() < expired) {
+                results.remove(r.uuid);
+            } else {
+                done.add(r);
+            }
+        }
+
+        int num = results.size() - CoreGlobalProperty.REST_API_MAX_RESULTS;
+        if (num <= 0) {
+            return;
+        }
+
+        // too many, drop the oldest finished results
+        Collections.sort(done, new Comparator<ApiResult>() {
+            @Override
+            public int compare(ApiResult o1, ApiResult o2) {
+                return o1.createdDate.compareTo(o2.createdDate);
+            }
+        });
+
+        for (ApiResult r : done.subList(0, Math.min(num, done.size()))) {
+            results.remove(r.uuid);
+        }
+
+        if (num > done.size()) {
+            logger.warn(String.format("%s api results are kept, more than %s, as they are being processed or not written to the database yet",
+                    results.size(), CoreGlobalProperty.REST_API_MAX_RESULTS));
+        }
+    }
+
     @Override
     public RestAPIResponse send(APIMessage msg) {
         assert !(msg instanceof APIListMessage) && !(msg instanceof APISearchMessage) : "You must invoke call(APIMessage) for APIListMessage or APISearchMsg, the message you pass is "
                 + msg.getMessageName();
-        RestAPIResponse rsp = new RestAPIResponse();
-        RestAPIVO vo = persist(msg);
-        processingRequests.add(vo.getUuid());
-        rsp.setCreatedDate(vo.getCreateDate());
-        rsp.setState(vo.getState().toString());
-        rsp.setUuid(vo.getUuid());
+        ApiResult r = new ApiResult(msg.getId(), msg.getMessageName());
+        results.put(r.uuid, r);
+        if (CoreGlobalProperty.REST_API_WRITE_BEHIND) {
+            writeQueue.add(r);
+        }
+
+        RestAPIResponse rsp = r.toResponse();
         msg.setServiceId(ApiMediatorConstant.SERVICE_ID);
         bus.send(msg);
         return rsp;
@@ -128,6 +348,15 @@ public class RESTApiFacadeImpl implements RESTApiFacade, CloudBusEventListener {
     
     @Override
     public RestAPIResponse getResult(String uuid) {
+        ApiResult r = results.get(uuid);
+        if (r != null) {
+            return r.toResponse();
+        }
+
+        if (!CoreGlobalProperty.REST_API_WRITE_BEHIND) {
+            return null;
+        }
+
         RestAPIVO vo = find(uuid);
         if (vo == null) {
             return null;
@@ -141,29 +370,29 @@ public class RESTApiFacadeImpl implements RESTApiFacade, CloudBusEventListener {
         return rsp;
     }
 
-    private EntityManager getEntityManager() {
-        return entityManagerFactory.createEntityManager();
-    }
+    @Override
+    public void getResult(String uuid, long waitTime, ReturnValueCompletion<RestAPIResponse> completion) {
+        ApiResult r = results.get(uuid);
+        waitTime = Math.min(waitTime, TimeUnit.SECONDS.toMillis(CoreGlobalProperty.REST_API_MAX_WAIT_TIME));
+        if (r == null || r.isDone() || waitTime <= 0) {
+            completion.success(getResult(uuid));
+            return;
+        }
 
-    private boolean update(APIEvent e) {
-        String sql = "update RestAPIVO r set r.result = :result, r.state = :state where r.uuid = :uuid";
-        EntityManager mgr = getEntityManager();
-        EntityTransaction tran = mgr.getTransaction();
-        try {
-            tran.begin();
-            Query query = mgr.createQuery(sql);
-            query.setParameter("result", RESTApiDecoder.dump(e));
-            query.setParameter("state", RestAPIState.Done);
-            query.setParameter("uuid", e.getApiId());
-            int ret = query.executeUpdate();
-            tran.commit();
-            return ret > 0;
-        } catch (Exception ex) {
-            tran.rollback();
-            throw new CloudRuntimeException(ex);
-        } finally {
-            mgr.close();
+        final Waiter waiter = new Waiter(r, completion);
+        waiter.timeoutTaskReceipt = thdf.submitTimeoutTask(() -> waiter.reply(true), TimeUnit.MILLISECONDS, waitTime);
+        synchronized (r) {
+            if (!r.isDone()) {
+                r.waiters.add(waiter);
+                return;
+            }
         }
+
+        waiter.reply(false);
+    }
+
+    private EntityManager getEntityManager() {
+        return entityManagerFactory.createEntityManager();
     }
 
     @Override
@@ -171,11 +400,21 @@ public class RESTApiFacadeImpl implements RESTApiFacade, CloudBusEventListener {
         try {
             if (e instanceof APIEvent) {
                 APIEvent ae = (APIEvent) e;
-                if (processingRequests.contains(ae.getApiId())) {
-                    boolean ret = update(ae);
-                    processingRequests.remove(ae.getApiId());
-                    if (!ret) {
-                        logger.warn(String.format("Cannot find RestAPIVO[uuid:%s], something wrong happened", ae.getApiId()));
+                ApiResult r = results.get(ae.getApiId());
+                if (r != null && !r.isDone()) {
+                    r.result = RESTApiDecoder.dump(ae);
+                    r.finishedDate = new Date();
+                    if (CoreGlobalProperty.REST_API_WRITE_BEHIND) {
+                        writeQueue.add(r);
+                    }
+
+                    List<Waiter> waiters;
+                    synchronized (r) {
+                        waiters = new ArrayList<Waiter>(r.waiters);
+                        r.waiters.clear();
+                    }
+                    for (Waiter w : waiters) {
+                        w.reply(false);
                     }
                 }
             } else {
@@ -1,9 +1,23 @@
 package org.zstack.core.rest;
 
 import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -11,6 +25,7 @@ import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.MessageCommandRecorder;
 import org.zstack.core.Platform;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.core.retry.Retry;
 import org.zstack.core.retry.RetryCondition;
 import org.zstack.core.thread.AsyncThread;
@@ -35,15 +50,15 @@ import org.zstack.utils.logging.CLogger;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.Map;
+import java.net.URI;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class RESTFacadeImpl implements RESTFacade {
+public class RESTFacadeImpl implements RESTFacade, RESTFacadeMXBean {
     private static final CLogger logger = Utils.getLogger(RESTFacadeImpl.class);
     
     @Autowired
@@ -54,18 +69,47 @@ public class RESTFacadeImpl implements RESTFacade {
     private ApiTimeoutManager timeoutMgr;
     @Autowired
     private ValidationFacade vf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    public static final int NON_BLOCKING_POST_RETRY_TIMES = 5;
 
     private String hostname;
     private int port = 8080;
     private String path;
     private String callbackUrl;
     private RestTemplate template;
+    private CloseableHttpAsyncClient asyncClient;
+    private AsyncRestTemplate asyncTemplate;
     private String baseUrl;
     private String sendCommandUrl;
 
     private Map<String, HttpCallStatistic> statistics = new ConcurrentHashMap<String, HttpCallStatistic>();
     private Map<String, HttpCallHandlerWrapper> httpCallhandlers = new ConcurrentHashMap<String, HttpCallHandlerWrapper>();
     private List<BeforeAsyncJsonPostInterceptor> interceptors = new ArrayList<BeforeAsyncJsonPostInterceptor>();
+    private Map<String, AgentCallCounter> agentCallCounters = new ConcurrentHashMap<String, AgentCallCounter>();
+
+    private static class AgentCallCounter {
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicLong completed = new AtomicLong(0);
+        final AtomicLong totalLatency = new AtomicLong(0);
+        volatile long maxLatency;
+
+        long start() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        void end(long start) {
+            long latency = System.nanoTime() - start;
+            inFlight.decrementAndGet();
+            completed.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            if (latency > maxLatency) {
+                maxLatency = latency;
+            }
+        }
+    }
 
     private interface AsyncHttpWrapper {
         void fail(ErrorCode err);
@@ -109,10 +153,140 @@ public class RESTFacadeImpl implements RESTFacade {
         sendCommandUrl = ub.build().toUriString();
 
         logger.debug(String.format("RESTFacade built callback url: %s", callbackUrl));
-        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(CoreGlobalProperty.REST_FACADE_MAX_TOTAL);
+        connectionManager.setDefaultMaxPerRoute(CoreGlobalProperty.REST_FACADE_MAX_PER_ROUTE);
+        CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .build();
+        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(client);
         factory.setReadTimeout(CoreGlobalProperty.REST_FACADE_READ_TIMEOUT);
         factory.setConnectTimeout(CoreGlobalProperty.REST_FACADE_CONNECT_TIMEOUT);
         template = new RestTemplate(factory);
+
+        if (CoreGlobalProperty.REST_FACADE_NON_BLOCKING_ASYNC_JSON_POST) {
+            buildAsyncTemplate();
+        }
+
+        jmxf.registerBean("RESTFacade", this);
+    }
+
+    private void buildAsyncTemplate() {
+        try {
+            PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT));
+            connectionManager.setMaxTotal(CoreGlobalProperty.REST_FACADE_MAX_TOTAL);
+            connectionManager.setDefaultMaxPerRoute(CoreGlobalProperty.REST_FACADE_MAX_PER_ROUTE);
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(CoreGlobalProperty.REST_FACADE_CONNECT_TIMEOUT)
+                    .setSocketTimeout(CoreGlobalProperty.REST_FACADE_READ_TIMEOUT)
+                    .build();
+            asyncClient = HttpAsyncClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                    .build();
+            asyncClient.start();
+            asyncTemplate = new AsyncRestTemplate(new HttpComponentsAsyncClientHttpRequestFactory(asyncClient));
+            logger.debug(String.format("RESTFacade uses the non-blocking transport for asyncJsonPost, max connections per agent: %s, max total connections: %s",
+                    CoreGlobalProperty.REST_FACADE_MAX_PER_ROUTE, CoreGlobalProperty.REST_FACADE_MAX_TOTAL));
+        } catch (IOException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    void destroy() {
+        if (asyncClient != null) {
+            try {
+                asyncClient.close();
+            } catch (IOException e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private AgentCallCounter getAgentCallCounter(String url) {
+        URI uri = URI.create(url);
+        String agent = String.format("%s:%s", uri.getHost(), uri.getPort());
+        AgentCallCounter counter = agentCallCounters.get(agent);
+        if (counter == null) {
+            counter = new AgentCallCounter();
+            AgentCallCounter old = agentCallCounters.putIfAbsent(agent, counter);
+            if (old != null) {
+                counter = old;
+            }
+        }
+
+        return counter;
+    }
+
+    @Override
+    public Map<String, AgentCallStatistic> getAgentCallStatistics() {
+        Map<String, AgentCallStatistic> ret = new HashMap<String, AgentCallStatistic>();
+        for (Map.Entry<String, AgentCallCounter> e : agentCallCounters.entrySet()) {
+            AgentCallCounter c = e.getValue();
+            long completed = c.completed.get();
+            ret.put(e.getKey(), new AgentCallStatistic(
+                    e.getKey(),
+                    c.inFlight.get(),
+                    completed,
+                    completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(c.totalLatency.get() / completed),
+                    TimeUnit.NANOSECONDS.toMillis(c.maxLatency)
+            ));
+        }
+        return ret;
+    }
+
+    private void nonBlockingPost(final String url, final HttpEntity<String> req, final AsyncHttpWrapper wrapper, final int retried) {
+        final AgentCallCounter counter = getAgentCallCounter(url);
+        final long start = counter.start();
+
+        ListenableFuture<ResponseEntity<String>> f;
+        try {
+            f = asyncTemplate.exchange(url, HttpMethod.POST, req, String.class);
+        } catch (Throwable t) {
+            counter.end(start);
+            nonBlockingPostFailure(url, req, wrapper, retried, t);
+            return;
+        }
+
+        f.addCallback(new ListenableFutureCallback<ResponseEntity<String>>() {
+            @Override
+            public void onSuccess(ResponseEntity<String> rsp) {
+                counter.end(start);
+                if (rsp.getStatusCode() != org.springframework.http.HttpStatus.OK) {
+                    String err = String.format("http status: %s, response body:%s", rsp.getStatusCode().toString(), rsp.getBody());
+                    logger.warn(err);
+                    failInThread(wrapper, errf.instantiateErrorCode(SysErrors.HTTP_ERROR, err));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                counter.end(start);
+                nonBlockingPostFailure(url, req, wrapper, retried, t);
+            }
+        });
+    }
+
+    private void nonBlockingPostFailure(final String url, final HttpEntity<String> req, final AsyncHttpWrapper wrapper, final int retried, Throwable t) {
+        boolean retryable = ExceptionDSL.isCausedBy(t, IOException.class) || t instanceof RestClientException;
+        if (retryable && retried < NON_BLOCKING_POST_RETRY_TIMES) {
+            logger.debug(String.format("unable to post to %s, %s, will retry %s times with the interval 1 seconds",
+                    url, t.getMessage(), NON_BLOCKING_POST_RETRY_TIMES - retried));
+            thdf.submitTimeoutTask(() -> nonBlockingPost(url, req, wrapper, retried + 1), TimeUnit.SECONDS, 1);
+            return;
+        }
+
+        logger.warn(String.format("Unable to post to %s", url), t);
+        failInThread(wrapper, ExceptionDSL.isCausedBy(t, IOException.class) ? errf.instantiateErrorCode(SysErrors.IO_ERROR, t.getMessage()) : errf.throwableToInternalError(t));
+    }
+
+    // the non-blocking client calls back in its IO dispatcher threads, never run user callbacks there
+    @AsyncThread
+    private void failInThread(AsyncHttpWrapper wrapper, ErrorCode err) {
+        wrapper.fail(err);
     }
 
     void notifyCallback(HttpServletRequest req, HttpServletResponse rsp) {
@@ -307,13 +481,25 @@ public class RESTFacadeImpl implements RESTFacade {
                 logger.trace(String.format("json post[%s], %s", url, req.toString()));
             }
 
-            ResponseEntity<String> rsp = new Retry<ResponseEntity<String>>() {
-                @Override
-                @RetryCondition(onExceptions = {IOException.class, RestClientException.class})
-                protected ResponseEntity<String> call() {
-                    return template.exchange(url, HttpMethod.POST, req, String.class);
-                }
-            }.run();
+            if (asyncTemplate != null) {
+                nonBlockingPost(url, req, wrapper, 0);
+                return;
+            }
+
+            AgentCallCounter counter = getAgentCallCounter(url);
+            long start = counter.start();
+            ResponseEntity<String> rsp;
+            try {
+                rsp = new Retry<ResponseEntity<String>>() {
+                    @Override
+                    @RetryCondition(onExceptions = {IOException.class, RestClientException.class})
+                    protected ResponseEntity<String> call() {
+                        return template.exchange(url, HttpMethod.POST, req, String.class);
+                    }
+                }.run();
+            } finally {
+                counter.end(start);
+            }
 
             if (rsp.getStatusCode() != org.springframework.http.HttpStatus.OK) {
                 String err = String.format("http status: %s, response body:%s", rsp.getStatusCode().toString(), rsp.getBody());
@@ -0,0 +1,9 @@
+package org.zstack.core.rest;
+
+import java.util.Map;
+
+/**
+ */
+public interface RESTFacadeMXBean {
+    Map<String, AgentCallStatistic> getAgentCallStatistics();
+}
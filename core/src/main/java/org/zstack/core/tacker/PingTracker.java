@@ -1,10 +1,10 @@
 package org.zstack.core.tacker;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusSteppingCallback;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.core.thread.PeriodicTask;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.Component;
@@ -16,9 +16,17 @@ import org.zstack.utils.logging.CLogger;
 
 import java.util.*;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Pings tracked resources, each on its own schedule.
+ *
+ * A resource is first pinged at a random moment within the ping interval and then every interval
+ * with a jitter of 10%, so pings are spread over the interval instead of being sent in one burst.
+ * The interval of a resource adapts to its replies: it's halved when the resource turns healthy or
+ * unhealthy, and doubled, up to getMaxPingIntervalMultiplier() times, after every STABLE_ROUNDS
+ * healthy replies in a row. A resource isn't pinged again before its last ping replies.
  */
 public abstract class PingTracker implements Component {
     public abstract String getResourceName();
@@ -29,24 +37,79 @@ public abstract class PingTracker implements Component {
 
     private final static CLogger logger = Utils.getLogger(PingTracker.class);
 
-    private final List<String> resourceUuids = Collections.synchronizedList(new ArrayList<String>());
-    private Set<String> resourceInTracking = Collections.synchronizedSet(new HashSet<String>());
+    private static final int STABLE_ROUNDS = 3;
+    private static final double MIN_MULTIPLIER = 0.5;
+    private static final double JITTER = 0.1;
+
+    private class Resource {
+        final String uuid;
+        long nextPingTime;
+        double multiplier = 1;
+        Boolean healthy;
+        int stableRounds;
+
+        Resource(String uuid) {
+            this.uuid = uuid;
+        }
+    }
+
+    // guarded by itself, a resource is in the schedule unless its ping is in flight
+    private final Map<String, Resource> resources = new HashMap<String, Resource>();
+    private final PriorityQueue<Resource> schedule = new PriorityQueue<Resource>(11, new Comparator<Resource>() {
+        @Override
+        public int compare(Resource r1, Resource r2) {
+            return Long.compare(r1.nextPingTime, r2.nextPingTime);
+        }
+    });
+    private int inFlightNum;
+    private volatile long lag;
+    private volatile long maxLag;
     private Future<Void> trackerThread = null;
 
     @Autowired
     protected CloudBus bus;
     @Autowired
     protected ThreadFacade thdf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    private class Statistic implements PingTrackerMXBean {
+        @Override
+        public String getResourceName() {
+            return PingTracker.this.getResourceName();
+        }
+
+        @Override
+        public int getTrackedNumber() {
+            return PingTracker.this.getTrackedNumber();
+        }
+
+        @Override
+        public int getInFlightNumber() {
+            return PingTracker.this.getInFlightNumber();
+        }
+
+        @Override
+        public long getLag() {
+            return lag;
+        }
+
+        @Override
+        public long getMaxLag() {
+            return maxLag;
+        }
+    }
 
     private class Tracker implements PeriodicTask {
         @Override
         public TimeUnit getTimeUnit() {
-            return TimeUnit.SECONDS;
+            return TimeUnit.MILLISECONDS;
         }
 
         @Override
         public long getInterval() {
-            return getPingInterval();
+            // ten ticks an interval at least
+            return Math.max(100, Math.min(1000, TimeUnit.SECONDS.toMillis(getPingInterval()) / 10));
         }
 
         @Override
@@ -57,48 +120,134 @@ public abstract class PingTracker implements Component {
         @Override
         public void run() {
             try {
-                List<NeedReplyMessage> msgs = null;
-                synchronized (resourceUuids) {
-                    final Map<NeedReplyMessage, String> tmp = new HashMap<NeedReplyMessage, String>();
-
-                    msgs = new ArrayList<NeedReplyMessage>();
-                    for (String resUuid : resourceUuids) {
-                        if (resourceInTracking.contains(resUuid)) {
+                List<Resource> due = new ArrayList<Resource>();
+                long now = System.currentTimeMillis();
+                long tickLag = 0;
+                synchronized (resources) {
+                    while (!schedule.isEmpty() && schedule.peek().nextPingTime <= now) {
+                        Resource r = schedule.poll();
+                        if (resources.get(r.uuid) != r) {
+                            // untracked
                             continue;
                         }
 
-                        NeedReplyMessage msg = getPingMessage(resUuid);
-                        msgs.add(msg);
-                        resourceInTracking.add(resUuid);
-                        tmp.put(msg, resUuid);
+                        tickLag = Math.max(tickLag, now - r.nextPingTime);
+                        due.add(r);
                     }
+                    inFlightNum += due.size();
+                }
+
+                lag = tickLag;
+                maxLag = Math.max(maxLag, tickLag);
 
-                    if (msgs.isEmpty()) {
-                        return;
+                if (due.isEmpty()) {
+                    return;
+                }
+
+                final Map<NeedReplyMessage, Resource> tmp = new HashMap<NeedReplyMessage, Resource>(due.size());
+                List<NeedReplyMessage> msgs = new ArrayList<NeedReplyMessage>(due.size());
+                for (Resource r : due) {
+                    NeedReplyMessage msg;
+                    try {
+                        msg = getPingMessage(r.uuid);
+                    } catch (Throwable t) {
+                        logger.warn(String.format("failed to make the ping message for %s[uuid:%s]", getResourceName(), r.uuid), t);
+                        pinged(r, false);
+                        continue;
                     }
 
-                    bus.send(msgs, getParallelismDegree(), new CloudBusSteppingCallback() {
-                        @Override
-                        public void run(NeedReplyMessage msg, MessageReply reply) {
-                            String resUuid = tmp.get(msg);
-                            DebugUtils.Assert(resUuid!=null, "where is my resource uuid???");
-                            try {
-                                handleReply(resUuid, reply);
-                            } finally {
-                                resourceInTracking.remove(resUuid);
-                            }
-                        }
-                    });
+                    msgs.add(msg);
+                    tmp.put(msg, r);
                 }
+
+                if (msgs.isEmpty()) {
+                    return;
+                }
+
+                bus.send(msgs, getParallelismDegree(), new CloudBusSteppingCallback() {
+                    @Override
+                    public void run(NeedReplyMessage msg, MessageReply reply) {
+                        Resource r = tmp.get(msg);
+                        DebugUtils.Assert(r != null, "where is my resource uuid???");
+                        boolean healthy = false;
+                        try {
+                            healthy = isHealthy(reply);
+                            handleReply(r.uuid, reply);
+                        } finally {
+                            pinged(r, healthy);
+                        }
+                    }
+                });
             } catch (Throwable t) {
                 logger.warn("unhandled throwable", t);
             }
         }
     }
 
+    private long nextPeriod(Resource r) {
+        double period = TimeUnit.SECONDS.toMillis(getPingInterval()) * r.multiplier;
+        return (long) (period * (1 - JITTER + 2 * JITTER * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    private void pinged(Resource r, boolean healthy) {
+        synchronized (resources) {
+            inFlightNum--;
+
+            if (r.healthy != null && r.healthy != healthy) {
+                r.multiplier = MIN_MULTIPLIER;
+                r.stableRounds = 0;
+                logger.debug(String.format("%s[uuid:%s] turned %s, ping it every %sms", getResourceName(), r.uuid,
+                        healthy ? "healthy" : "unhealthy", nextPeriod(r)));
+            } else if (++r.stableRounds >= STABLE_ROUNDS) {
+                r.stableRounds = 0;
+                r.multiplier = healthy ? Math.min(r.multiplier * 2, Math.max(1, getMaxPingIntervalMultiplier())) : 1;
+            }
+            r.healthy = healthy;
+
+            if (resources.get(r.uuid) == r) {
+                r.nextPingTime = System.currentTimeMillis() + nextPeriod(r);
+                schedule.add(r);
+            }
+        }
+    }
+
+    private void doTrack(String resUuid) {
+        if (resources.containsKey(resUuid)) {
+            return;
+        }
+
+        Resource r = new Resource(resUuid);
+        r.nextPingTime = System.currentTimeMillis() + (long) (TimeUnit.SECONDS.toMillis(getPingInterval()) * ThreadLocalRandom.current().nextDouble());
+        resources.put(resUuid, r);
+        schedule.add(r);
+        trackHook(resUuid);
+        logger.debug(String.format("start tracking %s[uuid:%s]", getResourceName(), resUuid));
+    }
+
+    private void doUntrack(String resUuid) {
+        // the entry left in the schedule is skipped when it's due
+        resources.remove(resUuid);
+        untrackHook(resUuid);
+        logger.debug(String.format("stop tracking %s[uuid:%s]", getResourceName(), resUuid));
+    }
+
+    /**
+     * @return whether the resource is healthy according to the reply of its ping
+     */
+    protected boolean isHealthy(MessageReply reply) {
+        return reply.isSuccess();
+    }
+
+    /**
+     * @return how many times of the ping interval a healthy resource can be pinged at, 1 disables backing off
+     */
+    protected int getMaxPingIntervalMultiplier() {
+        return 1;
+    }
+
     protected void trackHook(String resourceUuid) {
     }
-    
+
     protected void untrackHook(String resourceUuid) {
     }
 
@@ -106,72 +255,117 @@ public abstract class PingTracker implements Component {
     }
 
     protected void pingIntervalChanged() {
+        // re-spread resources over the new interval, or a shortened interval won't take effect until old schedules are due
+        synchronized (resources) {
+            long now = System.currentTimeMillis();
+            List<Resource> rs = new ArrayList<Resource>(schedule);
+            schedule.clear();
+            for (Resource r : rs) {
+                r.nextPingTime = now + (long) (nextPeriod(r) * ThreadLocalRandom.current().nextDouble());
+                schedule.add(r);
+            }
+        }
+
         startTracker();
     }
-    
+
     public void track(String resUuid) {
-        synchronized (resourceUuids) {
-            if (!resourceUuids.contains(resUuid)) {
-                resourceUuids.add(resUuid);
-                trackHook(resUuid);
-                logger.debug(String.format("start tracking %s[uuid:%s]", getResourceName(), resUuid));
+        synchronized (resources) {
+            doTrack(resUuid);
+        }
+    }
+
+    /**
+     * replaces the tracked resources with resUuids in one step, resources tracked before keep their schedules
+     * and ping intervals; a resource is never untracked in the middle as untrackAll() then track() would do
+     */
+    public void reset(Collection<String> resUuids) {
+        Set<String> uuids = new HashSet<String>(resUuids);
+        synchronized (resources) {
+            for (String resUuid : new ArrayList<String>(resources.keySet())) {
+                if (!uuids.contains(resUuid)) {
+                    doUntrack(resUuid);
+                }
+            }
+
+            for (String resUuid : uuids) {
+                doTrack(resUuid);
             }
         }
     }
 
     public void untrackAll() {
-        synchronized (resourceUuids) {
-            resourceUuids.clear();
+        synchronized (resources) {
+            resources.clear();
+            schedule.clear();
             logger.debug(String.format("untrack all %s", getResourceName()));
         }
     }
 
     public void untrack(String resUuid) {
-        synchronized (resourceUuids) {
-            resourceUuids.remove(resUuid);
-            untrackHook(resUuid);
-            logger.debug(String.format("stop tracking %s[uuid:%s]", getResourceName(), resUuid));
+        synchronized (resources) {
+            doUntrack(resUuid);
         }
     }
 
     public void track(Collection<String> resUuids) {
-        synchronized (resourceUuids) {
+        synchronized (resources) {
             for (String resUuid : resUuids) {
-                if (!resourceUuids.contains(resUuid)) {
-                    resourceUuids.add(resUuid);
-                    trackHook(resUuid);
-                    logger.debug(String.format("start tracking %s[uuid:%s]", getResourceName(), resUuid));
-                }
+                doTrack(resUuid);
             }
         }
     }
 
     public void untrack(Collection<String> resUuids) {
-        synchronized (resourceUuids) {
+        synchronized (resources) {
             for (String resUuid : resUuids) {
-                resourceUuids.remove(resUuid);
-                untrackHook(resUuid);
-                logger.debug(String.format("stop tracking %s[uuid:%s]", getResourceName(), resUuid));
+                doUntrack(resUuid);
             }
         }
     }
 
+    public int getTrackedNumber() {
+        synchronized (resources) {
+            return resources.size();
+        }
+    }
+
+    public int getInFlightNumber() {
+        synchronized (resources) {
+            return inFlightNum;
+        }
+    }
+
+    /**
+     * @return in milliseconds, the period the resource is pinged at without the jitter, null if it's not tracked
+     */
+    public Long getPingPeriod(String resUuid) {
+        synchronized (resources) {
+            Resource r = resources.get(resUuid);
+            return r == null ? null : (long) (TimeUnit.SECONDS.toMillis(getPingInterval()) * r.multiplier);
+        }
+    }
+
+    /**
+     * @return in milliseconds, how late pings were sent in the last round
+     */
+    public long getLag() {
+        return lag;
+    }
+
     protected void startTracker() {
         if (trackerThread != null) {
             trackerThread.cancel(true);
         }
 
-        if (CoreGlobalProperty.UNIT_TEST_ON) {
-            trackerThread = thdf.submitPeriodicTask(new Tracker(), getPingInterval());
-        } else {
-            trackerThread = thdf.submitPeriodicTask(new Tracker(), getPingInterval() + new Random().nextInt(30));
-        }
+        trackerThread = thdf.submitPeriodicTask(new Tracker());
     }
 
     @Override
     public boolean start() {
         startTracker();
         startHook();
+        jmxf.registerBean(String.format("PingTracker-%s", getResourceName().replaceAll(" ", "")), new Statistic());
         return true;
     }
 
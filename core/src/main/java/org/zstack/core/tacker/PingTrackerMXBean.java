@@ -0,0 +1,15 @@
+package org.zstack.core.tacker;
+
+/**
+ */
+public interface PingTrackerMXBean {
+    String getResourceName();
+
+    int getTrackedNumber();
+
+    int getInFlightNumber();
+
+    long getLag();
+
+    long getMaxLag();
+}
@@ -0,0 +1,397 @@
+package org.zstack.core.thread;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignal;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.header.core.AsyncBackup;
+import org.zstack.header.errorcode.OperationFailureException;
+import org.zstack.header.message.Message;
+import org.zstack.utils.DebugUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DispatchQueue keeping per-signature queues in a ConcurrentHashMap.
+ *
+ * Unlike DispatchQueueImpl, which serializes every syncSubmit()/chainSubmit() on one
+ * global monitor, the state of a signature queue is only mutated inside
+ * ConcurrentHashMap.compute() on its own key, so submitters of different signatures
+ * never contend with each other. The queue object itself is the Task handed to the
+ * thread pool, so starting a worker doesn't allocate a wrapper task.
+ */
+@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE, dependencyCheck = true)
+class ConcurrentDispatchQueueImpl implements DispatchQueue, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(ConcurrentDispatchQueueImpl.class);
+
+    @Autowired
+    ThreadFacade _threadFacade;
+
+    private final ConcurrentHashMap<String, SyncTaskQueue> syncTasks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ChainTaskQueue> chainTasks = new ConcurrentHashMap<>();
+
+    public ConcurrentDispatchQueueImpl() {
+        DebugManager.registerDebugSignalHandler(DebugSignal.DumpTaskQueue, this);
+    }
+
+    @Override
+    public void handleDebugSignal(DebugSignal sig) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n================= BEGIN TASK QUEUE DUMP ================");
+        sb.append("\nASYNC TASK QUEUE DUMP:");
+        sb.append(String.format("\nTASK QUEUE NUMBER: %s\n", chainTasks.size()));
+        List<String> asyncTasks = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ChainTaskQueue> e : chainTasks.entrySet()) {
+            StringBuilder tb = new StringBuilder(String.format("\nQUEUE SYNC SIGNATURE: %s", e.getKey()));
+            ChainTaskQueue q = e.getValue();
+            tb.append(String.format("\nRUNNING TASK NUMBER: %s", q.runningQueue.size()));
+            tb.append(String.format("\nPENDING TASK NUMBER: %s", q.pendingQueue.size()));
+            int index = 0;
+            for (ChainFuture cf : q.runningQueue) {
+                tb.append(String.format("\nRUNNING TASK[NAME: %s, CLASS: %s EXECUTION TIME: %s secs, INDEX: %s] %s",
+                        cf.getTask().getName(), cf.getTask().getClass(),
+                        TimeUnit.MILLISECONDS.toSeconds(now - cf.getTimestamp()), index++,
+                        getChainContext(cf.getTask())
+                ));
+            }
+
+            for (ChainFuture cf : q.pendingQueue) {
+                tb.append(String.format("\nPENDING TASK[NAME: %s, CLASS: %s EXECUTION TIME: %s secs, INDEX: %s] %s",
+                        cf.getTask().getName(), cf.getTask().getClass(),
+                        TimeUnit.MILLISECONDS.toSeconds(now - cf.getTimestamp()), index++,
+                        getChainContext(cf.getTask())
+                ));
+            }
+            asyncTasks.add(tb.toString());
+        }
+        sb.append(StringUtils.join(asyncTasks, "\n"));
+        sb.append("\n================= END TASK QUEUE DUMP ==================\n");
+        logger.debug(sb.toString());
+    }
+
+    private String getChainContext(ChainTask task) {
+        List<String> context = new ArrayList<>();
+        for (AsyncBackup backup : task.getBackups()) {
+            if (backup instanceof Message) {
+                context.add(JSONObjectUtil.toJsonString(backup));
+            }
+        }
+
+        if (!context.isEmpty()) {
+            return String.format("CONTEXT: %s", StringUtils.join(context, "\n"));
+        }
+
+        return "";
+    }
+
+    private class SyncTaskFuture<T> extends AbstractFuture<T> {
+        SyncTaskFuture(SyncTask<T> task) {
+            super(task);
+        }
+
+        private SyncTask getTask() {
+            return (SyncTask) task;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancel();
+            return true;
+        }
+
+        void run() {
+            if (isCancelled()) {
+                return;
+            }
+
+            try {
+                ret = (T) getTask().call();
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception happened when calling sync task[name:%s, class:%s]",
+                        getTask().getName(), getTask().getClass().getName()), t);
+                exception = t;
+            }
+
+            done();
+        }
+    }
+
+    private class SyncTaskQueue implements Task<Void> {
+        final ConcurrentLinkedQueue<SyncTaskFuture> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger counter = new AtomicInteger(0);
+        final int maxThreadNum;
+        final String syncSignature;
+
+        SyncTaskQueue(String syncSignature, int maxThreadNum) {
+            this.syncSignature = syncSignature;
+            this.maxThreadNum = maxThreadNum;
+        }
+
+        // must be called inside syncTasks.compute() on this queue's signature
+        void startThreadIfNeeded() {
+            if (counter.get() >= maxThreadNum) {
+                return;
+            }
+
+            counter.incrementAndGet();
+            _threadFacade.submit(this);
+        }
+
+        @Override
+        public String getName() {
+            return syncSignature;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            AtomicBoolean quit = new AtomicBoolean(false);
+            while (!quit.get()) {
+                SyncTaskFuture stask;
+                while ((stask = queue.poll()) != null) {
+                    stask.run();
+                }
+
+                syncTasks.computeIfPresent(syncSignature, (k, q) -> {
+                    if (!queue.isEmpty()) {
+                        return q;
+                    }
+
+                    quit.set(true);
+                    return counter.decrementAndGet() == 0 ? null : q;
+                });
+            }
+
+            return null;
+        }
+    }
+
+    private <T> Future<T> doSyncSubmit(final SyncTask<T> syncTask) {
+        assert syncTask.getSyncSignature() != null : "How can you submit a sync task without sync signature ???";
+
+        SyncTaskFuture<T> f = new SyncTaskFuture<>(syncTask);
+        syncTasks.compute(syncTask.getSyncSignature(), (k, q) -> {
+            if (q == null) {
+                q = new SyncTaskQueue(k, syncTask.getSyncLevel());
+            }
+
+            q.queue.offer(f);
+            q.startThreadIfNeeded();
+            return q;
+        });
+
+        return f;
+    }
+
+    @Override
+    public <T> Future<T> syncSubmit(SyncTask<T> task) {
+        if (task.getSyncLevel() <= 0) {
+            return _threadFacade.submit(task);
+        } else {
+            return doSyncSubmit(task);
+        }
+    }
+
+    private class ChainFuture extends AbstractFuture {
+        private AtomicBoolean isNextCalled = new AtomicBoolean(false);
+        // in running queue: means execution time
+        // in pending queue: means pending time
+        private long timestamp = System.currentTimeMillis();
+
+        ChainFuture(ChainTask task) {
+            super(task);
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        private ChainTask getTask() {
+            return (ChainTask) task;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancel();
+            return true;
+        }
+
+        private void callNext(SyncTaskChain chain) {
+            if (!isNextCalled.compareAndSet(false, true)) {
+                return;
+            }
+
+            chain.next();
+        }
+
+        void run(final SyncTaskChain chain) {
+            if (isCancelled()) {
+                callNext(chain);
+                return;
+            }
+
+            try {
+                getTask().run(new SyncTaskChain() {
+                    @Override
+                    public void next() {
+                        try {
+                            done();
+                        } finally {
+                            callNext(chain);
+                        }
+                    }
+                });
+            } catch (Throwable t) {
+                try {
+                    if (!(t instanceof OperationFailureException)) {
+                        logger.warn(String.format("unhandled exception happened when calling %s", task.getClass().getName()), t);
+                    }
+
+                    done();
+                } finally {
+                    callNext(chain);
+                }
+            }
+        }
+    }
+
+    private class ChainTaskQueue implements Task<Void> {
+        final ConcurrentLinkedQueue<ChainFuture> pendingQueue = new ConcurrentLinkedQueue<>();
+        // a set rather than a list, removing a finished task is O(1)
+        final Set<ChainFuture> runningQueue = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        final AtomicInteger counter = new AtomicInteger(0);
+        final int maxThreadNum;
+        final String syncSignature;
+
+        ChainTaskQueue(String syncSignature, int maxThreadNum) {
+            this.syncSignature = syncSignature;
+            this.maxThreadNum = maxThreadNum;
+        }
+
+        // must be called inside chainTasks.compute() on this queue's signature
+        void startThreadIfNeeded() {
+            if (counter.get() >= maxThreadNum) {
+                return;
+            }
+
+            counter.incrementAndGet();
+            _threadFacade.submit(this);
+        }
+
+        @Override
+        public String getName() {
+            return "sync-chain-thread";
+        }
+
+        private ChainFuture pollOrQuit() {
+            ChainFuture cf = pendingQueue.poll();
+            if (cf != null) {
+                return cf;
+            }
+
+            // re-check under the key lock so a concurrent chainSubmit() either sees
+            // this worker still counted or finds the queue removed and creates a new one
+            ChainFuture[] ret = new ChainFuture[1];
+            chainTasks.computeIfPresent(syncSignature, (k, q) -> {
+                ret[0] = pendingQueue.poll();
+                if (ret[0] != null) {
+                    return q;
+                }
+
+                return counter.decrementAndGet() == 0 ? null : q;
+            });
+
+            return ret[0];
+        }
+
+        // start a new thread every time to avoid stack overflow
+        @AsyncThread
+        private void runQueue() {
+            ChainFuture cf = pollOrQuit();
+            if (cf == null) {
+                return;
+            }
+
+            runningQueue.add(cf);
+            cf.run(new SyncTaskChain() {
+                @Override
+                public void next() {
+                    runningQueue.remove(cf);
+                    runQueue();
+                }
+            });
+        }
+
+        @Override
+        public Void call() throws Exception {
+            runQueue();
+            return null;
+        }
+    }
+
+    private Future<Void> doChainSyncSubmit(final ChainTask task) {
+        assert task.getSyncSignature() != null : "How can you submit a chain task without sync signature ???";
+        DebugUtils.Assert(task.getSyncLevel() >= 1, String.format("getSyncLevel() must return 1 at least "));
+
+        ChainFuture cf = new ChainFuture(task);
+        chainTasks.compute(task.getSyncSignature(), (k, q) -> {
+            if (q == null) {
+                q = new ChainTaskQueue(k, task.getSyncLevel());
+            }
+
+            q.pendingQueue.offer(cf);
+            q.startThreadIfNeeded();
+            return q;
+        });
+
+        return cf;
+    }
+
+    @Override
+    public Future<Void> chainSubmit(ChainTask task) {
+        return doChainSyncSubmit(task);
+    }
+
+    @Override
+    public Map<String, SyncTaskStatistic> getSyncTaskStatistics() {
+        Map<String, SyncTaskStatistic> ret = new HashMap<>();
+        for (SyncTaskQueue q : syncTasks.values()) {
+            SyncTaskStatistic statistic = new SyncTaskStatistic(
+                    q.syncSignature,
+                    q.maxThreadNum,
+                    q.counter.intValue(),
+                    q.queue.size()
+            );
+            ret.put(statistic.getSyncSignature(), statistic);
+        }
+
+        return ret;
+    }
+
+    @Override
+    public Map<String, ChainTaskStatistic> getChainTaskStatistics() {
+        Map<String, ChainTaskStatistic> ret = new HashMap<>();
+        for (ChainTaskQueue q : chainTasks.values()) {
+            ChainTaskStatistic statistic = new ChainTaskStatistic(
+                    q.syncSignature,
+                    q.maxThreadNum,
+                    q.counter.intValue(),
+                    q.pendingQueue.size()
+            );
+            ret.put(statistic.getSyncSignature(), statistic);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,20 @@
+package org.zstack.core.thread;
+
+/**
+ */
+public enum DispatchQueueType {
+    Default {
+        @Override
+        public DispatchQueue create() {
+            return new DispatchQueueImpl();
+        }
+    },
+    Concurrent {
+        @Override
+        public DispatchQueue create() {
+            return new ConcurrentDispatchQueueImpl();
+        }
+    };
+
+    public abstract DispatchQueue create();
+}
@@ -0,0 +1,44 @@
+package org.zstack.core.thread;
+
+import java.util.concurrent.*;
+
+/**
+ * An executor handing every task to its own thread, growing up to maxPoolSize threads
+ * and retiring idle ones after keepAliveSeconds. Tasks blocking on
+ * agent HTTP calls or database locks only cost a parked thread instead of a slot of
+ * the fixed ScheduledThreadPoolExecutorExt.
+ *
+ * Threads are created with a small stack so thousands of them stay cheap; the
+ * ThreadAroundHooks registered on the scheduled pool are applied here too.
+ */
+class ElasticThreadPoolExecutor extends ThreadPoolExecutor {
+    private final ScheduledThreadPoolExecutorExt hookSource;
+
+    ElasticThreadPoolExecutor(int maxPoolSize, long keepAliveSeconds, final long stackSize,
+                              final ScheduledThreadPoolExecutorExt hookSource) {
+        super(0, maxPoolSize, keepAliveSeconds, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new ThreadFactory() {
+                    private int seqNum = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(null, r, "zs-elastic-thread-" + seqNum++, stackSize);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                // once the elastic pool is exhausted, fall back to the scheduled pool's queue
+                (r, executor) -> hookSource.execute(r));
+        this.hookSource = hookSource;
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        hookSource.beforeExecute(t, r);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        hookSource.afterExecute(r, t);
+    }
+}
@@ -0,0 +1,15 @@
+package org.zstack.core.thread;
+
+/**
+ * where submit(), syncSubmit() and chainSubmit() run; scheduled and periodic tasks always run on the fixed size pool
+ */
+public enum ThreadExecutionMode {
+    /**
+     * the fixed size thread pool of ThreadFacade.maxThreadNum threads
+     */
+    Pooled,
+    /**
+     * ElasticThreadPoolExecutor, growing up to ThreadFacade.elastic.maxThreadNum threads
+     */
+    Elastic
+}
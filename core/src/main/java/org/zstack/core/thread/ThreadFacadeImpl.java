@@ -6,10 +6,7 @@ import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.logging.CLoggerImpl;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
-import java.util.Timer;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -22,59 +19,14 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
     private Map<CancelablePeriodicTask, ScheduledFuture<?>> cancelablePeriodicTasks = new ConcurrentHashMap<CancelablePeriodicTask, ScheduledFuture<?>>();
     private static AtomicInteger seqNum = new AtomicInteger(0);
     private ScheduledThreadPoolExecutorExt _pool;
+    // runs submit()/syncSubmit()/chainSubmit() tasks, either _pool itself or an ElasticThreadPoolExecutor
+    private ThreadPoolExecutor taskExecutor;
     private DispatchQueue dpq;
-    private TimerPool timerPool = new TimerPool(5);
+    private TimingWheel timingWheel;
 
     @Autowired
     private JmxFacade jmxf;
 
-    private class TimerWrapper extends Timer {
-        private int cancelledTimerTaskCount = 0;
-        private static final int PURGE_CANCELLED_TIMER_TASK_THRESHOLD = 2000;
-
-        void notifyCancel() {
-            if (cancelledTimerTaskCount++ >= PURGE_CANCELLED_TIMER_TASK_THRESHOLD) {
-                cancelledTimerTaskCount = 0;
-                this.purge();
-            }
-        }
-    }
-
-    private class TimerPool {
-        int poolSize;
-        List<TimerWrapper> pool;
-
-        // never use a long type counter for self increment. two issues
-        // 1) Java will silently overflow a number; even a long will be overflow someday
-        // 2) big number causes extremely bad performance for mod operation
-        // instead, reset the counter when it exceeds COUNTER_RESET_THRESHOLD to maintain
-        // decent performance for mod operation.
-        int counter = 0;
-        static final int COUNTER_RESET_THRESHOLD = 1000000;
-
-        private TimerPool(int poolSize) {
-            this.poolSize = poolSize;
-            pool = new ArrayList<TimerWrapper>(poolSize);
-            for (int i = 0; i < poolSize; i++) {
-                pool.add(new TimerWrapper());
-            }
-        }
-
-        TimerWrapper getTimer() {
-            int index = ++counter % poolSize;
-            if (counter > COUNTER_RESET_THRESHOLD) {
-                counter = 0;
-            }
-            return pool.get(index);
-        }
-
-        void stop() {
-            for (TimerWrapper wrapper : pool) {
-                wrapper.cancel();
-            }
-        }
-    }
-
     @Override
     public Map<String, SyncTaskStatistic> getSyncTaskStatistics() {
         return dpq.getSyncTaskStatistics();
@@ -100,6 +52,17 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         );
     }
 
+    @Override
+    public TimerStatistic getTimerStatistic() {
+        return new TimerStatistic(
+                timingWheel.getPendingTaskNum(),
+                timingWheel.getFiredTaskNum(),
+                timingWheel.getCancelledTaskNum(),
+                timingWheel.getAverageFiringLagInMillis(),
+                timingWheel.getMaxFiringLagInMillis()
+        );
+    }
+
     public static class Worker<T> implements Callable<T> {
         private final Task<T> _task;
 
@@ -130,18 +93,32 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         }
         _pool = new ScheduledThreadPoolExecutorExt(totalThreadNum, this, this);
         _logger.debug(String.format("create ThreadFacade with max thread number:%s", totalThreadNum));
-        dpq = new DispatchQueueImpl();
+        if (ThreadExecutionMode.valueOf(ThreadGlobalProperty.EXECUTION_MODE) == ThreadExecutionMode.Elastic) {
+            taskExecutor = new ElasticThreadPoolExecutor(ThreadGlobalProperty.ELASTIC_MAX_THREAD_NUM,
+                    ThreadGlobalProperty.ELASTIC_KEEP_ALIVE_IN_SECONDS,
+                    ThreadGlobalProperty.ELASTIC_THREAD_STACK_SIZE_IN_KB * 1024, _pool);
+            _logger.debug(String.format("ThreadFacade runs tasks in elastic mode with max thread number:%s",
+                    ThreadGlobalProperty.ELASTIC_MAX_THREAD_NUM));
+        } else {
+            taskExecutor = _pool;
+        }
+        timingWheel = new TimingWheel(ThreadGlobalProperty.TIMER_TICK_IN_MILLIS, TimeUnit.MILLISECONDS, "zs-timer");
+        dpq = DispatchQueueType.valueOf(ThreadGlobalProperty.DISPATCH_QUEUE_TYPE).create();
+        _logger.debug(String.format("create ThreadFacade with dispatch queue type:%s", ThreadGlobalProperty.DISPATCH_QUEUE_TYPE));
 
         jmxf.registerBean("ThreadFacade", this);
     }
 
     public void destroy() {
         _pool.shutdownNow();
+        if (taskExecutor != _pool) {
+            taskExecutor.shutdownNow();
+        }
     }
 
     @Override
     public <T> Future<T> submit(Task<T> task) {
-        return _pool.submit(new Worker<T>(task));
+        return taskExecutor.submit(new Worker<T>(task));
     }
 
     @Override
@@ -226,9 +203,7 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 
     @Override
     public TimeoutTaskReceipt submitTimeoutTask(final Runnable task, TimeUnit unit, long delay) {
-        final TimerWrapper timer = timerPool.getTimer();
-
-        class TimerTaskWorker extends java.util.TimerTask implements TimeoutTaskReceipt {
+        return timingWheel.schedule(new Runnable() {
             @Override
             @AsyncThread
             public void run() {
@@ -236,39 +211,23 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
                     task.run();
                 } catch (Throwable t) {
                     _logger.warn(String.format("Unhandled exception happened when running %s", task.getClass().getName()), t);
-                } finally {
-                    this.cancel();
                 }
             }
-
-            @Override
-            public boolean cancel() {
-                boolean ret = super.cancel();
-                timer.notifyCancel();
-                return ret;
-            }
-        }
-
-        TimerTaskWorker worker = new TimerTaskWorker();
-        timer.schedule(worker, unit.toMillis(delay));
-        return worker;
+        }, delay, unit);
     }
 
     @Override
     public void submitTimerTask(final TimerTask task, TimeUnit unit, long delay) {
-        final TimerWrapper timer = timerPool.getTimer();
-        timer.schedule(new java.util.TimerTask() {
+        timingWheel.schedule(new Runnable() {
             @Override
             public void run() {
                 try {
-                    if (task.run()) {
-                        cancel();
-                    }
+                    task.run();
                 } catch (Throwable t) {
                     _logger.warn(String.format("Unhandled exception happened when running %s", task.getClass().getName()), t);
                 }
             }
-        }, unit.toMillis(delay));
+        }, delay, unit);
     }
 
     @Override
@@ -279,7 +238,10 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
     @Override
     public boolean stop() {
         _pool.shutdown();
-        timerPool.stop();
+        if (taskExecutor != _pool) {
+            taskExecutor.shutdown();
+        }
+        timingWheel.stop();
         return true;
     }
 
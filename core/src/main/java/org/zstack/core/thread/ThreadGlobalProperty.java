@@ -9,4 +9,23 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class ThreadGlobalProperty {
     @GlobalProperty(name="ThreadFacade.maxThreadNum", defaultValue = "100")
     public static int MAX_THREAD_NUM;
+    /**
+     * Default: the DispatchQueue guarded by one global monitor
+     * Concurrent: the DispatchQueue with per-signature queues in a ConcurrentHashMap
+     */
+    @GlobalProperty(name="ThreadFacade.dispatchQueueType", defaultValue = "Default")
+    public static String DISPATCH_QUEUE_TYPE;
+    @GlobalProperty(name="ThreadFacade.timerTickInMillis", defaultValue = "10")
+    public static long TIMER_TICK_IN_MILLIS;
+    /**
+     * see ThreadExecutionMode
+     */
+    @GlobalProperty(name="ThreadFacade.executionMode", defaultValue = "Pooled")
+    public static String EXECUTION_MODE;
+    @GlobalProperty(name="ThreadFacade.elastic.maxThreadNum", defaultValue = "10000")
+    public static int ELASTIC_MAX_THREAD_NUM;
+    @GlobalProperty(name="ThreadFacade.elastic.keepAliveInSeconds", defaultValue = "60")
+    public static long ELASTIC_KEEP_ALIVE_IN_SECONDS;
+    @GlobalProperty(name="ThreadFacade.elastic.threadStackSizeInKB", defaultValue = "256")
+    public static long ELASTIC_THREAD_STACK_SIZE_IN_KB;
 }
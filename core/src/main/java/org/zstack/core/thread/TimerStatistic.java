@@ -0,0 +1,42 @@
+package org.zstack.core.thread;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class TimerStatistic {
+    private int pendingTaskNum;
+    private long firedTaskNum;
+    private long cancelledTaskNum;
+    private long averageFiringLagInMillis;
+    private long maxFiringLagInMillis;
+
+    @ConstructorProperties({"pendingTaskNum", "firedTaskNum", "cancelledTaskNum", "averageFiringLagInMillis", "maxFiringLagInMillis"})
+    public TimerStatistic(int pendingTaskNum, long firedTaskNum, long cancelledTaskNum, long averageFiringLagInMillis, long maxFiringLagInMillis) {
+        this.pendingTaskNum = pendingTaskNum;
+        this.firedTaskNum = firedTaskNum;
+        this.cancelledTaskNum = cancelledTaskNum;
+        this.averageFiringLagInMillis = averageFiringLagInMillis;
+        this.maxFiringLagInMillis = maxFiringLagInMillis;
+    }
+
+    public int getPendingTaskNum() {
+        return pendingTaskNum;
+    }
+
+    public long getFiredTaskNum() {
+        return firedTaskNum;
+    }
+
+    public long getCancelledTaskNum() {
+        return cancelledTaskNum;
+    }
+
+    public long getAverageFiringLagInMillis() {
+        return averageFiringLagInMillis;
+    }
+
+    public long getMaxFiringLagInMillis() {
+        return maxFiringLagInMillis;
+    }
+}
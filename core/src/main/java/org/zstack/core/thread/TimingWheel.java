@@ -0,0 +1,288 @@
+package org.zstack.core.thread;
+
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hierarchical timing wheel.
+ *
+ * Four wheels of 512 slots each; a timeout lands in the lowest wheel whose window
+ * contains its deadline and is cascaded down when the wheel below wraps, so
+ * schedule() and cancel() are O(1) and a cancelled timeout is unlinked from its
+ * slot instead of staying in a heap until it expires like java.util.Timer does.
+ *
+ * Callers never touch the wheels; schedule() and cancel() only enqueue onto lock-free
+ * queues drained by the single ticker thread, which also runs the expired timeouts.
+ * Work done in a timeout must therefore be short or hand itself off to a thread pool.
+ */
+class TimingWheel {
+    private static final CLogger logger = Utils.getLogger(TimingWheel.class);
+
+    private static final int WHEEL_BITS = 9;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEEL_NUM = 4;
+
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final long startTime = System.nanoTime();
+    private final Bucket[][] wheels = new Bucket[WHEEL_NUM][WHEEL_SIZE];
+    // timeouts beyond the range of the top wheel, re-placed every time the top wheel wraps
+    private final Bucket overflow = new Bucket();
+    // only accessed by the ticker thread
+    private long currentTick;
+
+    private final ConcurrentLinkedQueue<Timeout> pendingAdds = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> pendingCancels = new ConcurrentLinkedQueue<>();
+    private final Thread ticker;
+    private volatile boolean stopped;
+
+    private final AtomicInteger pendingTaskNum = new AtomicInteger(0);
+    private final AtomicLong firedTaskNum = new AtomicLong(0);
+    private final AtomicLong cancelledTaskNum = new AtomicLong(0);
+    private final AtomicLong totalFiringLag = new AtomicLong(0);
+    private volatile long maxFiringLag;
+
+    class Timeout implements ThreadFacadeImpl.TimeoutTaskReceipt {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        private long deadlineTick;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+
+            pendingCancels.offer(this);
+            return true;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+
+            pendingTaskNum.decrementAndGet();
+            long lag = System.nanoTime() - deadline;
+            firedTaskNum.incrementAndGet();
+            totalFiringLag.addAndGet(lag);
+            if (lag > maxFiringLag) {
+                maxFiringLag = lag;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.warn(String.format("Unhandled exception happened when running %s", task.getClass().getName()), t);
+            }
+        }
+    }
+
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+
+            if (t.next == null) {
+                tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+
+            t.bucket = null;
+            t.prev = null;
+            t.next = null;
+        }
+
+        Timeout takeAll() {
+            Timeout ret = head;
+            head = null;
+            tail = null;
+            return ret;
+        }
+    }
+
+    TimingWheel(long tick, TimeUnit unit, String name) {
+        tickNanos = unit.toNanos(tick);
+        for (int i = 0; i < WHEEL_NUM; i++) {
+            for (int j = 0; j < WHEEL_SIZE; j++) {
+                wheels[i][j] = new Bucket();
+            }
+        }
+
+        ticker = new Thread(this::runTicker, name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pendingTaskNum.incrementAndGet();
+        pendingAdds.offer(t);
+        return t;
+    }
+
+    void stop() {
+        stopped = true;
+        ticker.interrupt();
+    }
+
+    int getPendingTaskNum() {
+        return pendingTaskNum.get();
+    }
+
+    long getFiredTaskNum() {
+        return firedTaskNum.get();
+    }
+
+    long getCancelledTaskNum() {
+        return cancelledTaskNum.get();
+    }
+
+    long getAverageFiringLagInMillis() {
+        long fired = firedTaskNum.get();
+        return fired == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalFiringLag.get() / fired);
+    }
+
+    long getMaxFiringLagInMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxFiringLag);
+    }
+
+    private void place(Timeout t) {
+        if (t.deadlineTick <= currentTick) {
+            // already due, fire on the next tick
+            t.deadlineTick = currentTick + 1;
+        }
+
+        for (int level = 0; level < WHEEL_NUM; level++) {
+            int shift = WHEEL_BITS * (level + 1);
+            if ((t.deadlineTick >>> shift) == (currentTick >>> shift)) {
+                int slot = (int) ((t.deadlineTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                wheels[level][slot].add(t);
+                return;
+            }
+        }
+
+        overflow.add(t);
+    }
+
+    private void cascade(Bucket bucket) {
+        Timeout t = bucket.takeAll();
+        while (t != null) {
+            Timeout next = t.next;
+            t.bucket = null;
+            t.prev = null;
+            t.next = null;
+            place(t);
+            t = next;
+        }
+    }
+
+    private void drainPendingQueues() {
+        Timeout t;
+        while ((t = pendingAdds.poll()) != null) {
+            if (t.state.get() != INIT) {
+                // cancelled before it was ever placed, the cancel queue will count it
+                continue;
+            }
+
+            long ticks = (t.deadline - startTime + tickNanos - 1) / tickNanos;
+            t.deadlineTick = ticks;
+            place(t);
+        }
+
+        while ((t = pendingCancels.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+
+            pendingTaskNum.decrementAndGet();
+            cancelledTaskNum.incrementAndGet();
+        }
+    }
+
+    private void advance() {
+        currentTick++;
+
+        for (int level = WHEEL_NUM - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                continue;
+            }
+
+            if (level == WHEEL_NUM - 1 && (currentTick & ((1L << (WHEEL_BITS * WHEEL_NUM)) - 1)) == 0) {
+                cascade(overflow);
+            }
+
+            int slot = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+            cascade(wheels[level][slot]);
+        }
+
+        Timeout t = wheels[0][(int) (currentTick & WHEEL_MASK)].takeAll();
+        while (t != null) {
+            Timeout next = t.next;
+            t.bucket = null;
+            t.prev = null;
+            t.next = null;
+            t.expire();
+            t = next;
+        }
+    }
+
+    private void runTicker() {
+        while (!stopped) {
+            drainPendingQueues();
+
+            long targetTick = (System.nanoTime() - startTime) / tickNanos;
+            while (currentTick < targetTick) {
+                advance();
+            }
+
+            long sleepNanos = startTime + (currentTick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
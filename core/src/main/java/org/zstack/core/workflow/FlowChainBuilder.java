@@ -17,6 +17,7 @@ public class FlowChainBuilder {
     private List<String> flowClassNames;
     private List<Flow> flows = new ArrayList<>();
     private boolean isConstructed;
+    private boolean parallel;
 
     public FlowChainBuilder construct() {
         try {
@@ -40,6 +41,14 @@ public class FlowChainBuilder {
         return this;
     }
 
+    /**
+     * build ParallelFlowChain running flows by their dependencies declared by @FlowDependsOn
+     */
+    public FlowChainBuilder setParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
     public FlowChain build(String name) {
         FlowChain chain = build();
         chain.setName(name);
@@ -51,7 +60,7 @@ public class FlowChainBuilder {
             throw new CloudRuntimeException(String.format("please call construct() before build()"));
         }
 
-        SimpleFlowChain chain = new SimpleFlowChain();
+        FlowChain chain = parallel ? new ParallelFlowChain() : new SimpleFlowChain();
         for (Flow flow : flows) {
             chain.then(flow);
         }
@@ -66,6 +75,10 @@ public class FlowChainBuilder {
         return new SimpleFlowChain();
     }
 
+    public static ParallelFlowChain newParallelFlowChain() {
+        return new ParallelFlowChain();
+    }
+
     public static FlowChain newShareFlowChain() {
         return new ShareFlowChain();
     }
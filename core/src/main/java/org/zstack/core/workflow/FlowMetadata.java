@@ -0,0 +1,104 @@
+package org.zstack.core.workflow;
+
+import org.zstack.header.core.workflow.*;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.FieldUtils;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What flow chains learn about a flow class by reflection, built once per class.
+ */
+class FlowMetadata {
+    private static final Map<Class, FlowMetadata> metadata = new ConcurrentHashMap<>();
+
+    private final Field nameField;
+    private final String className;
+    private final String fileName;
+    private final Field[] afterDoneFields;
+    private final Field[] afterErrorFields;
+    private final Field[] afterFinalFields;
+    private final FlowDependsOn dependsOn;
+
+    private FlowMetadata(Class clazz) {
+        nameField = FieldUtils.getField("__name__", clazz);
+        if (nameField != null) {
+            nameField.setAccessible(true);
+        }
+
+        String name = clazz.getSimpleName();
+        className = name.equals("") ? clazz.getName() : name;
+
+        String[] ff = clazz.getName().split("\\.");
+        String filename = ff[ff.length-1];
+        if (filename.contains("$")) {
+            filename = filename.substring(0, filename.indexOf("$"));
+        }
+        fileName = filename;
+
+        afterDoneFields = getAnnotatedFields(AfterDone.class, clazz);
+        afterErrorFields = getAnnotatedFields(AfterError.class, clazz);
+        afterFinalFields = getAnnotatedFields(AfterFinal.class, clazz);
+        dependsOn = (FlowDependsOn) clazz.getAnnotation(FlowDependsOn.class);
+    }
+
+    private static Field[] getAnnotatedFields(Class annotation, Class clazz) {
+        List<Field> fs = FieldUtils.getAnnotatedFieldsOnThisClass(annotation, clazz);
+        for (Field f : fs) {
+            f.setAccessible(true);
+        }
+        return fs.toArray(new Field[fs.size()]);
+    }
+
+    static FlowMetadata get(Class clazz) {
+        FlowMetadata meta = metadata.get(clazz);
+        if (meta == null) {
+            meta = new FlowMetadata(clazz);
+            FlowMetadata old = metadata.putIfAbsent(clazz, meta);
+            meta = old == null ? meta : old;
+        }
+        return meta;
+    }
+
+    private static Object getFieldValue(Field f, Object obj) {
+        try {
+            return f.get(obj);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the value of the field __name__ of the flow, or the class name
+     */
+    String getName(Flow flow) {
+        String name = nameField == null ? null : (String) getFieldValue(nameField, flow);
+        return name == null ? className : name;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    FlowDependsOn getDependsOn() {
+        return dependsOn;
+    }
+
+    private static void collect(Field[] fields, Flow flow, List<List<Runnable>> to) {
+        for (Field f : fields) {
+            List lst = (List) getFieldValue(f, flow);
+            if (lst != null) {
+                to.add(lst);
+            }
+        }
+    }
+
+    void collectAfterRunnable(Flow flow, List<List<Runnable>> afterDone, List<List<Runnable>> afterError, List<List<Runnable>> afterFinal) {
+        collect(afterDoneFields, flow, afterDone);
+        collect(afterErrorFields, flow, afterError);
+        collect(afterFinalFields, flow, afterFinal);
+    }
+}
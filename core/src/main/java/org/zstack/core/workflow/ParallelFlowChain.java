@@ -0,0 +1,761 @@
+package org.zstack.core.workflow;
+
+import org.apache.commons.lang.StringUtils;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.header.core.workflow.*;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.errorcode.OperationFailureException;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.CollectionUtils;
+import org.zstack.utils.DebugUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.function.ForEachFunction;
+import org.zstack.utils.function.Function;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A flow chain running flows as a DAG.
+ *
+ * A flow starts once the flows it depends on have completed, so independent flows, which mostly wait
+ * for replies of other services, are in flight at the same time. Dependencies are given by
+ * then(flow, dependencies) or by @FlowDependsOn on the flow class, a flow declaring neither depends
+ * on all flows before it, so a chain of such flows runs sequentially as SimpleFlowChain does.
+ *
+ * Once a flow fails, no more flow starts; after running flows complete, completed flows and the failed
+ * ones are rolled back one by one in the reverse order of their completion, which is a reverse
+ * topological order.
+ *
+ * The data map is shared by flows running concurrently, flows of one chain must not modify the same
+ * objects without dependencies between them.
+ */
+public class ParallelFlowChain implements FlowChain, FlowChainMutable {
+    private static final CLogger logger = Utils.getLogger(ParallelFlowChain.class);
+
+    private List<Flow> flows = new ArrayList<>();
+    private Map<Flow, List<Flow>> dependencies = new IdentityHashMap<>();
+    private Map data = Collections.synchronizedMap(new HashMap());
+    private ErrorCode errorCode;
+    private FlowErrorHandler errorHandler;
+    private FlowDoneHandler doneHandler;
+    private FlowFinallyHandler finallyHandler;
+    private String name;
+    private volatile boolean skipRestRollbacks;
+    private boolean allowEmptyFlow;
+    private FlowMarshaller flowMarshaller;
+    private List<FlowChainProcessor> processors;
+    private final List<List<Runnable>> afterDone = new ArrayList<>();
+    private final List<List<Runnable>> afterError = new ArrayList<>();
+    private final List<List<Runnable>> afterFinal = new ArrayList<>();
+
+    // guarded by this
+    private List<Node> nodes;
+    private int runningNum;
+    // completed and failed flows in the order they completed
+    private final List<Node> completed = new ArrayList<>();
+    private Node lastCompleted;
+    private boolean isFailCalled;
+    private boolean isRollbackStart;
+    private Node currentRollbackNode;
+
+    private enum NodeState {
+        Pending,
+        Running,
+        Done,
+        Failed
+    }
+
+    private class Node implements FlowTrigger, FlowRollback {
+        final Flow flow;
+        final List<Node> dependencies = new ArrayList<>();
+        final List<Node> dependents = new ArrayList<>();
+        int pendingNum;
+        NodeState state = NodeState.Pending;
+        Flow toRun;
+        String name;
+        // in nanoseconds
+        long startTime;
+        long endTime;
+
+        Node(Flow flow) {
+            this.flow = flow;
+        }
+
+        String getName() {
+            return name == null ? SimpleFlowChain.getFlowName(flow) : name;
+        }
+
+        @Override
+        public void next() {
+            flowDone(this);
+        }
+
+        @Override
+        public void fail(ErrorCode errorCode) {
+            flowFailed(this, errorCode);
+        }
+
+        @Override
+        public void setError(ErrorCode error) {
+            synchronized (ParallelFlowChain.this) {
+                errorCode = error;
+            }
+        }
+
+        @Override
+        public void rollback() {
+            synchronized (ParallelFlowChain.this) {
+                if (!isRollbackStart || currentRollbackNode != this) {
+                    throw new CloudRuntimeException(String.format("[FlowChain: %s] flow[%s] is not being rolled back, you can only" +
+                            " call rollback() in its Flow.rollback()", name, getName()));
+                }
+            }
+
+            ParallelFlowChain.this.rollback();
+        }
+
+        @Override
+        public void skipRestRollbacks() {
+            skipRestRollbacks = true;
+        }
+    }
+
+    public ParallelFlowChain() {
+    }
+
+    public ParallelFlowChain(Map<String, Object> data) {
+        this.data.putAll(data);
+    }
+
+    @Override
+    public List<Flow> getFlows() {
+        return flows;
+    }
+
+    @Override
+    public void setFlows(List<Flow> flows) {
+        this.flows = flows;
+    }
+
+    @Override
+    public FlowDoneHandler getFlowDoneHandler() {
+        return doneHandler;
+    }
+
+    @Override
+    public void setFlowDoneHandler(FlowDoneHandler handler) {
+        done(handler);
+    }
+
+    @Override
+    public FlowErrorHandler getFlowErrorHandler() {
+        return errorHandler;
+    }
+
+    @Override
+    public void setFlowErrorHandler(FlowErrorHandler handler) {
+        error(handler);
+    }
+
+    @Override
+    public FlowFinallyHandler getFlowFinallyHandler() {
+        return finallyHandler;
+    }
+
+    @Override
+    public void setFlowFinallyHandler(FlowFinallyHandler handler) {
+        Finally(handler);
+    }
+
+    @Override
+    public String getChainName() {
+        return name;
+    }
+
+    @Override
+    public void setChainName(String name) {
+        setName(name);
+    }
+
+    @Override
+    public Map getChainData() {
+        return data;
+    }
+
+    @Override
+    public void setChainData(Map data) {
+        setData(data);
+    }
+
+    @Override
+    public FlowChain insert(Flow flow) {
+        flows.add(0, flow);
+        return this;
+    }
+
+    @Override
+    public FlowChain insert(int pos, Flow flow) {
+        flows.add(pos, flow);
+        return this;
+    }
+
+    @Override
+    public FlowChain setFlowMarshaller(FlowMarshaller marshaller) {
+        flowMarshaller = marshaller;
+        return this;
+    }
+
+    @Override
+    public ParallelFlowChain then(Flow flow) {
+        flows.add(flow);
+        return this;
+    }
+
+    /**
+     * adds a flow starting after the dependencies complete, the dependencies must be flows of this chain
+     */
+    public ParallelFlowChain then(Flow flow, Flow... dependencies) {
+        flows.add(flow);
+        this.dependencies.put(flow, Arrays.asList(dependencies));
+        return this;
+    }
+
+    @Override
+    public ParallelFlowChain done(FlowDoneHandler handler) {
+        DebugUtils.Assert(doneHandler==null, "there has been a FlowDoneHandler installed");
+        doneHandler = handler;
+        return this;
+    }
+
+    @Override
+    public ParallelFlowChain error(FlowErrorHandler handler) {
+        DebugUtils.Assert(errorHandler==null, "there has been an FlowErrorHandler installed");
+        errorHandler = handler;
+        return this;
+    }
+
+    @Override
+    public FlowChain Finally(FlowFinallyHandler handler) {
+        finallyHandler = handler;
+        return this;
+    }
+
+    @Override
+    public FlowChain setData(Map data) {
+        this.data.putAll(data);
+        return this;
+    }
+
+    @Override
+    public FlowChain putData(Entry... es) {
+        for (Map.Entry e : es) {
+            data.put(e.getKey(), e.getValue());
+        }
+        return this;
+    }
+
+    @Override
+    public FlowChain setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    @Override
+    public void setProcessors(List<FlowChainProcessor> processors) {
+        this.processors = processors;
+    }
+
+    @Override
+    public Map getData() {
+        return data;
+    }
+
+    @Override
+    public FlowChain noRollback(boolean no) {
+        skipRestRollbacks = no;
+        return this;
+    }
+
+    @Override
+    public FlowChain allowEmptyFlow() {
+        allowEmptyFlow = true;
+        return this;
+    }
+
+    private List<Node> buildGraph() {
+        Map<Flow, Node> nodeMap = new IdentityHashMap<>();
+        List<Node> ret = new ArrayList<>(flows.size());
+        for (Flow flow : flows) {
+            if (nodeMap.containsKey(flow)) {
+                throw new CloudRuntimeException(String.format("[FlowChain: %s] flow[%s] is added twice", name, flow.getClass().getName()));
+            }
+
+            Node node = new Node(flow);
+            nodeMap.put(flow, node);
+            ret.add(node);
+        }
+
+        for (int i = 0; i < ret.size(); i++) {
+            Node node = ret.get(i);
+            List<Flow> deps = dependencies.get(node.flow);
+            FlowDependsOn at = FlowMetadata.get(node.flow.getClass()).getDependsOn();
+
+            if (deps != null) {
+                for (Flow dep : deps) {
+                    Node dnode = nodeMap.get(dep);
+                    if (dnode == null) {
+                        throw new CloudRuntimeException(String.format("[FlowChain: %s] flow[%s] depends on the flow[%s] not in the chain",
+                                name, node.getName(), dep.getClass().getName()));
+                    }
+                    node.dependencies.add(dnode);
+                }
+            } else if (at != null) {
+                // dependencies not in the chain are ignored, a chain doesn't have to contain all of them
+                for (Node n : ret) {
+                    if (n == node) {
+                        continue;
+                    }
+
+                    for (Class<? extends Flow> clz : at.value()) {
+                        if (clz.isInstance(n.flow)) {
+                            node.dependencies.add(n);
+                            break;
+                        }
+                    }
+                }
+            } else {
+                node.dependencies.addAll(ret.subList(0, i));
+            }
+
+            for (Node dep : node.dependencies) {
+                dep.dependents.add(node);
+            }
+            node.pendingNum = node.dependencies.size();
+        }
+
+        // Kahn's algorithm, flows left are in a cycle
+        Map<Node, Integer> pending = new IdentityHashMap<>();
+        Deque<Node> ready = new ArrayDeque<>();
+        for (Node node : ret) {
+            pending.put(node, node.pendingNum);
+            if (node.pendingNum == 0) {
+                ready.add(node);
+            }
+        }
+
+        int sorted = 0;
+        while (!ready.isEmpty()) {
+            Node node = ready.poll();
+            sorted ++;
+            for (Node n : node.dependents) {
+                int p = pending.get(n) - 1;
+                pending.put(n, p);
+                if (p == 0) {
+                    ready.add(n);
+                }
+            }
+        }
+
+        if (sorted != ret.size()) {
+            List<String> names = new ArrayList<>();
+            for (Map.Entry<Node, Integer> e : pending.entrySet()) {
+                if (e.getValue() > 0) {
+                    names.add(e.getKey().getName());
+                }
+            }
+            throw new CloudRuntimeException(String.format("[FlowChain: %s] circular dependencies among flows%s", name, names));
+        }
+
+        return ret;
+    }
+
+    private synchronized void collectAfterRunnable(FlowMetadata meta, Flow flow) {
+        meta.collectAfterRunnable(flow, afterDone, afterError, afterFinal);
+    }
+
+    // nodes have been marked running
+    private void launch(List<Node> ready) {
+        for (Node node : ready) {
+            boolean cancel;
+            boolean rollback = false;
+            synchronized (this) {
+                // a flow failed while we were starting others, the rest won't start
+                cancel = isFailCalled;
+                if (cancel) {
+                    node.state = NodeState.Pending;
+                    runningNum --;
+                    rollback = shouldStartRollback();
+                }
+            }
+
+            if (rollback) {
+                rollback();
+            }
+
+            if (!cancel) {
+                runFlow(node);
+            }
+        }
+    }
+
+    private void runFlow(Node node) {
+        node.toRun = node.flow;
+        try {
+            Flow toRun = null;
+            if (flowMarshaller != null) {
+                Node previous;
+                synchronized (this) {
+                    previous = lastCompleted;
+                }
+
+                toRun = flowMarshaller.marshalTheNextFlow(previous == null ? null : previous.toRun.getClass().getName(),
+                        node.flow.getClass().getName(), this, data);
+                if (toRun != null) {
+                    logger.debug(String.format("FlowMarshaller[%s] replaces the next flow[%s] to the flow[%s]",
+                            flowMarshaller.getClass(), node.flow.getClass(), toRun.getClass()));
+                }
+            }
+
+            if (toRun != null) {
+                node.toRun = toRun;
+            }
+            FlowMetadata meta = FlowMetadata.get(node.toRun.getClass());
+            node.name = SimpleFlowChain.getFlowName(meta, node.toRun);
+
+            logger.debug(String.format("[FlowChain: %s] start executing flow[%s]", name, node.name));
+            collectAfterRunnable(meta, node.toRun);
+            node.startTime = System.nanoTime();
+            node.toRun.run(node, data);
+        } catch (OperationFailureException oe) {
+            String errInfo = oe.getErrorCode() != null ? oe.getErrorCode().toString() : "";
+            logger.warn(errInfo, oe);
+            flowFailed(node, oe.getErrorCode());
+        } catch (FlowException fe) {
+            String errInfo = fe.getErrorCode() != null ? fe.getErrorCode().toString() : "";
+            logger.warn(errInfo, fe);
+            flowFailed(node, fe.getErrorCode());
+        } catch (Throwable t) {
+            logger.warn(String.format("[FlowChain: %s] unhandled exception when executing flow[%s], start to rollback", name, node.getName()), t);
+            flowFailed(node, Platform.getComponentLoader().getComponent(ErrorFacade.class).throwableToInternalError(t));
+        }
+    }
+
+    private boolean shouldStartRollback() {
+        if (isFailCalled && runningNum == 0 && !isRollbackStart) {
+            isRollbackStart = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void flowDone(Node node) {
+        List<Node> ready = new ArrayList<>();
+        boolean rollback = false;
+        boolean finished = false;
+        ErrorCode error;
+        synchronized (this) {
+            if (node.state != NodeState.Running) {
+                throw new CloudRuntimeException(String.format("[FlowChain: %s] flow[%s] is %s, you can only call next() once in Flow.run()",
+                        name, node.getName(), node.state));
+            }
+
+            node.state = NodeState.Done;
+            node.endTime = System.nanoTime();
+            runningNum --;
+            completed.add(node);
+            lastCompleted = node;
+
+            logger.debug(String.format("[FlowChain: %s] successfully executed flow[%s]", name, node.getName()));
+
+            if (isFailCalled) {
+                rollback = shouldStartRollback();
+            } else {
+                for (Node n : node.dependents) {
+                    if (-- n.pendingNum == 0) {
+                        n.state = NodeState.Running;
+                        runningNum ++;
+                        ready.add(n);
+                    }
+                }
+
+                finished = completed.size() == nodes.size();
+            }
+            error = errorCode;
+        }
+
+        SimpleFlowChain.getStatistic(node.getName()).addStatistic(node.endTime - node.startTime);
+
+        if (rollback) {
+            rollback();
+        } else if (finished) {
+            if (error == null) {
+                callDoneHandler();
+            } else {
+                callErrorHandler(false);
+            }
+        } else {
+            launch(ready);
+        }
+    }
+
+    private void flowFailed(Node node, ErrorCode err) {
+        boolean rollback;
+        synchronized (this) {
+            if (node.state != NodeState.Running) {
+                logger.warn(String.format("[FlowChain: %s] flow[%s] is %s, ignore the failure %s", name, node.getName(), node.state, err));
+                return;
+            }
+
+            node.state = NodeState.Failed;
+            node.endTime = System.nanoTime();
+            runningNum --;
+            // like SimpleFlowChain, a failed flow is rolled back too
+            completed.add(node);
+
+            if (!isFailCalled) {
+                isFailCalled = true;
+                errorCode = err;
+            } else {
+                logger.debug(String.format("[FlowChain: %s] flow[%s] failed after the chain failed, %s", name, node.getName(), err));
+            }
+
+            rollback = shouldStartRollback();
+            if (!rollback) {
+                logger.debug(String.format("[FlowChain: %s] flow[%s] failed, wait for %s running flows to complete before rolling back",
+                        name, node.getName(), runningNum));
+            }
+        }
+
+        if (rollback) {
+            rollback();
+        }
+    }
+
+    private void rollback() {
+        Node node = null;
+        synchronized (this) {
+            if (currentRollbackNode != null) {
+                logger.debug(String.format("[FlowChain: %s] successfully rolled back flow[%s]", name, currentRollbackNode.getName()));
+            } else {
+                logger.debug(String.format("[FlowChain: %s] start to rollback", name));
+            }
+
+            if (skipRestRollbacks && !completed.isEmpty()) {
+                List<String> restRollbackNames = CollectionUtils.transformToList(completed, new Function<String, Node>() {
+                    @Override
+                    public String call(Node arg) {
+                        return arg.getName();
+                    }
+                });
+
+                logger.debug(String.format("[FlowChain: %s] we are instructed to skip rollbacks for remaining flows%s", name, restRollbackNames));
+            } else if (!completed.isEmpty()) {
+                node = completed.remove(completed.size() - 1);
+            }
+
+            currentRollbackNode = node;
+        }
+
+        if (node == null) {
+            callErrorHandler(true);
+            return;
+        }
+
+        try {
+            logger.debug(String.format("[FlowChain: %s] start to rollback flow[%s]", name, node.getName()));
+            node.toRun.rollback(node, data);
+        } catch (Throwable t) {
+            logger.warn(String.format("[FlowChain: %s] unhandled exception when rollback flow[%s], continue to next rollback", name, node.getName()), t);
+            rollback();
+        }
+    }
+
+    private void reportCriticalPath() {
+        // walk back from the flow completed last, through the dependency completed last
+        LinkedList<Node> path = new LinkedList<>();
+        Node node = lastCompleted;
+        while (node != null) {
+            path.addFirst(node);
+
+            Node prev = null;
+            for (Node dep : node.dependencies) {
+                if (prev == null || dep.endTime > prev.endTime) {
+                    prev = dep;
+                }
+            }
+            node = prev;
+        }
+
+        long total = 0;
+        List<String> names = new ArrayList<>(path.size());
+        for (Node n : path) {
+            // waiting for dependencies is accounted to the dependencies
+            long time = n.endTime - n.startTime;
+            SimpleFlowChain.getStatistic(n.getName()).addCriticalPathStatistic(time);
+            if (CoreGlobalProperty.PROFILER_WORKFLOW) {
+                names.add(String.format("%s(%sms)", n.getName(), TimeUnit.NANOSECONDS.toMillis(time)));
+            }
+            total += time;
+        }
+
+        if (CoreGlobalProperty.PROFILER_WORKFLOW) {
+            logger.debug(String.format("[FlowChain: %s] critical path takes %sms: %s", name, TimeUnit.NANOSECONDS.toMillis(total),
+                    StringUtils.join(names, " --> ")));
+        }
+    }
+
+    private void callErrorHandler(boolean info) {
+        if (info) {
+            logger.debug(String.format("[FlowChain: %s] rolled back all flows because error%s", name, errorCode));
+        }
+
+        if (errorHandler != null) {
+            try {
+                errorHandler.handle(errorCode, this.data);
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception when calling %s", errorHandler.getClass()), t);
+            }
+        }
+
+        if (!afterError.isEmpty()) {
+            Collections.reverse(afterError);
+
+            for (List errors : afterError) {
+                CollectionUtils.safeForEach(errors, new ForEachFunction<Runnable>() {
+                    @Override
+                    public void run(Runnable arg) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace(String.format("call after error handler %s", arg.getClass()));
+                        }
+                        arg.run();
+                    }
+                });
+            }
+        }
+
+        callFinallyHandler();
+    }
+
+    private void callFinallyHandler() {
+        if (finallyHandler != null) {
+            try {
+                finallyHandler.Finally();
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception when calling %s", finallyHandler.getClass()), t);
+            }
+        }
+
+        if (!afterFinal.isEmpty()) {
+            Collections.reverse(afterFinal);
+
+            for (List finals : afterFinal) {
+                CollectionUtils.safeForEach(finals, new ForEachFunction<Runnable>() {
+                    @Override
+                    public void run(Runnable arg) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace(String.format("call after final handler %s", arg.getClass()));
+                        }
+
+                        arg.run();
+                    }
+                });
+            }
+        }
+    }
+
+    private void callDoneHandler() {
+        if (lastCompleted != null) {
+            reportCriticalPath();
+        }
+
+        if (doneHandler != null) {
+            try {
+                doneHandler.handle(this.data);
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception when calling %s", doneHandler.getClass()), t);
+            }
+        }
+
+        logger.debug(String.format("[FlowChain: %s] successfully completed", name));
+
+        if (!afterDone.isEmpty()) {
+            Collections.reverse(afterDone);
+
+            for (List dones : afterDone) {
+                CollectionUtils.safeForEach(dones, new ForEachFunction<Runnable>() {
+                    @Override
+                    public void run(Runnable arg) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace(String.format("call after done handler %s", arg.getClass()));
+                        }
+                        arg.run();
+                    }
+                });
+            }
+        }
+
+        callFinallyHandler();
+    }
+
+    @Override
+    public void start() {
+        if (processors != null) {
+            for (FlowChainProcessor p : processors) {
+                p.processFlowChain(this);
+            }
+        }
+
+        if (flows.isEmpty() && allowEmptyFlow) {
+            callDoneHandler();
+            return;
+        }
+
+        if (flows.isEmpty()) {
+            throw new CloudRuntimeException("you must call then() to add flow before calling start() or allowEmptyFlow() to run empty flow chain on purpose");
+        }
+
+        if (name == null) {
+            name = "anonymous-chain";
+        }
+
+        List<Node> graph = buildGraph();
+
+        logger.debug(String.format("[FlowChain: %s] starts", name));
+
+        if (logger.isTraceEnabled()) {
+            List<String> names = CollectionUtils.transformToList(graph, new Function<String, Node>() {
+                @Override
+                public String call(Node arg) {
+                    List<String> deps = CollectionUtils.transformToList(arg.dependencies, new Function<String, Node>() {
+                        @Override
+                        public String call(Node arg) {
+                            return arg.getName();
+                        }
+                    });
+                    return String.format("%s[%s] depends on %s", arg.flow.getClass(), arg.getName(), deps);
+                }
+            });
+            logger.trace(String.format("execution graph:\n%s", StringUtils.join(names, "\n")));
+        }
+
+        List<Node> ready = new ArrayList<>();
+        synchronized (this) {
+            nodes = graph;
+            for (Node node : nodes) {
+                if (node.pendingNum == 0) {
+                    node.state = NodeState.Running;
+                    runningNum ++;
+                    ready.add(node);
+                }
+            }
+        }
+
+        launch(ready);
+    }
+}
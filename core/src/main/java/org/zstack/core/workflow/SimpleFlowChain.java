@@ -1,10 +1,8 @@
 package org.zstack.core.workflow;
 
 import org.apache.commons.lang.StringUtils;
-import org.springframework.beans.factory.annotation.Autowire;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Configurable;
 import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.core.workflow.*;
 import org.zstack.header.errorcode.ErrorCode;
@@ -12,16 +10,15 @@ import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.DebugUtils;
-import org.zstack.utils.FieldUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.function.ForEachFunction;
 import org.zstack.utils.function.Function;
 import org.zstack.utils.logging.CLogger;
 
-import java.lang.reflect.Field;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created with IntelliJ IDEA.
@@ -29,17 +26,18 @@ import java.util.concurrent.ConcurrentHashMap;
  * Time: 2:38 PM
  * To change this template use File | Settings | File Templates.
  */
-@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, FlowChainMutable {
     private static final CLogger logger = Utils.getLogger(SimpleFlowChain.class);
 
     private List<Flow> flows = new ArrayList<>();
-    private Stack<Flow> rollBackFlows = new Stack<>();
+    private Deque<Flow> rollBackFlows = new ArrayDeque<>();
     private Map data = new HashMap();
     private Iterator<Flow> it;
     private boolean isStart = false;
     private boolean isRollbackStart = false;
     private Flow currentFlow;
+    private String currentFlowName;
+    private long currentFlowStartTime;
     private Flow currentRollbackFlow;
     private ErrorCode errorCode;
     private FlowErrorHandler errorHandler;
@@ -57,53 +55,15 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
     private boolean isFailCalled;
 
     private static final Map<String, WorkFlowStatistic> statistics = new ConcurrentHashMap<>();
+    // many flows put resource uuids in their names, ones beyond the limit are counted together
+    private static final int MAX_STATISTIC_NUM = 1000;
+    private static final String OTHER_FLOWS = "others";
 
-    private class FlowStopWatch {
-        Map<String, Long> beginTime = new HashMap<>();
-        void start(Flow flow) {
-            long btime = System.currentTimeMillis();
-            if (currentFlow != null) {
-                String cname = getFlowName(currentFlow);
-                long stime = beginTime.get(cname);
-                WorkFlowStatistic stat = statistics.get(cname);
-                stat.addStatistic(btime - stime);
-
-                logger.debug(String.format("[FlowChain:%s, flow:%s] takes %sms to complete",
-                        name, cname, stat.getTotalTime()));
-            }
-
-            String fname = getFlowName(flow);
-            beginTime.put(fname, btime);
-            WorkFlowStatistic stat = statistics.get(fname);
-            if (stat == null) {
-                stat = new WorkFlowStatistic();
-                stat.setName(fname);
-                statistics.put(fname, stat);
-            }
-        }
-
-        void stop() {
-            long etime = System.currentTimeMillis();
-            if (currentFlow != null) {
-                String fname = getFlowName(currentFlow);
-                long stime = beginTime.get(fname);
-                WorkFlowStatistic stat = statistics.get(fname);
-                stat.addStatistic(etime - stime);
-            }
-        }
-    }
-
-    private FlowStopWatch stopWatch;
-
-    {
-        if (CoreGlobalProperty.PROFILER_WORKFLOW) {
-            stopWatch = new FlowStopWatch();
-        }
+    // a chain is created for every operation, it's not autowired to save the cost
+    private ErrorFacade getErrorFacade() {
+        return Platform.getComponentLoader().getComponent(ErrorFacade.class);
     }
 
-    @Autowired
-    private ErrorFacade errf;
-
     public SimpleFlowChain() {
     }
 
@@ -243,32 +203,6 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
         return this;
     }
 
-    private void collectAfterRunnable(Flow flow) {
-        List<Field> ad = FieldUtils.getAnnotatedFieldsOnThisClass(AfterDone.class, flow.getClass());
-        for (Field f : ad) {
-            List lst = FieldUtils.getFieldValue(f.getName(), flow);
-            if (lst != null) {
-                afterDone.add(lst);
-            }
-        }
-
-        ad = FieldUtils.getAnnotatedFieldsOnThisClass(AfterError.class, flow.getClass());
-        for (Field f : ad) {
-            List lst = FieldUtils.getFieldValue(f.getName(), flow);
-            if (lst != null) {
-                afterError.add(lst);
-            }
-        }
-
-        ad = FieldUtils.getAnnotatedFieldsOnThisClass(AfterFinal.class, flow.getClass());
-        for (Field f : ad) {
-            List lst = FieldUtils.getFieldValue(f.getName(), flow);
-            if (lst != null) {
-                afterFinal.add(lst);
-            }
-        }
-    }
-
     private void runFlow(Flow flow) {
         try {
             Flow toRun = null;
@@ -285,15 +219,13 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
                 toRun = flow;
             }
 
-            if (CoreGlobalProperty.PROFILER_WORKFLOW) {
-                stopWatch.start(toRun);
-            }
-
+            FlowMetadata meta = FlowMetadata.get(toRun.getClass());
             currentFlow = toRun;
+            currentFlowName = getFlowName(meta, toRun);
 
-            String info = String.format("[FlowChain: %s] start executing flow[%s]", name, getFlowName(currentFlow));
-            logger.debug(info);
-            collectAfterRunnable(toRun);
+            logger.debug(String.format("[FlowChain: %s] start executing flow[%s]", name, currentFlowName));
+            meta.collectAfterRunnable(toRun, afterDone, afterError, afterFinal);
+            currentFlowStartTime = System.nanoTime();
             toRun.run(this, data);
         } catch (OperationFailureException oe) {
             String errInfo = oe.getErrorCode() != null ? oe.getErrorCode().toString() : "";
@@ -305,7 +237,7 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
             fail(fe.getErrorCode());
         } catch (Throwable t) {
             logger.warn(String.format("[FlowChain: %s] unhandled exception when executing flow[%s], start to rollback", name, flow.getClass().getName()), t);
-            fail(errf.throwableToInternalError(t));
+            fail(getErrorFacade().throwableToInternalError(t));
         }
     }
 
@@ -351,30 +283,29 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
         callFinallyHandler();
     }
 
-    private String getFlowName(Flow flow) {
-        String name = FieldUtils.getFieldValue("__name__", flow);
-        if (name == null) {
-            name = flow.getClass().getSimpleName();
-            if (name.equals("")) {
-                name = flow.getClass().getName();
-            }
-        }
+    static String getFlowName(Flow flow) {
+        return getFlowName(FlowMetadata.get(flow.getClass()), flow);
+    }
 
+    static String getFlowName(FlowMetadata meta, Flow flow) {
+        String name = meta.getName(flow);
         if (logger.isTraceEnabled()) {
-            String className = flow.getClass().getName();
-            String[] ff = className.split("\\.");
-            String filename = ff[ff.length-1];
-            if (filename.contains("$")) {
-                int index = filename.indexOf("$");
-                filename = filename.substring(0, index);
-            }
-
-            name = String.format("%s.java:%s", filename, name);
+            name = String.format("%s.java:%s", meta.getFileName(), name);
         }
 
         return name;
     }
 
+    private void flowExecuted() {
+        long time = System.nanoTime() - currentFlowStartTime;
+        getStatistic(currentFlowName).addStatistic(time);
+
+        if (CoreGlobalProperty.PROFILER_WORKFLOW) {
+            logger.debug(String.format("[FlowChain:%s, flow:%s] takes %sms to complete",
+                    name, currentFlowName, TimeUnit.NANOSECONDS.toMillis(time)));
+        }
+    }
+
     @Override
     public void rollback() {
         if (!isFailCalled) {
@@ -382,7 +313,7 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
         }
 
         isRollbackStart = true;
-        if (rollBackFlows.empty()) {
+        if (rollBackFlows.isEmpty()) {
             callErrorHandler(true);
             return;
         }
@@ -449,10 +380,6 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
     }
 
     private void callDoneHandler() {
-        if (CoreGlobalProperty.PROFILER_WORKFLOW) {
-            stopWatch.stop();
-        }
-
         if (doneHandler != null) {
             try {
                 doneHandler.handle(this.data);
@@ -501,8 +428,9 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
         }
 
         rollBackFlows.push(currentFlow);
+        flowExecuted();
 
-        logger.debug(String.format("[FlowChain: %s] successfully executed flow[%s]", name, getFlowName(currentFlow)));
+        logger.debug(String.format("[FlowChain: %s] successfully executed flow[%s]", name, currentFlowName));
 
         if (!it.hasNext()) {
             if (errorCode == null) {
@@ -576,6 +504,22 @@ public class SimpleFlowChain implements FlowTrigger, FlowRollback, FlowChain, Fl
         this.errorCode = errorCode;
     }
 
+    static WorkFlowStatistic getStatistic(String flowName) {
+        WorkFlowStatistic stat = statistics.get(flowName);
+        if (stat == null && statistics.size() >= MAX_STATISTIC_NUM) {
+            flowName = OTHER_FLOWS;
+            stat = statistics.get(flowName);
+        }
+
+        if (stat == null) {
+            stat = new WorkFlowStatistic();
+            stat.setName(flowName);
+            WorkFlowStatistic old = statistics.putIfAbsent(flowName, stat);
+            stat = old == null ? stat : old;
+        }
+        return stat;
+    }
+
     public static Map<String, WorkFlowStatistic> getStatistics() {
         return statistics;
     }
@@ -1,13 +1,16 @@
 package org.zstack.core.workflow;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * times are added in nanoseconds and read in milliseconds
  */
 public class WorkFlowStatistic {
-    private volatile long totalTime;
-    private volatile long count;
-    private volatile long averageTime;
+    private final LongAdder totalTime = new LongAdder();
+    private final LongAdder count = new LongAdder();
+    private final LongAdder criticalPathTotalTime = new LongAdder();
+    private final LongAdder criticalPathCount = new LongAdder();
     private String name;
 
     public String getName() {
@@ -19,41 +22,46 @@ public class WorkFlowStatistic {
     }
 
     public long getTotalTime() {
-        return totalTime;
+        return TimeUnit.NANOSECONDS.toMillis(totalTime.sum());
     }
 
-    public void setTotalTime(long totalTime) {
-        this.totalTime = totalTime;
+    public long getCount() {
+        return count.sum();
     }
 
-    public long getCount() {
-        return count;
+    public long getAverageTime() {
+        long c = count.sum();
+        return c == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalTime.sum() / c);
     }
 
-    public void setCount(long count) {
-        this.count = count;
+    public long getCriticalPathTotalTime() {
+        return TimeUnit.NANOSECONDS.toMillis(criticalPathTotalTime.sum());
     }
 
-    public long getAverageTime() {
-        return averageTime;
+    public long getCriticalPathCount() {
+        return criticalPathCount.sum();
     }
 
-    public void setAverageTime(long averageTime) {
-        this.averageTime = averageTime;
+    public void addStatistic(long nanos) {
+        totalTime.add(nanos);
+        count.increment();
     }
 
-    public void addStatistic(long time) {
-        totalTime += time;
-        count ++;
-        averageTime = totalTime / count;
+    // the flow was on the critical path of a parallel flow chain, so the time added up to the time of the chain
+    public void addCriticalPathStatistic(long nanos) {
+        criticalPathTotalTime.add(nanos);
+        criticalPathCount.increment();
     }
 
     @Override
     public String toString() {
-        return String.format("Flow[%s]: total time: %s secs, total count: %s, average time: %s secs",
+        return String.format("Flow[%s]: total time: %s secs, total count: %s, average time: %s secs, " +
+                        "critical path time: %s secs, critical path count: %s",
                 name,
-                TimeUnit.MILLISECONDS.toSeconds(totalTime),
-                count,
-                TimeUnit.MILLISECONDS.toSeconds(averageTime));
+                TimeUnit.MILLISECONDS.toSeconds(getTotalTime()),
+                getCount(),
+                TimeUnit.MILLISECONDS.toSeconds(getAverageTime()),
+                TimeUnit.MILLISECONDS.toSeconds(getCriticalPathTotalTime()),
+                getCriticalPathCount());
     }
 }
@@ -0,0 +1,19 @@
+package org.zstack.header.core.workflow;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares flows a flow depends on when it runs in a parallel flow chain; the flow starts once all
+ * flows of the classes in the same chain have completed. A flow without this annotation depends on
+ * all flows before it, an empty value means it can start right away.
+ *
+ * Sequential flow chains ignore it.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface FlowDependsOn {
+    Class<? extends Flow>[] value();
+}
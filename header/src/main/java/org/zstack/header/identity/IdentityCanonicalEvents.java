@@ -10,6 +10,7 @@ import java.util.Date;
 public class IdentityCanonicalEvents {
     public static final String ACCOUNT_DELETED_PATH = "/account/delete";
     public static final String USER_DELETED_PATH = "/user/delete";
+    public static final String POLICY_CHANGED_PATH = "/policy/change";
 
     @NeedJsonSchema
     public static class AccountDeletedData {
@@ -72,4 +73,30 @@ public class IdentityCanonicalEvents {
             this.date = date;
         }
     }
+
+    /**
+     * userUuid is null when the change may affect more than one user,
+     * e.g. a policy of a group is attached/detached or a policy is deleted
+     */
+    @NeedJsonSchema
+    public static class PolicyChangedData {
+        private String userUuid;
+        private Date date = new Date();
+
+        public String getUserUuid() {
+            return userUuid;
+        }
+
+        public void setUserUuid(String userUuid) {
+            this.userUuid = userUuid;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public void setDate(Date date) {
+            this.date = date;
+        }
+    }
 }
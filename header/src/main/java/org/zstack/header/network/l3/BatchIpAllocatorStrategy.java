@@ -0,0 +1,14 @@
+package org.zstack.header.network.l3;
+
+import java.util.List;
+
+/**
+ * an IpAllocatorStrategy able to allocate many ips in one go, strategies not implementing it
+ * serve AllocateIpsMsg by allocating ips one by one
+ */
+public interface BatchIpAllocatorStrategy extends IpAllocatorStrategy {
+    /**
+     * @return the allocated ips, fewer than num if the l3 network runs out of ips
+     */
+    List<UsedIpInventory> allocateIps(IpAllocateMessage msg, int num);
+}
@@ -1,5 +1,6 @@
 package org.zstack.header.rest;
 
+import org.zstack.header.core.ReturnValueCompletion;
 import org.zstack.header.message.APIMessage;
 
 public interface RESTApiFacade {
@@ -8,4 +9,11 @@ public interface RESTApiFacade {
     RestAPIResponse call(APIMessage msg);
 
     RestAPIResponse getResult(String uuid);
+
+    /**
+     * @param waitTime in milliseconds, how long to wait for the result if the API is still being processed,
+     * the caller's thread is not blocked during the wait
+     * @param completion gets null if the API is not found
+     */
+    void getResult(String uuid, long waitTime, ReturnValueCompletion<RestAPIResponse> completion);
 }
@@ -24,6 +24,7 @@ import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.identity.*;
 import org.zstack.header.identity.IdentityCanonicalEvents.AccountDeletedData;
+import org.zstack.header.identity.IdentityCanonicalEvents.PolicyChangedData;
 import org.zstack.header.identity.IdentityCanonicalEvents.UserDeletedData;
 import org.zstack.header.message.APIDeleteMessage.DeletionMode;
 import org.zstack.header.message.APIMessage;
@@ -318,20 +319,41 @@ public class AccountBase extends AbstractAccount {
         bus.publish(evt);
     }
 
-    @Transactional
+    private void firePolicyChangedEvent(String userUuid) {
+        // evict on this node before the API replies, the event tells the other nodes
+        acntMgr.evictPolicyCache(userUuid);
+        PolicyChangedData d = new PolicyChangedData();
+        d.setUserUuid(userUuid);
+        evtf.fire(IdentityCanonicalEvents.POLICY_CHANGED_PATH, d);
+    }
+
     private void handle(APIDetachPoliciesFromUserMsg msg) {
+        detachPoliciesFromUser(msg);
+        firePolicyChangedEvent(msg.getUserUuid());
+
+        APIDetachPoliciesFromUserEvent evt = new APIDetachPoliciesFromUserEvent(msg.getId());
+        bus.publish(evt);
+    }
+
+    @Transactional
+    private void detachPoliciesFromUser(APIDetachPoliciesFromUserMsg msg) {
         String sql = "delete from UserPolicyRefVO ref where ref.policyUuid in (:puuids) and ref.userUuid = :userUuid";
         Query q = dbf.getEntityManager().createQuery(sql);
         q.setParameter("puuids", msg.getPolicyUuids());
         q.setParameter("userUuid", msg.getUserUuid());
         q.executeUpdate();
+    }
 
-        APIDetachPoliciesFromUserEvent evt = new APIDetachPoliciesFromUserEvent(msg.getId());
+    private void handle(APIAttachPoliciesToUserMsg msg) {
+        attachPoliciesToUser(msg);
+        firePolicyChangedEvent(msg.getUserUuid());
+
+        APIAttachPoliciesToUserEvent evt = new APIAttachPoliciesToUserEvent(msg.getId());
         bus.publish(evt);
     }
 
     @Transactional
-    private void handle(APIAttachPoliciesToUserMsg msg) {
+    private void attachPoliciesToUser(APIAttachPoliciesToUserMsg msg) {
         for (String puuid : msg.getPolicyUuids()) {
             try {
                 UserPolicyRefVO refVO = new UserPolicyRefVO();
@@ -347,9 +369,6 @@ public class AccountBase extends AbstractAccount {
                 // the policy is already attached
             }
         }
-
-        APIAttachPoliciesToUserEvent evt = new APIAttachPoliciesToUserEvent(msg.getId());
-        bus.publish(evt);
     }
 
     private void handle(APIGetAccountQuotaUsageMsg msg) {
@@ -519,6 +538,11 @@ public class AccountBase extends AbstractAccount {
             user = dbf.updateAndRefresh(user);
         }
 
+        if (msg.getName() != null) {
+            // the user name is cached for reporting policy decisions
+            firePolicyChangedEvent(user.getUuid());
+        }
+
         APIUpdateUserEvent evt = new APIUpdateUserEvent(msg.getId());
         evt.setInventory(UserInventory.valueOf(user));
         bus.publish(evt);
@@ -531,6 +555,7 @@ public class AccountBase extends AbstractAccount {
         UserGroupUserRefVO ref = q.find();
         if (ref != null) {
             dbf.remove(ref);
+            firePolicyChangedEvent(msg.getUserUuid());
         }
 
         bus.publish(new APIRemoveUserFromGroupEvent(msg.getId()));
@@ -543,6 +568,7 @@ public class AccountBase extends AbstractAccount {
         UserGroupPolicyRefVO ref = q.find();
         if (ref != null) {
             dbf.remove(ref);
+            firePolicyChangedEvent(null);
         }
 
         bus.publish(new APIDetachPolicyFromUserGroupEvent(msg.getId()));
@@ -555,6 +581,7 @@ public class AccountBase extends AbstractAccount {
         UserPolicyRefVO ref = q.find();
         if (ref != null) {
             dbf.remove(ref);
+            firePolicyChangedEvent(msg.getUserUuid());
         }
 
         bus.publish(new APIDetachPolicyFromUserEvent(msg.getId()));
@@ -562,6 +589,7 @@ public class AccountBase extends AbstractAccount {
 
     private void handle(APIDeletePolicyMsg msg) {
         dbf.removeByPrimaryKey(msg.getUuid(), PolicyVO.class);
+        firePolicyChangedEvent(null);
         APIDeletePolicyEvent evt = new APIDeletePolicyEvent(msg.getId());
         bus.publish(evt);
     }
@@ -588,6 +616,7 @@ public class AccountBase extends AbstractAccount {
 
     private void handle(APIDeleteUserGroupMsg msg) {
         dbf.removeByPrimaryKey(msg.getUuid(), UserGroupVO.class);
+        firePolicyChangedEvent(null);
         APIDeleteUserGroupEvent evt = new APIDeleteUserGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -597,6 +626,7 @@ public class AccountBase extends AbstractAccount {
         ugvo.setGroupUuid(msg.getGroupUuid());
         ugvo.setUserUuid(msg.getUserUuid());
         dbf.persist(ugvo);
+        firePolicyChangedEvent(msg.getUserUuid());
         APIAddUserToGroupEvent evt = new APIAddUserToGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -616,6 +646,7 @@ public class AccountBase extends AbstractAccount {
             // the policy is already attached
         }
 
+        firePolicyChangedEvent(null);
         APIAttachPolicyToUserGroupEvent evt = new APIAttachPolicyToUserGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -654,6 +685,7 @@ public class AccountBase extends AbstractAccount {
             // the policy is already attached
         }
 
+        firePolicyChangedEvent(msg.getUserUuid());
         APIAttachPolicyToUserEvent evt = new APIAttachPolicyToUserEvent(msg.getId());
         bus.publish(evt);
     }
@@ -26,4 +26,9 @@ public interface AccountManager {
     void checkApiMessagePermission(APIMessage msg);
 
     boolean isAdmin(SessionInventory session);
+
+    /**
+     * evicts the cached policies of the user on this management node, all users when userUuid is null
+     */
+    void evictPolicyCache(String userUuid);
 }
@@ -27,6 +27,7 @@ import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.identity.*;
 import org.zstack.header.identity.AccountConstant.StatementEffect;
 import org.zstack.header.identity.IdentityCanonicalEvents.AccountDeletedData;
+import org.zstack.header.identity.IdentityCanonicalEvents.PolicyChangedData;
 import org.zstack.header.identity.IdentityCanonicalEvents.UserDeletedData;
 import org.zstack.header.identity.PolicyInventory.Statement;
 import org.zstack.header.identity.Quota.QuotaPair;
@@ -37,6 +38,8 @@ import org.zstack.header.message.APIParam;
 import org.zstack.header.message.Message;
 import org.zstack.header.search.APIGetMessage;
 import org.zstack.header.search.APISearchMessage;
+import org.zstack.identity.UserPolicyCache.Decision;
+import org.zstack.identity.UserPolicyCache.UserPolicies;
 import org.zstack.utils.*;
 import org.zstack.utils.function.ForEachFunction;
 import org.zstack.utils.gson.JSONObjectUtil;
@@ -53,8 +56,6 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static org.zstack.utils.CollectionDSL.list;
 
@@ -102,6 +103,12 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
 
     private Map<Class, MessageAction> actions = new HashMap<>();
     private Future<Void> expiredSessionCollector;
+    private Future<Void> dbClockSyncer;
+    private UserPolicyCache policyCache = new UserPolicyCache();
+    // the type of an account never changes after the account is created
+    private Map<String, AccountType> accountTypes = new ConcurrentHashMap<>();
+    // DB clock minus local clock, session expiry is judged by the DB clock
+    private volatile long dbClockOffset;
 
     @Override
     @MessageSafe
@@ -605,6 +612,7 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
             buildResourceTypes();
             buildActions();
             startExpiredSessionCollector();
+            startDbClockSyncer();
             collectDefaultQuota();
             configureGlobalConfig();
             setupCanonicalEvents();
@@ -640,6 +648,9 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
                     logger.debug(String.format("successfully removed %s sessions for the deleted account[%s]", suuids.size(),
                             d.getAccountUuid()));
                 }
+
+                accountTypes.remove(d.getAccountUuid());
+                policyCache.evictAll();
             }
         });
 
@@ -661,10 +672,34 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
                     logger.debug(String.format("successfully removed %s sessions for the deleted user[%s]", suuids.size(),
                             d.getUserUuid()));
                 }
+
+                policyCache.evict(d.getUserUuid());
+            }
+        });
+
+        evtf.on(IdentityCanonicalEvents.POLICY_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                if (evtf.isFromThisManagementNode(tokens)) {
+                    // evicted by the node making the change before the API replies
+                    return;
+                }
+
+                PolicyChangedData d = (PolicyChangedData) data;
+                evictPolicyCache(d.getUserUuid());
             }
         });
     }
 
+    @Override
+    public void evictPolicyCache(String userUuid) {
+        if (userUuid != null) {
+            policyCache.evict(userUuid);
+        } else {
+            policyCache.evictAll();
+        }
+    }
+
     private void configureGlobalConfig() {
         String v = IdentityGlobalConfig.ACCOUNT_API_CONTROL.value();
         String[] classNames = v.split(",");
@@ -955,6 +990,9 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
         if (expiredSessionCollector != null) {
             expiredSessionCollector.cancel(true);
         }
+        if (dbClockSyncer != null) {
+            dbClockSyncer.cancel(true);
+        }
         return true;
     }
 
@@ -1112,6 +1150,85 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
         return (Timestamp) query.getSingleResult();
     }
 
+    private void syncDbClock() {
+        long before = System.currentTimeMillis();
+        Timestamp dbTime = getCurrentSqlDate();
+        long after = System.currentTimeMillis();
+        dbClockOffset = dbTime.getTime() - (before + after) / 2;
+    }
+
+    private Timestamp currentDbTime() {
+        return new Timestamp(System.currentTimeMillis() + dbClockOffset);
+    }
+
+    private void startDbClockSyncer() {
+        syncDbClock();
+
+        final int interval = IdentityGlobalConfig.SESSION_CLOCK_SYNC_INTERVAL.value(Integer.class);
+        dbClockSyncer = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public void run() {
+                try {
+                    syncDbClock();
+                } catch (Throwable t) {
+                    logger.warn("failed to sync the DB clock, use the last offset", t);
+                }
+            }
+
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return interval;
+            }
+
+            @Override
+            public String getName() {
+                return "SessionDbClockSyncThread";
+            }
+        });
+    }
+
+    private boolean isAdminAccount(String accountUuid) {
+        AccountType type = accountTypes.get(accountUuid);
+        if (type == null) {
+            type = new QuotaUtil().getAccountType(accountUuid);
+            if (type == null) {
+                return false;
+            }
+            accountTypes.put(accountUuid, type);
+        }
+
+        return type == AccountType.SystemAdmin;
+    }
+
+    @Transactional(readOnly = true)
+    private UserPolicies loadUserPolicies(String userUuid) {
+        String sql = "select u.name from UserVO u where u.uuid = :uuid";
+        TypedQuery<String> uq = dbf.getEntityManager().createQuery(sql, String.class);
+        uq.setParameter("uuid", userUuid);
+        List<String> names = uq.getResultList();
+
+        sql = "select p from PolicyVO p, UserPolicyRefVO ref where ref.userUuid = :uuid and ref.policyUuid = p.uuid";
+        TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
+        q.setParameter("uuid", userUuid);
+        List<PolicyInventory> userPolicies = PolicyInventory.valueOf(q.getResultList());
+
+        sql = "select p" +
+                " from PolicyVO p, UserGroupUserRefVO ref, UserGroupPolicyRefVO gref" +
+                " where p.uuid = gref.policyUuid" +
+                " and gref.groupUuid = ref.groupUuid" +
+                " and ref.userUuid = :uuid";
+        q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
+        q.setParameter("uuid", userUuid);
+        List<PolicyInventory> groupPolicies = PolicyInventory.valueOf(q.getResultList());
+
+        return new UserPolicies(names.isEmpty() ? null : names.get(0), userPolicies, groupPolicies);
+    }
+
     class Auth {
         APIMessage msg;
         SessionInventory session;
@@ -1220,8 +1337,8 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
             }
         }
 
-        private void useDecision(Decision d, boolean userPolicy) {
-            String policyCategory = userPolicy ? "user policy" : "group policy";
+        private void useDecision(Decision d) {
+            String policyCategory = d.userPolicy ? "user policy" : "group policy";
 
             if (d.effect == StatementEffect.Allow) {
                 logger.debug(String.format("API[name: %s, action: %s] is approved by a %s[name: %s, uuid: %s]," +
@@ -1240,7 +1357,7 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
         }
 
         private void policyCheck() {
-            if (new QuotaUtil().isAdminAccount(session.getAccountUuid())) {
+            if (isAdminAccount(session.getAccountUuid())) {
                 return;
             }
 
@@ -1295,22 +1412,12 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
                 return;
             }
 
-            SimpleQuery<UserVO> uq = dbf.createQuery(UserVO.class);
-            uq.select(UserVO_.name);
-            uq.add(UserVO_.uuid, Op.EQ, session.getUserUuid());
-            username = uq.findValue();
+            UserPolicies policies = policyCache.get(session.getUserUuid(), AccountManagerImpl.this::loadUserPolicies);
+            username = policies.username;
 
-            List<PolicyInventory> userPolicies = getUserPolicies();
-            Decision d = decide(userPolicies);
+            Decision d = policies.decide(msg.getClass(), action.actions);
             if (d != null) {
-                useDecision(d, true);
-                return;
-            }
-
-            List<PolicyInventory> groupPolicies = getGroupPolicies();
-            d = decide(groupPolicies);
-            if (d != null) {
-                useDecision(d, false);
+                useDecision(d);
                 return;
             }
 
@@ -1320,66 +1427,6 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
             ));
         }
 
-
-        @Transactional(readOnly = true)
-        private List<PolicyInventory> getGroupPolicies() {
-            String sql = "select p" +
-                    " from PolicyVO p, UserGroupUserRefVO ref, UserGroupPolicyRefVO gref" +
-                    " where p.uuid = gref.policyUuid" +
-                    " and gref.groupUuid = ref.groupUuid" +
-                    " and ref.userUuid = :uuid";
-            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
-            q.setParameter("uuid", session.getUserUuid());
-            return PolicyInventory.valueOf(q.getResultList());
-        }
-
-        class Decision {
-            PolicyInventory policy;
-            String action;
-            Statement statement;
-            String actionRule;
-            StatementEffect effect;
-        }
-
-        private Decision decide(List<PolicyInventory> userPolicies) {
-            for (String a : action.actions) {
-                for (PolicyInventory p : userPolicies) {
-                    for (Statement s : p.getStatements()) {
-                        for (String ac : s.getActions()) {
-                            Pattern pattern = Pattern.compile(ac);
-                            Matcher m = pattern.matcher(a);
-                            boolean ret = m.matches();
-                            if (ret) {
-                                Decision d = new Decision();
-                                d.policy = p;
-                                d.action = a;
-                                d.statement = s;
-                                d.actionRule = ac;
-                                d.effect = s.getEffect();
-                                return d;
-                            }
-
-                            if (logger.isTraceEnabled()) {
-                                logger.trace(String.format("API[name: %s, action: %s] is not matched by policy[name: %s, uuid: %s" +
-                                                ", statement[name: %s, action: %s, effect: %s]", msg.getClass().getSimpleName(),
-                                        a, p.getName(), p.getUuid(), s.getName(), ac, s.getEffect()));
-                            }
-                        }
-                    }
-                }
-            }
-
-            return null;
-        }
-
-        @Transactional(readOnly = true)
-        private List<PolicyInventory> getUserPolicies() {
-            String sql = "select p from PolicyVO p, UserPolicyRefVO ref where ref.userUuid = :uuid and ref.policyUuid = p.uuid";
-            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
-            q.setParameter("uuid", session.getUserUuid());
-            return PolicyInventory.valueOf(q.getResultList());
-        }
-
         private void sessionCheck() {
             if (msg.getSession() == null) {
                 throw new ApiMessageInterceptionException(errf.instantiateErrorCode(IdentityErrors.INVALID_SESSION,
@@ -1402,7 +1449,7 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
                 sessions.put(session.getUuid(), session);
             }
 
-            Timestamp curr = getCurrentSqlDate();
+            Timestamp curr = currentDbTime();
             if (curr.after(session.getExpiredDate())) {
                 logger.debug(String.format("session expired[%s < %s] for account[uuid:%s]", curr,
                         session.getExpiredDate(), session.getAccountUuid()));
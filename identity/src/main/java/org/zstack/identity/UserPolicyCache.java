@@ -0,0 +1,165 @@
+package org.zstack.identity;
+
+import org.zstack.header.identity.AccountConstant.StatementEffect;
+import org.zstack.header.identity.PolicyInventory;
+import org.zstack.header.identity.PolicyInventory.Statement;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Caches, per user, the policies of the user and of its groups with the action rules compiled,
+ * and remembers the decision made for each API so an API checked before costs a map lookup.
+ *
+ * Entries are evicted when policies, user/group membership or policy attachments change, synchronously
+ * on the node making the change and through POLICY_CHANGED_PATH on the other nodes. A load
+ * racing with an eviction is not cached, so a load started before the change can't put stale
+ * policies back.
+ */
+class UserPolicyCache {
+    private static final CLogger logger = Utils.getLogger(UserPolicyCache.class);
+
+    static class CompiledStatement {
+        final PolicyInventory policy;
+        final Statement statement;
+        final List<String> rules;
+        final List<Pattern> patterns;
+
+        CompiledStatement(PolicyInventory policy, Statement statement) {
+            this.policy = policy;
+            this.statement = statement;
+            rules = statement.getActions() == null ? Collections.<String>emptyList() : statement.getActions();
+            patterns = new ArrayList<>(rules.size());
+            for (String rule : rules) {
+                patterns.add(Pattern.compile(rule));
+            }
+        }
+    }
+
+    static class Decision {
+        PolicyInventory policy;
+        String action;
+        Statement statement;
+        String actionRule;
+        StatementEffect effect;
+        boolean userPolicy;
+    }
+
+    // marks an API no statement matches, a ConcurrentHashMap can't hold null
+    private static final Decision NO_DECISION = new Decision();
+
+    static class UserPolicies {
+        final String username;
+        final List<CompiledStatement> userStatements;
+        final List<CompiledStatement> groupStatements;
+        private final ConcurrentHashMap<Class, Decision> decisions = new ConcurrentHashMap<>();
+
+        UserPolicies(String username, List<PolicyInventory> userPolicies, List<PolicyInventory> groupPolicies) {
+            this.username = username;
+            userStatements = compile(userPolicies);
+            groupStatements = compile(groupPolicies);
+        }
+
+        private static List<CompiledStatement> compile(List<PolicyInventory> policies) {
+            List<CompiledStatement> ret = new ArrayList<>();
+            for (PolicyInventory p : policies) {
+                if (p.getStatements() == null) {
+                    continue;
+                }
+
+                for (Statement s : p.getStatements()) {
+                    ret.add(new CompiledStatement(p, s));
+                }
+            }
+            return ret;
+        }
+
+        private static Decision decide(Class apiClass, List<String> actions, List<CompiledStatement> statements, boolean userPolicy) {
+            for (String a : actions) {
+                for (CompiledStatement cs : statements) {
+                    for (int i = 0; i < cs.patterns.size(); i++) {
+                        if (cs.patterns.get(i).matcher(a).matches()) {
+                            Decision d = new Decision();
+                            d.policy = cs.policy;
+                            d.action = a;
+                            d.statement = cs.statement;
+                            d.actionRule = cs.rules.get(i);
+                            d.effect = cs.statement.getEffect();
+                            d.userPolicy = userPolicy;
+                            return d;
+                        }
+
+                        if (logger.isTraceEnabled()) {
+                            logger.trace(String.format("API[name: %s, action: %s] is not matched by policy[name: %s, uuid: %s" +
+                                            ", statement[name: %s, action: %s, effect: %s]", apiClass.getSimpleName(),
+                                    a, cs.policy.getName(), cs.policy.getUuid(), cs.statement.getName(), cs.rules.get(i),
+                                    cs.statement.getEffect()));
+                        }
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @return the decision of the first matched statement, user policies come before group policies;
+         * null if no statement matches
+         */
+        Decision decide(Class apiClass, List<String> actions) {
+            Decision d = decisions.get(apiClass);
+            if (d == null) {
+                d = decide(apiClass, actions, userStatements, true);
+                if (d == null) {
+                    d = decide(apiClass, actions, groupStatements, false);
+                }
+
+                d = d == null ? NO_DECISION : d;
+                decisions.put(apiClass, d);
+            }
+
+            return d == NO_DECISION ? null : d;
+        }
+    }
+
+    private final ConcurrentHashMap<String, UserPolicies> users = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    UserPolicies get(String userUuid, Function<String, UserPolicies> loader) {
+        UserPolicies up = users.get(userUuid);
+        if (up != null) {
+            return up;
+        }
+
+        long gen = generation.get();
+        up = loader.apply(userUuid);
+        if (generation.get() == gen) {
+            UserPolicies old = users.putIfAbsent(userUuid, up);
+            if (old != null) {
+                up = old;
+            } else if (generation.get() != gen) {
+                // evicted between the check and the put
+                users.remove(userUuid, up);
+            }
+        }
+
+        return up;
+    }
+
+    void evict(String userUuid) {
+        generation.incrementAndGet();
+        users.remove(userUuid);
+    }
+
+    void evictAll() {
+        generation.incrementAndGet();
+        users.clear();
+    }
+}
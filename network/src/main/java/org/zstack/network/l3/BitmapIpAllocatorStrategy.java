@@ -0,0 +1,95 @@
+package org.zstack.network.l3;
+
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.network.l3.*;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Picks free ips from the IpRangeBitmap of each ip range, the used ips of a range are loaded
+ * from the DB only once. A stale bitmap is corrected on the way: an ip found used by the DB unique
+ * key is marked used and another one is picked, and a range that looks full is reloaded once
+ * before it's given up, so ips returned behind the bitmap's back are found again.
+ */
+public class BitmapIpAllocatorStrategy extends AbstractIpAllocatorStrategy implements BatchIpAllocatorStrategy {
+    private static final CLogger logger = Utils.getLogger(BitmapIpAllocatorStrategy.class);
+    public static final IpAllocatorType type = new IpAllocatorType(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+
+    @Override
+    public IpAllocatorType getType() {
+        return type;
+    }
+
+    private List<IpRangeVO> getIpRanges(String l3NetworkUuid) {
+        SimpleQuery<IpRangeVO> query = dbf.createQuery(IpRangeVO.class);
+        query.add(IpRangeVO_.l3NetworkUuid, Op.EQ, l3NetworkUuid);
+        return query.list();
+    }
+
+    private IpRangeBitmap getBitmap(IpRangeVO r, Set<String> reloaded) {
+        IpRangeBitmap bitmap = l3NwMgr.getIpRangeBitmap(r);
+        if (bitmap.isFull() && reloaded.add(r.getUuid())) {
+            bitmap = l3NwMgr.reloadIpRangeBitmap(r);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public UsedIpInventory allocateIp(IpAllocateMessage msg) {
+        if (msg.getRequiredIp() != null) {
+            return allocateRequiredIp(msg);
+        }
+
+        List<UsedIpInventory> ips = allocateIps(msg, 1);
+        return ips.isEmpty() ? null : ips.get(0);
+    }
+
+    @Override
+    public List<UsedIpInventory> allocateIps(IpAllocateMessage msg, int num) {
+        List<UsedIpInventory> ret = new ArrayList<UsedIpInventory>(num);
+        Set<String> reloaded = new HashSet<String>();
+
+        for (IpRangeVO r : getIpRanges(msg.getL3NetworkUuid())) {
+            IpRangeInventory inv = IpRangeInventory.valueOf(r);
+
+            while (ret.size() < num) {
+                IpRangeBitmap bitmap = getBitmap(r, reloaded);
+                List<Long> picked = bitmap.allocate(num - ret.size());
+                if (picked.isEmpty()) {
+                    logger.debug(String.format("ip range[uuid:%s, name:%s] is exhausted, try next one", r.getUuid(), r.getName()));
+                    break;
+                }
+
+                List<String> ips = new ArrayList<String>(picked.size());
+                for (long ip : picked) {
+                    ips.add(NetworkUtils.longToIpv4String(ip));
+                }
+
+                // ips failing the unique key are marked used in the bitmap by reserveIps(), just pick again
+                ret.addAll(picked.size() == 1 ? reserveOne(inv, ips.get(0)) : l3NwMgr.reserveIps(inv, ips));
+            }
+
+            if (ret.size() == num) {
+                break;
+            }
+        }
+
+        return ret;
+    }
+
+    private List<UsedIpInventory> reserveOne(IpRangeInventory ipr, String ip) {
+        List<UsedIpInventory> ret = new ArrayList<UsedIpInventory>(1);
+        UsedIpInventory inv = l3NwMgr.reserveIp(ipr, ip);
+        if (inv != null) {
+            ret.add(inv);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,153 @@
+package org.zstack.network.l3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Used addresses of an ip range, one bit per address plus one bit per 64 addresses telling all
+ * of them are used, so looking for a free address skips a full block of 4096 addresses with one
+ * word. A /16 range takes 8K of memory.
+ *
+ * Addresses are handed out next-fit from a cursor, a returned address is not reused until
+ * the cursor wraps around.
+ *
+ * The bitmap is a hint kept by this management node, the unique key of UsedIpVO decides
+ * whether an address is really taken.
+ */
+public class IpRangeBitmap {
+    private final long startIp;
+    private final int size;
+    private final long[] words;
+    private final long[] fullWords;
+    private int usedCount;
+    private int cursor;
+
+    IpRangeBitmap(long startIp, long endIp, List<Long> usedIps) {
+        this.startIp = startIp;
+        size = (int) (endIp - startIp + 1);
+        words = new long[(size + 63) >>> 6];
+        fullWords = new long[(words.length + 63) >>> 6];
+
+        // bits beyond the range are always set so the last word can become full
+        int tail = size & 63;
+        if (tail != 0) {
+            words[words.length - 1] = -1L << tail;
+        }
+
+        for (long ip : usedIps) {
+            if (ip >= startIp && ip <= endIp) {
+                setBit((int) (ip - startIp));
+            }
+        }
+    }
+
+    private void setBit(int i) {
+        int w = i >>> 6;
+        long old = words[w];
+        words[w] |= 1L << i;
+        if (old != words[w]) {
+            usedCount++;
+            if (words[w] == -1L) {
+                fullWords[w >>> 6] |= 1L << w;
+            }
+        }
+    }
+
+    private void clearBit(int i) {
+        int w = i >>> 6;
+        long old = words[w];
+        words[w] &= ~(1L << i);
+        if (old != words[w]) {
+            usedCount--;
+            fullWords[w >>> 6] &= ~(1L << w);
+        }
+    }
+
+    private int nextFree(int from) {
+        int w = from >>> 6;
+        long free = ~words[w] & (-1L << from);
+        if (free != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(free);
+        }
+
+        w++;
+        while (w < words.length) {
+            int sw = w >>> 6;
+            long notFull = ~fullWords[sw] & (-1L << w);
+            if (notFull == 0) {
+                w = (sw + 1) << 6;
+                continue;
+            }
+
+            w = (sw << 6) + Long.numberOfTrailingZeros(notFull);
+            if (w >= words.length) {
+                break;
+            }
+
+            return (w << 6) + Long.numberOfTrailingZeros(~words[w]);
+        }
+
+        return -1;
+    }
+
+    private boolean inRange(long ip) {
+        return ip >= startIp && ip < startIp + size;
+    }
+
+    synchronized void markUsed(long ip) {
+        if (inRange(ip)) {
+            setBit((int) (ip - startIp));
+        }
+    }
+
+    synchronized void markFree(long ip) {
+        if (inRange(ip)) {
+            clearBit((int) (ip - startIp));
+        }
+    }
+
+    synchronized boolean isFull() {
+        return usedCount == size;
+    }
+
+    synchronized int getUsedCount() {
+        return usedCount;
+    }
+
+    /**
+     * marks a free address used
+     *
+     * @return the address, or -1 if the range is full
+     */
+    synchronized long allocate() {
+        if (usedCount == size) {
+            return -1;
+        }
+
+        int i = nextFree(cursor);
+        if (i == -1) {
+            i = nextFree(0);
+        }
+
+        setBit(i);
+        cursor = i + 1 == size ? 0 : i + 1;
+        return startIp + i;
+    }
+
+    /**
+     * marks at most num free addresses used
+     *
+     * @return the addresses, fewer than num if the range runs out
+     */
+    synchronized List<Long> allocate(int num) {
+        List<Long> ret = new ArrayList<Long>(num);
+        for (int i = 0; i < num; i++) {
+            long ip = allocate();
+            if (ip == -1) {
+                break;
+            }
+            ret.add(ip);
+        }
+        return ret;
+    }
+}
@@ -136,6 +136,8 @@ public class L3BasicNetwork implements L3Network {
     private void handleLocalMessage(Message msg) {
         if (msg instanceof AllocateIpMsg) {
             handle((AllocateIpMsg)msg);
+        } else if (msg instanceof AllocateIpsMsg) {
+            handle((AllocateIpsMsg) msg);
         } else if (msg instanceof ReturnIpMsg) {
             handle((ReturnIpMsg)msg);
         } else if (msg instanceof L3NetworkDeletionMsg) {
@@ -180,6 +182,7 @@ public class L3BasicNetwork implements L3Network {
 
 
         dbf.remove(iprvo);
+        l3NwMgr.removeIpRangeBitmap(iprvo.getUuid());
 
         CollectionUtils.safeForEach(exts, new ForEachFunction<IpRangeDeletionExtensionPoint>() {
             @Override
@@ -203,13 +206,60 @@ public class L3BasicNetwork implements L3Network {
 
     private void handle(ReturnIpMsg msg) {
         ReturnIpReply reply = new ReturnIpReply();
-        dbf.removeByPrimaryKey(msg.getUsedIpUuid(), UsedIpVO.class);
+        UsedIpVO vo = dbf.findByUuid(msg.getUsedIpUuid(), UsedIpVO.class);
+        if (vo != null) {
+            dbf.remove(vo);
+            l3NwMgr.ipReturned(vo);
+        }
         logger.debug(String.format("Successfully released used ip[%s]", msg.getUsedIpUuid()));
         bus.reply(msg, reply);
     }
 
+    private IpAllocatorType getIpAllocatorType(IpAllocateMessage msg) {
+        return msg.getAllocatorStrategy() == null ? IpAllocatorType.valueOf(L3NetworkGlobalConfig.DEFAULT_IP_ALLOCATOR_STRATEGY.value()) :
+                IpAllocatorType.valueOf(msg.getAllocatorStrategy());
+    }
+
+    private void handle(AllocateIpsMsg msg) {
+        IpAllocatorType strategyType = getIpAllocatorType(msg);
+        IpAllocatorStrategy ias = l3NwMgr.getIpAllocatorStrategy(strategyType);
+        AllocateIpsReply reply = new AllocateIpsReply();
+
+        List<UsedIpInventory> ips;
+        if (ias instanceof BatchIpAllocatorStrategy) {
+            ips = ((BatchIpAllocatorStrategy) ias).allocateIps(msg, msg.getNum());
+        } else {
+            ips = new ArrayList<UsedIpInventory>(msg.getNum());
+            while (ips.size() < msg.getNum()) {
+                UsedIpInventory ip = ias.allocateIp(msg);
+                if (ip == null) {
+                    break;
+                }
+                ips.add(ip);
+            }
+        }
+
+        if (ips.size() < msg.getNum()) {
+            for (UsedIpInventory ip : ips) {
+                UsedIpVO vo = dbf.findByUuid(ip.getUuid(), UsedIpVO.class);
+                if (vo != null) {
+                    dbf.remove(vo);
+                    l3NwMgr.ipReturned(vo);
+                }
+            }
+
+            reply.setError(errf.instantiateErrorCode(L3Errors.ALLOCATE_IP_ERROR, String.format("IP allocator strategy[%s] only finds %s of %s ips," +
+                    " because no more ip is available in this l3Network[name:%s, uuid:%s]", strategyType, ips.size(), msg.getNum(), self.getName(), self.getUuid())));
+        } else {
+            logger.debug(String.format("Ip allocator strategy[%s] successfully allocates %s ips in l3Network[uuid:%s]", strategyType, ips.size(), self.getUuid()));
+            reply.setIpInventories(ips);
+        }
+
+        bus.reply(msg, reply);
+    }
+
     private void handle(AllocateIpMsg msg) {
-        IpAllocatorType strategyType = msg.getAllocatorStrategy() == null ? RandomIpAllocatorStrategy.type : IpAllocatorType.valueOf(msg.getAllocatorStrategy());
+        IpAllocatorType strategyType = getIpAllocatorType(msg);
         IpAllocatorStrategy ias = l3NwMgr.getIpAllocatorStrategy(strategyType);
         AllocateIpReply reply = new AllocateIpReply();
         UsedIpInventory ip = ias.allocateIp(msg);
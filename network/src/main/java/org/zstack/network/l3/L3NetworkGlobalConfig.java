@@ -0,0 +1,15 @@
+package org.zstack.network.l3;
+
+import org.zstack.core.config.GlobalConfig;
+import org.zstack.core.config.GlobalConfigDefinition;
+import org.zstack.core.config.GlobalConfigValidation;
+
+/**
+ */
+@GlobalConfigDefinition
+public class L3NetworkGlobalConfig {
+    public static final String CATEGORY = "l3Network";
+
+    @GlobalConfigValidation
+    public static GlobalConfig DEFAULT_IP_ALLOCATOR_STRATEGY = new GlobalConfig(CATEGORY, "ipAllocator.defaultStrategy");
+}
@@ -9,10 +9,20 @@ public interface L3NetworkManager {
     
     UsedIpInventory reserveIp(IpRangeInventory ipRange, String ip);
 
+    List<UsedIpInventory> reserveIps(IpRangeInventory ipRange, List<String> ips);
+
+    void ipReturned(UsedIpVO vo);
+
     boolean isIpRangeFull(IpRangeVO vo);
     
     List<Long> getUsedIpInRange(String ipRangeUuid);
 
+    IpRangeBitmap getIpRangeBitmap(IpRangeVO vo);
+
+    IpRangeBitmap reloadIpRangeBitmap(IpRangeVO vo);
+
+    void removeIpRangeBitmap(String ipRangeUuid);
+
 
     L3NetworkFactory getL3NetworkFactory(L3NetworkType type);
 }
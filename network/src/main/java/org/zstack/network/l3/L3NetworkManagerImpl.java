@@ -12,6 +12,8 @@ import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.DbEntityLister;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.config.GlobalConfigException;
+import org.zstack.core.config.GlobalConfigValidatorExtensionPoint;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.apimediator.ApiMessageInterceptionException;
@@ -32,6 +34,7 @@ import org.zstack.identity.QuotaUtil;
 import org.zstack.search.GetQuery;
 import org.zstack.search.SearchQuery;
 import org.zstack.tag.TagManager;
+import org.zstack.utils.ExceptionDSL;
 import org.zstack.utils.ObjectUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
@@ -41,6 +44,7 @@ import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.zstack.utils.CollectionDSL.list;
 
@@ -65,6 +69,7 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
 
     private Map<String, L3NetworkFactory> l3NetworkFactories = Collections.synchronizedMap(new HashMap<String, L3NetworkFactory>());
     private Map<String, IpAllocatorStrategy> ipAllocatorStrategies = Collections.synchronizedMap(new HashMap<String, IpAllocatorStrategy>());
+    private Map<String, IpRangeBitmap> ipRangeBitmaps = new ConcurrentHashMap<String, IpRangeBitmap>();
 
     private static final Set<Class> allowedMessageAfterSoftDeletion = new HashSet<Class>();
 
@@ -293,9 +298,22 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
     @Override
     public boolean start() {
         populateExtensions();
+        installGlobalConfigValidator();
         return true;
     }
 
+    private void installGlobalConfigValidator() {
+        L3NetworkGlobalConfig.DEFAULT_IP_ALLOCATOR_STRATEGY.installValidateExtension(new GlobalConfigValidatorExtensionPoint() {
+            @Override
+            public void validateGlobalConfig(String category, String name, String oldValue, String newValue) throws GlobalConfigException {
+                if (!ipAllocatorStrategies.containsKey(newValue)) {
+                    throw new GlobalConfigException(String.format("no ip allocator strategy[%s] found, valid strategies are %s",
+                            newValue, ipAllocatorStrategies.keySet()));
+                }
+            }
+        });
+    }
+
     private void populateExtensions() {
         for (L3NetworkFactory f : pluginRgty.getExtensionList(L3NetworkFactory.class)) {
             L3NetworkFactory old = l3NetworkFactories.get(f.getType().toString());
@@ -341,18 +359,31 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
         return factory;
     }
 
+    private UsedIpVO newUsedIp(IpRangeInventory ipRange, String ip) {
+        UsedIpVO vo = new UsedIpVO(ipRange.getUuid(), ip);
+        vo.setIpInLong(NetworkUtils.ipv4StringToLong(ip));
+        String uuid = ipRange.getUuid() + ip;
+        uuid = UUID.nameUUIDFromBytes(uuid.getBytes()).toString().replaceAll("-", "");
+        vo.setUuid(uuid);
+        vo.setL3NetworkUuid(ipRange.getL3NetworkUuid());
+        vo.setNetmask(ipRange.getNetmask());
+        vo.setGateway(ipRange.getGateway());
+        return vo;
+    }
+
+    private void markIpUsed(String ipRangeUuid, long ip) {
+        IpRangeBitmap bitmap = ipRangeBitmaps.get(ipRangeUuid);
+        if (bitmap != null) {
+            bitmap.markUsed(ip);
+        }
+    }
+
     @Override
     public UsedIpInventory reserveIp(IpRangeInventory ipRange, String ip) {
         try {
-            UsedIpVO vo = new UsedIpVO(ipRange.getUuid(), ip);
-            vo.setIpInLong(NetworkUtils.ipv4StringToLong(ip));
-            String uuid = ipRange.getUuid() + ip;
-            uuid = UUID.nameUUIDFromBytes(uuid.getBytes()).toString().replaceAll("-", "");
-            vo.setUuid(uuid);
-            vo.setL3NetworkUuid(ipRange.getL3NetworkUuid());
-            vo.setNetmask(ipRange.getNetmask());
-            vo.setGateway(ipRange.getGateway());
+            UsedIpVO vo = newUsedIp(ipRange, ip);
             vo = dbf.persistAndRefresh(vo);
+            markIpUsed(ipRange.getUuid(), vo.getIpInLong());
             return UsedIpInventory.valueOf(vo);
         } catch (JpaSystemException e) {
             if (e.getRootCause() instanceof MySQLIntegrityConstraintViolationException) {
@@ -361,6 +392,7 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
                         "The error[Duplicate entry] printed by jdbc.spi.SqlExceptionHelper is no harm, " +
                         "we will try finding another ip", ip, ipRange.getUuid()));
                 logger.trace("", e);
+                markIpUsed(ipRange.getUuid(), NetworkUtils.ipv4StringToLong(ip));
             } else {
                 throw e;
             }
@@ -369,6 +401,74 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
         return null;
     }
 
+    @Override
+    public List<UsedIpInventory> reserveIps(IpRangeInventory ipRange, List<String> ips) {
+        List<UsedIpVO> vos = new ArrayList<UsedIpVO>(ips.size());
+        for (String ip : ips) {
+            vos.add(newUsedIp(ipRange, ip));
+        }
+
+        try {
+            dbf.persistCollection(vos);
+            List<String> uuids = new ArrayList<String>(vos.size());
+            for (UsedIpVO vo : vos) {
+                markIpUsed(ipRange.getUuid(), vo.getIpInLong());
+                uuids.add(vo.getUuid());
+            }
+            return UsedIpInventory.valueOf(dbf.listByPrimaryKeys(uuids, UsedIpVO.class));
+        } catch (RuntimeException e) {
+            if (!ExceptionDSL.isCausedBy(e, MySQLIntegrityConstraintViolationException.class)) {
+                throw e;
+            }
+
+            logger.debug(String.format("some of %s ips in ip range[uuid:%s] have been allocated, reserve them one by one",
+                    ips.size(), ipRange.getUuid()));
+        }
+
+        List<UsedIpInventory> ret = new ArrayList<UsedIpInventory>(ips.size());
+        for (String ip : ips) {
+            UsedIpInventory inv = reserveIp(ipRange, ip);
+            if (inv != null) {
+                ret.add(inv);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void ipReturned(UsedIpVO vo) {
+        IpRangeBitmap bitmap = ipRangeBitmaps.get(vo.getIpRangeUuid());
+        if (bitmap != null) {
+            bitmap.markFree(vo.getIpInLong());
+        }
+    }
+
+    @Override
+    public IpRangeBitmap getIpRangeBitmap(IpRangeVO vo) {
+        IpRangeBitmap bitmap = ipRangeBitmaps.get(vo.getUuid());
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        bitmap = new IpRangeBitmap(NetworkUtils.ipv4StringToLong(vo.getStartIp()), NetworkUtils.ipv4StringToLong(vo.getEndIp()),
+                getUsedIpInRange(vo.getUuid()));
+        IpRangeBitmap old = ipRangeBitmaps.putIfAbsent(vo.getUuid(), bitmap);
+        return old == null ? bitmap : old;
+    }
+
+    @Override
+    public IpRangeBitmap reloadIpRangeBitmap(IpRangeVO vo) {
+        IpRangeBitmap bitmap = new IpRangeBitmap(NetworkUtils.ipv4StringToLong(vo.getStartIp()), NetworkUtils.ipv4StringToLong(vo.getEndIp()),
+                getUsedIpInRange(vo.getUuid()));
+        ipRangeBitmaps.put(vo.getUuid(), bitmap);
+        return bitmap;
+    }
+
+    @Override
+    public void removeIpRangeBitmap(String ipRangeUuid) {
+        ipRangeBitmaps.remove(ipRangeUuid);
+    }
+
     @Override
     public boolean isIpRangeFull(IpRangeVO vo) {
         int total = NetworkUtils.getTotalIpInRange(vo.getStartIp(), vo.getEndIp());
@@ -0,0 +1,202 @@
+package org.zstack.storage.ceph;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.componentloader.PluginRegistry;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.LockModeType;
+import javax.persistence.TypedQuery;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the capacity ceph agents report with their responses in memory.
+ *
+ * A report equal to what is in database is dropped without touching database. Changed reports
+ * are coalesced per fsid, only the latest one is written to CephCapacityVO by a periodic task,
+ * all fsids of a round in one transaction, and CephCapacityUpdateExtensionPoint is only called
+ * for fsids whose capacity really changed.
+ *
+ * Only physical capacity flows through here, allocations still update PrimaryStorageCapacityVO
+ * under row lock when they commit.
+ */
+public class CephCapacityLedger implements Component {
+    private static final CLogger logger = Utils.getLogger(CephCapacityLedger.class);
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private PluginRegistry pluginRgty;
+    @Autowired
+    private ThreadFacade thdf;
+
+    private static class Capacity {
+        final long total;
+        final long avail;
+
+        Capacity(long total, long avail) {
+            this.total = total;
+            this.avail = avail;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Capacity)) {
+                return false;
+            }
+
+            Capacity c = (Capacity) o;
+            return total == c.total && avail == c.avail;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(total, avail);
+        }
+    }
+
+    // capacity known to be in database
+    private final Map<String, Capacity> recorded = new ConcurrentHashMap<>();
+    // capacity reported but not yet written
+    private final Map<String, Capacity> pending = new ConcurrentHashMap<>();
+    private Future<Void> flushTask;
+
+    public void report(String fsid, long total, long avail) {
+        Capacity c = new Capacity(total, avail);
+        if (c.equals(recorded.get(fsid))) {
+            pending.remove(fsid);
+        } else {
+            pending.put(fsid, c);
+        }
+    }
+
+    /**
+     * tells the ledger the capacity has been written to database by others
+     */
+    public void recorded(String fsid, long total, long avail) {
+        recorded.put(fsid, new Capacity(total, avail));
+        pending.remove(fsid);
+    }
+
+    @Transactional
+    private Map<String, Capacity> write(Map<String, Capacity> batch, Set<String> missing) {
+        String sql = "select c from CephCapacityVO c where c.fsid in (:fsids)";
+        TypedQuery<CephCapacityVO> q = dbf.getEntityManager().createQuery(sql, CephCapacityVO.class);
+        q.setParameter("fsids", batch.keySet());
+        q.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+
+        Map<String, Capacity> changed = new HashMap<>();
+        missing.addAll(batch.keySet());
+        for (CephCapacityVO vo : q.getResultList()) {
+            missing.remove(vo.getFsid());
+            Capacity c = batch.get(vo.getFsid());
+            if (vo.getTotalCapacity() != c.total || vo.getAvailableCapacity() != c.avail) {
+                vo.setTotalCapacity(c.total);
+                vo.setAvailableCapacity(c.avail);
+                dbf.getEntityManager().merge(vo);
+                changed.put(vo.getFsid(), c);
+            }
+        }
+
+        return changed;
+    }
+
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Map<String, Capacity> batch = new HashMap<>();
+        for (String fsid : new ArrayList<>(pending.keySet())) {
+            Capacity c = pending.remove(fsid);
+            if (c != null) {
+                batch.put(fsid, c);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        Map<String, Capacity> changed;
+        Set<String> missing = new HashSet<>();
+        try {
+            changed = write(batch, missing);
+        } catch (Throwable t) {
+            logger.warn(String.format("failed to write capacity of ceph clusters%s, retry in next round", batch.keySet()), t);
+            for (Map.Entry<String, Capacity> e : batch.entrySet()) {
+                pending.putIfAbsent(e.getKey(), e.getValue());
+            }
+            return;
+        }
+
+        for (Map.Entry<String, Capacity> e : batch.entrySet()) {
+            if (missing.contains(e.getKey())) {
+                // rare, the cluster reports before it's initialized. Let the updater create the record
+                new CephCapacityUpdater().update(e.getKey(), e.getValue().total, e.getValue().avail, true);
+            } else {
+                recorded.put(e.getKey(), e.getValue());
+            }
+        }
+
+        for (Map.Entry<String, Capacity> e : changed.entrySet()) {
+            for (CephCapacityUpdateExtensionPoint ext : pluginRgty.getExtensionList(CephCapacityUpdateExtensionPoint.class)) {
+                try {
+                    ext.update(e.getKey(), e.getValue().total, e.getValue().avail);
+                } catch (Throwable t) {
+                    logger.warn(String.format("unhandled exception when calling %s with capacity of the ceph cluster[fsid:%s]",
+                            ext.getClass(), e.getKey()), t);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean start() {
+        flushTask = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return CephGlobalProperty.CAPACITY_FLUSH_INTERVAL;
+            }
+
+            @Override
+            public String getName() {
+                return "ceph-capacity-ledger";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    logger.warn("unhandled exception when flushing ceph capacity", t);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (flushTask != null) {
+            flushTask.cancel(true);
+        }
+
+        flush();
+        return true;
+    }
+}
@@ -19,13 +19,24 @@ public class CephCapacityUpdater {
     private DatabaseFacade dbf;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private CephCapacityLedger ledger;
 
+    /**
+     * for capacity piggybacked on agent responses, it's written by CephCapacityLedger in batch
+     * and dropped if nothing changed
+     */
     public void update(String fsid, long total, long avail) {
-        update(fsid, total, avail, true);
+        ledger.report(fsid, total, avail);
     }
 
-    @Transactional
     public void update(String fsid, long total, long avail, boolean updatedAnyway) {
+        doUpdate(fsid, total, avail, updatedAnyway);
+        ledger.recorded(fsid, total, avail);
+    }
+
+    @Transactional
+    private void doUpdate(String fsid, long total, long avail, boolean updatedAnyway) {
         CephCapacityVO vo = dbf.getEntityManager().find(CephCapacityVO.class, fsid, LockModeType.PESSIMISTIC_WRITE);
         boolean updated = false;
 
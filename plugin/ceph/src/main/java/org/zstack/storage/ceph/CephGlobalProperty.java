@@ -24,4 +24,6 @@ public class CephGlobalProperty {
     public static String PRIMARY_STORAGE_PLAYBOOK_NAME;
     @GlobalProperty(name="Ceph.primaryStorage.ansibleModulePath", defaultValue = "ansible/cephp")
     public static String PRIMARY_STORAGE_MODULE_PATH;
+    @GlobalProperty(name="Ceph.capacityLedger.flushInterval", defaultValue = "3")
+    public static long CAPACITY_FLUSH_INTERVAL;
 }
@@ -10,6 +10,7 @@ import org.zstack.header.volume.APICreateVolumeSnapshotMsg;
 import org.zstack.network.securitygroup.SecurityGroupRuleTO;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -243,6 +244,15 @@ public class KVMAgentCommands {
         private String qemuImgVersion;
         private String libvirtVersion;
         private String hvmCpuFlag;
+        private boolean ipsetSupported;
+
+        public boolean isIpsetSupported() {
+            return ipsetSupported;
+        }
+
+        public void setIpsetSupported(boolean ipsetSupported) {
+            this.ipsetSupported = ipsetSupported;
+        }
 
         public String getHvmCpuFlag() {
             return hvmCpuFlag;
@@ -1081,10 +1091,62 @@ public class KVMAgentCommands {
 
 
     public static class VmSyncCmd extends AgentCommand {
+        // the generation of vm states the management node has got, null asks for a full sync
+        private Long lastGeneration;
+        private boolean fullSync;
+
+        public Long getLastGeneration() {
+            return lastGeneration;
+        }
+
+        public void setLastGeneration(Long lastGeneration) {
+            this.lastGeneration = lastGeneration;
+        }
+
+        public boolean isFullSync() {
+            return fullSync;
+        }
+
+        public void setFullSync(boolean fullSync) {
+            this.fullSync = fullSync;
+        }
     }
 
+    /**
+     * when full is false, states only contains vms whose states changed between sinceGeneration
+     * and generation, a vm gone from the host is reported as Shutdown.
+     *
+     * an agent not knowing generations leaves generation null and always reports all vms
+     */
     public static class VmSyncResponse extends AgentResponse {
         private HashMap<String, String> states;
+        private Long generation;
+        private Long sinceGeneration;
+        private boolean full;
+
+        public Long getGeneration() {
+            return generation;
+        }
+
+        public void setGeneration(Long generation) {
+            this.generation = generation;
+        }
+
+        public Long getSinceGeneration() {
+            return sinceGeneration;
+        }
+
+        public void setSinceGeneration(Long sinceGeneration) {
+            this.sinceGeneration = sinceGeneration;
+        }
+
+        public boolean isFull() {
+            return full;
+        }
+
+        public void setFull(boolean full) {
+            this.full = full;
+        }
 
         public HashMap<String, String> getStates() {
             return states;
@@ -1095,8 +1157,21 @@ public class KVMAgentCommands {
         }
     }
 
+    /**
+     * carries every ip set referred by the rules, the agent drops the sets it holds that are not among them
+     */
     public static class RefreshAllRulesOnHostCmd extends AgentCommand {
         private List<SecurityGroupRuleTO> ruleTOs;
+        // set name -> member ip ranges, referred by RuleTO.allowedInternalIpSet
+        private Map<String, Collection<String>> ipSets;
+
+        public Map<String, Collection<String>> getIpSets() {
+            return ipSets;
+        }
+
+        public void setIpSets(Map<String, Collection<String>> ipSets) {
+            this.ipSets = ipSets;
+        }
 
         public List<SecurityGroupRuleTO> getRuleTOs() {
             return ruleTOs;
@@ -1108,6 +1183,16 @@ public class KVMAgentCommands {
     }
 
     public static class RefreshAllRulesOnHostResponse extends AgentResponse {
+        // set name -> digest of the members the agent holds, see ApplySecurityGroupRuleCmd
+        private Map<String, String> ipSetDigests;
+
+        public Map<String, String> getIpSetDigests() {
+            return ipSetDigests;
+        }
+
+        public void setIpSetDigests(Map<String, String> ipSetDigests) {
+            this.ipSetDigests = ipSetDigests;
+        }
     }
 
     public static class CleanupUnusedRulesOnHostCmd extends AgentCommand {
@@ -1117,8 +1202,37 @@ public class KVMAgentCommands {
     }
 
 
+    /**
+     * ip sets are named by the security group and l3 network of their members, so a membership change sends
+     * the new members under the name the rules already refer to and the agent replaces the members in place.
+     *
+     * a set the agent reported holding with the same members is not sent again, ipSetDigests carries its
+     * digest instead: the md5 hex of the member ranges sorted and joined by ','. If the agent doesn't hold
+     * such a set with that digest, e.g. it restarted or another management node changed the set, it applies
+     * nothing and replies the set in staleIpSets, the command is then sent again with the set.
+     */
     public static class ApplySecurityGroupRuleCmd extends AgentCommand {
         private List<SecurityGroupRuleTO> ruleTOs;
+        // set name -> member ip ranges, referred by RuleTO.allowedInternalIpSet
+        private Map<String, Collection<String>> ipSets;
+        // set name -> digest of the members, for sets referred by RuleTO.allowedInternalIpSet but not in ipSets
+        private Map<String, String> ipSetDigests;
+
+        public Map<String, String> getIpSetDigests() {
+            return ipSetDigests;
+        }
+
+        public void setIpSetDigests(Map<String, String> ipSetDigests) {
+            this.ipSetDigests = ipSetDigests;
+        }
+
+        public Map<String, Collection<String>> getIpSets() {
+            return ipSets;
+        }
+
+        public void setIpSets(Map<String, Collection<String>> ipSets) {
+            this.ipSets = ipSets;
+        }
 
         public List<SecurityGroupRuleTO> getRuleTOs() {
             return ruleTOs;
@@ -1130,6 +1244,26 @@ public class KVMAgentCommands {
     }
 
     public static class ApplySecurityGroupRuleResponse extends AgentResponse {
+        // set name -> digest of the members the agent holds, for the sets of the command
+        private Map<String, String> ipSetDigests;
+        // sets in ApplySecurityGroupRuleCmd.ipSetDigests the agent doesn't hold with that digest
+        private List<String> staleIpSets;
+
+        public Map<String, String> getIpSetDigests() {
+            return ipSetDigests;
+        }
+
+        public void setIpSetDigests(Map<String, String> ipSetDigests) {
+            this.ipSetDigests = ipSetDigests;
+        }
+
+        public List<String> getStaleIpSets() {
+            return staleIpSets;
+        }
+
+        public void setStaleIpSets(List<String> staleIpSets) {
+            this.staleIpSets = staleIpSets;
+        }
     }
 
     public static class MigrateVmCmd extends AgentCommand {
@@ -2449,6 +2449,7 @@ public class KVMHost extends HostBase implements Host {
                                     sshShell.setUsername(getSelf().getUsername());
                                     sshShell.setPassword(getSelf().getPassword());
                                     sshShell.setPort(getSelf().getPort());
+                                    sshShell.setPooled(true);
                                     SshResult ret = sshShell.runScriptWithToken("scripts/check-public-dns-name.sh",
                                             map(e("dnsCheckList", checkList)));
 
@@ -2481,6 +2482,7 @@ public class KVMHost extends HostBase implements Host {
                             sshShell.setUsername(getSelf().getUsername());
                             sshShell.setPassword(getSelf().getPassword());
                             sshShell.setPort(getSelf().getPort());
+                            sshShell.setPooled(true);
                             ShellUtils.run(String.format("arp -d %s || true", getSelf().getManagementIp()));
                             SshResult ret = sshShell.runCommand(String.format("curl --connect-timeout 10 %s", restf.getCallbackUrl()));
 
@@ -2661,6 +2663,14 @@ public class KVMHost extends HostBase implements Host {
                                         creator.create();
                                     }
 
+                                    if (ret.isIpsetSupported()) {
+                                        creator = KVMSystemTags.IPSET.newSystemTagCreator(self.getUuid());
+                                        creator.recreate = true;
+                                        creator.create();
+                                    } else {
+                                        KVMSystemTags.IPSET.delete(self.getUuid());
+                                    }
+
                                     trigger.next();
                                 }
 
@@ -1,5 +1,7 @@
 package org.zstack.kvm;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
@@ -20,7 +22,8 @@ import org.zstack.network.securitygroup.*;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend, KVMHostConnectExtensionPoint {
     private static CLogger logger = Utils.getLogger(KVMSecurityGroupBackend.class);
@@ -36,9 +39,97 @@ public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend,
     @Autowired
     private ApiTimeoutManager timeoutMgr;
 
-    private void incrementallyApplyRules(final HostRuleTO hto, final Completion complete) {
+    // host uuid -> ip set name -> digest of the members the agent of the host reported holding
+    private final Map<String, Map<String, String>> hostIpSetDigests = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /**
+     * ip set names are up to 31 characters, the uuid prefixes keep the set of a security group on an l3 network
+     * under the same name whatever its members are
+     */
+    public static String makeIpSetName(String securityGroupUuid, String l3NetworkUuid) {
+        return String.format("zs-%s-%s", securityGroupUuid.substring(0, 12), l3NetworkUuid.substring(0, 12));
+    }
+
+    /**
+     * see ApplySecurityGroupRuleCmd
+     */
+    public static String makeIpSetDigest(Collection<String> members) {
+        List<String> lst = new ArrayList<String>(members);
+        Collections.sort(lst);
+        return DigestUtils.md5Hex(StringUtils.join(lst, ","));
+    }
+
+    /**
+     * the member ranges of a security group are carried by every rule of every member nic. For hosts whose agent
+     * supports ipset, the ranges are sent as a named set and the rules refer to the set by name, so the payload
+     * grows with members plus rules instead of members times rules.
+     */
+    private List<SecurityGroupRuleTO> encodeIpSets(List<SecurityGroupRuleTO> rules, Map<String, Collection<String>> ipSets) {
+        // rules compiled for the same security group and l3 network are shared by its member nics, encode each once
+        Map<RuleTO, RuleTO> encoded = new IdentityHashMap<RuleTO, RuleTO>();
+        List<SecurityGroupRuleTO> ret = new ArrayList<SecurityGroupRuleTO>(rules.size());
+        for (SecurityGroupRuleTO sto : rules) {
+            List<RuleTO> rtos = new ArrayList<RuleTO>(sto.getRules().size());
+            for (RuleTO rto : sto.getRules()) {
+                if (rto.getAllowedInternalIpRange() == null || rto.getAllowedInternalIpRange().isEmpty()) {
+                    rtos.add(rto);
+                    continue;
+                }
+
+                RuleTO nrto = encoded.get(rto);
+                if (nrto == null) {
+                    String setName = makeIpSetName(rto.getSecurityGroupUuid(), rto.getL3NetworkUuid());
+                    ipSets.put(setName, rto.getAllowedInternalIpRange());
+
+                    nrto = new RuleTO(rto);
+                    nrto.setAllowedInternalIpRange(null);
+                    nrto.setAllowedInternalIpSet(setName);
+                    encoded.put(rto, nrto);
+                }
+                rtos.add(nrto);
+            }
+
+            SecurityGroupRuleTO nsto = new SecurityGroupRuleTO(sto);
+            nsto.setRules(rtos);
+            ret.add(nsto);
+        }
+
+        return ret;
+    }
+
+    private void rememberIpSets(String hostUuid, Map<String, String> digests) {
+        if (digests == null) {
+            return;
+        }
+
+        Map<String, String> held = hostIpSetDigests.get(hostUuid);
+        if (held == null) {
+            hostIpSetDigests.putIfAbsent(hostUuid, new ConcurrentHashMap<String, String>());
+            held = hostIpSetDigests.get(hostUuid);
+        }
+        held.putAll(digests);
+    }
+
+    private void incrementallyApplyRules(final HostRuleTO hto, final boolean sendAllIpSets, final Completion complete) {
         ApplySecurityGroupRuleCmd cmd = new ApplySecurityGroupRuleCmd();
-        cmd.setRuleTOs(hto.getRules());
+        if (KVMSystemTags.IPSET.hasTag(hto.getHostUuid())) {
+            Map<String, Collection<String>> ipSets = new HashMap<String, Collection<String>>();
+            cmd.setRuleTOs(encodeIpSets(hto.getRules(), ipSets));
+            cmd.setIpSets(new HashMap<String, Collection<String>>());
+            cmd.setIpSetDigests(new HashMap<String, String>());
+            // sets the agent holds with the same members are referred by their digests only
+            Map<String, String> held = sendAllIpSets ? null : hostIpSetDigests.get(hto.getHostUuid());
+            for (Map.Entry<String, Collection<String>> e : ipSets.entrySet()) {
+                String digest = makeIpSetDigest(e.getValue());
+                if (held != null && digest.equals(held.get(e.getKey()))) {
+                    cmd.getIpSetDigests().put(e.getKey(), digest);
+                } else {
+                    cmd.getIpSets().put(e.getKey(), e.getValue());
+                }
+            }
+        } else {
+            cmd.setRuleTOs(hto.getRules());
+        }
 
         KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
         msg.setHostUuid(hto.getHostUuid());
@@ -56,6 +147,13 @@ public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend,
 
                 KVMHostAsyncHttpCallReply hreply = reply.castReply();
                 ApplySecurityGroupRuleResponse rsp = hreply.toResponse(ApplySecurityGroupRuleResponse.class);
+                if (!rsp.isSuccess() && !sendAllIpSets && rsp.getStaleIpSets() != null && !rsp.getStaleIpSets().isEmpty()) {
+                    logger.debug(String.format("kvm host[uuid:%s] doesn't hold ip sets%s as expected, send them again",
+                            hto.getHostUuid(), rsp.getStaleIpSets()));
+                    incrementallyApplyRules(hto, true, complete);
+                    return;
+                }
+
                 if (!rsp.isSuccess()) {
                     String err = String.format("failed to apply rules of security group rules to kvm host[uuid:%s], because %s", hto.getHostUuid(), rsp.getError());
                     logger.warn(err);
@@ -63,6 +161,7 @@ public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend,
                     return;
                 }
 
+                rememberIpSets(hto.getHostUuid(), rsp.getIpSetDigests());
                 String info = String.format("successfully applied rules of security group rules to kvm host[uuid:%s]", hto.getHostUuid());
                 logger.debug(info);
                 complete.success();
@@ -72,7 +171,15 @@ public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend,
     
     private void reApplyAllRulesOnHost(final HostRuleTO hto, final Completion complete) {
         RefreshAllRulesOnHostCmd cmd = new RefreshAllRulesOnHostCmd();
-        cmd.setRuleTOs(hto.getRules());
+        if (KVMSystemTags.IPSET.hasTag(hto.getHostUuid())) {
+            cmd.setIpSets(new HashMap<String, Collection<String>>());
+            cmd.setRuleTOs(encodeIpSets(hto.getRules(), cmd.getIpSets()));
+        } else {
+            cmd.setRuleTOs(hto.getRules());
+        }
+
+        // the agent may have lost its sets, e.g. it's restarted; they are all sent again
+        hostIpSetDigests.remove(hto.getHostUuid());
 
         KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
         msg.setHostUuid(hto.getHostUuid());
@@ -98,6 +205,7 @@ public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend,
                     return;
                 }
 
+                rememberIpSets(hto.getHostUuid(), rsp.getIpSetDigests());
                 String info = String.format("successfully applied rules of security group rules to kvm host[uuid:%s]", hto.getHostUuid());
                 logger.debug(info);
                 complete.success();
@@ -108,7 +216,7 @@ public class KVMSecurityGroupBackend implements SecurityGroupHypervisorBackend,
     @Override
     public void applyRules(final HostRuleTO hto, final Completion complete) {
         if (!hto.isRefreshHost()) {
-            incrementallyApplyRules(hto, complete);
+            incrementallyApplyRules(hto, false, complete);
         } else {
             reApplyAllRulesOnHost(hto, complete);
         }
@@ -22,6 +22,8 @@ public class KVMSystemTags {
 
     public static SystemTag VIRTIO_SCSI = new SystemTag("capability:virtio-scsi", HostVO.class);
 
+    public static SystemTag IPSET = new SystemTag("capability:ipset", HostVO.class);
+
     public static final String L2_BRIDGE_NAME_TOKEN = "name";
     public static PatternedSystemTag L2_BRIDGE_NAME = new PatternedSystemTag(String.format("kvm::bridge::{%s}", L2_BRIDGE_NAME_TOKEN), L2NetworkVO.class);
 
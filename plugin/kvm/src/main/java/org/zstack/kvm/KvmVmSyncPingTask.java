@@ -36,6 +36,7 @@ import org.zstack.utils.logging.CLogger;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailureExtensionPoint, KVMHostConnectExtensionPoint,
         HostConnectionReestablishExtensionPoint, HostAfterConnectedExtensionPoint, Component {
@@ -54,9 +55,37 @@ public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailure
     @Autowired
     private ApiTimeoutManager timeoutMgr;
 
+    // the generation of vm states acknowledged per host, a host not here gets a full sync
+    private final Map<String, Long> ackedGenerations = new ConcurrentHashMap<String, Long>();
+
+    private Map<String, VmInstanceState> toVmInstanceStates(Map<String, String> kvmStates, boolean full) {
+        Map<String, VmInstanceState> states = new HashMap<String, VmInstanceState>(kvmStates.size());
+        for (Map.Entry<String, String> e : kvmStates.entrySet()) {
+            VmInstanceState state = KvmVmState.valueOf(e.getValue()).toVmInstanceState();
+            if (full && (state == VmInstanceState.Running || state == VmInstanceState.Paused || state == VmInstanceState.Unknown)) {
+                states.put(e.getKey(), state);
+            } else if (!full && state != VmInstanceState.Unknown) {
+                // a vm gone from the host is reported as Shutdown
+                states.put(e.getKey(), state);
+            }
+        }
+        return states;
+    }
+
     private void syncVm(final HostInventory host, final Completion completion) {
+        syncVm(host, true, completion);
+    }
+
+    private void syncVm(final HostInventory host, final boolean fullSync, final Completion completion) {
+        if (fullSync) {
+            ackedGenerations.remove(host.getUuid());
+        }
+        final Long lastGeneration = ackedGenerations.get(host.getUuid());
+
         KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
         VmSyncCmd cmd = new VmSyncCmd();
+        cmd.setLastGeneration(lastGeneration);
+        cmd.setFullSync(lastGeneration == null);
         msg.setCommand(cmd);
         msg.setCommandTimeout(timeoutMgr.getTimeout(cmd.getClass(), "5m"));
         msg.setNoStatusCheck(true);
@@ -73,26 +102,51 @@ public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailure
 
                 KVMHostAsyncHttpCallReply r = reply.castReply();
                 VmSyncResponse ret = r.toResponse(VmSyncResponse.class);
-                if (ret.isSuccess()) {
-                    Map<String, VmInstanceState> states = new HashMap<String, VmInstanceState>(ret.getStates().size());
-                    for (Map.Entry<String, String> e : ret.getStates().entrySet()) {
-                        VmInstanceState state = KvmVmState.valueOf(e.getValue()).toVmInstanceState();
-                        if (state == VmInstanceState.Running || state == VmInstanceState.Paused || state == VmInstanceState.Unknown) {
-                            states.put(e.getKey(), state);
-                        }
-                    }
-
-                    reportVmState(host.getUuid(), states);
-                    completion.success();
-                } else {
+                if (!ret.isSuccess()) {
                     ErrorCode errorCode = errf.stringToOperationError(String.format("unable to do vm sync on host[uuid:%s, ip:%s] because %s", host.getUuid(), host.getManagementIp(), ret.getError()));
                     logger.warn(errorCode.toString());
                     completion.fail(errorCode);
+                    return;
+                }
+
+                if (ret.getGeneration() == null) {
+                    // the agent doesn't support generations, it always reports all vms
+                    reportVmState(host.getUuid(), toVmInstanceStates(ret.getStates(), true));
+                    completion.success();
+                    return;
+                }
+
+                if (ret.isFull() || lastGeneration == null) {
+                    reportVmState(host.getUuid(), toVmInstanceStates(ret.getStates(), true));
+                    ackedGenerations.put(host.getUuid(), ret.getGeneration());
+                    completion.success();
+                    return;
+                }
+
+                if (!lastGeneration.equals(ret.getSinceGeneration()) || ret.getGeneration() < lastGeneration) {
+                    // changes between the acknowledged generation and the one the agent counts from are lost
+                    logger.debug(String.format("gap of vm state generations detected on the host[uuid:%s], acknowledged %s, the agent" +
+                            " reports changes from %s to %s; do a full sync", host.getUuid(), lastGeneration, ret.getSinceGeneration(), ret.getGeneration()));
+                    syncVm(host, true, completion);
+                    return;
+                }
+
+                Map<String, VmInstanceState> changes = toVmInstanceStates(ret.getStates(), false);
+                if (!changes.isEmpty()) {
+                    reportVmStateChanges(host.getUuid(), changes);
                 }
+                ackedGenerations.put(host.getUuid(), ret.getGeneration());
+                completion.success();
             }
         });
     }
 
+    @Override
+    protected void fullSyncRequired(String hostUuid) {
+        super.fullSyncRequired(hostUuid);
+        ackedGenerations.remove(hostUuid);
+    }
+
     @Override
     public void connectionReestablished(HostInventory inv) throws HostException {
         syncVm(inv, new NopeCompletion());
@@ -105,6 +159,8 @@ public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailure
 
     @Override
     public boolean start() {
+        trackVmStateChanges();
+
         restf.registerSyncHttpCallHandler(KVMConstant.KVM_REPORT_VM_STATE, ReportVmStateCmd.class, new SyncHttpCallHandler<ReportVmStateCmd>() {
             private void reportState(final ReportVmStateCmd cmd) {
                 thdf.chainSubmit(new ChainTask() {
@@ -233,7 +289,7 @@ public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailure
             return;
         }
 
-        syncVm(host, new Completion(completion) {
+        syncVm(host, false, new Completion(completion) {
             @Override
             public void success() {
                 completion.done();
@@ -1200,10 +1200,10 @@ public class LocalStorageBase extends PrimaryStorageBase {
 
     @Transactional
     protected void reserveCapacityOnHost(String hostUuid, long size) {
-        String sql = "select ref from LocalStorageHostRefVO ref where ref.hostUuid = :huuid";
+        String sql = "select ref from LocalStorageHostRefVO ref where ref.hostUuid = :huuid and ref.primaryStorageUuid = :psUuid";
         TypedQuery<LocalStorageHostRefVO> q = dbf.getEntityManager().createQuery(sql, LocalStorageHostRefVO.class);
         q.setParameter("huuid", hostUuid);
-        q.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        q.setParameter("psUuid", self.getUuid());
         List<LocalStorageHostRefVO> refs = q.getResultList();
 
         if (refs.isEmpty()) {
@@ -1231,17 +1231,24 @@ public class LocalStorageBase extends PrimaryStorageBase {
             ext.beforeReserveLocalStorageCapacityOnHost(s);
         }
 
-        long avail = ref.getAvailableCapacity() - s.getSize();
-        if (avail < 0) {
+        // compare-and-set, the row is not locked while the extensions run but
+        // the capacity can never go below zero
+        sql = "update LocalStorageHostRefVO ref" +
+                " set ref.availableCapacity = ref.availableCapacity - :size" +
+                " where ref.hostUuid = :huuid" +
+                " and ref.primaryStorageUuid = :psUuid" +
+                " and ref.availableCapacity >= :size";
+        Query uq = dbf.getEntityManager().createQuery(sql);
+        uq.setParameter("size", s.getSize());
+        uq.setParameter("huuid", hostUuid);
+        uq.setParameter("psUuid", self.getUuid());
+        if (uq.executeUpdate() == 0) {
             throw new OperationFailureException(errf.stringToOperationError(
                     String.format("host[uuid: %s] of local primary storage[uuid: %s] doesn't have enough capacity" +
                                     "[current: %s bytes, needed: %s]",
                             hostUuid, self.getUuid(), ref.getAvailableCapacity(), size)
             ));
         }
-
-        ref.setAvailableCapacity(avail);
-        dbf.getEntityManager().merge(ref);
     }
 
     @Transactional
@@ -60,48 +60,55 @@ public class LocalStorageCapacityRecalculator {
             hostCap.put(hostUuid, ratioMgr.calculateByRatio(psUuid, cap));
         }
 
-        for (String huuid : huuids) {
-            // note: templates in image cache are physical size
-            // do not calculate over provisioning for them
-            sql = "select sum(i.size)" +
-                    " from ImageCacheVO i" +
-                    " where i.installUrl like :mark" +
-                    " and i.primaryStorageUuid = :psUuid" +
-                    " group by i.primaryStorageUuid";
-            TypedQuery<Long> iq = dbf.getEntityManager().createQuery(sql, Long.class);
-            iq.setParameter("psUuid", psUuid);
-            iq.setParameter("mark", String.format("%%hostUuid://%s%%", huuid));
-            List<Long> is = iq.getResultList();
-            if (!is.isEmpty()) {
-                Long isize = is.get(0);
-                Long ncap = hostCap.get(huuid);
-                ncap = ncap == null ? isize : ncap + isize;
-                hostCap.put(huuid, ncap);
-            } else {
-                // if the host has no volume and image cache
-                // set its used capacity to zero
-                Long ncap = hostCap.get(huuid);
-                ncap = ncap == null ? 0 : ncap;
-                hostCap.put(huuid, ncap);
+        // note: templates in image cache are physical size
+        // do not calculate over provisioning for them.
+        // caches of all hosts are fetched at once and told apart by their install urls
+        // instead of querying them host by host
+        sql = "select i.installUrl, i.size" +
+                " from ImageCacheVO i" +
+                " where i.installUrl like :mark" +
+                " and i.primaryStorageUuid = :psUuid";
+        TypedQuery<Tuple> iq = dbf.getEntityManager().createQuery(sql, Tuple.class);
+        iq.setParameter("psUuid", psUuid);
+        iq.setParameter("mark", "%hostUuid://%");
+        Map<String, Long> cacheSize = new HashMap<>();
+        for (Tuple t : iq.getResultList()) {
+            String url = t.get(0, String.class);
+            String hostUuid = url.substring(url.indexOf("hostUuid://") + "hostUuid://".length());
+            if (hostUuid.contains(";")) {
+                hostUuid = hostUuid.substring(0, hostUuid.indexOf(";"));
             }
+            Long size = cacheSize.get(hostUuid);
+            cacheSize.put(hostUuid, size == null ? t.get(1, Long.class) : size + t.get(1, Long.class));
         }
 
-        for (Map.Entry<String, Long> e : hostCap.entrySet()) {
-            String hostUuid = e.getKey();
-            long used = e.getValue();
+        for (String huuid : huuids) {
+            // if the host has no volume and image cache
+            // set its used capacity to zero
+            Long ncap = hostCap.get(huuid);
+            Long isize = cacheSize.get(huuid);
+            ncap = ncap == null ? 0 : ncap;
+            hostCap.put(huuid, isize == null ? ncap : ncap + isize);
+        }
 
-            String sqlLocalStorageHostRefVO = "select ref" +
-                    " from LocalStorageHostRefVO ref" +
-                    " where hostUuid = :hostUuid" +
-                    " and primaryStorageUuid = :primaryStorageUuid";
-            TypedQuery<LocalStorageHostRefVO> query = dbf.getEntityManager().
-                    createQuery(sqlLocalStorageHostRefVO, LocalStorageHostRefVO.class);
-            query.setParameter("hostUuid", hostUuid);
-            query.setParameter("primaryStorageUuid", psUuid);
-            LocalStorageHostRefVO ref = query.setLockMode(LockModeType.PESSIMISTIC_WRITE).getSingleResult();
+        sql = "select ref" +
+                " from LocalStorageHostRefVO ref" +
+                " where ref.hostUuid in (:huuids)" +
+                " and ref.primaryStorageUuid = :primaryStorageUuid";
+        TypedQuery<LocalStorageHostRefVO> query = dbf.getEntityManager().createQuery(sql, LocalStorageHostRefVO.class);
+        query.setParameter("huuids", huuids);
+        query.setParameter("primaryStorageUuid", psUuid);
+        query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        for (LocalStorageHostRefVO ref : query.getResultList()) {
+            String hostUuid = ref.getHostUuid();
+            long used = hostCap.get(hostUuid);
 
             long old = ref.getAvailableCapacity();
             long avail = ref.getTotalCapacity() - used - ref.getSystemUsedCapacity();
+            if (old == avail) {
+                continue;
+            }
+
             ref.setAvailableCapacity(avail);
             dbf.getEntityManager().merge(ref);
             logger.debug(String.format("re-calculated available capacity[before:%s, now: %s] of host[uuid:%s]" +
@@ -157,6 +164,14 @@ public class LocalStorageCapacityRecalculator {
         pupdater.run(new PrimaryStorageCapacityUpdaterRunnable() {
             @Override
             public PrimaryStorageCapacityVO call(PrimaryStorageCapacityVO cap) {
+                if (cap.getTotalCapacity() == totalCapacity
+                        && cap.getAvailableCapacity() == availableCapacity
+                        && cap.getTotalPhysicalCapacity() == totalPhysicalCapacity
+                        && cap.getAvailablePhysicalCapacity() == availablePhysicalCapacity) {
+                    // nothing changed, don't write
+                    return null;
+                }
+
                 cap.setTotalCapacity(totalCapacity);
                 cap.setAvailableCapacity(availableCapacity);
                 cap.setTotalPhysicalCapacity(totalPhysicalCapacity);
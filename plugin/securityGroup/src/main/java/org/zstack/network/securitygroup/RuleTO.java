@@ -8,7 +8,27 @@ public class RuleTO {
     private int startPort;
     private int endPort;
     private Collection<String> allowedInternalIpRange;
+    // name of the ip set holding allowedInternalIpRange when the hypervisor sends member ranges as sets
+    private String allowedInternalIpSet;
     private String allowedCidr;
+    // the security group and l3 network whose member nics allowedInternalIpRange holds
+    private String securityGroupUuid;
+    private String l3NetworkUuid;
+
+    public RuleTO() {
+    }
+
+    public RuleTO(RuleTO other) {
+        this.protocol = other.protocol;
+        this.type = other.type;
+        this.startPort = other.startPort;
+        this.endPort = other.endPort;
+        this.allowedInternalIpRange = other.allowedInternalIpRange;
+        this.allowedInternalIpSet = other.allowedInternalIpSet;
+        this.allowedCidr = other.allowedCidr;
+        this.securityGroupUuid = other.securityGroupUuid;
+        this.l3NetworkUuid = other.l3NetworkUuid;
+    }
     
     public String getProtocol() {
         return protocol;
@@ -40,12 +60,30 @@ public class RuleTO {
     public void setAllowedInternalIpRange(Collection<String> allowedInternalIpRange) {
         this.allowedInternalIpRange = allowedInternalIpRange;
     }
+    public String getAllowedInternalIpSet() {
+        return allowedInternalIpSet;
+    }
+    public void setAllowedInternalIpSet(String allowedInternalIpSet) {
+        this.allowedInternalIpSet = allowedInternalIpSet;
+    }
     public String getAllowedCidr() {
         return allowedCidr;
     }
     public void setAllowedCidr(String allowedCidr) {
         this.allowedCidr = allowedCidr;
     }
+    public String getSecurityGroupUuid() {
+        return securityGroupUuid;
+    }
+    public void setSecurityGroupUuid(String securityGroupUuid) {
+        this.securityGroupUuid = securityGroupUuid;
+    }
+    public String getL3NetworkUuid() {
+        return l3NetworkUuid;
+    }
+    public void setL3NetworkUuid(String l3NetworkUuid) {
+        this.l3NetworkUuid = l3NetworkUuid;
+    }
     
     @Override
     public String toString() {
@@ -65,7 +103,8 @@ public class RuleTO {
         sb.append(String.format("startPort: %s,", this.startPort));
         sb.append(String.format("endPort: %s,", this.endPort));
         sb.append(String.format("allowedCidr: %s,", this.allowedCidr));
-        sb.append(String.format("allowedInternalIpRange: %s", this.allowedInternalIpRange));
+        sb.append(String.format("allowedInternalIpRange: %s,", this.allowedInternalIpRange));
+        sb.append(String.format("allowedInternalIpSet: %s", this.allowedInternalIpSet));
         return sb.toString();
     }
 }
@@ -152,6 +152,9 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         startFailureHostCopingThread();
     }
 
+    // nics queried at a time when calculating rules
+    private static final int NIC_QUERY_BATCH = 1000;
+
     private class RuleCalculator {
         private List<String> vmNicUuids;
         private List<String> l3NetworkUuids;
@@ -247,51 +250,89 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             return calculateByVmNic();
         }
 
-        private List<RuleTO> calculateRuleTOBySecurityGroup(List<String> sgUuids, String l3Uuid) {
-            List<RuleTO> ret = new ArrayList<RuleTO>();
+        /**
+         * compiles rules of security groups on l3 networks, rules of a security group on a l3 network are
+         * the same for all its member nics on the l3 network, so they are compiled once for all nics instead
+         * of once for each nic.
+         *
+         * @return rules keyed by securityGroupUuid-l3NetworkUuid
+         */
+        private Map<String, List<RuleTO>> compileRuleTOs(Set<String> sgUuids, Set<String> l3Uuids) {
+            Map<String, List<RuleTO>> ret = new HashMap<String, List<RuleTO>>();
+
+            String sql = "select r from SecurityGroupRuleVO r where r.securityGroupUuid in (:sgUuids)";
+            TypedQuery<SecurityGroupRuleVO> q = dbf.getEntityManager().createQuery(sql, SecurityGroupRuleVO.class);
+            q.setParameter("sgUuids", sgUuids);
+            Map<String, List<SecurityGroupRuleVO>> rules = new HashMap<String, List<SecurityGroupRuleVO>>();
+            for (SecurityGroupRuleVO r : q.getResultList()) {
+                List<SecurityGroupRuleVO> lst = rules.get(r.getSecurityGroupUuid());
+                if (lst == null) {
+                    lst = new ArrayList<SecurityGroupRuleVO>();
+                    rules.put(r.getSecurityGroupUuid(), lst);
+                }
+                lst.add(r);
+            }
 
-            for (String sgUuid : sgUuids) {
-                String sql = "select r from SecurityGroupRuleVO r where r.securityGroupUuid = :sgUuid";
-                TypedQuery<SecurityGroupRuleVO> q = dbf.getEntityManager().createQuery(sql, SecurityGroupRuleVO.class);
-                q.setParameter("sgUuid", sgUuid);
-                List<SecurityGroupRuleVO> rules = q.getResultList();
-                if (rules.isEmpty()) {
-                    continue;
+            if (rules.isEmpty()) {
+                return ret;
+            }
+
+            sql = "select ref.securityGroupUuid, nic.l3NetworkUuid, nic.ip from VmNicVO nic, VmNicSecurityGroupRefVO ref where ref.vmNicUuid = nic.uuid and ref.securityGroupUuid in (:sgUuids) and nic.l3NetworkUuid in (:l3Uuids)";
+            TypedQuery<Tuple> iq = dbf.getEntityManager().createQuery(sql, Tuple.class);
+            iq.setParameter("sgUuids", rules.keySet());
+            iq.setParameter("l3Uuids", l3Uuids);
+            // securityGroupUuid -> l3NetworkUuid -> ips of member nics
+            Map<String, Map<String, List<String>>> internalIps = new HashMap<String, Map<String, List<String>>>();
+            for (Tuple t : iq.getResultList()) {
+                Map<String, List<String>> l3Ips = internalIps.get(t.get(0, String.class));
+                if (l3Ips == null) {
+                    l3Ips = new HashMap<String, List<String>>();
+                    internalIps.put(t.get(0, String.class), l3Ips);
+                }
+                List<String> ips = l3Ips.get(t.get(1, String.class));
+                if (ips == null) {
+                    ips = new ArrayList<String>();
+                    l3Ips.put(t.get(1, String.class), ips);
                 }
+                ips.add(t.get(2, String.class));
+            }
 
-                sql = "select nic.ip from VmNicVO nic, VmNicSecurityGroupRefVO ref where ref.vmNicUuid = nic.uuid and ref.securityGroupUuid = :sgUuid and nic.l3NetworkUuid = :l3Uuid";
-                TypedQuery<String> internalIpQuery = dbf.getEntityManager().createQuery(sql, String.class);
-                internalIpQuery.setParameter("sgUuid", sgUuid);
-                internalIpQuery.setParameter("l3Uuid", l3Uuid);
-                List<String> internalIps = internalIpQuery.getResultList();
-                List<Pair<String, String>> ipRanges = NetworkUtils.findConsecutiveIpRange(internalIps);
-                List<String> internalIpRanges = new ArrayList<String>(ipRanges.size());
-                for (Pair<String, String> p : ipRanges) {
-                    if (p.first().equals(p.second())) {
-                        internalIpRanges.add(p.first());
-                    } else {
-                        internalIpRanges.add(String.format("%s-%s", p.first(), p.second()));
+            for (Map.Entry<String, Map<String, List<String>>> e : internalIps.entrySet()) {
+                List<SecurityGroupRuleVO> sgRules = rules.get(e.getKey());
+                for (Map.Entry<String, List<String>> l3e : e.getValue().entrySet()) {
+                    List<Pair<String, String>> ipRanges = NetworkUtils.findConsecutiveIpRange(l3e.getValue());
+                    List<String> internalIpRanges = new ArrayList<String>(ipRanges.size());
+                    for (Pair<String, String> p : ipRanges) {
+                        if (p.first().equals(p.second())) {
+                            internalIpRanges.add(p.first());
+                        } else {
+                            internalIpRanges.add(String.format("%s-%s", p.first(), p.second()));
+                        }
                     }
-                }
 
-                for (SecurityGroupRuleVO r : rules) {
-                    RuleTO rto = new RuleTO();
-                    rto.setAllowedCidr(r.getAllowedCidr());
-                    rto.setEndPort(r.getEndPort());
-                    rto.setProtocol(r.getProtocol().toString());
-                    rto.setStartPort(r.getStartPort());
-                    rto.setType(r.getType().toString());
-                    rto.setAllowedInternalIpRange(internalIpRanges);
-                    ret.add(rto);
+                    List<RuleTO> rtos = new ArrayList<RuleTO>(sgRules.size());
+                    for (SecurityGroupRuleVO r : sgRules) {
+                        RuleTO rto = new RuleTO();
+                        rto.setAllowedCidr(r.getAllowedCidr());
+                        rto.setEndPort(r.getEndPort());
+                        rto.setProtocol(r.getProtocol().toString());
+                        rto.setStartPort(r.getStartPort());
+                        rto.setType(r.getType().toString());
+                        rto.setAllowedInternalIpRange(internalIpRanges);
+                        rto.setSecurityGroupUuid(e.getKey());
+                        rto.setL3NetworkUuid(l3e.getKey());
+                        rtos.add(rto);
+                    }
+                    ret.put(String.format("%s-%s", e.getKey(), l3e.getKey()), rtos);
                 }
             }
 
             if (logger.isTraceEnabled()) {
                 StringBuilder sb = new StringBuilder();
-                sb.append(String.format("\n-------------- begin calculateRuleTOBySecurityGroupUuid ---------------------"));
-                sb.append(String.format("\ninput security group uuids: %s", sgUuids));
+                sb.append(String.format("\n-------------- begin compileRuleTOs ---------------------"));
+                sb.append(String.format("\ninput security group uuids: %s, l3 network uuids: %s", sgUuids, l3Uuids));
                 sb.append(String.format("\nresult: %s", JSONObjectUtil.toJsonString(ret)));
-                sb.append(String.format("\n-------------- end calculateRuleTOBySecurityGroupUuid ---------------------"));
+                sb.append(String.format("\n-------------- end compileRuleTOs ---------------------"));
                 logger.trace(sb.toString());
             }
 
@@ -347,27 +388,56 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             Map<String, HostRuleTO> hostRuleMap = new HashMap<String, HostRuleTO>();
             List<HostRuleTO> htos = new ArrayList<HostRuleTO>();
 
-            for (String nicUuid : vmNicUuids) {
+            // nicUuid -> rows of the nic, one row for each security group the nic is in
+            Map<String, List<Tuple>> nicTuples = new LinkedHashMap<String, List<Tuple>>();
+            List<String> allNicUuids = new ArrayList<String>(new LinkedHashSet<String>(vmNicUuids));
+            for (int i = 0; i < allNicUuids.size(); i += NIC_QUERY_BATCH) {
+                List<String> nicUuids = allNicUuids.subList(i, Math.min(i + NIC_QUERY_BATCH, allNicUuids.size()));
                 List<Tuple> tuples;
                 if (vmStates != null && !vmStates.isEmpty()) {
-                    String sql = "select ref.securityGroupUuid, vm.hostUuid, vm.hypervisorType, nic.internalName, nic.l3NetworkUuid, nic.mac, nic.ip from VmNicSecurityGroupRefVO ref, VmInstanceVO vm, VmNicVO nic where ref.vmNicUuid = nic.uuid and nic.vmInstanceUuid = vm.uuid and ref.vmNicUuid = :nicUuid and vm.state in (:vmStates)";
+                    String sql = "select ref.vmNicUuid, ref.securityGroupUuid, vm.hostUuid, vm.hypervisorType, nic.internalName, nic.l3NetworkUuid, nic.mac, nic.ip from VmNicSecurityGroupRefVO ref, VmInstanceVO vm, VmNicVO nic where ref.vmNicUuid = nic.uuid and nic.vmInstanceUuid = vm.uuid and ref.vmNicUuid in (:nicUuids) and vm.state in (:vmStates)";
                     TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
-                    q.setParameter("nicUuid", nicUuid);
+                    q.setParameter("nicUuids", nicUuids);
                     q.setParameter("vmStates", vmStates);
                     tuples = q.getResultList();
                 } else {
-                    String sql = "select ref.securityGroupUuid, vm.hostUuid, vm.hypervisorType, nic.internalName, nic.l3NetworkUuid, nic.mac, nic.ip from VmNicSecurityGroupRefVO ref, VmInstanceVO vm, VmNicVO nic where ref.vmNicUuid = nic.uuid and nic.vmInstanceUuid = vm.uuid and ref.vmNicUuid = :nicUuid";
+                    String sql = "select ref.vmNicUuid, ref.securityGroupUuid, vm.hostUuid, vm.hypervisorType, nic.internalName, nic.l3NetworkUuid, nic.mac, nic.ip from VmNicSecurityGroupRefVO ref, VmInstanceVO vm, VmNicVO nic where ref.vmNicUuid = nic.uuid and nic.vmInstanceUuid = vm.uuid and ref.vmNicUuid in (:nicUuids)";
                     TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
-                    q.setParameter("nicUuid", nicUuid);
+                    q.setParameter("nicUuids", nicUuids);
                     tuples = q.getResultList();
                 }
 
-                if (tuples.isEmpty()) {
-                    // vm is not in vmStates or not in security group
+                for (Tuple t : tuples) {
+                    String nicUuid = t.get(0, String.class);
+                    List<Tuple> lst = nicTuples.get(nicUuid);
+                    if (lst == null) {
+                        lst = new ArrayList<Tuple>();
+                        nicTuples.put(nicUuid, lst);
+                    }
+                    lst.add(t);
+                }
+            }
+
+            // nics not in nicTuples are not in vmStates or not in security group
+
+            Set<String> sgUuids = new HashSet<String>();
+            Set<String> l3Uuids = new HashSet<String>();
+            for (List<Tuple> tuples : nicTuples.values()) {
+                for (Tuple t : tuples) {
+                    sgUuids.add(t.get(1, String.class));
+                    l3Uuids.add(t.get(5, String.class));
+                }
+            }
+
+            Map<String, List<RuleTO>> compiled = sgUuids.isEmpty() ? new HashMap<String, List<RuleTO>>() : compileRuleTOs(sgUuids, l3Uuids);
+
+            for (String nicUuid : allNicUuids) {
+                List<Tuple> tuples = nicTuples.get(nicUuid);
+                if (tuples == null) {
                     continue;
                 }
 
-                List<String> sgUuids = new ArrayList<String>();
+                List<String> nicSgUuids = new ArrayList<String>();
                 String hostUuid = null;
                 String hypervisorType = null;
                 String nicName = null;
@@ -375,16 +445,23 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                 String mac = null;
                 String ip = null;
                 for (Tuple t : tuples) {
-                    sgUuids.add(t.get(0, String.class));
-                    hostUuid = t.get(1, String.class);
-                    hypervisorType = t.get(2, String.class);
-                    nicName = t.get(3, String.class);
-                    l3Uuid = t.get(4, String.class);
-                    mac = t.get(5, String.class);
-                    ip = t.get(6, String.class);
+                    nicSgUuids.add(t.get(1, String.class));
+                    hostUuid = t.get(2, String.class);
+                    hypervisorType = t.get(3, String.class);
+                    nicName = t.get(4, String.class);
+                    l3Uuid = t.get(5, String.class);
+                    mac = t.get(6, String.class);
+                    ip = t.get(7, String.class);
+                }
+
+                List<RuleTO> rtos = new ArrayList<RuleTO>();
+                for (String sgUuid : nicSgUuids) {
+                    List<RuleTO> lst = compiled.get(String.format("%s-%s", sgUuid, l3Uuid));
+                    if (lst != null) {
+                        rtos.addAll(lst);
+                    }
                 }
 
-                List<RuleTO> rtos = calculateRuleTOBySecurityGroup(sgUuids, l3Uuid);
                 SecurityGroupRuleTO sgto = new SecurityGroupRuleTO();
                 sgto.setEgressDefaultPolicy(SecurityGroupGlobalConfig.EGRESS_RULE_DEFAULT_POLICY.value(String.class));
                 sgto.setIngressDefaultPolicy(SecurityGroupGlobalConfig.INGRESS_RULE_DEFAULT_POLICY.value(String.class));
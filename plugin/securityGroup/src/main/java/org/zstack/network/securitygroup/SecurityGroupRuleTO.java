@@ -16,6 +16,20 @@ public class SecurityGroupRuleTO {
     private String vmNicIp;
     private String actionCode = ACTION_CODE_APPLY_RULE;
 
+    public SecurityGroupRuleTO() {
+    }
+
+    public SecurityGroupRuleTO(SecurityGroupRuleTO other) {
+        this.vmNicInternalName = other.vmNicInternalName;
+        this.rules = other.rules;
+        this.ingressDefaultPolicy = other.ingressDefaultPolicy;
+        this.egressDefaultPolicy = other.egressDefaultPolicy;
+        this.vmNicUuid = other.vmNicUuid;
+        this.vmNicMac = other.vmNicMac;
+        this.vmNicIp = other.vmNicIp;
+        this.actionCode = other.actionCode;
+    }
+
     public String getVmNicMac() {
         return vmNicMac;
     }
@@ -7,6 +7,7 @@ import org.zstack.utils.gson.JSONObjectUtil;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class VirtualRouterCommands {
 	public static class AgentCommand {
@@ -51,6 +52,26 @@ public class VirtualRouterCommands {
     }
 
     public static class InitRsp extends AgentResponse {
+        // the version of the config the agent last applied by ApplyConfigCmd and the digest of each applied
+        // section, an agent not knowing ApplyConfigCmd leaves them null and gets the per-service commands
+        private Long configVersion;
+        private Map<String, String> configDigests;
+
+        public Long getConfigVersion() {
+            return configVersion;
+        }
+
+        public void setConfigVersion(Long configVersion) {
+            this.configVersion = configVersion;
+        }
+
+        public Map<String, String> getConfigDigests() {
+            return configDigests;
+        }
+
+        public void setConfigDigests(Map<String, String> configDigests) {
+            this.configDigests = configDigests;
+        }
     }
 	
 	public static class NicInfo {
@@ -550,4 +571,78 @@ public class VirtualRouterCommands {
 			this.uuid = uuid;
 		}
 	}
+
+    public static class ConfigSection {
+        // the path the command of the section is posted to by the per-service sync
+        private String path;
+        private String digest;
+        private String body;
+
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public void setDigest(String digest) {
+            this.digest = digest;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public void setBody(String body) {
+            this.body = body;
+        }
+    }
+
+    /**
+     * the sections of the config changed since the version the agent reported, applied in order as if
+     * each body were posted to its path; the agent reports version and the section digests in InitRsp
+     * from then on.
+     *
+     * a digest only stands for the config while nothing else touches the section: the agent drops the
+     * digest of a section whenever it receives a per-service command changing it (e.g. /createeip or
+     * /removeeip for the section of /synceip, see VirtualRouterConfigSnapshot.getSection()), whether
+     * the command succeeds or not, so the next reconnect pushes the section again
+     */
+    public static class ApplyConfigCmd extends AgentCommand {
+        private String uuid;
+        private long version;
+        private List<ConfigSection> sections;
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public void setUuid(String uuid) {
+            this.uuid = uuid;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public void setVersion(long version) {
+            this.version = version;
+        }
+
+        public List<ConfigSection> getSections() {
+            return sections;
+        }
+
+        public void setSections(List<ConfigSection> sections) {
+            this.sections = sections;
+        }
+    }
+
+    public static class ApplyConfigRsp extends AgentResponse {
+    }
 }
@@ -0,0 +1,122 @@
+package org.zstack.network.service.virtualrouter;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.AgentCommand;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.ConfigSection;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.InitRsp;
+import org.zstack.network.service.virtualrouter.VirtualRouterConstant.Param;
+import org.zstack.utils.gson.JSONObjectUtil;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * the config of a virtual router collected on reconnect when the agent supports ApplyConfigCmd.
+ *
+ * the sync flows put their commands as sections instead of posting them, VirtualRouterApplyConfigFlow
+ * sends the sections whose digests differ from the ones the agent reported in InitRsp by one command.
+ */
+public class VirtualRouterConfigSnapshot {
+    // the agent applies sections in this order, vips must be there before the rules using them
+    private static final List<String> SECTION_ORDER = Arrays.asList(
+            VirtualRouterConstant.VR_SET_DNS_PATH,
+            VirtualRouterConstant.VR_ADD_DHCP_PATH,
+            VirtualRouterConstant.VR_SYNC_SNAT_PATH,
+            VirtualRouterConstant.VR_CREATE_VIP,
+            VirtualRouterConstant.VR_SYNC_PORT_FORWARDING,
+            VirtualRouterConstant.VR_SYNC_EIP
+    );
+
+    // the section each per-service command changes, see ApplyConfigCmd
+    private static final Map<String, String> SECTION_OF_PATH = new HashMap<String, String>();
+
+    static {
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_SET_DNS_PATH, VirtualRouterConstant.VR_SET_DNS_PATH);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_REMOVE_DNS_PATH, VirtualRouterConstant.VR_SET_DNS_PATH);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_ADD_DHCP_PATH, VirtualRouterConstant.VR_ADD_DHCP_PATH);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_REMOVE_DHCP_PATH, VirtualRouterConstant.VR_ADD_DHCP_PATH);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_SET_SNAT_PATH, VirtualRouterConstant.VR_SYNC_SNAT_PATH);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_REMOVE_SNAT_PATH, VirtualRouterConstant.VR_SYNC_SNAT_PATH);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_SYNC_SNAT_PATH, VirtualRouterConstant.VR_SYNC_SNAT_PATH);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_CREATE_VIP, VirtualRouterConstant.VR_CREATE_VIP);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_REMOVE_VIP, VirtualRouterConstant.VR_CREATE_VIP);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_CREATE_PORT_FORWARDING, VirtualRouterConstant.VR_SYNC_PORT_FORWARDING);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_REVOKE_PORT_FORWARDING, VirtualRouterConstant.VR_SYNC_PORT_FORWARDING);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_SYNC_PORT_FORWARDING, VirtualRouterConstant.VR_SYNC_PORT_FORWARDING);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_CREATE_EIP, VirtualRouterConstant.VR_SYNC_EIP);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_REMOVE_EIP, VirtualRouterConstant.VR_SYNC_EIP);
+        SECTION_OF_PATH.put(VirtualRouterConstant.VR_SYNC_EIP, VirtualRouterConstant.VR_SYNC_EIP);
+    }
+
+    private final long ackedVersion;
+    private final Map<String, String> ackedDigests;
+    // sync flows run in parallel
+    private final Map<String, ConfigSection> sections = new ConcurrentHashMap<String, ConfigSection>();
+
+    public VirtualRouterConfigSnapshot(long ackedVersion, Map<String, String> ackedDigests) {
+        this.ackedVersion = ackedVersion;
+        this.ackedDigests = ackedDigests == null ? new HashMap<String, String>() : ackedDigests;
+    }
+
+    /**
+     * called with the reply of InitCommand, the config is collected only on reconnect which has
+     * VirtualRouterApplyConfigFlow in its chain
+     */
+    public static void prepare(Map data, InitRsp rsp) {
+        boolean isReconnect = Boolean.valueOf((String) data.get(Param.IS_RECONNECT.toString()));
+        if (isReconnect && rsp.getConfigVersion() != null) {
+            data.put(Param.CONFIG_SNAPSHOT.toString(), new VirtualRouterConfigSnapshot(rsp.getConfigVersion(), rsp.getConfigDigests()));
+        }
+    }
+
+    /**
+     * @return null if services are synced by their own commands
+     */
+    public static VirtualRouterConfigSnapshot fromFlowData(Map data) {
+        return (VirtualRouterConfigSnapshot) data.get(Param.CONFIG_SNAPSHOT.toString());
+    }
+
+    public void put(String path, AgentCommand cmd) {
+        ConfigSection s = new ConfigSection();
+        s.setPath(path);
+        s.setBody(JSONObjectUtil.toJsonString(cmd));
+        s.setDigest(DigestUtils.md5Hex(s.getBody()));
+        sections.put(path, s);
+    }
+
+    /**
+     * @return sections not applied by the agent yet, in the order to apply
+     */
+    public List<ConfigSection> diff() {
+        List<ConfigSection> ret = new ArrayList<ConfigSection>();
+        for (ConfigSection s : sections.values()) {
+            if (!s.getDigest().equals(ackedDigests.get(s.getPath()))) {
+                ret.add(s);
+            }
+        }
+
+        Collections.sort(ret, new Comparator<ConfigSection>() {
+            @Override
+            public int compare(ConfigSection o1, ConfigSection o2) {
+                return Integer.compare(order(o1.getPath()), order(o2.getPath()));
+            }
+
+            private int order(String path) {
+                int i = SECTION_ORDER.indexOf(path);
+                return i == -1 ? SECTION_ORDER.size() : i;
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * @return the path of the section a per-service command posted to the path changes, null if none
+     */
+    public static String getSection(String path) {
+        return SECTION_OF_PATH.get(path);
+    }
+
+    public long getAckedVersion() {
+        return ackedVersion;
+    }
+}
@@ -37,6 +37,7 @@ public interface VirtualRouterConstant {
     public static final String VR_REMOVE_EIP = "/removeeip";
     public static final String VR_SYNC_EIP = "/synceip";
     public static final String VR_INIT = "/init";
+    public static final String VR_APPLY_CONFIG = "/applyconfig";
 	public static final String VR_PING = "/ping";
 
 	public static final String VR_CREATE_VIP = "/createvip";
@@ -56,6 +57,7 @@ public interface VirtualRouterConstant {
         VR_UUID,
         IS_NEW_CREATED,
         IS_RECONNECT,
+        CONFIG_SNAPSHOT,
         VIPS,
     }
 }
@@ -94,8 +94,7 @@ public class VirtualRouterPingTracker extends PingTracker implements ManagementN
             }
         });
 
-        untrackAll();
-        track(toTrack);
+        reset(toTrack);
     }
 
     @Override
@@ -13,6 +13,7 @@ import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.timeout.ApiTimeoutManager;
 import org.zstack.header.core.workflow.Flow;
+import org.zstack.header.core.workflow.FlowDependsOn;
 import org.zstack.header.core.workflow.FlowRollback;
 import org.zstack.header.core.workflow.FlowTrigger;
 import org.zstack.header.message.MessageReply;
@@ -29,6 +30,8 @@ import org.zstack.network.service.virtualrouter.*;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.AddDhcpEntryCmd;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.AddDhcpEntryRsp;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.DhcpInfo;
+import org.zstack.network.service.virtualrouter.lifecycle.VirtualRouterDeployAgentFlow;
+import org.zstack.network.service.virtualrouter.vyos.VyosConnectFlow;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
@@ -39,6 +42,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+@FlowDependsOn({VirtualRouterDeployAgentFlow.class, VyosConnectFlow.class})
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class VirtualRouterSyncDHCPOnStartFlow implements Flow {
 	private static final CLogger logger = Utils.getLogger(VirtualRouterSyncDHCPOnStartFlow.class);
@@ -151,6 +155,13 @@ public class VirtualRouterSyncDHCPOnStartFlow implements Flow {
             return;
         }
 
+        VirtualRouterConfigSnapshot snapshot = VirtualRouterConfigSnapshot.fromFlowData(data);
+        if (snapshot != null) {
+            snapshot.put(VirtualRouterConstant.VR_ADD_DHCP_PATH, cmd);
+            chain.next();
+            return;
+        }
+
         VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
         msg.setCommand(cmd);
         msg.setCommandTimeout(apiTimeoutManager.getTimeout(cmd.getClass(), "5m"));
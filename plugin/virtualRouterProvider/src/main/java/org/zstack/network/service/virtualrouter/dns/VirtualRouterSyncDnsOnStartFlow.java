@@ -10,6 +10,7 @@ import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.timeout.ApiTimeoutManager;
+import org.zstack.header.core.workflow.FlowDependsOn;
 import org.zstack.header.core.workflow.FlowTrigger;
 import org.zstack.header.core.workflow.NoRollbackFlow;
 import org.zstack.header.message.MessageReply;
@@ -21,12 +22,15 @@ import org.zstack.network.service.virtualrouter.*;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.DnsInfo;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SetDnsCmd;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SetDnsRsp;
+import org.zstack.network.service.virtualrouter.lifecycle.VirtualRouterDeployAgentFlow;
+import org.zstack.network.service.virtualrouter.vyos.VyosConnectFlow;
 import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import java.util.*;
 
+@FlowDependsOn({VirtualRouterDeployAgentFlow.class, VyosConnectFlow.class})
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class VirtualRouterSyncDnsOnStartFlow extends NoRollbackFlow {
     private static final CLogger logger = Utils.getLogger(VirtualRouterSyncDnsOnStartFlow.class);
@@ -83,6 +87,13 @@ public class VirtualRouterSyncDnsOnStartFlow extends NoRollbackFlow {
         SetDnsCmd cmd = new SetDnsCmd();
         cmd.setDns(dns);
 
+        VirtualRouterConfigSnapshot snapshot = VirtualRouterConfigSnapshot.fromFlowData(data);
+        if (snapshot != null) {
+            snapshot.put(VirtualRouterConstant.VR_SET_DNS_PATH, cmd);
+            chain.next();
+            return;
+        }
+
         VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
         msg.setVmInstanceUuid(vr.getUuid());
         msg.setPath(VirtualRouterConstant.VR_SET_DNS_PATH);
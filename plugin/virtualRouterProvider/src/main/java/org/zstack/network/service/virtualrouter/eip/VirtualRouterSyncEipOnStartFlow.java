@@ -11,6 +11,7 @@ import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.timeout.ApiTimeoutManager;
 import org.zstack.header.core.workflow.Flow;
+import org.zstack.header.core.workflow.FlowDependsOn;
 import org.zstack.header.core.workflow.FlowRollback;
 import org.zstack.header.core.workflow.FlowTrigger;
 import org.zstack.header.message.MessageReply;
@@ -22,6 +23,7 @@ import org.zstack.network.service.eip.EipGlobalConfig;
 import org.zstack.network.service.virtualrouter.*;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncEipRsp;
 import org.zstack.network.service.virtualrouter.VirtualRouterConstant.Param;
+import org.zstack.network.service.virtualrouter.vip.VirtualRouterSyncVipFlow;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.DebugUtils;
 import org.zstack.utils.Utils;
@@ -37,6 +39,7 @@ import java.util.concurrent.Callable;
 
 /**
  */
+@FlowDependsOn(VirtualRouterSyncVipFlow.class)
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class VirtualRouterSyncEipOnStartFlow implements Flow {
     private static CLogger logger = Utils.getLogger(VirtualRouterSyncEipOnStartFlow.class);
@@ -157,6 +160,13 @@ public class VirtualRouterSyncEipOnStartFlow implements Flow {
         VirtualRouterCommands.SyncEipCmd cmd = new VirtualRouterCommands.SyncEipCmd();
         cmd.setEips(eips);
 
+        VirtualRouterConfigSnapshot snapshot = VirtualRouterConfigSnapshot.fromFlowData(data);
+        if (snapshot != null) {
+            snapshot.put(VirtualRouterConstant.VR_SYNC_EIP, cmd);
+            trigger.next();
+            return;
+        }
+
         VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
         msg.setPath(VirtualRouterConstant.VR_SYNC_EIP);
         msg.setCommand(cmd);
@@ -22,6 +22,8 @@ import org.zstack.network.service.vip.VipVO;
 import org.zstack.network.service.vip.VipVO_;
 import org.zstack.network.service.virtualrouter.*;
 import org.zstack.network.service.virtualrouter.VirtualRouterConstant.Param;
+import org.zstack.network.service.virtualrouter.lifecycle.VirtualRouterApplyConfigFlow;
+import org.zstack.network.service.virtualrouter.vip.VirtualRouterSyncVipFlow;
 import org.zstack.network.service.virtualrouter.vip.VirtualRouterVipBackend;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.function.Function;
@@ -33,6 +35,8 @@ import java.util.concurrent.Callable;
 /**
  * Created by frank on 8/17/2015.
  */
+// the vips may be created by VirtualRouterApplyConfigFlow
+@FlowDependsOn({VirtualRouterSyncVipFlow.class, VirtualRouterApplyConfigFlow.class})
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class VirtualRouterSyncLbOnStartFlow implements Flow {
     @Autowired
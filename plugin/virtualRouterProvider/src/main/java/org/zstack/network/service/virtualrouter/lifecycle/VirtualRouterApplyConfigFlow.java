@@ -0,0 +1,105 @@
+package org.zstack.network.service.virtualrouter.lifecycle;
+
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.timeout.ApiTimeoutManager;
+import org.zstack.header.core.workflow.FlowDependsOn;
+import org.zstack.header.core.workflow.FlowTrigger;
+import org.zstack.header.core.workflow.NoRollbackFlow;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.network.service.virtualrouter.*;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.ApplyConfigCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.ApplyConfigRsp;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.ConfigSection;
+import org.zstack.network.service.virtualrouter.dhcp.VirtualRouterSyncDHCPOnStartFlow;
+import org.zstack.network.service.virtualrouter.dns.VirtualRouterSyncDnsOnStartFlow;
+import org.zstack.network.service.virtualrouter.eip.VirtualRouterSyncEipOnStartFlow;
+import org.zstack.network.service.virtualrouter.nat.VirtualRouterSyncSNATOnStartFlow;
+import org.zstack.network.service.virtualrouter.portforwarding.VirtualRouterSyncPortForwardingRulesOnStartFlow;
+import org.zstack.network.service.virtualrouter.vip.VirtualRouterSyncVipFlow;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * sends the config sections collected by the sync flows which the agent hasn't applied yet by one command
+ */
+@FlowDependsOn({VirtualRouterSyncDnsOnStartFlow.class, VirtualRouterSyncDHCPOnStartFlow.class,
+        VirtualRouterSyncSNATOnStartFlow.class, VirtualRouterSyncVipFlow.class,
+        VirtualRouterSyncPortForwardingRulesOnStartFlow.class, VirtualRouterSyncEipOnStartFlow.class})
+@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
+public class VirtualRouterApplyConfigFlow extends NoRollbackFlow {
+    private static final CLogger logger = Utils.getLogger(VirtualRouterApplyConfigFlow.class);
+
+    @Autowired
+    private CloudBus bus;
+    @Autowired
+    private ErrorFacade errf;
+    @Autowired
+    private ApiTimeoutManager apiTimeoutManager;
+
+    @Override
+    public void run(final FlowTrigger trigger, Map data) {
+        final VirtualRouterVmInventory vr = (VirtualRouterVmInventory) data.get(VirtualRouterConstant.Param.VR.toString());
+        VirtualRouterConfigSnapshot snapshot = VirtualRouterConfigSnapshot.fromFlowData(data);
+        if (snapshot == null) {
+            trigger.next();
+            return;
+        }
+
+        final List<ConfigSection> sections = snapshot.diff();
+        if (sections.isEmpty()) {
+            logger.debug(String.format("the config of virtual router[uuid:%s] is not changed since version %s",
+                    vr.getUuid(), snapshot.getAckedVersion()));
+            trigger.next();
+            return;
+        }
+
+        final ApplyConfigCmd cmd = new ApplyConfigCmd();
+        cmd.setUuid(vr.getUuid());
+        cmd.setVersion(snapshot.getAckedVersion() + 1);
+        cmd.setSections(sections);
+
+        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
+        msg.setCommand(cmd);
+        msg.setCommandTimeout(apiTimeoutManager.getTimeout(cmd.getClass(), "5m"));
+        msg.setPath(VirtualRouterConstant.VR_APPLY_CONFIG);
+        msg.setVmInstanceUuid(vr.getUuid());
+        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
+        bus.send(msg, new CloudBusCallBack(trigger) {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    trigger.fail(reply.getError());
+                    return;
+                }
+
+                VirtualRouterAsyncHttpCallReply re = reply.castReply();
+                ApplyConfigRsp ret = re.toResponse(ApplyConfigRsp.class);
+                if (!ret.isSuccess()) {
+                    String err = String.format("failed to apply config version %s to virtual router[name: %s, uuid: %s], because %s",
+                            cmd.getVersion(), vr.getName(), vr.getUuid(), ret.getError());
+                    logger.warn(err);
+                    trigger.fail(errf.stringToOperationError(err));
+                    return;
+                }
+
+                List<String> paths = new ArrayList<String>(sections.size());
+                for (ConfigSection s : sections) {
+                    paths.add(s.getPath());
+                }
+                logger.debug(String.format("successfully applied config version %s%s to virtual router[name: %s, uuid: %s]",
+                        cmd.getVersion(), paths, vr.getName(), vr.getUuid()));
+                trigger.next();
+            }
+        });
+    }
+}
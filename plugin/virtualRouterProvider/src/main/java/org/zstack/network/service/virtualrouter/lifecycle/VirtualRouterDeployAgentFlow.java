@@ -49,8 +49,8 @@ public class VirtualRouterDeployAgentFlow extends NoRollbackFlow {
 
     private String agentPackageName = VirtualRouterGlobalProperty.AGENT_PACKAGE_NAME;
 
-	private void continueConnect(final VmNicInventory mgmtNic, final Map<String, Object> data, final FlowTrigger completion) {
-        final VirtualRouterVmInventory vr = (VirtualRouterVmInventory) data.get(VirtualRouterConstant.Param.VR.toString());
+	private void continueConnect(final VmNicInventory mgmtNic, final Map<String, Object> flowData, final FlowTrigger completion) {
+        final VirtualRouterVmInventory vr = (VirtualRouterVmInventory) flowData.get(VirtualRouterConstant.Param.VR.toString());
         final FlowChain chain = FlowChainBuilder.newShareFlowChain();
         chain.setName(String.format("virtual-router-%s-continue-connecting", mgmtNic.getVmInstanceUuid()));
         chain.then(new ShareFlow() {
@@ -94,6 +94,7 @@ public class VirtualRouterDeployAgentFlow extends NoRollbackFlow {
                             @Override
                             public void success(InitRsp ret) {
                                 if (ret.isSuccess()) {
+                                    VirtualRouterConfigSnapshot.prepare(flowData, ret);
                                     trigger.next();
                                 } else {
                                     trigger.fail(errf.stringToOperationError(ret.getError()));
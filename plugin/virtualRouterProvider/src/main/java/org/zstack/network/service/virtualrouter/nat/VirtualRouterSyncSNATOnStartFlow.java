@@ -7,6 +7,7 @@ import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.timeout.ApiTimeoutManager;
+import org.zstack.header.core.workflow.FlowDependsOn;
 import org.zstack.header.core.workflow.FlowTrigger;
 import org.zstack.header.core.workflow.NoRollbackFlow;
 import org.zstack.header.message.MessageReply;
@@ -16,6 +17,8 @@ import org.zstack.header.vm.VmNicInventory;
 import org.zstack.network.service.virtualrouter.*;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SNATInfo;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncSNATRsp;
+import org.zstack.network.service.virtualrouter.lifecycle.VirtualRouterDeployAgentFlow;
+import org.zstack.network.service.virtualrouter.vyos.VyosConnectFlow;
 import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
@@ -24,6 +27,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+@FlowDependsOn({VirtualRouterDeployAgentFlow.class, VyosConnectFlow.class})
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class VirtualRouterSyncSNATOnStartFlow extends NoRollbackFlow {
     private static final CLogger logger = Utils.getLogger(VirtualRouterSyncSNATOnStartFlow.class);
@@ -69,6 +73,13 @@ public class VirtualRouterSyncSNATOnStartFlow extends NoRollbackFlow {
 
         VirtualRouterCommands.SyncSNATCmd cmd = new VirtualRouterCommands.SyncSNATCmd();
         cmd.setSnats(snatInfo);
+        VirtualRouterConfigSnapshot snapshot = VirtualRouterConfigSnapshot.fromFlowData(data);
+        if (snapshot != null) {
+            snapshot.put(VirtualRouterConstant.VR_SYNC_SNAT_PATH, cmd);
+            chain.next();
+            return;
+        }
+
         VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
         msg.setPath(VirtualRouterConstant.VR_SYNC_SNAT_PATH);
         msg.setCommand(cmd);
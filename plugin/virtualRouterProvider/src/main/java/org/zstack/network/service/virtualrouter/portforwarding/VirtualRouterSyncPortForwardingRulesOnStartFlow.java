@@ -10,6 +10,7 @@ import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.timeout.ApiTimeoutManager;
 import org.zstack.header.core.workflow.Flow;
+import org.zstack.header.core.workflow.FlowDependsOn;
 import org.zstack.header.core.workflow.FlowRollback;
 import org.zstack.header.core.workflow.FlowTrigger;
 import org.zstack.header.message.MessageReply;
@@ -23,6 +24,7 @@ import org.zstack.network.service.virtualrouter.*;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncPortForwardingRuleCmd;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncPortForwardingRuleRsp;
 import org.zstack.network.service.virtualrouter.VirtualRouterConstant.Param;
+import org.zstack.network.service.virtualrouter.vip.VirtualRouterSyncVipFlow;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
@@ -30,6 +32,7 @@ import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.util.*;
 
+@FlowDependsOn(VirtualRouterSyncVipFlow.class)
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class VirtualRouterSyncPortForwardingRulesOnStartFlow implements Flow {
     private static CLogger logger = Utils.getLogger(VirtualRouterSyncPortForwardingRulesOnStartFlow.class);
@@ -159,6 +162,13 @@ public class VirtualRouterSyncPortForwardingRulesOnStartFlow implements Flow {
         SyncPortForwardingRuleCmd cmd = new SyncPortForwardingRuleCmd();
         cmd.setRules(toList);
 
+        VirtualRouterConfigSnapshot snapshot = VirtualRouterConfigSnapshot.fromFlowData(data);
+        if (snapshot != null) {
+            snapshot.put(VirtualRouterConstant.VR_SYNC_PORT_FORWARDING, cmd);
+            chain.next();
+            return;
+        }
+
         VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
         msg.setCommand(cmd);
         msg.setCommandTimeout(apiTimeoutManager.getTimeout(cmd.getClass(), "5m"));
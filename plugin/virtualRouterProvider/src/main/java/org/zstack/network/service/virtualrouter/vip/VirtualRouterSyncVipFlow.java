@@ -9,19 +9,24 @@ import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.header.core.Completion;
 import org.zstack.header.core.workflow.Flow;
+import org.zstack.header.core.workflow.FlowDependsOn;
 import org.zstack.header.core.workflow.FlowRollback;
 import org.zstack.header.core.workflow.FlowTrigger;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.network.service.vip.VipInventory;
 import org.zstack.network.service.vip.VipVO;
 import org.zstack.network.service.vip.VipVO_;
+import org.zstack.network.service.virtualrouter.VirtualRouterConfigSnapshot;
 import org.zstack.network.service.virtualrouter.VirtualRouterConstant;
 import org.zstack.network.service.virtualrouter.VirtualRouterVmInventory;
+import org.zstack.network.service.virtualrouter.lifecycle.VirtualRouterDeployAgentFlow;
+import org.zstack.network.service.virtualrouter.vyos.VyosConnectFlow;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+@FlowDependsOn({VirtualRouterDeployAgentFlow.class, VyosConnectFlow.class})
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class VirtualRouterSyncVipFlow implements Flow {
     @Autowired
@@ -42,25 +47,19 @@ public class VirtualRouterSyncVipFlow implements Flow {
         }
 
         List<VipInventory> invs = VipInventory.valueOf(vips);
+        VirtualRouterConfigSnapshot snapshot = VirtualRouterConfigSnapshot.fromFlowData(data);
+        if (snapshot != null) {
+            // the vips are created by VirtualRouterApplyConfigFlow, which fails the chain if the agent fails
+            snapshot.put(VirtualRouterConstant.VR_CREATE_VIP, vipExt.makeCreateVipCmd(vr, invs));
+            persistVirtualRouterVips(vr, vips);
+            chain.next();
+            return;
+        }
+
         vipExt.createVipOnVirtualRouterVm(vr, invs, new Completion(chain) {
             @Override
             public void success() {
-                //TODO: remove this, we need to remove VirtualRouterVipVO table
-                List<VirtualRouterVipVO> vrvips = new ArrayList<>();
-                for (VipVO vip : vips) {
-                    VirtualRouterVipVO vo = dbf.findByUuid(vip.getUuid(), VirtualRouterVipVO.class);
-                    if (vo == null) {
-                        vo = new VirtualRouterVipVO();
-                        vo.setUuid(vip.getUuid());
-                        vo.setVirtualRouterVmUuid(vr.getUuid());
-                        vrvips.add(vo);
-                    }
-                }
-
-                if (!vrvips.isEmpty()) {
-                    dbf.persistCollection(vrvips);
-                }
-
+                persistVirtualRouterVips(vr, vips);
                 chain.next();
             }
 
@@ -71,6 +70,24 @@ public class VirtualRouterSyncVipFlow implements Flow {
         });
     }
 
+    //TODO: remove this, we need to remove VirtualRouterVipVO table
+    private void persistVirtualRouterVips(VirtualRouterVmInventory vr, List<VipVO> vips) {
+        List<VirtualRouterVipVO> vrvips = new ArrayList<>();
+        for (VipVO vip : vips) {
+            VirtualRouterVipVO vo = dbf.findByUuid(vip.getUuid(), VirtualRouterVipVO.class);
+            if (vo == null) {
+                vo = new VirtualRouterVipVO();
+                vo.setUuid(vip.getUuid());
+                vo.setVirtualRouterVmUuid(vr.getUuid());
+                vrvips.add(vo);
+            }
+        }
+
+        if (!vrvips.isEmpty()) {
+            dbf.persistCollection(vrvips);
+        }
+    }
+
     @Override
     public void rollback(FlowRollback chain, Map data) {
         chain.rollback();
@@ -57,8 +57,8 @@ public class VirtualRouterVipBackend extends AbstractVirtualRouterBackend implem
                 vr.getUuid(), vip.getL3NetworkUuid(), vip.getUuid(), vip.getIp()));
     }
 
-    public void createVipOnVirtualRouterVm(final VirtualRouterVmInventory vr, List<VipInventory> vips, final Completion completion) {
-        final List<VipTO> tos = new ArrayList<VipTO>(vips.size());
+    public CreateVipCmd makeCreateVipCmd(VirtualRouterVmInventory vr, List<VipInventory> vips) {
+        List<VipTO> tos = new ArrayList<VipTO>(vips.size());
         for (VipInventory vip : vips) {
             String mac = getOwnerMac(vr, vip);
             VipTO to = VipTO.valueOf(vip, mac);
@@ -67,6 +67,12 @@ public class VirtualRouterVipBackend extends AbstractVirtualRouterBackend implem
 
         CreateVipCmd cmd = new CreateVipCmd();
         cmd.setVips(tos);
+        return cmd;
+    }
+
+    public void createVipOnVirtualRouterVm(final VirtualRouterVmInventory vr, List<VipInventory> vips, final Completion completion) {
+        CreateVipCmd cmd = makeCreateVipCmd(vr, vips);
+        final List<VipTO> tos = cmd.getVips();
 
         VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
         msg.setVmInstanceUuid(vr.getUuid());
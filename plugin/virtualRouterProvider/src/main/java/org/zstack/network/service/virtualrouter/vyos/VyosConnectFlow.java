@@ -18,6 +18,7 @@ import org.zstack.header.vm.VmInstanceSpec;
 import org.zstack.header.vm.VmNicInventory;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.InitCommand;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.InitRsp;
+import org.zstack.network.service.virtualrouter.VirtualRouterConfigSnapshot;
 import org.zstack.network.service.virtualrouter.VirtualRouterConstant;
 import org.zstack.network.service.virtualrouter.VirtualRouterManager;
 import org.zstack.network.service.virtualrouter.VirtualRouterVmInventory;
@@ -53,6 +54,7 @@ public class VyosConnectFlow extends NoRollbackFlow {
             vrUuid = spec.getVmInventory().getUuid();
         }
 
+        final Map flowData = data;
         final FlowChain chain = FlowChainBuilder.newShareFlowChain();
         chain.setName(String.format("virtual-router-%s-continue-connecting", mgmtNic.getVmInstanceUuid()));
         chain.then(new ShareFlow() {
@@ -95,6 +97,7 @@ public class VyosConnectFlow extends NoRollbackFlow {
                             @Override
                             public void success(InitRsp ret) {
                                 if (ret.isSuccess()) {
+                                    VirtualRouterConfigSnapshot.prepare(flowData, ret);
                                     trigger.next();
                                 } else {
                                     trigger.fail(errf.stringToOperationError(ret.getError()));
@@ -6,6 +6,7 @@ import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.PluginRegistry;
+import org.zstack.core.db.ReadReplica;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.AbstractService;
@@ -54,7 +55,12 @@ public class QueryFacadeImpl extends AbstractService implements QueryFacade, Glo
 
         QueryBuilderFactory factory = getFactory(queryBuilderType);
         QueryBuilder builder = factory.createQueryBuilder();
-        return builder.query(msg, inventoryClass);
+        ReadReplica.enter();
+        try {
+            return builder.query(msg, inventoryClass);
+        } finally {
+            ReadReplica.exit();
+        }
     }
 
     @Override
@@ -63,7 +69,12 @@ public class QueryFacadeImpl extends AbstractService implements QueryFacade, Glo
 
         QueryBuilderFactory factory = getFactory(queryBuilderType);
         QueryBuilder builder = factory.createQueryBuilder();
-        return builder.count(msg, inventoryClass);
+        ReadReplica.enter();
+        try {
+            return builder.count(msg, inventoryClass);
+        } finally {
+            ReadReplica.exit();
+        }
     }
 
     private void populateExtensions() {
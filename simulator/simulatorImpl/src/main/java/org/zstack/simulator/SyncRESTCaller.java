@@ -33,9 +33,9 @@ public class SyncRESTCaller {
         this("http://localhost:8080/");
     }
     
-    private RestAPIResponse queryResponse(String uuid) {
+    private RestAPIResponse queryResponse(String uuid, long waitTime) {
         String url =  URLBuilder.buildUrlFromBase(baseUrl, RESTConstant.REST_API_RESULT, uuid);
-        String res = restf.getRESTTemplate().getForObject(url, String.class);
+        String res = restf.getRESTTemplate().getForObject(String.format("%s?waitTime=%s", url, waitTime), String.class);
         return JSONObjectUtil.toObject(res, RestAPIResponse.class);
     }
     
@@ -43,14 +43,18 @@ public class SyncRESTCaller {
         String msgStr = RESTApiDecoder.dump(msg);
         String url = URLBuilder.buildUrlFromBase(baseUrl, path);
         RestAPIResponse rsp = restf.syncJsonPost(url, msgStr, RestAPIResponse.class);
+        long start = System.currentTimeMillis();
         long curr = 0;
         while (!rsp.getState().equals(RestAPIState.Done.toString()) && curr < timeout) {
-            Thread.sleep(interval);
-            rsp = queryResponse(rsp.getUuid());
-            curr += interval;
+            // long poll, the server replies once the API is done; poll again after the interval if it's not
+            rsp = queryResponse(rsp.getUuid(), timeout - curr);
+            if (!rsp.getState().equals(RestAPIState.Done.toString())) {
+                Thread.sleep(interval);
+            }
+            curr = System.currentTimeMillis() - start;
         }
         
-        if (curr >= timeout) {
+        if (!rsp.getState().equals(RestAPIState.Done.toString())) {
             throw new CloudRuntimeException(String.format("timeout after %s ms, result uuid:%s", curr, rsp.getUuid()));
         }
         
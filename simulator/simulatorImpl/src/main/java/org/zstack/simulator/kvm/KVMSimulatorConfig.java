@@ -7,6 +7,7 @@ import org.zstack.network.securitygroup.SecurityGroupRuleTO;
 import org.zstack.utils.data.SizeUnit;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -54,6 +55,9 @@ public class KVMSimulatorConfig {
     public volatile boolean securityGroupSuccess = true;
     public volatile Map<String, SecurityGroupRuleTO> securityGroups = new HashMap<String, SecurityGroupRuleTO>();
     public volatile List<RefreshAllRulesOnHostCmd> securityGroupRefreshAllRulesOnHostCmds = new ArrayList<RefreshAllRulesOnHostCmd>();
+    public volatile List<ApplySecurityGroupRuleCmd> securityGroupApplyRuleCmds = new ArrayList<ApplySecurityGroupRuleCmd>();
+    // ip sets the agent holds, name -> member ranges
+    public volatile Map<String, Collection<String>> ipSets = new HashMap<String, Collection<String>>();
     public volatile Map<String, KvmVmState> vms = new HashMap<String, KvmVmState>();
     public volatile int consolePort;
     public volatile KVMAgentCommands.StartVmCmd startVmCmd;
@@ -82,6 +86,10 @@ public class KVMSimulatorConfig {
     public volatile List<CheckVmStateCmd> checkVmStateCmds = new ArrayList<CheckVmStateCmd>();
     public volatile Map<String, Map<String, String>> checkVmStatesConfig = new HashMap<String, Map<String, String>>();
     public volatile boolean vmSyncSuccess = true;
+    public volatile boolean vmSyncGenerationSupported = true;
+    public volatile long vmSyncGeneration;
+    public Map<Long, Map<String, KvmVmState>> vmSyncSnapshots = new HashMap<Long, Map<String, KvmVmState>>();
+    public List<VmSyncCmd> vmSyncCmds = new ArrayList<VmSyncCmd>();
     public List<HardenVmConsoleCmd> hardenVmConsoleCmds = new ArrayList<HardenVmConsoleCmd>();
     public List<DeleteVmConsoleFirewallCmd> deleteVmConsoleFirewallCmds  = new ArrayList<DeleteVmConsoleFirewallCmd>();
 
@@ -13,6 +13,7 @@ import org.zstack.kvm.KVMAgentCommands.*;
 import org.zstack.kvm.KVMConstant;
 import org.zstack.kvm.KVMConstant.KvmVmState;
 import org.zstack.kvm.KVMSecurityGroupBackend;
+import org.zstack.network.securitygroup.RuleTO;
 import org.zstack.network.securitygroup.SecurityGroupRuleTO;
 import org.zstack.simulator.AsyncRESTReplyer;
 import org.zstack.utils.Utils;
@@ -20,8 +21,7 @@ import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.servlet.http.HttpServletRequest;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 @Controller
 public class KVMSimulatorController {
@@ -258,15 +258,85 @@ public class KVMSimulatorController {
                 return;
             }
 
+            VmSyncCmd cmd = JSONObjectUtil.toObject(entity.getBody(), VmSyncCmd.class);
+            config.vmSyncCmds.add(cmd);
+
             HashMap<String, String> vms = new HashMap<String, String>();
-            for (Map.Entry<String, KvmVmState> e : config.vms.entrySet()) {
-                vms.put(e.getKey(), e.getValue().toString());
+            if (!config.vmSyncGenerationSupported) {
+                for (Map.Entry<String, KvmVmState> e : config.vms.entrySet()) {
+                    vms.put(e.getKey(), e.getValue().toString());
+                }
+                rsp.setStates(vms);
+                reply(entity, rsp);
+                return;
             }
+
+            // all hosts share config.vms, so keep a snapshot per generation to diff from
+            Map<String, KvmVmState> last = cmd.isFullSync() || cmd.getLastGeneration() == null ?
+                    null : config.vmSyncSnapshots.get(cmd.getLastGeneration());
+            long gen = ++config.vmSyncGeneration;
+            Map<String, KvmVmState> curr = new HashMap<String, KvmVmState>(config.vms);
+            config.vmSyncSnapshots.put(gen, curr);
+
+            if (last == null) {
+                for (Map.Entry<String, KvmVmState> e : curr.entrySet()) {
+                    vms.put(e.getKey(), e.getValue().toString());
+                }
+                rsp.setFull(true);
+            } else {
+                for (Map.Entry<String, KvmVmState> e : curr.entrySet()) {
+                    if (e.getValue() != last.get(e.getKey())) {
+                        vms.put(e.getKey(), e.getValue().toString());
+                    }
+                }
+                for (String vmUuid : last.keySet()) {
+                    if (!curr.containsKey(vmUuid)) {
+                        vms.put(vmUuid, KvmVmState.Shutdown.toString());
+                    }
+                }
+                rsp.setSinceGeneration(cmd.getLastGeneration());
+            }
+
+            rsp.setGeneration(gen);
             rsp.setStates(vms);
             reply(entity, rsp);
         }
     }
     
+    private Map<String, String> makeIpSetDigests(Collection<String> names) {
+        Map<String, String> ret = new HashMap<String, String>();
+        for (String name : names) {
+            ret.put(name, KVMSecurityGroupBackend.makeIpSetDigest(config.ipSets.get(name)));
+        }
+        return ret;
+    }
+
+    // rules referring to ip sets are kept with the member ranges of the sets, as the agent applies them
+    private SecurityGroupRuleTO expandIpSets(SecurityGroupRuleTO rto, Map<String, Collection<String>> ipSets) {
+        if (ipSets == null) {
+            return rto;
+        }
+
+        List<RuleTO> rules = new ArrayList<RuleTO>(rto.getRules().size());
+        for (RuleTO r : rto.getRules()) {
+            if (r.getAllowedInternalIpSet() != null) {
+                Collection<String> ranges = ipSets.get(r.getAllowedInternalIpSet());
+                if (ranges == null) {
+                    throw new CloudRuntimeException(String.format("ip set[%s] referred by rules of vm nic[%s] is not sent",
+                            r.getAllowedInternalIpSet(), rto.getVmNicInternalName()));
+                }
+
+                r = new RuleTO(r);
+                r.setAllowedInternalIpRange(ranges);
+            }
+            rules.add(r);
+        }
+
+        SecurityGroupRuleTO ret = new SecurityGroupRuleTO(rto);
+        ret.setRules(rules);
+        return ret;
+    }
+
     @RequestMapping(value=KVMSecurityGroupBackend.SECURITY_GROUP_REFRESH_RULE_ON_HOST_PATH, method=RequestMethod.POST)
     private @ResponseBody String refreshSecurityGroupRulesOnHost(HttpServletRequest req) throws InterruptedException {
         HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
@@ -282,12 +352,24 @@ public class KVMSimulatorController {
             rsp.setError("fail to apply security group rules on purpose");
             rsp.setSuccess(false);
         } else {
-            config.securityGroups.clear();
-            for (SecurityGroupRuleTO rto : cmd.getRuleTOs()) {
-                config.securityGroups.put(rto.getVmNicInternalName(), rto);
-                logger.debug(String.format("successfully applied security group rules for vm nic[%s], %s", rto.getVmNicInternalName(), rto));
+            try {
+                config.securityGroups.clear();
+                for (SecurityGroupRuleTO rto : cmd.getRuleTOs()) {
+                    rto = expandIpSets(rto, cmd.getIpSets());
+                    config.securityGroups.put(rto.getVmNicInternalName(), rto);
+                    logger.debug(String.format("successfully applied security group rules for vm nic[%s], %s", rto.getVmNicInternalName(), rto));
+                }
+
+                if (cmd.getIpSets() != null) {
+                    config.ipSets.clear();
+                    config.ipSets.putAll(cmd.getIpSets());
+                    rsp.setIpSetDigests(makeIpSetDigests(cmd.getIpSets().keySet()));
+                }
+                config.securityGroupRefreshAllRulesOnHostCmds.add(cmd);
+            } catch (CloudRuntimeException e) {
+                rsp.setError(e.getMessage());
+                rsp.setSuccess(false);
             }
-            config.securityGroupRefreshAllRulesOnHostCmds.add(cmd);
         }
         reply(entity, rsp);
     }
@@ -307,9 +389,46 @@ public class KVMSimulatorController {
             rsp.setError("fail to apply security group rules on purpose");
             rsp.setSuccess(false);
         } else {
-            for (SecurityGroupRuleTO rto : cmd.getRuleTOs()) {
-                config.securityGroups.put(rto.getVmNicInternalName(), rto);
-                logger.debug(String.format("succesfully applied security group rules for vm nic[%s], %s", rto.getVmNicInternalName(), rto));
+            try {
+                List<String> stale = new ArrayList<String>();
+                Map<String, Collection<String>> ipSets = null;
+                if (cmd.getIpSets() != null) {
+                    ipSets = new HashMap<String, Collection<String>>(cmd.getIpSets());
+                    if (cmd.getIpSetDigests() != null) {
+                        for (Map.Entry<String, String> e : cmd.getIpSetDigests().entrySet()) {
+                            Collection<String> members = config.ipSets.get(e.getKey());
+                            if (members == null || !KVMSecurityGroupBackend.makeIpSetDigest(members).equals(e.getValue())) {
+                                stale.add(e.getKey());
+                            } else {
+                                ipSets.put(e.getKey(), members);
+                            }
+                        }
+                    }
+                }
+
+                if (!stale.isEmpty()) {
+                    rsp.setStaleIpSets(stale);
+                    rsp.setError(String.format("ip sets%s are not held with the digests", stale));
+                    rsp.setSuccess(false);
+                    config.securityGroupApplyRuleCmds.add(cmd);
+                    reply(entity, rsp);
+                    return;
+                }
+
+                for (SecurityGroupRuleTO rto : cmd.getRuleTOs()) {
+                    rto = expandIpSets(rto, ipSets);
+                    config.securityGroups.put(rto.getVmNicInternalName(), rto);
+                    logger.debug(String.format("succesfully applied security group rules for vm nic[%s], %s", rto.getVmNicInternalName(), rto));
+                }
+
+                if (ipSets != null) {
+                    config.ipSets.putAll(cmd.getIpSets());
+                    rsp.setIpSetDigests(makeIpSetDigests(ipSets.keySet()));
+                }
+                config.securityGroupApplyRuleCmds.add(cmd);
+            } catch (CloudRuntimeException e) {
+                rsp.setError(e.getMessage());
+                rsp.setSuccess(false);
             }
         }
         reply(entity, rsp);
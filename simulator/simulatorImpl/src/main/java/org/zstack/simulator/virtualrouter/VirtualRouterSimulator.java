@@ -9,8 +9,10 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.ModelAndView;
 import org.zstack.core.thread.AsyncThread;
+import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.rest.RESTFacade;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.*;
+import org.zstack.network.service.virtualrouter.VirtualRouterConfigSnapshot;
 import org.zstack.network.service.virtualrouter.VirtualRouterConstant;
 import org.zstack.network.service.virtualrouter.VirtualRouterKvmBackendCommands.CreateVritualRouterBootstrapIsoCmd;
 import org.zstack.network.service.virtualrouter.VirtualRouterKvmBackendCommands.CreateVritualRouterBootstrapIsoRsp;
@@ -28,6 +30,8 @@ import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.HashMap;
+import java.util.Map;
 
 @Controller
 public class VirtualRouterSimulator {
@@ -40,8 +44,19 @@ public class VirtualRouterSimulator {
 
     private AsyncRESTReplyer replyer = new AsyncRESTReplyer();
 
+    // per-service commands don't tell which virtual router they are for, drop the digest of every router
+    private void dropConfigDigest(String path) {
+        String section = VirtualRouterConfigSnapshot.getSection(path);
+        synchronized (config) {
+            for (Map<String, String> digests : config.configDigests.values()) {
+                digests.remove(section);
+            }
+        }
+    }
+
     @AsyncThread
     private void doSetDhcpEntry(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_ADD_DHCP_PATH);
         AddDhcpEntryCmd cmd = JSONObjectUtil.toObject(entity.getBody(), AddDhcpEntryCmd.class);
         AddDhcpEntryRsp rsp = new AddDhcpEntryRsp();
         if (!config.setDhcpEntrySuccess) {
@@ -77,7 +92,107 @@ public class VirtualRouterSimulator {
         InitCommand cmd = JSONObjectUtil.toObject(entity.getBody(), InitCommand.class);
         config.initCommands.add(cmd);
         config.uuid = cmd.getUuid();
-        replyer.reply(entity, new InitRsp());
+        InitRsp rsp = new InitRsp();
+        if (config.applyConfigSupported) {
+            Long version = config.configVersions.get(cmd.getUuid());
+            Map<String, String> digests = config.configDigests.get(cmd.getUuid());
+            rsp.setConfigVersion(version == null ? 0 : version);
+            rsp.setConfigDigests(digests == null ? new HashMap<String, String>() : new HashMap<String, String>(digests));
+        }
+        replyer.reply(entity, rsp);
+    }
+
+    @RequestMapping(value = VirtualRouterConstant.VR_APPLY_CONFIG, method = RequestMethod.POST)
+    private @ResponseBody
+    String applyConfig(HttpServletRequest req) {
+        HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
+        doApplyConfig(entity);
+        return null;
+    }
+
+    @AsyncThread
+    private void doApplyConfig(HttpEntity<String> entity) {
+        ApplyConfigCmd cmd = JSONObjectUtil.toObject(entity.getBody(), ApplyConfigCmd.class);
+        ApplyConfigRsp rsp = new ApplyConfigRsp();
+        if (!config.applyConfigSuccess) {
+            rsp.setError("fail on purpose");
+            rsp.setSuccess(false);
+            replyer.reply(entity, rsp);
+            return;
+        }
+
+        // virtual routers share the lists of the config
+        synchronized (config) {
+            config.applyConfigCmds.add(cmd);
+            Map<String, String> digests = config.configDigests.get(cmd.getUuid());
+            if (digests == null) {
+                digests = new HashMap<String, String>();
+                config.configDigests.put(cmd.getUuid(), digests);
+            }
+
+            try {
+                for (ConfigSection section : cmd.getSections()) {
+                    applyConfigSection(section);
+                    digests.put(section.getPath(), section.getDigest());
+                }
+            } catch (CloudRuntimeException e) {
+                rsp.setError(e.getMessage());
+                rsp.setSuccess(false);
+                replyer.reply(entity, rsp);
+                return;
+            }
+            config.configVersions.put(cmd.getUuid(), cmd.getVersion());
+        }
+
+        logger.debug(String.format("successfully applied config version %s to virtual router[uuid:%s]", cmd.getVersion(), cmd.getUuid()));
+        replyer.reply(entity, rsp);
+    }
+
+    private void applyConfigSection(ConfigSection section) {
+        String path = section.getPath();
+        if (VirtualRouterConstant.VR_SET_DNS_PATH.equals(path)) {
+            SetDnsCmd cmd = JSONObjectUtil.toObject(section.getBody(), SetDnsCmd.class);
+            config.dnsInfo.clear();
+            if (!SimulatorGlobalProperty.NOT_CACHE_AGENT_COMMAND) {
+                config.dnsInfo.addAll(cmd.getDns());
+            }
+        } else if (VirtualRouterConstant.VR_ADD_DHCP_PATH.equals(path)) {
+            AddDhcpEntryCmd cmd = JSONObjectUtil.toObject(section.getBody(), AddDhcpEntryCmd.class);
+            if (cmd.isRebuild()) {
+                config.dhcpInfos.clear();
+            }
+            if (!SimulatorGlobalProperty.NOT_CACHE_AGENT_COMMAND) {
+                config.dhcpInfos.addAll(cmd.getDhcpEntries());
+                for (DhcpInfo info : cmd.getDhcpEntries()) {
+                    config.dhcpInfoMap.put(info.getMac(), info);
+                }
+            }
+        } else if (VirtualRouterConstant.VR_SYNC_SNAT_PATH.equals(path)) {
+            SyncSNATCmd cmd = JSONObjectUtil.toObject(section.getBody(), SyncSNATCmd.class);
+            config.snatInfos.clear();
+            if (!SimulatorGlobalProperty.NOT_CACHE_AGENT_COMMAND) {
+                config.snatInfos.addAll(cmd.getSnats());
+            }
+        } else if (VirtualRouterConstant.VR_CREATE_VIP.equals(path)) {
+            CreateVipCmd cmd = JSONObjectUtil.toObject(section.getBody(), CreateVipCmd.class);
+            if (!SimulatorGlobalProperty.NOT_CACHE_AGENT_COMMAND) {
+                config.vips.addAll(cmd.getVips());
+            }
+        } else if (VirtualRouterConstant.VR_SYNC_PORT_FORWARDING.equals(path)) {
+            SyncPortForwardingRuleCmd cmd = JSONObjectUtil.toObject(section.getBody(), SyncPortForwardingRuleCmd.class);
+            config.portForwardingRules.clear();
+            if (!SimulatorGlobalProperty.NOT_CACHE_AGENT_COMMAND) {
+                config.portForwardingRules.addAll(cmd.getRules());
+            }
+        } else if (VirtualRouterConstant.VR_SYNC_EIP.equals(path)) {
+            SyncEipCmd cmd = JSONObjectUtil.toObject(section.getBody(), SyncEipCmd.class);
+            config.eips.clear();
+            if (!SimulatorGlobalProperty.NOT_CACHE_AGENT_COMMAND) {
+                config.eips.addAll(cmd.getEips());
+            }
+        } else {
+            throw new CloudRuntimeException(String.format("unknown config section[%s]", path));
+        }
     }
 
     @RequestMapping(value = VirtualRouterConstant.VR_ADD_DHCP_PATH, method = RequestMethod.POST)
@@ -107,6 +222,7 @@ public class VirtualRouterSimulator {
 
     @AsyncThread
     private void createEip(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_CREATE_EIP);
         CreateEipCmd cmd = JSONObjectUtil.toObject(entity.getBody(), CreateEipCmd.class);
         CreateEipRsp rsp = new CreateEipRsp();
         if (config.eipSuccess) {
@@ -130,6 +246,7 @@ public class VirtualRouterSimulator {
 
     @AsyncThread
     private void removeEip(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_REMOVE_EIP);
         RemoveEipCmd cmd = JSONObjectUtil.toObject(entity.getBody(), RemoveEipCmd.class);
         RemoveEipRsp rsp = new RemoveEipRsp();
         if (config.removeEipSuccess) {
@@ -153,6 +270,7 @@ public class VirtualRouterSimulator {
 
     @AsyncThread
     private void syncEip(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_SYNC_EIP);
         SyncEipCmd cmd = JSONObjectUtil.toObject(entity.getBody(), SyncEipCmd.class);
         SyncEipRsp rsp = new SyncEipRsp();
         if (config.syncEipSuccess) {
@@ -169,6 +287,7 @@ public class VirtualRouterSimulator {
 
     @AsyncThread
     private void doRevokePortForwardingRules(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_REVOKE_PORT_FORWARDING);
         RevokePortForwardingRuleCmd cmd = JSONObjectUtil.toObject(entity.getBody(), RevokePortForwardingRuleCmd.class);
         RevokePortForwardingRuleRsp rsp = new RevokePortForwardingRuleRsp();
         if (!config.portForwardingSuccess) {
@@ -191,6 +310,7 @@ public class VirtualRouterSimulator {
 
     @AsyncThread
     private void doCreateVip(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_CREATE_VIP);
         CreateVipCmd cmd = JSONObjectUtil.toObject(entity.getBody(), CreateVipCmd.class);
         CreateVipRsp rsp = new CreateVipRsp();
         if (!config.vipSuccess) {
@@ -215,6 +335,7 @@ public class VirtualRouterSimulator {
 
     @AsyncThread
     private void doRemoveVip(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_REMOVE_VIP);
         RemoveVipCmd cmd = JSONObjectUtil.toObject(entity.getBody(), RemoveVipCmd.class);
         RemoveVipRsp rsp = new RemoveVipRsp();
         if (!SimulatorGlobalProperty.NOT_CACHE_AGENT_COMMAND) {
@@ -233,6 +354,7 @@ public class VirtualRouterSimulator {
     }
 
     private void doSyncPortForwardingRules(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_SYNC_PORT_FORWARDING);
         SyncPortForwardingRuleCmd cmd = JSONObjectUtil.toObject(entity.getBody(), SyncPortForwardingRuleCmd.class);
         SyncPortForwardingRuleRsp rsp = new SyncPortForwardingRuleRsp();
         if (!config.portForwardingSuccess) {
@@ -258,6 +380,7 @@ public class VirtualRouterSimulator {
 
     @AsyncThread
     private void doCreatePortForwardingRules(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_CREATE_PORT_FORWARDING);
         CreatePortForwardingRuleCmd cmd = JSONObjectUtil.toObject(entity.getBody(), CreatePortForwardingRuleCmd.class);
         CreatePortForwardingRuleRsp rsp = new CreatePortForwardingRuleRsp();
         if (!config.portForwardingSuccess) {
@@ -302,6 +425,7 @@ public class VirtualRouterSimulator {
 
     @AsyncThread
     private void syncSNAT(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_SYNC_SNAT_PATH);
         SyncSNATCmd cmd = JSONObjectUtil.toObject(entity.getBody(), SyncSNATCmd.class);
         SyncSNATRsp rsp = new SyncSNATRsp();
         if (!config.setSNATSuccess) {
@@ -356,6 +480,7 @@ public class VirtualRouterSimulator {
 
     @AsyncThread
     private void doSetSNAT(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_SET_SNAT_PATH);
         SetSNATCmd cmd = JSONObjectUtil.toObject(entity.getBody(), SetSNATCmd.class);
         SetSNATRsp rsp = new SetSNATRsp();
         if (!config.setSNATSuccess) {
@@ -376,6 +501,7 @@ public class VirtualRouterSimulator {
     private @ResponseBody
     String removeDNS(HttpServletRequest req) {
         HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
+        dropConfigDigest(VirtualRouterConstant.VR_REMOVE_DNS_PATH);
         RemoveDnsCmd cmd = JSONObjectUtil.toObject(entity.getBody(), RemoveDnsCmd.class);
         config.removeDnsCmds.add(cmd);
         replyer.reply(entity, new RemoveDnsRsp());
@@ -391,6 +517,7 @@ public class VirtualRouterSimulator {
     }
 
     private void doSetDNS(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_SET_DNS_PATH);
         SetDnsCmd cmd = JSONObjectUtil.toObject(entity.getBody(), SetDnsCmd.class);
         SetDnsRsp rsp = new SetDnsRsp();
         if (!config.setDnsSuccess) {
@@ -471,6 +598,7 @@ public class VirtualRouterSimulator {
     }
 
     private void doRemoveDhcpEntry(HttpEntity<String> entity) {
+        dropConfigDigest(VirtualRouterConstant.VR_REMOVE_DHCP_PATH);
         RemoveDhcpEntryRsp rsp = new RemoveDhcpEntryRsp();
         if (config.removedDhcpSuccess) {
             RemoveDhcpEntryCmd cmd = JSONObjectUtil.toObject(entity.getBody(), RemoveDhcpEntryCmd.class);
@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class VirtualRouterSimulatorConfig {
 	public volatile boolean setDhcpEntrySuccess = true;
@@ -40,5 +41,12 @@ public class VirtualRouterSimulatorConfig {
     public volatile boolean refreshLbSuccess = true;
 	public volatile List<DeleteLbCmd> deleteLbCmds = new ArrayList<DeleteLbCmd>();
 	public volatile List<RemoveDnsCmd> removeDnsCmds = new ArrayList<RemoveDnsCmd>();
+	// false simulates agents not knowing ApplyConfigCmd
+	public volatile boolean applyConfigSupported = false;
+	public volatile boolean applyConfigSuccess = true;
+	public volatile List<ApplyConfigCmd> applyConfigCmds = new ArrayList<ApplyConfigCmd>();
+	// the config version and section digests applied by each virtual router, removing one simulates an agent restart
+	public volatile Map<String, Long> configVersions = new ConcurrentHashMap<String, Long>();
+	public volatile Map<String, Map<String, String>> configDigests = new ConcurrentHashMap<String, Map<String, String>>();
 
 }
@@ -15,6 +15,8 @@ public class BackupStorageGlobalConfig {
 
     @GlobalConfigValidation(numberGreaterThan = 0)
     public static GlobalConfig PING_PARALLELISM_DEGREE = new GlobalConfig(CATEGORY, "ping.parallelismDegree");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig PING_MAX_INTERVAL_MULTIPLIER = new GlobalConfig(CATEGORY, "ping.maxIntervalMultiplier");
 
     @GlobalConfigValidation
     public static GlobalConfig RESERVED_CAPACITY = new GlobalConfig(CATEGORY, "reservedCapacity");
@@ -43,6 +43,11 @@ public class BackupStoragePingTracker extends PingTracker {
         return BackupStorageGlobalConfig.PING_PARALLELISM_DEGREE.value(Integer.class);
     }
 
+    @Override
+    protected int getMaxPingIntervalMultiplier() {
+        return BackupStorageGlobalConfig.PING_MAX_INTERVAL_MULTIPLIER.value(Integer.class);
+    }
+
     @Override
     public void handleReply(String resourceUuid, MessageReply reply) {
         // nothing to do
@@ -18,4 +18,6 @@ public class PrimaryStorageGlobalConfig {
     public static GlobalConfig PING_INTERVAL = new GlobalConfig(CATEGORY, "ping.interval");
     @GlobalConfigValidation(numberGreaterThan = 0)
     public static GlobalConfig PING_PARALLELISM_DEGREE = new GlobalConfig(CATEGORY, "ping.parallelismDegree");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig PING_MAX_INTERVAL_MULTIPLIER = new GlobalConfig(CATEGORY, "ping.maxIntervalMultiplier");
 }
@@ -39,6 +39,11 @@ public class PrimaryStoragePingTracker extends PingTracker {
         return PrimaryStorageGlobalConfig.PING_PARALLELISM_DEGREE.value(Integer.class);
     }
 
+    @Override
+    protected int getMaxPingIntervalMultiplier() {
+        return PrimaryStorageGlobalConfig.PING_MAX_INTERVAL_MULTIPLIER.value(Integer.class);
+    }
+
     @Override
     public void handleReply(String resourceUuid, MessageReply reply) {
         // nothing to do
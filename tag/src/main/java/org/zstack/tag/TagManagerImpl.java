@@ -676,7 +676,9 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         Query q = dbf.getEntityManager().createQuery(sql);
         q.setParameter("resourceTypes", rtypes);
         q.setParameter("resourceUuids", entityIds);
-        q.executeUpdate();
+        if (q.executeUpdate() > 0) {
+            dbf.entityChanged(SystemTagVO.class, null);
+        }
 
         sql = "delete from UserTagVO s" +
                 " where s.resourceType in (:resourceTypes)" +
@@ -0,0 +1,119 @@
+package org.zstack.test.compute.host;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.host.HostGlobalConfig;
+import org.zstack.compute.host.HostTrackImpl;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.host.HostStatus;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.simulator.SimulatorController;
+import org.zstack.test.*;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.utils.CollectionDSL.list;
+
+/**
+ * set ping interval to 1s and let healthy hosts be pinged up to every 4s
+ * <p>
+ * 1. create 10 hosts
+ * <p>
+ * confirm all hosts are tracked and pings are not late
+ * confirm pings of all hosts are backed off to every 4s after they are stable
+ * <p>
+ * 2. disconnect a host after the hosts are stable
+ * <p>
+ * confirm the host is detected disconnected though its pings are backed off
+ * confirm the disconnected host is pinged at the ping interval at most again
+ * <p>
+ * 3. delete the host
+ * <p>
+ * confirm the host is not tracked
+ * <p>
+ * 4. rescan hosts as a management node joins
+ * <p>
+ * confirm the hosts are still tracked and keep their backed off ping periods
+ */
+public class TestHostPingTracker {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    SimulatorController sctrl;
+    HostTrackImpl tracker;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ClusterManager.xml")
+                .addXml("ZoneManager.xml").addXml("HostManager.xml")
+                .addXml("Simulator.xml").addXml("AccountManager.xml")
+                .addXml("HostAllocatorManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        sctrl = loader.getComponent(SimulatorController.class);
+        tracker = loader.getComponent(HostTrackImpl.class);
+        HostGlobalConfig.PING_HOST_INTERVAL.updateValue(1);
+        HostGlobalConfig.PING_MAX_INTERVAL_MULTIPLIER.updateValue(4);
+        HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.updateValue(false);
+        api = new Api();
+        api.startServer();
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        ClusterInventory cluster = api.createClusters(1, zone.getUuid()).get(0);
+        final List<HostInventory> hosts = api.createHost(10, cluster.getUuid());
+        Assert.assertEquals(10, tracker.getTrackedNumber());
+
+        // 3 pings at 1s to back off to 2s, 3 pings at 2s to back off to 4s
+        UnitTestUtils.sleepRetry(new Callable() {
+            @Override
+            public Object call() throws Exception {
+                for (HostInventory h : hosts) {
+                    Assert.assertEquals(TimeUnit.SECONDS.toMillis(4), tracker.getPingPeriod(h.getUuid()).longValue());
+                }
+                return null;
+            }
+        }, 15);
+        for (HostInventory h : hosts) {
+            Assert.assertEquals(TimeUnit.SECONDS.toMillis(4), tracker.getPingPeriod(h.getUuid()).longValue());
+        }
+        Assert.assertTrue(tracker.getLag() < TimeUnit.SECONDS.toMillis(1));
+
+        final HostInventory host = hosts.get(0);
+        sctrl.setSimulatorHostConnectionState(host.getUuid(), true);
+        UnitTestUtils.sleepRetry(new Callable() {
+            @Override
+            public Object call() throws Exception {
+                HostInventory h = api.listHosts(list(host.getUuid())).get(0);
+                Assert.assertEquals(HostStatus.Disconnected.toString(), h.getStatus());
+                return null;
+            }
+        }, 16);
+        HostInventory h = api.listHosts(list(host.getUuid())).get(0);
+        Assert.assertEquals(HostStatus.Disconnected.toString(), h.getStatus());
+        // the period is set after the reply of the ping is handled
+        TimeUnit.MILLISECONDS.sleep(500);
+        Assert.assertTrue(tracker.getPingPeriod(host.getUuid()) <= TimeUnit.SECONDS.toMillis(1));
+
+        api.deleteHost(host.getUuid());
+        Assert.assertEquals(9, tracker.getTrackedNumber());
+        Assert.assertNull(tracker.getPingPeriod(host.getUuid()));
+
+        tracker.nodeJoin("another-node");
+        Assert.assertEquals(9, tracker.getTrackedNumber());
+        Assert.assertNull(tracker.getPingPeriod(host.getUuid()));
+        for (HostInventory hi : hosts.subList(1, hosts.size())) {
+            Assert.assertEquals(TimeUnit.SECONDS.toMillis(4), tracker.getPingPeriod(hi.getUuid()).longValue());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.zstack.test.compute.hostallocator;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.allocator.HostAllocatorGlobalConfig;
+import org.zstack.compute.allocator.HostCapacityIndex;
+import org.zstack.compute.allocator.HostCapacityIndex.IndexedHost;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.host.HostState;
+import org.zstack.header.host.HostStateEvent;
+import org.zstack.header.host.HostStatus;
+import org.zstack.header.host.HostVO;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.simulator.SimulatorConstant;
+import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.data.SizeUnit;
+
+import java.util.List;
+
+import static org.zstack.utils.CollectionDSL.list;
+
+/**
+ * 1. have 6 hosts, only the last host have enough capacity
+ * 2. set hostAllocator.capacityIndex to true and sync the index
+ * 3. set hostAllocator.paginationLimit = 1
+ * 4. create vm
+ * 5. disable the host
+ * 6. enable the host, then mark it disconnected in the database behind the index
+ * 7. create another vm
+ *
+ * confirm the index only offers the last host, the vm is created on it,
+ * the index follows the capacity taken by the vm and the state of the host
+ * confirm the second vm fails to create as the database, not the index, decides the host status
+ */
+public class TestHostCapacityIndex {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    HostCapacityIndex capacityIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/hostAllocator/TestHostAllocationPaginationStrategy1.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        capacityIndex = loader.getComponent(HostCapacityIndex.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        L3NetworkInventory l3 = deployer.l3Networks.get("l3Network1");
+        InstanceOfferingInventory instanceOffering = deployer.instanceOfferings.get("instanceOffering512M512HZ");
+        ImageInventory imageInventory = deployer.images.get("image1");
+        ClusterInventory cluster = deployer.clusters.get("cluster1");
+        HostAllocatorGlobalConfig.USE_PAGINATION.updateValue(true);
+        HostAllocatorGlobalConfig.PAGINATION_LIMIT.updateValue(1);
+        HostAllocatorGlobalConfig.CAPACITY_INDEX.updateValue(true);
+
+        HostInventory host = new HostInventory();
+        host.setName("host5");
+        host.setHypervisorType(SimulatorConstant.SIMULATOR_HYPERVISOR_TYPE);
+        host.setManagementIp("10.0.0.15");
+        host.setClusterUuid(cluster.getUuid());
+        host.setAvailableCpuCapacity(2600L);
+        host.setAvailableMemoryCapacity(SizeUnit.GIGABYTE.toByte(32));
+        host = api.addHostByFullConfig(host);
+
+        capacityIndex.sync();
+        Assert.assertTrue(capacityIndex.isReady());
+
+        List<String> huuids = capacityIndex.findHostUuids(null, SimulatorConstant.SIMULATOR_HYPERVISOR_TYPE,
+                instanceOffering.getCpuNum() * instanceOffering.getCpuSpeed(), instanceOffering.getMemorySize());
+        Assert.assertEquals(1, huuids.size());
+        Assert.assertEquals(host.getUuid(), huuids.get(0));
+
+        VmInstanceInventory vm = new VmInstanceInventory();
+        vm.setName("vm");
+        vm.setType(VmInstanceConstant.USER_VM_TYPE);
+        vm.setImageUuid(imageInventory.getUuid());
+        vm.setInstanceOfferingUuid(instanceOffering.getUuid());
+        vm = api.createVmByFullConfig(vm, null, list(l3.getUuid()), null);
+        Assert.assertEquals(host.getUuid(), vm.getHostUuid());
+
+        HostCapacityVO cap = dbf.findByUuid(host.getUuid(), HostCapacityVO.class);
+        IndexedHost indexed = capacityIndex.get(host.getUuid());
+        Assert.assertEquals(cap.getAvailableCpu(), indexed.getAvailableCpu());
+        Assert.assertEquals(cap.getAvailableMemory(), indexed.getAvailableMemory());
+        Assert.assertTrue(indexed.getAvailableMemory() < SizeUnit.GIGABYTE.toByte(32));
+
+        api.changeHostState(host.getUuid(), HostStateEvent.disable);
+        Assert.assertEquals(HostState.Disabled.toString(), capacityIndex.get(host.getUuid()).getState());
+        huuids = capacityIndex.findHostUuids(list(cluster.getUuid()), null, 0, 0);
+        Assert.assertTrue(huuids.isEmpty());
+
+        api.changeHostState(host.getUuid(), HostStateEvent.enable);
+        HostVO hvo = dbf.findByUuid(host.getUuid(), HostVO.class);
+        hvo.setStatus(HostStatus.Disconnected);
+        dbf.update(hvo);
+        Assert.assertEquals(HostStatus.Connected.toString(), capacityIndex.get(host.getUuid()).getStatus());
+
+        vm = new VmInstanceInventory();
+        vm.setName("vm2");
+        vm.setType(VmInstanceConstant.USER_VM_TYPE);
+        vm.setImageUuid(imageInventory.getUuid());
+        vm.setInstanceOfferingUuid(instanceOffering.getUuid());
+        boolean s = false;
+        try {
+            api.createVmByFullConfig(vm, null, list(l3.getUuid()), null);
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+    }
+}
@@ -0,0 +1,72 @@
+package org.zstack.test.compute.zone;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.rest.RESTApiDecoder;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.rest.*;
+import org.zstack.header.zone.APICreateZoneEvent;
+import org.zstack.header.zone.APICreateZoneMsg;
+import org.zstack.test.Api;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.utils.URLBuilder;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+/**
+ * 1. create a zone by http api
+ * 2. get the result with waitTime
+ *
+ * confirm the result is returned by one request once the api is done
+ * confirm the result is kept after the api is done
+ */
+public class TestCreateZoneByHttpApi1 {
+    Api api;
+    ComponentLoader loader;
+    RESTFacade restf;
+    RESTApiFacade restApi;
+    SessionInventory session;
+    CLogger logger = Utils.getLogger(TestCreateZoneByHttpApi1.class);
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        con.setPort(8080);
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ZoneManager.xml").addXml("AccountManager.xml").addXml("RESTFacade.xml").build();
+        restf = loader.getComponent(RESTFacade.class);
+        restApi = loader.getComponent(RESTApiFacade.class);
+        api = new Api();
+        api.startServer();
+        session = api.loginAsAdmin();
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        APICreateZoneMsg msg = new APICreateZoneMsg();
+        msg.setSession(session);
+        msg.setName("TestZone");
+        msg.setDescription("TestZone");
+
+        String baseUrl = "http://localhost:8080/";
+        RestAPIResponse rsp = restf.syncJsonPost(URLBuilder.buildUrlFromBase(baseUrl, RESTConstant.REST_API_CALL),
+                RESTApiDecoder.dump(msg), RestAPIResponse.class);
+
+        String url = URLBuilder.buildUrlFromBase(baseUrl, RESTConstant.REST_API_RESULT, rsp.getUuid());
+        String res = restf.getRESTTemplate().getForObject(String.format("%s?waitTime=%s", url, 15000), String.class);
+        rsp = JSONObjectUtil.toObject(res, RestAPIResponse.class);
+        Assert.assertEquals(RestAPIState.Done.toString(), rsp.getState());
+        logger.debug(rsp.getResult());
+        APICreateZoneEvent evt = (APICreateZoneEvent) RESTApiDecoder.loads(rsp.getResult());
+        Assert.assertTrue(evt.isSuccess());
+
+        rsp = restApi.getResult(rsp.getUuid());
+        Assert.assertEquals(RestAPIState.Done.toString(), rsp.getState());
+        Assert.assertNotNull(rsp.getFinishedDate());
+    }
+}
@@ -0,0 +1,152 @@
+package org.zstack.test.core.ansible;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.ansible.AnsibleConstant;
+import org.zstack.core.ansible.RunAnsibleMsg;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.message.MessageReply;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.ShellUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.path.PathUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.utils.StringDSL.ln;
+
+/**
+ * enable Ansible.batchDeploy, use a stub of ansible-playbook which prints what ansible-playbook does
+ *
+ * 1. run a playbook on 5 hosts at the same time, it fails on 2 of them
+ *
+ * confirm the playbook runs for all hosts in one ansible-playbook process
+ * confirm each host gets its own arguments
+ * confirm the hosts the playbook fails on get failure replies with only their own output, the others get success replies
+ */
+public class TestAnsibleBatchDeploy {
+    CLogger logger = Utils.getLogger(TestAnsibleBatchDeploy.class);
+    ComponentLoader loader;
+    CloudBus bus;
+    File ansiblePlaybook;
+    File playbook;
+    File log;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("Ansible.batchDeploy", "true");
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        bus = loader.getComponent(CloudBus.class);
+
+        ansiblePlaybook = new File(PathUtil.join(AnsibleConstant.ROOT_DIR, "test-ansible-playbook.py"));
+        playbook = new File(PathUtil.join(AnsibleConstant.ROOT_DIR, "testbatch.yaml"));
+        log = new File(PathUtil.join(AnsibleConstant.ROOT_DIR, "testbatch.log"));
+        FileUtils.deleteQuietly(log);
+        FileUtils.writeStringToFile(playbook, "");
+        // the host variables are read from host_vars next to the inventory, like ansible-playbook does
+        FileUtils.writeStringToFile(ansiblePlaybook, ln(
+                "import json, os, sys",
+                "inventory = sys.argv[sys.argv.index('-i') + 1]",
+                "hosts = [h.strip() for h in open(inventory).read().split('\\n') if h.strip()]",
+                "print('TASK [deploy] ' + '*' * 60)",
+                "failed = []",
+                "for h in hosts:",
+                "    args = json.load(open(os.path.join(os.path.dirname(inventory), 'host_vars', h)))",
+                "    with open(args['log'], 'a') as f:",
+                "        f.write('%s %s\\n' % (h, os.getpid()))",
+                "    if args.get('fail'):",
+                "        failed.append(h)",
+                "        print('fatal: [%s]: FAILED! => {\"msg\": \"failed on purpose on %s\"}' % (h, h))",
+                "    else:",
+                "        print('ok: [%s]' % h)",
+                "print('')",
+                "print('PLAY RECAP ' + '*' * 60)",
+                "for h in hosts:",
+                "    print('%-26s : ok=1    changed=0    unreachable=0    failed=%d' % (h, 1 if h in failed else 0))",
+                "sys.exit(2 if failed else 0)"
+        ).toString());
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("Ansible.batchDeploy");
+        FileUtils.deleteQuietly(ansiblePlaybook);
+        FileUtils.deleteQuietly(playbook);
+        FileUtils.deleteQuietly(log);
+    }
+
+    @Test
+    public void test() throws InterruptedException, IOException {
+        String python = ShellUtils.runAndReturn("which python", false).getRetCode() == 0 ? "python" : "python3";
+        String executable = String.format("%s %s", python, ansiblePlaybook.getAbsolutePath());
+        List<String> ips = Arrays.asList("127.0.0.11", "127.0.0.12", "127.0.0.13", "127.0.0.14", "127.0.0.15");
+        Set<String> failedIps = new HashSet<String>(Arrays.asList("127.0.0.12", "127.0.0.14"));
+
+        final Map<String, MessageReply> replies = new ConcurrentHashMap<String, MessageReply>();
+        final CountDownLatch latch = new CountDownLatch(ips.size());
+        for (final String ip : ips) {
+            Map<String, Object> args = new HashMap<String, Object>();
+            args.put("log", log.getAbsolutePath());
+            if (failedIps.contains(ip)) {
+                args.put("fail", true);
+            }
+
+            RunAnsibleMsg msg = new RunAnsibleMsg();
+            msg.setTargetIp(ip);
+            msg.setPlayBookPath(playbook.getAbsolutePath());
+            msg.setPrivateKeyFile(PathUtil.findFileOnClassPath(AnsibleConstant.RSA_PRIVATE_KEY, true).getAbsolutePath());
+            msg.setAnsibleExecutable(executable);
+            msg.setArguments(args);
+            bus.makeLocalServiceId(msg, AnsibleConstant.SERVICE_ID);
+            bus.send(msg, new CloudBusCallBack() {
+                @Override
+                public void run(MessageReply reply) {
+                    replies.put(ip, reply);
+                    latch.countDown();
+                }
+            });
+        }
+
+        Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+
+        for (String ip : ips) {
+            MessageReply reply = replies.get(ip);
+            if (failedIps.contains(ip)) {
+                Assert.assertFalse(reply.isSuccess());
+                logger.debug(reply.getError().toString());
+                String details = reply.getError().getDetails();
+                Assert.assertTrue(details, details.contains(String.format("failed on purpose on %s", ip)));
+                for (String other : ips) {
+                    if (!other.equals(ip)) {
+                        Assert.assertFalse(details, details.contains(String.format("[%s]", other)));
+                    }
+                }
+            } else {
+                Assert.assertTrue(reply.isSuccess());
+            }
+        }
+
+        // every host is run by the same ansible-playbook process
+        Set<String> hosts = new HashSet<String>();
+        Set<String> parents = new HashSet<String>();
+        for (String line : FileUtils.readLines(log)) {
+            String[] pair = line.trim().split(" ");
+            hosts.add(pair[0]);
+            parents.add(pair[1]);
+        }
+        Assert.assertEquals(new HashSet<String>(ips), hosts);
+        Assert.assertEquals(1, parents.size());
+    }
+}
@@ -0,0 +1,114 @@
+package org.zstack.test.core.cloudbus;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ReturnListener;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a channel in confirm mode confirming publishes as the policy decides, without a broker
+ */
+public class FakePublisherChannel implements InvocationHandler {
+    public interface ConfirmPolicy {
+        /**
+         * @param tries how many times the message has been published, including this one
+         * @return true to ack the publish, false to nack it, null to never confirm it
+         */
+        Boolean confirm(String message, int tries);
+
+        long getDelayInMillis(String message, int tries);
+    }
+
+    private final ConfirmPolicy policy;
+    // confirms are sent in order, like the broker does on a channel
+    private final ScheduledExecutorService confirmer = Executors.newSingleThreadScheduledExecutor();
+    private volatile ConfirmListener confirmListener;
+    private volatile ReturnListener returnListener;
+    private long nextSeqNo = 1;
+    private final Map<String, Integer> tries = new HashMap<String, Integer>();
+
+    public final List<String> published = Collections.synchronizedList(new ArrayList<String>());
+    public final List<String> acked = Collections.synchronizedList(new ArrayList<String>());
+    // returned as unroutable the first time they are published, before being acked, like the broker does
+    public final Set<String> toReturn = Collections.synchronizedSet(new HashSet<String>());
+
+    public FakePublisherChannel(ConfirmPolicy policy) {
+        this.policy = policy;
+    }
+
+    public Channel getChannel() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class[]{Channel.class}, this);
+    }
+
+    private synchronized void basicPublish(final String message) {
+        published.add(message);
+        Integer t = tries.get(message);
+        final int num = t == null ? 1 : t + 1;
+        tries.put(message, num);
+
+        final long seq = nextSeqNo++;
+        final Boolean ack = policy.confirm(message, num);
+        if (ack == null) {
+            return;
+        }
+
+        confirmer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (num == 1 && toReturn.contains(message)) {
+                        returnListener.handleReturn(312, "NO_ROUTE", "P2P", "key", null, message.getBytes());
+                    }
+
+                    if (ack) {
+                        acked.add(message);
+                        confirmListener.handleAck(seq, false);
+                    } else {
+                        confirmListener.handleNack(seq, false);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, policy.getDelayInMillis(message, num), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("addConfirmListener")) {
+            confirmListener = (ConfirmListener) args[0];
+            return null;
+        } else if (name.equals("addReturnListener")) {
+            returnListener = (ReturnListener) args[0];
+            return null;
+        } else if (name.equals("getNextPublishSeqNo")) {
+            synchronized (this) {
+                return nextSeqNo;
+            }
+        } else if (name.equals("basicPublish") && args.length == 5) {
+            basicPublish(new String((byte[]) args[4]));
+            return null;
+        } else if (name.equals("confirmSelect") || name.equals("addShutdownListener")) {
+            return null;
+        } else if (name.equals("close") || name.equals("abort")) {
+            confirmer.shutdownNow();
+            return null;
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("equals")) {
+            return proxy == args[0];
+        } else if (name.equals("toString")) {
+            return "FakePublisherChannel";
+        }
+
+        throw new UnsupportedOperationException(name);
+    }
+}
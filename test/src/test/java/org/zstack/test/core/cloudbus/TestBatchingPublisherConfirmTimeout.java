@@ -0,0 +1,61 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.BatchingPublisher;
+import org.zstack.core.cloudbus.BatchingPublisher.PublishCallback;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. publish a message the broker never confirms, with a confirm timeout of 1s
+ * 2. publish another message the broker acks
+ *
+ * confirm the first publish() returns at once and its callback is failed after the confirm timeout
+ * confirm the second message is acked
+ * confirm no message is left unconfirmed
+ */
+public class TestBatchingPublisherConfirmTimeout {
+    @Test
+    public void test() throws InterruptedException {
+        FakePublisherChannel chan = new FakePublisherChannel(new FakePublisherChannel.ConfirmPolicy() {
+            @Override
+            public Boolean confirm(String message, int tries) {
+                return message.equals("lost") ? null : true;
+            }
+
+            @Override
+            public long getDelayInMillis(String message, int tries) {
+                return 0;
+            }
+        });
+
+        long timeout = 1000;
+        BatchingPublisher publisher = new BatchingPublisher(chan.getChannel(), null, 10, 1, timeout);
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        publisher.publish("P2P", "key", null, "lost".getBytes(), new PublishCallback() {
+            @Override
+            public void fail(String reason) {
+                failed.countDown();
+            }
+        });
+        Assert.assertTrue(System.currentTimeMillis() - start < timeout);
+
+        Assert.assertTrue(failed.await(timeout * 5, TimeUnit.MILLISECONDS));
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue(elapsed >= timeout);
+
+        publisher.publish("P2P", "key", null, "ok".getBytes());
+        for (int i = 0; i < 50 && chan.acked.isEmpty(); i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        Assert.assertEquals(Arrays.asList("lost", "ok"), chan.published);
+        Assert.assertEquals(Arrays.asList("ok"), chan.acked);
+        Assert.assertEquals(0, publisher.getStatistic().getUnconfirmedMessageNum());
+        publisher.destruct();
+    }
+}
@@ -0,0 +1,78 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.BatchingPublisher;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. publish m1 to a routing key, which the broker nacks the first time after a while
+ * 2. publish m2 and m3 to the same routing key before m1 is nacked
+ *
+ * confirm m1 is published again ahead of m2 and m3
+ * confirm the broker acks m1, m2 and m3 in the order they are published
+ * confirm no publish() call fails
+ */
+public class TestBatchingPublisherNack {
+    CLogger logger = Utils.getLogger(TestBatchingPublisherNack.class);
+
+    private Thread publishInThread(final BatchingPublisher publisher, final String message, final List<Throwable> errors) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    publisher.publish("P2P", "key", null, message.getBytes());
+                } catch (Throwable e) {
+                    logger.warn(e.getMessage(), e);
+                    errors.add(e);
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        FakePublisherChannel chan = new FakePublisherChannel(new FakePublisherChannel.ConfirmPolicy() {
+            @Override
+            public Boolean confirm(String message, int tries) {
+                return !(message.equals("m1") && tries == 1);
+            }
+
+            @Override
+            public long getDelayInMillis(String message, int tries) {
+                return message.equals("m1") && tries == 1 ? 500 : 0;
+            }
+        });
+
+        BatchingPublisher publisher = new BatchingPublisher(chan.getChannel(), null, 10, 1, 10000);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread t1 = publishInThread(publisher, "m1", errors);
+        TimeUnit.MILLISECONDS.sleep(100);
+        Thread t2 = publishInThread(publisher, "m2", errors);
+        TimeUnit.MILLISECONDS.sleep(50);
+        Thread t3 = publishInThread(publisher, "m3", errors);
+
+        t1.join(TimeUnit.SECONDS.toMillis(10));
+        t2.join(TimeUnit.SECONDS.toMillis(10));
+        t3.join(TimeUnit.SECONDS.toMillis(10));
+        // publish() doesn't wait for the confirms
+        for (int i = 0; i < 100 && chan.acked.size() < 3; i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        Assert.assertTrue(errors.isEmpty());
+        Assert.assertEquals(Arrays.asList("m1", "m1", "m2", "m3"), chan.published);
+        Assert.assertEquals(Arrays.asList("m1", "m2", "m3"), chan.acked);
+        Assert.assertEquals(0, publisher.getStatistic().getUnconfirmedMessageNum());
+        publisher.destruct();
+    }
+}
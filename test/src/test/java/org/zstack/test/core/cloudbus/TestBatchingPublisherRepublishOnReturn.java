@@ -0,0 +1,70 @@
+package org.zstack.test.core.cloudbus;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ReturnListener;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.BatchingPublisher;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. publish m1, which the broker returns as unroutable before acking it
+ * 2. in the return listener, publish m2 and wait until the broker acks it
+ *
+ * confirm the return listener doesn't block the thread delivering the confirms, so m2 is acked
+ * confirm m1 and m2 are both acked and nothing is left unconfirmed
+ */
+public class TestBatchingPublisherRepublishOnReturn {
+    private BatchingPublisher publisher;
+
+    @Test
+    public void test() throws InterruptedException {
+        final FakePublisherChannel chan = new FakePublisherChannel(new FakePublisherChannel.ConfirmPolicy() {
+            @Override
+            public Boolean confirm(String message, int tries) {
+                return true;
+            }
+
+            @Override
+            public long getDelayInMillis(String message, int tries) {
+                return 0;
+            }
+        });
+        chan.toReturn.add("m1");
+
+        final CountDownLatch republished = new CountDownLatch(1);
+        publisher = new BatchingPublisher(chan.getChannel(), new ReturnListener() {
+            @Override
+            public void handleReturn(int replyCode, String replyText, String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                publisher.publish("P2P", "key", null, "m2".getBytes());
+                try {
+                    for (int i = 0; i < 50 && !chan.acked.contains("m2"); i++) {
+                        TimeUnit.MILLISECONDS.sleep(100);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                if (chan.acked.contains("m2")) {
+                    republished.countDown();
+                }
+            }
+        }, 10, 1, 10000);
+
+        publisher.publish("P2P", "key", null, "m1".getBytes());
+        Assert.assertTrue(republished.await(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 50 && chan.acked.size() < 2; i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        Assert.assertEquals(Arrays.asList("m1", "m2"), chan.published);
+        Assert.assertEquals(2, chan.acked.size());
+        Assert.assertTrue(chan.acked.containsAll(Arrays.asList("m1", "m2")));
+        Assert.assertEquals(0, publisher.getStatistic().getUnconfirmedMessageNum());
+        publisher.destruct();
+    }
+}
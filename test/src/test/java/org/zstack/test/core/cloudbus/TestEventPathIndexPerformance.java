@@ -0,0 +1,119 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.EventFacadeImpl;
+import org.zstack.core.cloudbus.EventPathIndex;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * subscribe 10k paths, most of them literal like GC triggers, the rest with '{token}', '*' and '?'
+ *
+ * confirm EventPathIndex matches the same subscriptions as testing every subscription's regex
+ * confirm matching with EventPathIndex is faster
+ * confirm removed subscriptions are not matched
+ */
+public class TestEventPathIndexPerformance {
+    CLogger logger = Utils.getLogger(TestEventPathIndexPerformance.class);
+    int subscriberNum = 10000;
+    int rounds = 10000;
+
+    private class Sub {
+        String id = UUID.randomUUID().toString();
+        String glob;
+        String regex;
+
+        Sub(String path) {
+            glob = path.replaceAll("\\{.*\\}", ".*");
+            regex = new EventFacadeImpl().createRegexFromGlob(glob);
+        }
+    }
+
+    private String uuid(int i) {
+        return UUID.nameUUIDFromBytes(String.valueOf(i).getBytes()).toString().replace("-", "");
+    }
+
+    private List<String> naiveMatch(List<Sub> subs, String path) {
+        List<String> ret = new ArrayList<String>();
+        for (Sub s : subs) {
+            if (path.matches(s.regex)) {
+                ret.add(s.id);
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void test() {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < subscriberNum; i++) {
+            switch (i % 10) {
+                case 0:
+                    paths.add(String.format("/vm/%s/state/{state}", uuid(i)));
+                    break;
+                case 1:
+                    paths.add(String.format("/host/%s/*", uuid(i)));
+                    break;
+                case 2:
+                    paths.add("/globalConfig/update/{category}/{name}/{nodeUuid}");
+                    break;
+                case 3:
+                    paths.add("/vm/state/change");
+                    break;
+                default:
+                    paths.add(String.format("/gc/%s/trigger", uuid(i)));
+            }
+        }
+
+        List<Sub> subs = new ArrayList<Sub>();
+        EventPathIndex<String> index = new EventPathIndex<String>();
+        for (String p : paths) {
+            Sub s = new Sub(p);
+            subs.add(s);
+            index.add(s.id, s.glob, s.regex, s.id);
+        }
+        Assert.assertEquals(subscriberNum, index.size());
+
+        List<String> events = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            events.add(String.format("/vm/%s/state/Running", uuid(i * 10)));
+            events.add(String.format("/host/%s/status/change", uuid(i * 10 + 1)));
+            events.add(String.format("/globalConfig/update/host/ping.interval/%s", uuid(i)));
+            events.add("/vm/state/change");
+            events.add(String.format("/gc/%s/trigger", uuid(i * 10 + 4)));
+            events.add(String.format("/gc/%s/trigger", uuid(-i)));
+        }
+
+        for (String e : events) {
+            Assert.assertEquals(e, new HashSet<String>(naiveMatch(subs, e)), new HashSet<String>(index.match(e)));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds / 100; i++) {
+            naiveMatch(subs, events.get(i % events.size()));
+        }
+        long naive = (System.nanoTime() - start) / (rounds / 100);
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            index.match(events.get(i % events.size()));
+        }
+        long indexed = (System.nanoTime() - start) / rounds;
+
+        logger.debug(String.format("matching an event among %s subscribers: %sus by testing every regex, %sus by EventPathIndex",
+                subscriberNum, TimeUnit.NANOSECONDS.toMicros(naive), TimeUnit.NANOSECONDS.toMicros(indexed)));
+        Assert.assertTrue(indexed < naive);
+
+        for (Sub s : subs) {
+            index.remove(s.id);
+        }
+        Assert.assertEquals(0, index.size());
+        for (String e : events) {
+            Assert.assertTrue(index.match(e).isEmpty());
+        }
+    }
+}
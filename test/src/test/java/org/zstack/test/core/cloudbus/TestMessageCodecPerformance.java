@@ -0,0 +1,134 @@
+package org.zstack.test.core.cloudbus;
+
+import com.google.gson.*;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.JsonMessageCodec;
+import org.zstack.core.cloudbus.MessageCodec;
+import org.zstack.core.cloudbus.StreamingJsonMessageCodec;
+import org.zstack.header.message.Message;
+import org.zstack.header.vm.APIQueryVmInstanceReply;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.GsonTypeCoder;
+import org.zstack.utils.gson.GsonUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.lang.reflect.Type;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compare JsonMessageCodec and StreamingJsonMessageCodec on an APIQueryVmInstanceReply
+ * carrying 1000 VmInstanceInventory, with and without compression
+ *
+ * confirm both codecs decode what the other one encodes
+ */
+public class TestMessageCodecPerformance {
+    CLogger logger = Utils.getLogger(TestMessageCodecPerformance.class);
+    int vmNum = 1000;
+    int rounds = 200;
+
+    private class MessageCoder implements GsonTypeCoder<Message> {
+        Gson gson = new GsonUtil().setCoder(Message.class, this).create();
+
+        @Override
+        public Message deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext ctx) throws JsonParseException {
+            Map.Entry<String, JsonElement> entry = jsonElement.getAsJsonObject().entrySet().iterator().next();
+            try {
+                return (Message) gson.fromJson(entry.getValue(), Class.forName(entry.getKey()));
+            } catch (ClassNotFoundException e) {
+                throw new JsonParseException(e);
+            }
+        }
+
+        @Override
+        public JsonElement serialize(Message message, Type type, JsonSerializationContext ctx) {
+            JsonObject jObj = new JsonObject();
+            jObj.add(message.getClass().getName(), gson.toJsonTree(message));
+            return jObj;
+        }
+    }
+
+    private APIQueryVmInstanceReply makeReply() {
+        List<VmInstanceInventory> invs = new ArrayList<VmInstanceInventory>();
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (int i = 0; i < vmNum; i++) {
+            VmInstanceInventory inv = new VmInstanceInventory();
+            inv.setUuid(UUID.randomUUID().toString().replace("-", ""));
+            inv.setName("vm-" + i);
+            inv.setZoneUuid(UUID.randomUUID().toString().replace("-", ""));
+            inv.setClusterUuid(UUID.randomUUID().toString().replace("-", ""));
+            inv.setHostUuid(UUID.randomUUID().toString().replace("-", ""));
+            inv.setImageUuid(UUID.randomUUID().toString().replace("-", ""));
+            inv.setInstanceOfferingUuid(UUID.randomUUID().toString().replace("-", ""));
+            inv.setState("Running");
+            inv.setType("UserVm");
+            inv.setHypervisorType("KVM");
+            inv.setMemorySize(2147483648L);
+            inv.setCpuNum(2);
+            inv.setCpuSpeed(2000L);
+            inv.setCreateDate(now);
+            inv.setLastOpDate(now);
+
+            List<VmNicInventory> nics = new ArrayList<VmNicInventory>();
+            VmNicInventory nic = new VmNicInventory();
+            nic.setUuid(UUID.randomUUID().toString().replace("-", ""));
+            nic.setVmInstanceUuid(inv.getUuid());
+            nic.setIp("10.0.0." + i % 255);
+            nic.setMac("fa:16:3e:00:00:00");
+            nic.setDeviceId(0);
+            nic.setCreateDate(now);
+            nic.setLastOpDate(now);
+            nics.add(nic);
+            inv.setVmNics(nics);
+            invs.add(inv);
+        }
+
+        APIQueryVmInstanceReply reply = new APIQueryVmInstanceReply();
+        reply.setInventories(invs);
+        return reply;
+    }
+
+    private long measure(MessageCodec codec, Message msg, boolean compress) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            byte[] data = codec.encode(msg, compress);
+            codec.decode(data, compress);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void test() throws Exception {
+        Gson gson = new MessageCoder().gson;
+        MessageCodec json = new JsonMessageCodec(gson);
+        MessageCodec stream = new StreamingJsonMessageCodec(gson);
+        APIQueryVmInstanceReply reply = makeReply();
+
+        for (boolean compress : new boolean[]{false, true}) {
+            APIQueryVmInstanceReply r1 = (APIQueryVmInstanceReply) stream.decode(json.encode(reply, compress), compress);
+            APIQueryVmInstanceReply r2 = (APIQueryVmInstanceReply) json.decode(stream.encode(reply, compress), compress);
+            Assert.assertEquals(vmNum, r1.getInventories().size());
+            Assert.assertEquals(vmNum, r2.getInventories().size());
+            Assert.assertEquals(reply.getInventories().get(0).getUuid(), r1.getInventories().get(0).getUuid());
+            Assert.assertEquals(reply.getInventories().get(0).getVmNics().get(0).getIp(), r2.getInventories().get(0).getVmNics().get(0).getIp());
+        }
+
+        // warm up
+        measure(json, reply, false);
+        measure(stream, reply, false);
+
+        StringBuilder sb = new StringBuilder(String.format("\nMESSAGE CODEC BENCHMARK: %s rounds of encode/decode, %s VmInstanceInventory", rounds, vmNum));
+        for (boolean compress : new boolean[]{false, true}) {
+            sb.append(String.format("\n[%s] compressed: %s, %s ms", json.getContentType(), compress, measure(json, reply, compress)));
+            sb.append(String.format("\n[%s] compressed: %s, %s ms", stream.getContentType(), compress, measure(stream, reply, compress)));
+        }
+        logger.debug(sb.toString());
+    }
+}
@@ -0,0 +1,106 @@
+package org.zstack.test.core.db;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.*;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. insert 100k system tags by bulkInsert()
+ * 2. insert 10k system tags by persistCollection()
+ *
+ * confirm all tags are inserted
+ * confirm the batch lifecycle callback gets the tags a batch at a time
+ * confirm the driver rewrites the batches of bulkInsert() into multi-row INSERTs, so the database runs
+ * about one INSERT statement per batch instead of one per tag
+ */
+public class TestBulkInsert {
+    CLogger logger = Utils.getLogger(TestBulkInsert.class);
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private List<SystemTagVO> makeTags(int num) {
+        List<SystemTagVO> tags = new ArrayList<SystemTagVO>();
+        for (int i = 0; i < num; i++) {
+            SystemTagVO vo = new SystemTagVO();
+            vo.setUuid(Platform.getUuid());
+            vo.setResourceUuid(Platform.getUuid());
+            vo.setResourceType(VmInstanceVO.class.getSimpleName());
+            vo.setTag("hostname::vm" + i);
+            vo.setInherent(false);
+            tags.add(vo);
+        }
+        return tags;
+    }
+
+    private long countInsertStatements() throws SQLException {
+        try (Connection conn = dbf.getDataSource().getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW GLOBAL STATUS LIKE 'Com_insert'")) {
+            Assert.assertTrue(rs.next());
+            return rs.getLong(2);
+        }
+    }
+
+    @Test
+    public void test() throws SQLException {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger persisted = new AtomicInteger();
+        dbf.installEntityBatchLifeCycleCallback(SystemTagVO.class, EntityEvent.POST_PERSIST, new EntityBatchLifeCycleCallback() {
+            @Override
+            public void entityLifeCycleEvent(EntityEvent evt, Class entityClass, List entities) {
+                calls.incrementAndGet();
+                persisted.addAndGet(entities.size());
+            }
+        });
+
+        int num = 100000;
+        List<SystemTagVO> tags = makeTags(num);
+        long inserts = countInsertStatements();
+        long start = System.currentTimeMillis();
+        dbf.bulkInsert(tags);
+        inserts = countInsertStatements() - inserts;
+        logger.debug(String.format("bulkInsert() inserted %s system tags by %s INSERT statements in %s ms",
+                num, inserts, System.currentTimeMillis() - start));
+        Assert.assertTrue(System.getProperty("DbFacadeDataSource.jdbcUrl").contains("rewriteBatchedStatements=true"));
+        // without the rewrite every tag is an INSERT statement
+        Assert.assertTrue(String.valueOf(inserts), inserts < num / 10);
+
+        Assert.assertEquals(num, dbf.count(SystemTagVO.class));
+        Assert.assertEquals(num, persisted.get());
+        Assert.assertEquals(num / DatabaseGlobalProperty.BATCH_SIZE, calls.get());
+
+        int num2 = 10000;
+        tags = makeTags(num2);
+        start = System.currentTimeMillis();
+        dbf.persistCollection(tags);
+        logger.debug(String.format("persistCollection() inserted %s system tags in %s ms", num2, System.currentTimeMillis() - start));
+
+        Assert.assertEquals(num + num2, dbf.count(SystemTagVO.class));
+        Assert.assertEquals(num + num2, persisted.get());
+    }
+}
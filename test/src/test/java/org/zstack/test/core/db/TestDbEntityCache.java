@@ -0,0 +1,200 @@
+package org.zstack.test.core.db;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.CanonicalEvent;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.DbEntityCache;
+import org.zstack.core.db.DbEntityCache.EvictEvent;
+import org.zstack.core.db.DbEntityCacheStatistic;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.tag.SystemTagVO_;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.header.zone.ZoneVO;
+import org.zstack.header.zone.ZoneVO_;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * enable the second-level cache, but not for ClusterVO
+ *
+ * 1. persist a zone and find it twice
+ * 2. change the zone name by JDBC
+ * 3. update the zone name by DatabaseFacade
+ * 4. query the zone by name twice
+ * 5. delete the zone
+ * 6. query a system tag, then bulk insert it
+ * 7. change the name of a cached zone by JDBC, then receive the EvictEvent of the zone from another management node
+ * 8. query a zone by name, write a system tag, then query the zone by name again
+ *
+ * confirm the second find hits the cache
+ * confirm the change made by JDBC is not seen
+ * confirm the change made by DatabaseFacade is seen
+ * confirm the second query hits the query cache
+ * confirm the deleted zone is neither found nor queried, though it's soft deleted through ZoneEO
+ * confirm the bulk inserted tag is queried, though it's inserted by JDBC
+ * confirm the zone is evicted by the EvictEvent, both found and queried by the name changed by JDBC
+ * confirm ClusterVO is not cached
+ * confirm the write of the system tag doesn't evict the cached queries of zones
+ */
+public class TestDbEntityCache {
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    DbEntityCache cache;
+    CloudBus bus;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("DB.cache.enabled", "true");
+        System.setProperty("DB.cache.entity.ClusterVO", "false");
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        cache = loader.getComponent(DbEntityCache.class);
+        bus = loader.getComponent(CloudBus.class);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("DB.cache.enabled");
+        System.clearProperty("DB.cache.entity.ClusterVO");
+    }
+
+    private void changeNameByJdbc(String uuid, String name) throws SQLException {
+        try (Connection conn = dbf.getDataSource().getConnection();
+             PreparedStatement ps = conn.prepareStatement("update ZoneEO set name = ? where uuid = ?")) {
+            ps.setString(1, name);
+            ps.setString(2, uuid);
+            ps.executeUpdate();
+        }
+    }
+
+    private ZoneVO findByName(String name) {
+        SimpleQuery<ZoneVO> q = dbf.createQuery(ZoneVO.class);
+        q.add(ZoneVO_.name, Op.EQ, name);
+        return q.find();
+    }
+
+    private SystemTagVO findTag(String resourceUuid) {
+        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+        q.add(SystemTagVO_.resourceUuid, Op.EQ, resourceUuid);
+        return q.find();
+    }
+
+    private ZoneVO persistZone(String name) {
+        ZoneVO vo = new ZoneVO();
+        vo.setUuid(Platform.getUuid());
+        vo.setName(name);
+        vo.setDescription(name);
+        vo.setType("TestType");
+        return dbf.persist(vo);
+    }
+
+    @Test
+    public void testBulkInsert() {
+        SystemTagVO tag = new SystemTagVO();
+        tag.setUuid(Platform.getUuid());
+        tag.setResourceUuid(Platform.getUuid());
+        tag.setResourceType(VmInstanceVO.class.getSimpleName());
+        tag.setTag("hostname::vm");
+        tag.setInherent(false);
+
+        Assert.assertNull(findTag(tag.getResourceUuid()));
+        Assert.assertNull(findTag(tag.getResourceUuid()));
+        dbf.bulkInsert(Arrays.asList(tag));
+        Assert.assertNotNull(findTag(tag.getResourceUuid()));
+    }
+
+    @Test
+    public void testQueryRegion() {
+        persistZone("zone1");
+        Assert.assertNotNull(findByName("zone1"));
+
+        SystemTagVO tag = new SystemTagVO();
+        tag.setUuid(Platform.getUuid());
+        tag.setResourceUuid(Platform.getUuid());
+        tag.setResourceType(VmInstanceVO.class.getSimpleName());
+        tag.setTag("hostname::vm");
+        tag.setInherent(false);
+        dbf.persist(tag);
+
+        long hits = cache.getEntityCacheStatistics().get("queries").getHitCount();
+        Assert.assertNotNull(findByName("zone1"));
+        Assert.assertTrue(cache.getEntityCacheStatistics().get("queries").getHitCount() > hits);
+    }
+
+    @Test
+    public void testEvictEvent() throws SQLException, InterruptedException {
+        ZoneVO vo = persistZone("zone1");
+        Assert.assertNotNull(dbf.findByUuid(vo.getUuid(), ZoneVO.class));
+        Assert.assertNotNull(findByName("zone1"));
+
+        changeNameByJdbc(vo.getUuid(), "changed-by-jdbc");
+        Assert.assertEquals("zone1", dbf.findByUuid(vo.getUuid(), ZoneVO.class).getName());
+        Assert.assertNotNull(findByName("zone1"));
+
+        EvictEvent data = new EvictEvent();
+        data.setIds(Arrays.asList(vo.getUuid()));
+        CanonicalEvent evt = new CanonicalEvent();
+        evt.setPath(DbEntityCache.EVICT_EVENT_PATH.replace("{entity}", ZoneVO.class.getName()));
+        // pretend to be another management node, events of this node are ignored
+        evt.setManagementNodeId(Platform.getUuid());
+        evt.setContent(data);
+        bus.publish(evt);
+
+        for (int i = 0; i < 50; i++) {
+            if ("changed-by-jdbc".equals(dbf.findByUuid(vo.getUuid(), ZoneVO.class).getName())) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        Assert.assertEquals("changed-by-jdbc", dbf.findByUuid(vo.getUuid(), ZoneVO.class).getName());
+        Assert.assertNull(findByName("zone1"));
+        Assert.assertNotNull(findByName("changed-by-jdbc"));
+    }
+
+    @Test
+    public void test() throws SQLException {
+        ZoneVO vo = persistZone("zone1");
+
+        Assert.assertNotNull(dbf.findByUuid(vo.getUuid(), ZoneVO.class));
+        Assert.assertNotNull(dbf.findByUuid(vo.getUuid(), ZoneVO.class));
+        Map<String, DbEntityCacheStatistic> stats = cache.getEntityCacheStatistics();
+        Assert.assertTrue(stats.get("ZoneVO").getHitCount() >= 1);
+        Assert.assertFalse(stats.containsKey("ClusterVO"));
+
+        changeNameByJdbc(vo.getUuid(), "changed-by-jdbc");
+        vo = dbf.findByUuid(vo.getUuid(), ZoneVO.class);
+        Assert.assertEquals("zone1", vo.getName());
+
+        vo.setName("zone2");
+        dbf.update(vo);
+        vo = dbf.findByUuid(vo.getUuid(), ZoneVO.class);
+        Assert.assertEquals("zone2", vo.getName());
+
+        Assert.assertNotNull(findByName("zone2"));
+        long hits = cache.getEntityCacheStatistics().get("queries").getHitCount();
+        Assert.assertNotNull(findByName("zone2"));
+        Assert.assertTrue(cache.getEntityCacheStatistics().get("queries").getHitCount() > hits);
+
+        dbf.remove(vo);
+        Assert.assertNull(dbf.findByUuid(vo.getUuid(), ZoneVO.class));
+        Assert.assertNull(findByName("zone2"));
+    }
+}
@@ -0,0 +1,201 @@
+package org.zstack.test.core.db;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.*;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.test.core.db.PersonVO.Sex;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * enable the read replica, the test database is not a replica
+ *
+ * 1. persist 100 persons
+ * 2. query the female persons as a read replica read
+ *
+ * confirm the query is served by the primary
+ * confirm the statistics count the rows returned and the connections acquired
+ *
+ * 3. get connections from a ReadReplicaRoutingDataSource whose replica lag check is stubbed
+ *
+ * confirm a read-only transaction inside ReadReplica.enter()/exit() gets the replica if the lag is fine
+ * confirm it gets the primary if the lag is too big, or outside ReadReplica.enter()/exit()
+ *
+ * 4. get connections from a replica 1 second short of the max lag, again after 1.5 seconds
+ *
+ * confirm the lag is checked again before the check interval passes as the time since the check
+ * uses up the allowance
+ */
+public class TestDbStatementStatistics {
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    DbStatementStatistics statistics;
+    int personNum = 100;
+
+    @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE, dependencyCheck = true)
+    class Persist {
+        @Transactional
+        void persist() {
+            for (int i = 0; i < personNum; i++) {
+                PersonVO vo = new PersonVO();
+                vo.setAge(i);
+                vo.setDate(new Date());
+                vo.setName("Person" + String.valueOf(i));
+                vo.setSex(i % 2 == 0 ? Sex.FEMALE : Sex.MALE);
+                dbf.getEntityManager().persist(vo);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("DB.readReplica.enabled", "true");
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        statistics = loader.getComponent(DbStatementStatistics.class);
+        new Persist().persist();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("DB.readReplica.enabled");
+    }
+
+    class StubLagDataSource extends ReadReplicaRoutingDataSource {
+        Long lag;
+        int checks;
+
+        StubLagDataSource(boolean lagFine) {
+            this(lagFine ? 0L : DatabaseGlobalProperty.READ_REPLICA_MAX_LAG_IN_SECONDS + 1);
+        }
+
+        StubLagDataSource(Long lag) {
+            this.lag = lag;
+        }
+
+        @Override
+        protected Long checkLag() {
+            checks++;
+            return lag;
+        }
+    }
+
+    class CountingDataSource extends DelegatingDataSource {
+        AtomicInteger count = new AtomicInteger();
+
+        CountingDataSource(DataSource ds) {
+            super(ds);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            count.incrementAndGet();
+            return super.getConnection();
+        }
+    }
+
+    private void getConnection(ReadReplicaRoutingDataSource ds, boolean inReadReplica) throws SQLException {
+        if (inReadReplica) {
+            ReadReplica.enter();
+        }
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        try {
+            ds.getConnection().close();
+        } finally {
+            TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+            if (inReadReplica) {
+                ReadReplica.exit();
+            }
+        }
+    }
+
+    @Test
+    public void testRouting() throws SQLException {
+        CountingDataSource primary = new CountingDataSource(dbf.getDataSource());
+        CountingDataSource replica = new CountingDataSource(dbf.getExtraDataSource());
+
+        ReadReplicaRoutingDataSource ds = new StubLagDataSource(true);
+        ds.setPrimaryDataSource(primary);
+        ds.setReplicaDataSource(replica);
+        getConnection(ds, true);
+        Assert.assertEquals(1, replica.count.get());
+        Assert.assertEquals(0, primary.count.get());
+
+        getConnection(ds, false);
+        Assert.assertEquals(1, replica.count.get());
+        Assert.assertEquals(1, primary.count.get());
+
+        ds = new StubLagDataSource(false);
+        ds.setPrimaryDataSource(primary);
+        ds.setReplicaDataSource(replica);
+        getConnection(ds, true);
+        Assert.assertEquals(1, replica.count.get());
+        Assert.assertEquals(2, primary.count.get());
+    }
+
+    @Test
+    public void testLagAllowance() throws SQLException, InterruptedException {
+        CountingDataSource primary = new CountingDataSource(dbf.getDataSource());
+        CountingDataSource replica = new CountingDataSource(dbf.getExtraDataSource());
+
+        StubLagDataSource ds = new StubLagDataSource(DatabaseGlobalProperty.READ_REPLICA_MAX_LAG_IN_SECONDS - 1);
+        ds.setPrimaryDataSource(primary);
+        ds.setReplicaDataSource(replica);
+        getConnection(ds, true);
+        Assert.assertEquals(1, ds.checks);
+        Assert.assertEquals(1, replica.count.get());
+
+        TimeUnit.MILLISECONDS.sleep(1500);
+        Assert.assertTrue(TimeUnit.SECONDS.toMillis(DatabaseGlobalProperty.READ_REPLICA_LAG_CHECK_INTERVAL_IN_SECONDS) > 1500);
+        getConnection(ds, true);
+        Assert.assertEquals(2, ds.checks);
+        Assert.assertEquals(2, replica.count.get());
+        Assert.assertEquals(0, primary.count.get());
+    }
+
+    @Test
+    public void test() {
+        ReadReplica.enter();
+        List<PersonVO> females;
+        try {
+            SimpleQuery<PersonVO> query = dbf.createQuery(PersonVO.class);
+            query.add(PersonVO_.sex, Op.EQ, Sex.FEMALE);
+            females = query.list();
+        } finally {
+            ReadReplica.exit();
+        }
+        Assert.assertEquals(personNum / 2, females.size());
+
+        boolean found = false;
+        for (Map.Entry<String, DbStatementStatistic> e : statistics.getStatementStatistics().entrySet()) {
+            if (e.getKey().startsWith("select") && e.getKey().contains("from person ") && e.getValue().getRowsReturned() >= personNum / 2) {
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+
+        Map<String, DbConnectionWaitStatistic> waits = statistics.getConnectionWaitStatistics();
+        Assert.assertTrue(waits.get("primary").getAcquiredNum() > 0);
+        Assert.assertFalse(waits.containsKey("replica"));
+    }
+}
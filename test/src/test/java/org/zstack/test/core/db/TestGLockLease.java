@@ -0,0 +1,135 @@
+package org.zstack.test.core.db;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.GLock;
+import org.zstack.core.db.GLockManager;
+import org.zstack.core.db.GLockStatistic;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * use the lease backend of GLock
+ *
+ * 1. 8 threads take the same lock 200 times each and increase an unprotected counter
+ * 2. take a lock and try it again from another thread with a 1 second timeout
+ * 3. take a lock and let another owner take over its row
+ *
+ * confirm the counter is not corrupted, fencing tokens only grow,
+ * the second lock times out and the statistics count all of it
+ * confirm the third lock is held until taken over and not held after it
+ */
+public class TestGLockLease {
+    CLogger logger = Utils.getLogger(TestGLockLease.class);
+    ComponentLoader loader;
+    GLockManager glockMgr;
+    DatabaseFacade dbf;
+    String lockName = "TestGLockLease.lock";
+    String timeoutLockName = "TestGLockLease.timeout";
+    String stolenLockName = "TestGLockLease.stolen";
+    int threadNum = 8;
+    int num = 200;
+    volatile int counter;
+    volatile long lastToken = -1;
+    volatile boolean tokenNotGrowing;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("GLock.backend", "Lease");
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        glockMgr = loader.getComponent(GLockManager.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("GLock.backend");
+    }
+
+    private void takeOver(String name) throws SQLException {
+        try (Connection conn = dbf.getDataSource().getConnection();
+             PreparedStatement pstmt = conn.prepareStatement("UPDATE GlobalLockVO SET owner = 'someone-else', fencingToken = fencingToken + 1 WHERE name = ?")) {
+            conn.setAutoCommit(true);
+            pstmt.setString(1, name);
+            Assert.assertEquals(1, pstmt.executeUpdate());
+        }
+    }
+
+    @Test
+    public void test() throws InterruptedException, SQLException {
+        final CountDownLatch latch = new CountDownLatch(threadNum);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadNum; i++) {
+            Thread t = new Thread(() -> {
+                for (int j = 0; j < num; j++) {
+                    GLock lock = new GLock(lockName, 60);
+                    lock.lock();
+                    try {
+                        if (lock.getFencingToken() <= lastToken) {
+                            tokenNotGrowing = true;
+                        }
+                        lastToken = lock.getFencingToken();
+                        counter++;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                latch.countDown();
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        Assert.assertTrue(latch.await(120, TimeUnit.SECONDS));
+        Assert.assertEquals(threadNum * num, counter);
+        Assert.assertFalse(tokenNotGrowing);
+
+        GLock lock = new GLock(timeoutLockName, 10);
+        lock.lock();
+        final boolean[] timeout = {false};
+        Thread t = new Thread(() -> {
+            GLock lock2 = new GLock(timeoutLockName, 1);
+            try {
+                lock2.lock();
+                lock2.unlock();
+            } catch (CloudRuntimeException e) {
+                timeout[0] = true;
+            }
+        });
+        t.start();
+        t.join();
+        lock.unlock();
+        Assert.assertTrue(timeout[0]);
+
+        logger.debug(JSONObjectUtil.toJsonString(glockMgr.getGLockStatistics()));
+        GLockStatistic s = glockMgr.getGLockStatistics().get(lockName);
+        Assert.assertEquals(threadNum * num, s.getLockedNum());
+        Assert.assertEquals(0, s.getWaitingNum());
+        s = glockMgr.getGLockStatistics().get(timeoutLockName);
+        Assert.assertEquals(1, s.getLockedNum());
+        Assert.assertEquals(1, s.getTimeoutNum());
+
+        lock = new GLock(stolenLockName, 10);
+        lock.lock();
+        Assert.assertTrue(lock.isHeld());
+        takeOver(stolenLockName);
+        Assert.assertFalse(lock.isHeld());
+        lock.unlock();
+    }
+}
@@ -0,0 +1,118 @@
+package org.zstack.test.core.rest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.rest.AgentCallStatistic;
+import org.zstack.core.rest.RESTFacadeImpl;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.errorcode.SysErrors;
+import org.zstack.header.rest.JsonAsyncRESTCallback;
+import org.zstack.header.rest.RESTFacade;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RESTFacade.nonBlockingAsyncJsonPost = true
+ *
+ * 1. post to an agent which calls back
+ * 2. post to a port nobody listens on
+ *
+ * confirm the first post succeeds, the agent has one completed call and none in flight
+ * confirm the second post fails with IO_ERROR after being retried NON_BLOCKING_POST_RETRY_TIMES times
+ * at the interval of 1 second, every try is a completed call of the agent
+ */
+public class TestRestNonBlockingAsyncJsonPost {
+    CLogger logger = Utils.getLogger(TestRestNonBlockingAsyncJsonPost.class);
+    WebBeanConstructor wbean;
+    ComponentLoader loader;
+    RESTFacade restf;
+    RESTFacadeImpl restfImpl;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("RESTFacade.nonBlockingAsyncJsonPost", "true");
+        wbean = new WebBeanConstructor();
+        wbean.addXml("PortalForUnitTest.xml").addXml("AccountManager.xml");
+        loader = wbean.build();
+        restf = loader.getComponent(RESTFacade.class);
+        restfImpl = loader.getComponent(RESTFacadeImpl.class);
+    }
+
+    private class Result {
+        CountDownLatch latch = new CountDownLatch(1);
+        String ret;
+        ErrorCode error;
+    }
+
+    private Result post(String url, String body) throws InterruptedException {
+        final Result result = new Result();
+        restf.asyncJsonPost(url, body, new JsonAsyncRESTCallback<String>() {
+            @Override
+            public void fail(ErrorCode err) {
+                result.error = err;
+                result.latch.countDown();
+            }
+
+            @Override
+            public void success(String ret) {
+                result.ret = ret;
+                result.latch.countDown();
+            }
+
+            @Override
+            public Class<String> getReturnClass() {
+                return String.class;
+            }
+        }, TimeUnit.SECONDS, 30);
+        Assert.assertTrue(result.latch.await(1, TimeUnit.MINUTES));
+        return result;
+    }
+
+    private int findClosedPort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    @Test
+    public void test() throws InterruptedException, IOException {
+        String url = wbean.buildUrl(RESTBeanForTest.ROOT, RESTBeanForTest.CALLBACK_PATH);
+        Result result = post(url, "hello");
+        Assert.assertNull(String.valueOf(result.error), result.error);
+        Assert.assertEquals("hello", result.ret);
+
+        AgentCallStatistic stat = restfImpl.getAgentCallStatistics().get(String.format("localhost:%s", wbean.getPort()));
+        Assert.assertNotNull(stat);
+        Assert.assertTrue(stat.getCompletedCallNum() >= 1);
+        Assert.assertEquals(0, stat.getInFlightCallNum());
+
+        int port = findClosedPort();
+        long start = System.currentTimeMillis();
+        result = post(String.format("http://localhost:%s/nobody", port), "hello");
+        long time = System.currentTimeMillis() - start;
+        logger.debug(String.format("the post to a closed port failed after %s ms", time));
+        Assert.assertNotNull(result.error);
+        Assert.assertEquals(SysErrors.IO_ERROR.toString(), result.error.getCode());
+        Assert.assertTrue(time >= TimeUnit.SECONDS.toMillis(RESTFacadeImpl.NON_BLOCKING_POST_RETRY_TIMES));
+
+        stat = restfImpl.getAgentCallStatistics().get(String.format("localhost:%s", port));
+        Assert.assertNotNull(stat);
+        Assert.assertEquals(RESTFacadeImpl.NON_BLOCKING_POST_RETRY_TIMES + 1, stat.getCompletedCallNum());
+        Assert.assertEquals(0, stat.getInFlightCallNum());
+    }
+
+    @After
+    public void tearDown() {
+        wbean.stopJetty();
+        System.clearProperty("RESTFacade.nonBlockingAsyncJsonPost");
+    }
+}
@@ -0,0 +1,31 @@
+package org.zstack.test.core.thread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.zstack.core.thread.DispatchQueueType;
+import org.zstack.core.thread.ThreadGlobalProperty;
+
+/**
+ * ThreadFacade.dispatchQueueType = Concurrent
+ *
+ * run TestChainTask2 against ConcurrentDispatchQueueImpl
+ */
+public class TestChainTask2ConcurrentDispatchQueue extends TestChainTask2 {
+    private String dispatchQueueType;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty("ThreadFacade.dispatchQueueType", DispatchQueueType.Concurrent.toString());
+        // global properties are linked once per JVM, the tests run before may have linked the default
+        dispatchQueueType = ThreadGlobalProperty.DISPATCH_QUEUE_TYPE;
+        ThreadGlobalProperty.DISPATCH_QUEUE_TYPE = DispatchQueueType.Concurrent.toString();
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("ThreadFacade.dispatchQueueType");
+        ThreadGlobalProperty.DISPATCH_QUEUE_TYPE = dispatchQueueType == null ? DispatchQueueType.Default.toString() : dispatchQueueType;
+    }
+}
@@ -0,0 +1,177 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.thread.*;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * compare DispatchQueueType.Default and DispatchQueueType.Concurrent with 1, 8 and 64
+ * submitting threads, and verify both honor the sync level of sync tasks and chain tasks.
+ *
+ * -DtaskNum=xxx -DsignatureNum=xxx tune the load
+ */
+public class TestDispatchQueuePerformance {
+    CLogger logger = Utils.getLogger(TestDispatchQueuePerformance.class);
+    int taskNum;
+    int signatureNum;
+    int syncLevel = 2;
+    volatile boolean syncLevelBroken;
+
+    @Before
+    public void setUp() throws Exception {
+        taskNum = Integer.valueOf(System.getProperty("taskNum", "100000"));
+        signatureNum = Integer.valueOf(System.getProperty("signatureNum", "1000"));
+
+        BeanConstructor con = new BeanConstructor();
+        con.build();
+    }
+
+    private AtomicInteger[] newCounters() {
+        AtomicInteger[] running = new AtomicInteger[signatureNum];
+        for (int i = 0; i < signatureNum; i++) {
+            running[i] = new AtomicInteger(0);
+        }
+        return running;
+    }
+
+    private void enter(AtomicInteger running) {
+        if (running.incrementAndGet() > syncLevel) {
+            syncLevelBroken = true;
+        }
+    }
+
+    private long runSyncTasks(final DispatchQueue dpq, int submitterNum) throws InterruptedException {
+        final int perSubmitter = taskNum / submitterNum;
+        final CountDownLatch latch = new CountDownLatch(perSubmitter * submitterNum);
+        final AtomicInteger[] running = newCounters();
+
+        long start = System.nanoTime();
+        List<Thread> submitters = new ArrayList<Thread>();
+        for (int i = 0; i < submitterNum; i++) {
+            final int base = i * perSubmitter;
+            Thread t = new Thread(() -> {
+                for (int j = base; j < base + perSubmitter; j++) {
+                    final int sigIndex = j % signatureNum;
+                    dpq.syncSubmit(new SyncTask<Void>() {
+                        @Override
+                        public String getSyncSignature() {
+                            return "sync-" + sigIndex;
+                        }
+
+                        @Override
+                        public int getSyncLevel() {
+                            return syncLevel;
+                        }
+
+                        @Override
+                        public String getName() {
+                            return getSyncSignature();
+                        }
+
+                        @Override
+                        public Void call() throws Exception {
+                            enter(running[sigIndex]);
+                            running[sigIndex].decrementAndGet();
+                            latch.countDown();
+                            return null;
+                        }
+                    });
+                }
+            });
+            submitters.add(t);
+            t.start();
+        }
+
+        for (Thread t : submitters) {
+            t.join();
+        }
+
+        Assert.assertTrue(latch.await(120, TimeUnit.SECONDS));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private long runChainTasks(final DispatchQueue dpq, int submitterNum) throws InterruptedException {
+        final int perSubmitter = taskNum / submitterNum;
+        final CountDownLatch latch = new CountDownLatch(perSubmitter * submitterNum);
+        final AtomicInteger[] running = newCounters();
+
+        long start = System.nanoTime();
+        List<Thread> submitters = new ArrayList<Thread>();
+        for (int i = 0; i < submitterNum; i++) {
+            final int base = i * perSubmitter;
+            Thread t = new Thread(() -> {
+                for (int j = base; j < base + perSubmitter; j++) {
+                    final int sigIndex = j % signatureNum;
+                    dpq.chainSubmit(new ChainTask() {
+                        @Override
+                        public String getSyncSignature() {
+                            return "chain-" + sigIndex;
+                        }
+
+                        @Override
+                        protected int getSyncLevel() {
+                            return syncLevel;
+                        }
+
+                        @Override
+                        public void run(SyncTaskChain chain) {
+                            enter(running[sigIndex]);
+                            running[sigIndex].decrementAndGet();
+                            latch.countDown();
+                            chain.next();
+                        }
+
+                        @Override
+                        public String getName() {
+                            return getSyncSignature();
+                        }
+                    });
+                }
+            });
+            submitters.add(t);
+            t.start();
+        }
+
+        for (Thread t : submitters) {
+            t.join();
+        }
+
+        Assert.assertTrue(latch.await(120, TimeUnit.SECONDS));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        int[] submitterNums = {1, 8, 64};
+        StringBuilder sb = new StringBuilder("\nDISPATCH QUEUE BENCHMARK");
+        sb.append(String.format("\ntasks: %s, signatures: %s, sync level: %s", taskNum, signatureNum, syncLevel));
+        for (DispatchQueueType type : DispatchQueueType.values()) {
+            DispatchQueue dpq = type.create();
+
+            // warm up
+            runSyncTasks(dpq, 8);
+            runChainTasks(dpq, 8);
+
+            for (int submitterNum : submitterNums) {
+                long syncCost = runSyncTasks(dpq, submitterNum);
+                long chainCost = runChainTasks(dpq, submitterNum);
+                sb.append(String.format("\n[%s] submitters: %s, syncSubmit: %s ms, chainSubmit: %s ms",
+                        type, submitterNum, syncCost, chainCost));
+            }
+
+            Assert.assertFalse(String.format("%s runs more tasks than the sync level", type), syncLevelBroken);
+        }
+
+        logger.debug(sb.toString());
+    }
+}
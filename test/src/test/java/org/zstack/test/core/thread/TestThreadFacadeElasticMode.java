@@ -0,0 +1,115 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.*;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * run ThreadFacade in the elastic execution mode
+ *
+ * 1. submit 5 times of ThreadFacade.maxThreadNum blocking tasks through submit(), syncSubmit() and chainSubmit()
+ *
+ * confirm all of them are running at the same time instead of being throttled by the fixed pool
+ */
+public class TestThreadFacadeElasticMode {
+    CLogger logger = Utils.getLogger(TestThreadFacadeElasticMode.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("ThreadFacade.executionMode", ThreadExecutionMode.Elastic.toString());
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("ThreadFacade.executionMode");
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        final int num = ThreadGlobalProperty.MAX_THREAD_NUM * 5;
+        final CountDownLatch started = new CountDownLatch(num * 3);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        for (int i = 0; i < num; i++) {
+            final int index = i;
+            thdf.submit(new Task<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    started.countDown();
+                    release.await();
+                    return null;
+                }
+
+                @Override
+                public String getName() {
+                    return "blocking-task";
+                }
+            });
+
+            thdf.syncSubmit(new SyncTask<Void>() {
+                @Override
+                public String getSyncSignature() {
+                    return "elastic-sync-" + index;
+                }
+
+                @Override
+                public int getSyncLevel() {
+                    return 1;
+                }
+
+                @Override
+                public String getName() {
+                    return getSyncSignature();
+                }
+
+                @Override
+                public Void call() throws Exception {
+                    started.countDown();
+                    release.await();
+                    return null;
+                }
+            });
+
+            thdf.chainSubmit(new ChainTask() {
+                @Override
+                public String getSyncSignature() {
+                    return "elastic-chain-" + index;
+                }
+
+                @Override
+                public void run(SyncTaskChain chain) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        logger.warn(e.getMessage(), e);
+                    }
+                    chain.next();
+                }
+
+                @Override
+                public String getName() {
+                    return getSyncSignature();
+                }
+            });
+        }
+
+        boolean allStarted = started.await(60, TimeUnit.SECONDS);
+        release.countDown();
+        Assert.assertTrue(String.format("%s tasks not started", started.getCount()), allStarted);
+    }
+}
@@ -0,0 +1,98 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.core.thread.ThreadFacadeImpl;
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.core.thread.TimerStatistic;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. submit 100k timeout tasks with random delays and cancel half of them
+ * 2. submit timer tasks with delays crossing the boundary of the first wheel
+ *
+ * confirm only the uncancelled tasks fire and the timer statistic is drained
+ */
+public class TestThreadFacadeTimeoutTask {
+    CLogger logger = Utils.getLogger(TestThreadFacadeTimeoutTask.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int taskNum = 100000;
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        final AtomicInteger fired = new AtomicInteger(0);
+        final AtomicInteger firedCancelled = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(taskNum / 2);
+
+        List<TimeoutTaskReceipt> toCancel = new ArrayList<TimeoutTaskReceipt>();
+        for (int i = 0; i < taskNum; i++) {
+            final boolean cancel = i % 2 == 0;
+            TimeoutTaskReceipt r = thdf.submitTimeoutTask(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancel) {
+                        firedCancelled.incrementAndGet();
+                    } else {
+                        fired.incrementAndGet();
+                        latch.countDown();
+                    }
+                }
+            }, TimeUnit.MILLISECONDS, 1000 + i % 2000);
+
+            if (cancel) {
+                toCancel.add(r);
+            }
+        }
+
+        for (TimeoutTaskReceipt r : toCancel) {
+            Assert.assertTrue(r.cancel());
+        }
+
+        final CountDownLatch timerLatch = new CountDownLatch(3);
+        final long start = System.currentTimeMillis();
+        final List<Long> elapsed = new ArrayList<Long>();
+        for (final long delay : new long[]{5, 6000, 8000}) {
+            thdf.submitTimerTask(() -> {
+                synchronized (elapsed) {
+                    elapsed.add(System.currentTimeMillis() - start - delay);
+                }
+                timerLatch.countDown();
+                return true;
+            }, TimeUnit.MILLISECONDS, delay);
+        }
+
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Assert.assertTrue(timerLatch.await(30, TimeUnit.SECONDS));
+        TimeUnit.SECONDS.sleep(1);
+
+        Assert.assertEquals(taskNum / 2, fired.get());
+        Assert.assertEquals(0, firedCancelled.get());
+        for (long lag : elapsed) {
+            Assert.assertTrue(String.format("timer task fired %s ms early", -lag), lag >= 0);
+        }
+
+        TimerStatistic statistic = ((ThreadFacadeImpl) thdf).getTimerStatistic();
+        logger.debug(JSONObjectUtil.toJsonString(statistic));
+        Assert.assertEquals(0, statistic.getPendingTaskNum());
+    }
+}
@@ -0,0 +1,43 @@
+package org.zstack.test.core.workflow;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.workflow.FlowChainBuilder;
+import org.zstack.core.workflow.SimpleFlowChain;
+import org.zstack.header.core.workflow.FlowChain;
+import org.zstack.header.core.workflow.FlowTrigger;
+import org.zstack.header.core.workflow.NoRollbackFlow;
+
+import java.util.Map;
+
+/**
+ * run a chain of 1500 flows whose names carry a resource uuid
+ *
+ * confirm the flow statistics stop growing at the limit and the rest are counted as others
+ */
+public class TestFlowStatisticLimit {
+    int flowNum = 1500;
+
+    @Test
+    public void test() {
+        FlowChain chain = FlowChainBuilder.newSimpleFlowChain();
+        chain.setName("uuid-named-flows");
+        for (int i = 0; i < flowNum; i++) {
+            chain.then(new NoRollbackFlow() {
+                String __name__ = String.format("delete-image-%s", Platform.getUuid());
+
+                @Override
+                public void run(FlowTrigger trigger, Map data) {
+                    trigger.next();
+                }
+            });
+        }
+
+        chain.start();
+
+        Assert.assertTrue(SimpleFlowChain.getStatistics().size() <= 1001);
+        Assert.assertTrue(SimpleFlowChain.getStatistics().containsKey("others"));
+        Assert.assertTrue(SimpleFlowChain.getStatistics().get("others").getCount() > 0);
+    }
+}
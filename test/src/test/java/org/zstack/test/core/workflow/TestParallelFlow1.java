@@ -0,0 +1,95 @@
+package org.zstack.test.core.workflow;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.workflow.FlowChainBuilder;
+import org.zstack.core.workflow.SimpleFlowChain;
+import org.zstack.core.workflow.WorkFlowStatistic;
+import org.zstack.header.core.workflow.*;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * flow a and b take 1s each, c depends on both of them, d takes 0.5s and depends on nothing
+ *
+ * confirm a, b and d run concurrently and c runs after a and b
+ * confirm the critical path is reported through WorkFlowStatistic
+ */
+public class TestParallelFlow1 {
+    CLogger logger = Utils.getLogger(TestParallelFlow1.class);
+    List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+
+    private Flow flow(final String name, final long delay) {
+        return new NoRollbackFlow() {
+            String __name__ = name;
+
+            @Override
+            public void run(final FlowTrigger trigger, Map data) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(delay);
+                        } catch (InterruptedException e) {
+                            logger.warn(e.getMessage(), e);
+                        }
+
+                        executed.add(name);
+                        trigger.next();
+                    }
+                }.start();
+            }
+        };
+    }
+
+    // flow names are prefixed with the file name when tracing
+    private WorkFlowStatistic getStatistic(String flowName) {
+        for (WorkFlowStatistic stat : SimpleFlowChain.getStatistics().values()) {
+            if (stat.getName().endsWith(flowName)) {
+                return stat;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        Flow a = flow("parallel-a", 1000);
+        Flow b = flow("parallel-b", 1000);
+        Flow c = flow("parallel-c", 100);
+        Flow d = flow("parallel-d", 500);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        FlowChainBuilder.newParallelFlowChain()
+                .then(a)
+                .then(b, new Flow[]{})
+                .then(c, a, b)
+                .then(d, new Flow[]{})
+                .done(new FlowDoneHandler() {
+                    @Override
+                    public void handle(Map data) {
+                        latch.countDown();
+                    }
+                }).start();
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        long time = System.currentTimeMillis() - start;
+        Assert.assertTrue(String.format("the chain takes %sms", time), time < 2000);
+        Assert.assertEquals(4, executed.size());
+        Assert.assertEquals("parallel-d", executed.get(0));
+        Assert.assertEquals("parallel-c", executed.get(3));
+
+        Assert.assertEquals(1, getStatistic("parallel-c").getCriticalPathCount());
+        Assert.assertEquals(0, getStatistic("parallel-d").getCriticalPathCount());
+        Assert.assertEquals(1, getStatistic("parallel-a").getCriticalPathCount() + getStatistic("parallel-b").getCriticalPathCount());
+        Assert.assertEquals(1, getStatistic("parallel-d").getCount());
+    }
+}
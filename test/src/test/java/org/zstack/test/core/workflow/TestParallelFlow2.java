@@ -0,0 +1,96 @@
+package org.zstack.test.core.workflow;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.workflow.FlowChainBuilder;
+import org.zstack.header.core.workflow.*;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * flow a completes at once, b depends on a and takes 1s, c fails in 0.2s, d depends on b
+ *
+ * confirm the error handler is called after b completes
+ * confirm b, c and a are rolled back in the reverse order of completion and d never runs
+ */
+public class TestParallelFlow2 {
+    CLogger logger = Utils.getLogger(TestParallelFlow2.class);
+    List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+    List<String> rolledBack = Collections.synchronizedList(new ArrayList<String>());
+
+    private Flow flow(final String name, final long delay, final boolean fail) {
+        return new Flow() {
+            @Override
+            public void run(final FlowTrigger trigger, Map data) {
+                executed.add(name);
+                if (delay == 0) {
+                    trigger.next();
+                    return;
+                }
+
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(delay);
+                        } catch (InterruptedException e) {
+                            logger.warn(e.getMessage(), e);
+                        }
+
+                        if (fail) {
+                            trigger.fail(new ErrorCode("on.purpose", "on purpose", name));
+                        } else {
+                            trigger.next();
+                        }
+                    }
+                }.start();
+            }
+
+            @Override
+            public void rollback(FlowRollback trigger, Map data) {
+                rolledBack.add(name);
+                trigger.rollback();
+            }
+        };
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        Flow a = flow("a", 0, false);
+        Flow b = flow("b", 1000, false);
+        Flow c = flow("c", 200, true);
+        Flow d = flow("d", 0, false);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<ErrorCode> errors = new ArrayList<ErrorCode>();
+        FlowChainBuilder.newParallelFlowChain()
+                .then(a, new Flow[]{})
+                .then(b, a)
+                .then(c, new Flow[]{})
+                .then(d, b)
+                .error(new FlowErrorHandler() {
+                    @Override
+                    public void handle(ErrorCode errCode, Map data) {
+                        errors.add(errCode);
+                        latch.countDown();
+                    }
+                }).start();
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, errors.size());
+        Assert.assertEquals("c", errors.get(0).getDetails());
+        Assert.assertFalse(executed.contains("d"));
+        Assert.assertEquals(3, rolledBack.size());
+        Assert.assertEquals("b", rolledBack.get(0));
+        Assert.assertEquals("c", rolledBack.get(1));
+        Assert.assertEquals("a", rolledBack.get(2));
+    }
+}
@@ -0,0 +1,97 @@
+package org.zstack.test.core.workflow;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.workflow.FlowChainBuilder;
+import org.zstack.core.workflow.SimpleFlowChain;
+import org.zstack.core.workflow.WorkFlowStatistic;
+import org.zstack.header.core.workflow.*;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * run a chain of 20 flows, each of them has a name and an @AfterDone runnable, 10k times
+ *
+ * confirm every flow and after done runnable runs and every flow is profiled
+ */
+public class TestSimpleFlowChainPerformance {
+    CLogger logger = Utils.getLogger(TestSimpleFlowChainPerformance.class);
+    int flowNum = 20;
+    int warmUp = 1000;
+    int rounds = 10000;
+    long executed;
+    long afterDoneCalled;
+    long done;
+
+    private class BenchFlow extends NoRollbackFlow {
+        String __name__;
+
+        @AfterDone
+        List<Runnable> afterDone = new ArrayList<Runnable>();
+
+        BenchFlow(int index) {
+            __name__ = String.format("bench-flow-%s", index);
+            afterDone.add(new Runnable() {
+                @Override
+                public void run() {
+                    afterDoneCalled ++;
+                }
+            });
+        }
+
+        @Override
+        public void run(FlowTrigger trigger, Map data) {
+            executed ++;
+            trigger.next();
+        }
+    }
+
+    private void runChains(FlowChainBuilder builder, int num) {
+        for (int i = 0; i < num; i++) {
+            builder.build("bench-chain").done(new FlowDoneHandler() {
+                @Override
+                public void handle(Map data) {
+                    done ++;
+                }
+            }).start();
+        }
+    }
+
+    @Test
+    public void test() {
+        List<Flow> flows = new ArrayList<Flow>();
+        for (int i = 0; i < flowNum; i++) {
+            flows.add(new BenchFlow(i));
+        }
+        FlowChainBuilder builder = FlowChainBuilder.newBuilder().construct();
+        builder.setFlows(flows);
+
+        runChains(builder, warmUp);
+
+        long start = System.nanoTime();
+        runChains(builder, rounds);
+        long time = System.nanoTime() - start;
+
+        logger.debug(String.format("running a chain of %s flows takes %sns, %s chains per second",
+                flowNum, time / rounds, rounds * TimeUnit.SECONDS.toNanos(1) / time));
+
+        int total = warmUp + rounds;
+        Assert.assertEquals(total, done);
+        Assert.assertEquals((long) total * flowNum, executed);
+        Assert.assertEquals((long) total * flowNum, afterDoneCalled);
+        int profiled = 0;
+        for (WorkFlowStatistic stat : SimpleFlowChain.getStatistics().values()) {
+            // flow names are prefixed with the file name when tracing
+            if (stat.getName().matches(".*bench-flow-\\d+")) {
+                Assert.assertEquals(total, stat.getCount());
+                profiled ++;
+            }
+        }
+        Assert.assertEquals(flowNum, profiled);
+    }
+}
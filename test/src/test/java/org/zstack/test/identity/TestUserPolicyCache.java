@@ -0,0 +1,115 @@
+package org.zstack.test.identity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.configuration.APICreateInstanceOfferingMsg;
+import org.zstack.header.configuration.ConfigurationConstant;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.identity.AccountConstant.StatementEffect;
+import org.zstack.header.identity.IdentityErrors;
+import org.zstack.header.identity.PolicyInventory.Statement;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.data.SizeUnit;
+
+/**
+ * 1. create a user with a policy allowing to create instance offerings
+ * 2. create instance offerings twice so the decision is cached
+ * 3. detach the policy from the user
+ * <p>
+ * confirm the user can not create instance offerings
+ * <p>
+ * 4. add the user to a group and attach the policy to the group
+ * <p>
+ * confirm the user can create instance offerings
+ * <p>
+ * 5. attach a deny policy to the user
+ * <p>
+ * confirm the user can not create instance offerings
+ * <p>
+ * 6. detach the deny policy, remove the user from the group
+ * <p>
+ * confirm the user can not create instance offerings
+ * <p>
+ * every change takes effect as soon as its API returns, the cache is evicted before the reply
+ */
+public class TestUserPolicyCache {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml")
+                .addXml("ConfigurationManager.xml").addXml("HostAllocatorManager.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    private InstanceOfferingInventory createInstanceOffering(SessionInventory session) throws ApiSenderException {
+        InstanceOfferingInventory inv = new InstanceOfferingInventory();
+        inv.setName("TestInstanceOffering");
+        inv.setCpuNum(2);
+        inv.setCpuSpeed(1000);
+        inv.setMemorySize(SizeUnit.GIGABYTE.toByte(1));
+        return api.addInstanceOffering(inv, session);
+    }
+
+    private boolean isDenied(SessionInventory session) {
+        try {
+            createInstanceOffering(session);
+            return false;
+        } catch (ApiSenderException e) {
+            return IdentityErrors.PERMISSION_DENIED.toString().equals(e.getError().getCode());
+        }
+    }
+
+    private Statement statement(String name, StatementEffect effect) {
+        Statement s = new Statement();
+        s.setName(name);
+        s.setEffect(effect);
+        s.addAction(String.format("%s:%s", ConfigurationConstant.ACTION_CATEGORY, APICreateInstanceOfferingMsg.class.getSimpleName()));
+        return s;
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        IdentityCreator identityCreator = new IdentityCreator(api);
+        identityCreator.createAccount("test", "password");
+        identityCreator.createUser("user1", "password");
+        identityCreator.createPolicy("allow", statement("allow", StatementEffect.Allow));
+        identityCreator.createPolicy("deny", statement("deny", StatementEffect.Deny));
+        identityCreator.attachPolicyToUser("user1", "allow");
+
+        SessionInventory session = identityCreator.userLogin("user1", "password");
+        createInstanceOffering(session);
+        createInstanceOffering(session);
+
+        identityCreator.detachPolicyFromUser("user1", "allow");
+        Assert.assertTrue(isDenied(session));
+
+        identityCreator.createGroup("group");
+        identityCreator.addUserToGroup("user1", "group");
+        Assert.assertTrue(isDenied(session));
+        identityCreator.attachPolicyToGroup("group", "allow");
+        createInstanceOffering(session);
+
+        identityCreator.attachPolicyToUser("user1", "deny");
+        Assert.assertTrue(isDenied(session));
+
+        identityCreator.detachPolicyFromUser("user1", "deny");
+        createInstanceOffering(session);
+        identityCreator.removeUserFromGroup("user1", "group");
+        Assert.assertTrue(isDenied(session));
+    }
+}
@@ -0,0 +1,105 @@
+package org.zstack.test.kvm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.host.HostGlobalConfig;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmInstanceState;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.kvm.KVMAgentCommands.VmSyncCmd;
+import org.zstack.kvm.KVMConstant.KvmVmState;
+import org.zstack.kvm.KVMGlobalConfig;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * set host ping interval to 1s and enable vm sync on host ping
+ * <p>
+ * confirm the host only gets a full sync when connecting, pings ask for changes since a generation
+ * <p>
+ * 1. make the vm disappear from the host
+ * <p>
+ * confirm the vm is stopped
+ * <p>
+ * 2. make the vm running on the host again
+ * <p>
+ * confirm the vm is running
+ * <p>
+ * 3. make the agent not support generations and make the vm disappear
+ * <p>
+ * confirm the vm is stopped
+ */
+public class TestKvmVmSyncDelta {
+    CLogger logger = Utils.getLogger(TestKvmVmSyncDelta.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    SessionInventory session;
+    KVMSimulatorConfig kconfig;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/kvm/TestCreateVmOnKvm.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        kconfig = loader.getComponent(KVMSimulatorConfig.class);
+        session = api.loginAsAdmin();
+    }
+
+    private VmInstanceState getVmState(String vmUuid) {
+        return dbf.findByUuid(vmUuid, VmInstanceVO.class).getState();
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+
+        kconfig.vms.put(vm.getUuid(), KvmVmState.Running);
+        kconfig.vmSyncCmds.clear();
+        HostGlobalConfig.PING_HOST_INTERVAL.updateValue(1);
+        KVMGlobalConfig.VM_SYNC_ON_HOST_PING.updateValue(true);
+        TimeUnit.SECONDS.sleep(3);
+
+        Assert.assertFalse(kconfig.vmSyncCmds.isEmpty());
+        VmSyncCmd last = kconfig.vmSyncCmds.get(kconfig.vmSyncCmds.size() - 1);
+        Assert.assertFalse(last.isFullSync());
+        Assert.assertNotNull(last.getLastGeneration());
+        Assert.assertEquals(VmInstanceState.Running, getVmState(vm.getUuid()));
+
+        kconfig.vms.remove(vm.getUuid());
+        TimeUnit.SECONDS.sleep(3);
+        Assert.assertEquals(VmInstanceState.Stopped, getVmState(vm.getUuid()));
+
+        kconfig.vms.put(vm.getUuid(), KvmVmState.Running);
+        TimeUnit.SECONDS.sleep(3);
+        VmInstanceVO vmvo = dbf.findByUuid(vm.getUuid(), VmInstanceVO.class);
+        Assert.assertEquals(VmInstanceState.Running, vmvo.getState());
+        Assert.assertEquals(vm.getHostUuid(), vmvo.getHostUuid());
+
+        kconfig.vmSyncGenerationSupported = false;
+        kconfig.vms.remove(vm.getUuid());
+        TimeUnit.SECONDS.sleep(3);
+        Assert.assertEquals(VmInstanceState.Stopped, getVmState(vm.getUuid()));
+    }
+}
@@ -0,0 +1,137 @@
+package org.zstack.test.network;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.network.l2.L2NetworkInventory;
+import org.zstack.header.network.l3.*;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 1. add an ip range of 11 ips and allocate an ip with BitmapIpAllocatorStrategy
+ * 2. take the next ip behind the allocator's back
+ * 3. allocate the rest 9 ips at once
+ * <p>
+ * confirm the 9 ips are allocated and all ips are different
+ * <p>
+ * 4. allocate another ip
+ * <p>
+ * confirm it fails
+ * <p>
+ * 5. return an ip and allocate 2 ips at once
+ * <p>
+ * confirm it fails and nothing is allocated
+ * <p>
+ * 6. allocate an ip
+ * <p>
+ * confirm the returned ip is allocated
+ */
+public class TestBitmapIpAllocatorStrategy {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CloudBus bus;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ZoneManager.xml").addXml("NetworkManager.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        bus = loader.getComponent(CloudBus.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        api.stopServer();
+    }
+
+    private MessageReply allocateIp(String l3Uuid) {
+        AllocateIpMsg msg = new AllocateIpMsg();
+        msg.setL3NetworkUuid(l3Uuid);
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        msg.setAllocateStrategy(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+        return bus.call(msg);
+    }
+
+    private MessageReply allocateIps(String l3Uuid, int num) {
+        AllocateIpsMsg msg = new AllocateIpsMsg();
+        msg.setL3NetworkUuid(l3Uuid);
+        msg.setNum(num);
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        msg.setAllocateStrategy(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+        return bus.call(msg);
+    }
+
+    private long countUsedIp(String ipRangeUuid) {
+        SimpleQuery<UsedIpVO> q = dbf.createQuery(UsedIpVO.class);
+        q.add(UsedIpVO_.ipRangeUuid, Op.EQ, ipRangeUuid);
+        return q.count();
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        L2NetworkInventory linv = api.createNoVlanL2Network(zone.getUuid(), "eth0");
+        L3NetworkInventory l3inv = api.createL3BasicNetwork(linv.getUuid());
+        IpRangeInventory ipInv = api.addIpRange(l3inv.getUuid(), "10.223.110.10", "10.223.110.20", "10.223.110.1", "255.255.255.0");
+
+        AllocateIpReply reply = (AllocateIpReply) allocateIp(l3inv.getUuid());
+        Assert.assertTrue(reply.isSuccess());
+        Set<String> ips = new HashSet<String>();
+        ips.add(reply.getIpInventory().getIp());
+
+        String ip = "10.223.110.11";
+        UsedIpVO vo = new UsedIpVO(ipInv.getUuid(), ip);
+        vo.setIpInLong(NetworkUtils.ipv4StringToLong(ip));
+        vo.setUuid(UUID.nameUUIDFromBytes((ipInv.getUuid() + ip).getBytes()).toString().replaceAll("-", ""));
+        vo.setL3NetworkUuid(l3inv.getUuid());
+        vo.setNetmask(ipInv.getNetmask());
+        vo.setGateway(ipInv.getGateway());
+        dbf.persist(vo);
+        ips.add(ip);
+
+        AllocateIpsReply ireply = (AllocateIpsReply) allocateIps(l3inv.getUuid(), 9);
+        Assert.assertTrue(ireply.isSuccess());
+        Assert.assertEquals(9, ireply.getIpInventories().size());
+        for (UsedIpInventory inv : ireply.getIpInventories()) {
+            Assert.assertTrue(ips.add(inv.getIp()));
+        }
+        Assert.assertEquals(11, countUsedIp(ipInv.getUuid()));
+
+        Assert.assertFalse(allocateIp(l3inv.getUuid()).isSuccess());
+
+        UsedIpInventory returned = ireply.getIpInventories().get(0);
+        ReturnIpMsg rmsg = new ReturnIpMsg();
+        rmsg.setL3NetworkUuid(l3inv.getUuid());
+        rmsg.setUsedIpUuid(returned.getUuid());
+        rmsg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        Assert.assertTrue(bus.call(rmsg).isSuccess());
+
+        Assert.assertFalse(allocateIps(l3inv.getUuid(), 2).isSuccess());
+        Assert.assertEquals(10, countUsedIp(ipInv.getUuid()));
+
+        reply = (AllocateIpReply) allocateIp(l3inv.getUuid());
+        Assert.assertTrue(reply.isSuccess());
+        Assert.assertEquals(returned.getIp(), reply.getIpInventory().getIp());
+    }
+}
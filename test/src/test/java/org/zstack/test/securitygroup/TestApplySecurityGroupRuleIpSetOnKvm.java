@@ -0,0 +1,165 @@
+package org.zstack.test.securitygroup;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.host.HostVO;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.kvm.KVMAgentCommands.ApplySecurityGroupRuleCmd;
+import org.zstack.kvm.KVMAgentCommands.RefreshAllRulesOnHostCmd;
+import org.zstack.kvm.KVMSecurityGroupBackend;
+import org.zstack.kvm.KVMSystemTags;
+import org.zstack.network.securitygroup.APIAddSecurityGroupRuleMsg.SecurityGroupRuleAO;
+import org.zstack.network.securitygroup.RuleTO;
+import org.zstack.network.securitygroup.SecurityGroupInventory;
+import org.zstack.network.securitygroup.SecurityGroupRuleTO;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the kvm host supports ipset
+ *
+ * 1. add the nic of a vm to a security group with two rules
+ * 2. add the nic of another vm on the same l3 network to the security group
+ * 3. add a rule to the security group
+ * 4. let the agent lose its ip sets, then add another rule
+ * 5. reconnect the host
+ *
+ * confirm the rules of the nics refer to one ip set named by the security group and the l3 network
+ * confirm the set is sent along with the rules the first time and holds the ip of the nic
+ * confirm the set is sent again under the same name when the second nic joins, holding both ips
+ * confirm the set is referred by its digest only when the members don't change
+ * confirm the set is sent again when the agent doesn't hold it
+ * confirm the rules applied on the host have the member ranges of the set all the time
+ * confirm the set is sent under the same name when refreshing all rules on the host
+ */
+public class TestApplySecurityGroupRuleIpSetOnKvm {
+    CLogger logger = Utils.getLogger(TestApplySecurityGroupRuleIpSetOnKvm.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    KVMSimulatorConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/securityGroup/TestApplySeurityGroupRulesToVmOnKvm.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        config = loader.getComponent(KVMSimulatorConfig.class);
+    }
+
+    private void validateRules(List<SecurityGroupRuleTO> rtos, VmNicInventory nic, String setName, int ruleNum) {
+        SecurityGroupRuleTO to = null;
+        for (SecurityGroupRuleTO rto : rtos) {
+            if (rto.getVmNicInternalName().equals(nic.getInternalName())) {
+                to = rto;
+            }
+        }
+        Assert.assertNotNull(to);
+        Assert.assertEquals(ruleNum, to.getRules().size());
+        for (RuleTO r : to.getRules()) {
+            Assert.assertNull(r.getAllowedInternalIpRange());
+            Assert.assertEquals(setName, r.getAllowedInternalIpSet());
+        }
+    }
+
+    private ApplySecurityGroupRuleCmd lastApplyCmd() {
+        Assert.assertFalse(config.securityGroupApplyRuleCmds.isEmpty());
+        return config.securityGroupApplyRuleCmds.get(config.securityGroupApplyRuleCmds.size() - 1);
+    }
+
+    private SecurityGroupInventory addRule(String sgUuid, int port) throws ApiSenderException, InterruptedException {
+        SecurityGroupRuleAO ao = new SecurityGroupRuleAO();
+        ao.setType("Ingress");
+        ao.setProtocol("TCP");
+        ao.setStartPort(port);
+        ao.setEndPort(port);
+        ao.setAllowedCidr("0.0.0.0/0");
+        SecurityGroupInventory inv = api.addSecurityGroupRuleByFullConfig(sgUuid, ao);
+        TimeUnit.MILLISECONDS.sleep(500);
+        return inv;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        SecurityGroupInventory scinv = deployer.securityGroups.get("test");
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        VmNicInventory nic = vm.getVmNics().get(0);
+        L3NetworkInventory l3 = deployer.l3Networks.get("TestL3Network1");
+        String setName = KVMSecurityGroupBackend.makeIpSetName(scinv.getUuid(), l3.getUuid());
+
+        api.createSystemTag(vm.getHostUuid(), KVMSystemTags.IPSET.getTagFormat(), HostVO.class);
+
+        config.securityGroupSuccess = true;
+        api.addVmNicToSecurityGroup(scinv.getUuid(), Arrays.asList(nic.getUuid()));
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        ApplySecurityGroupRuleCmd cmd = lastApplyCmd();
+        Assert.assertEquals(1, cmd.getIpSets().size());
+        Assert.assertTrue(cmd.getIpSets().get(setName).contains(nic.getIp()));
+        validateRules(cmd.getRuleTOs(), nic, setName, 2);
+        SecurityGroupTestValidator.validateInternalIpIn(config.securityGroups.get(nic.getInternalName()), nic.getIp(), scinv.getRules());
+
+        VmCreator creator = new VmCreator(api);
+        creator.imageUuid = deployer.images.get("TestImage").getUuid();
+        creator.instanceOfferingUuid = deployer.instanceOfferings.get("TestInstanceOffering").getUuid();
+        creator.addL3Network(l3.getUuid());
+        VmNicInventory nic2 = creator.create().getVmNics().get(0);
+        api.addVmNicToSecurityGroup(scinv.getUuid(), Arrays.asList(nic2.getUuid()));
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        cmd = lastApplyCmd();
+        Assert.assertEquals(1, cmd.getIpSets().size());
+        Assert.assertTrue(cmd.getIpSets().get(setName).contains(nic.getIp()));
+        Assert.assertTrue(cmd.getIpSets().get(setName).contains(nic2.getIp()));
+        validateRules(cmd.getRuleTOs(), nic, setName, 2);
+        validateRules(cmd.getRuleTOs(), nic2, setName, 2);
+        SecurityGroupTestValidator.validateInternalIpIn(config.securityGroups.get(nic.getInternalName()), nic2.getIp(), scinv.getRules());
+
+        scinv = addRule(scinv.getUuid(), 1000);
+        cmd = lastApplyCmd();
+        Assert.assertTrue(cmd.getIpSets().isEmpty());
+        Assert.assertEquals(KVMSecurityGroupBackend.makeIpSetDigest(config.ipSets.get(setName)), cmd.getIpSetDigests().get(setName));
+        validateRules(cmd.getRuleTOs(), nic, setName, 3);
+        SecurityGroupTestValidator.validateInternalIpIn(config.securityGroups.get(nic.getInternalName()), nic2.getIp(), scinv.getRules());
+
+        config.ipSets.clear();
+        int num = config.securityGroupApplyRuleCmds.size();
+        scinv = addRule(scinv.getUuid(), 2000);
+        Assert.assertEquals(num + 2, config.securityGroupApplyRuleCmds.size());
+        Assert.assertTrue(config.securityGroupApplyRuleCmds.get(num).getIpSets().isEmpty());
+        cmd = lastApplyCmd();
+        Assert.assertTrue(cmd.getIpSetDigests().isEmpty());
+        Assert.assertTrue(cmd.getIpSets().get(setName).contains(nic2.getIp()));
+        validateRules(cmd.getRuleTOs(), nic, setName, 4);
+        SecurityGroupTestValidator.validateInternalIpIn(config.securityGroups.get(nic.getInternalName()), nic2.getIp(), scinv.getRules());
+
+        config.securityGroupRefreshAllRulesOnHostCmds.clear();
+        api.reconnectHost(vm.getHostUuid());
+        // refresh rules on host is async operation
+        TimeUnit.SECONDS.sleep(1);
+        Assert.assertEquals(1, config.securityGroupRefreshAllRulesOnHostCmds.size());
+        RefreshAllRulesOnHostCmd rcmd = config.securityGroupRefreshAllRulesOnHostCmds.get(0);
+        Assert.assertEquals(1, rcmd.getIpSets().size());
+        Assert.assertTrue(rcmd.getIpSets().get(setName).contains(nic.getIp()));
+        validateRules(rcmd.getRuleTOs(), nic, setName, 4);
+        SecurityGroupTestValidator.validateInternalIpIn(config.securityGroups.get(nic.getInternalName()), nic.getIp(), scinv.getRules());
+    }
+}
@@ -0,0 +1,78 @@
+package org.zstack.test.storage.ceph;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.storage.primary.PrimaryStorageCapacityVO;
+import org.zstack.header.storage.primary.PrimaryStorageInventory;
+import org.zstack.storage.ceph.CephCapacityLedger;
+import org.zstack.storage.ceph.CephCapacityVO;
+import org.zstack.storage.ceph.primary.CephPrimaryStorageVO;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.data.SizeUnit;
+
+/**
+ * 1. an empty ceph primary storage
+ * 2. report its capacity unchanged
+ * 3. report changed capacity several times and flush the ledger
+ * <p>
+ * confirm the unchanged report leaves the capacity as it is
+ * confirm only the last report is written to ceph capacity and primary storage physical capacity
+ */
+public class TestCephCapacityLedger {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CephCapacityLedger ledger;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/ceph/TestCeph14.xml", con);
+        deployer.addSpringConfig("ceph.xml");
+        deployer.addSpringConfig("cephSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        ledger = loader.getComponent(CephCapacityLedger.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        PrimaryStorageInventory ps = deployer.primaryStorages.get("ceph-pri");
+        String fsid = dbf.findByUuid(ps.getUuid(), CephPrimaryStorageVO.class).getFsid();
+        CephCapacityVO cap = dbf.findByUuid(fsid, CephCapacityVO.class);
+        long total = cap.getTotalCapacity();
+        long avail = cap.getAvailableCapacity();
+
+        ledger.report(fsid, total, avail);
+        ledger.flush();
+        cap = dbf.findByUuid(fsid, CephCapacityVO.class);
+        Assert.assertEquals(total, cap.getTotalCapacity());
+        Assert.assertEquals(avail, cap.getAvailableCapacity());
+
+        ledger.report(fsid, total, avail - SizeUnit.GIGABYTE.toByte(1));
+        ledger.report(fsid, total, avail - SizeUnit.GIGABYTE.toByte(3));
+        ledger.report(fsid, total, avail - SizeUnit.GIGABYTE.toByte(2));
+        ledger.flush();
+
+        long expected = avail - SizeUnit.GIGABYTE.toByte(2);
+        cap = dbf.findByUuid(fsid, CephCapacityVO.class);
+        Assert.assertEquals(total, cap.getTotalCapacity());
+        Assert.assertEquals(expected, cap.getAvailableCapacity());
+
+        PrimaryStorageCapacityVO pscap = dbf.findByUuid(ps.getUuid(), PrimaryStorageCapacityVO.class);
+        Assert.assertEquals(total, pscap.getTotalPhysicalCapacity());
+        Assert.assertEquals(expected, pscap.getAvailablePhysicalCapacity());
+    }
+}
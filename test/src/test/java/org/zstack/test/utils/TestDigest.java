@@ -0,0 +1,28 @@
+package org.zstack.test.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zstack.utils.Digest;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TestDigest {
+    @Test
+    public void test() throws IOException {
+        File f = File.createTempFile("zstack", "tmp");
+        try {
+            FileUtils.writeStringToFile(f, "hello");
+            String md5 = Digest.getCachedMD5(f.getAbsolutePath());
+            Assert.assertEquals(Digest.getMD5(f.getAbsolutePath()), md5);
+            Assert.assertEquals(md5, Digest.getCachedMD5(f.getAbsolutePath()));
+
+            FileUtils.writeStringToFile(f, "hello world");
+            Assert.assertEquals(Digest.getMD5(f.getAbsolutePath()), Digest.getCachedMD5(f.getAbsolutePath()));
+            Assert.assertFalse(md5.equals(Digest.getCachedMD5(f.getAbsolutePath())));
+        } finally {
+            f.delete();
+        }
+    }
+}
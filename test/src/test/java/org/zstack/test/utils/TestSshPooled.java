@@ -0,0 +1,56 @@
+package org.zstack.test.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.zstack.utils.ssh.Ssh;
+import org.zstack.utils.ssh.SshConnectionPool;
+import org.zstack.utils.ssh.SshResult;
+import org.zstack.utils.ssh.SshShell;
+
+/**
+ * 1. run commands with pooled Ssh and SshShell to the same host
+ * 2. run a command with a wrong password
+ * 3. run a command killing the sshd process of the pooled connection, then run another command
+ * <p>
+ * confirm they share one connection
+ * confirm the wrong password doesn't reuse the connection
+ * confirm the killing command fails and is not run again, the next command succeeds on a new connection
+ */
+public class TestSshPooled {
+    @Test
+    public void test() {
+        SshConnectionPool.getInstance().closeAll();
+
+        SshResult res = new Ssh().setHostname("localhost").setUsername("root").setPassword("password")
+                .setPooled(true).command("ls").runAndClose();
+        res.raiseExceptionIfFailed();
+        Assert.assertEquals(1, SshConnectionPool.getInstance().size());
+
+        SshShell shell = new SshShell();
+        shell.setHostname("localhost");
+        shell.setUsername("root");
+        shell.setPassword("password");
+        shell.setPooled(true);
+        res = shell.runScript("a=1\necho $a");
+        res.raiseExceptionIfFailed();
+        Assert.assertEquals("1", res.getStdout().trim());
+        res = shell.runCommand("ls");
+        res.raiseExceptionIfFailed();
+        Assert.assertEquals(1, SshConnectionPool.getInstance().size());
+
+        res = new Ssh().setHostname("localhost").setUsername("root").setPassword("wrong-password")
+                .setPooled(true).setSuppressException(true).command("ls").runAndClose();
+        Assert.assertTrue(res.isSshFailure());
+        Assert.assertEquals(1, SshConnectionPool.getInstance().size());
+
+        res = new Ssh().setHostname("localhost").setUsername("root").setPassword("password")
+                .setPooled(true).setSuppressException(true).command("kill $PPID").runAndClose();
+        Assert.assertTrue(res.getReturnCode() != 0);
+        res = new Ssh().setHostname("localhost").setUsername("root").setPassword("password")
+                .setPooled(true).command("ls").runAndClose();
+        res.raiseExceptionIfFailed();
+        Assert.assertEquals(1, SshConnectionPool.getInstance().size());
+
+        SshConnectionPool.getInstance().closeAll();
+    }
+}
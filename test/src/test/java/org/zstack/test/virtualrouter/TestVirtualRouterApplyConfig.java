@@ -0,0 +1,156 @@
+package org.zstack.test.virtualrouter;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.appliancevm.ApplianceVmStatus;
+import org.zstack.appliancevm.ApplianceVmVO;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.network.service.eip.EipInventory;
+import org.zstack.network.service.portforwarding.PortForwardingRuleInventory;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.ApplyConfigCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.ConfigSection;
+import org.zstack.network.service.virtualrouter.VirtualRouterConstant;
+import org.zstack.simulator.virtualrouter.VirtualRouterSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the agent of the virtual router supports ApplyConfigCmd
+ *
+ * 1. attach a port forwarding rule to a vm
+ * 2. reconnect the virtual router
+ * 3. reconnect the virtual router again
+ * 4. restart the agent and reconnect the virtual router
+ * 5. detach the port forwarding rule, attach an eip to the vm and reconnect the virtual router
+ * 6. detach the eip and attach it again, lose the eip on the agent and reconnect the virtual router
+ *
+ * confirm the snat, the vip and the port forwarding rule are synced by one ApplyConfigCmd of version 1,
+ * the vip before the port forwarding rule
+ * confirm nothing is sent on the second reconnect as the config is not changed
+ * confirm the whole config is sent again after the agent restarts
+ * confirm the eip is synced by an ApplyConfigCmd after being attached
+ * confirm the eip section is sent again though the eip config is the same as the one acknowledged,
+ * as the per-service commands dropped its digest on the agent
+ */
+public class TestVirtualRouterApplyConfig {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    SessionInventory session;
+    VirtualRouterSimulatorConfig vconfig;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/eip/TestEipPortForwardingAttachableNic.xml", con);
+        deployer.addSpringConfig("VirtualRouter.xml");
+        deployer.addSpringConfig("VirtualRouterSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.addSpringConfig("vip.xml");
+        deployer.addSpringConfig("eip.xml");
+        deployer.addSpringConfig("PortForwarding.xml");
+        deployer.addSpringConfig("mediator.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        vconfig = loader.getComponent(VirtualRouterSimulatorConfig.class);
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        session = api.loginAsAdmin();
+    }
+
+    private List<String> getPaths(ApplyConfigCmd cmd) {
+        List<String> paths = new ArrayList<String>();
+        for (ConfigSection s : cmd.getSections()) {
+            paths.add(s.getPath());
+        }
+        return paths;
+    }
+
+    private ConfigSection getSection(ApplyConfigCmd cmd, String path) {
+        for (ConfigSection s : cmd.getSections()) {
+            if (s.getPath().equals(path)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        PortForwardingRuleInventory rule = deployer.portForwardingRules.get("pfRule1");
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        api.attachPortForwardingRule(rule.getUuid(), vm.getVmNics().get(0).getUuid());
+
+        ApplianceVmVO vr = dbf.listAll(ApplianceVmVO.class).get(0);
+        vconfig.applyConfigSupported = true;
+        vconfig.snatInfos.clear();
+        vconfig.vips.clear();
+        vconfig.portForwardingRules.clear();
+        api.reconnectVirtualRouter(vr.getUuid());
+
+        Assert.assertEquals(1, vconfig.applyConfigCmds.size());
+        ApplyConfigCmd cmd = vconfig.applyConfigCmds.get(0);
+        Assert.assertEquals(vr.getUuid(), cmd.getUuid());
+        Assert.assertEquals(1, cmd.getVersion());
+        List<String> paths = getPaths(cmd);
+        Assert.assertTrue(paths.contains(VirtualRouterConstant.VR_SYNC_SNAT_PATH));
+        Assert.assertTrue(paths.indexOf(VirtualRouterConstant.VR_CREATE_VIP) != -1);
+        Assert.assertTrue(paths.indexOf(VirtualRouterConstant.VR_CREATE_VIP) < paths.indexOf(VirtualRouterConstant.VR_SYNC_PORT_FORWARDING));
+        Assert.assertFalse(vconfig.snatInfos.isEmpty());
+        Assert.assertFalse(vconfig.vips.isEmpty());
+        Assert.assertEquals(1, vconfig.portForwardingRules.size());
+        vr = dbf.reload(vr);
+        Assert.assertEquals(ApplianceVmStatus.Connected, vr.getStatus());
+
+        api.reconnectVirtualRouter(vr.getUuid());
+        Assert.assertEquals(1, vconfig.applyConfigCmds.size());
+        Assert.assertEquals(1, vconfig.portForwardingRules.size());
+
+        vconfig.configVersions.remove(vr.getUuid());
+        vconfig.configDigests.remove(vr.getUuid());
+        vconfig.portForwardingRules.clear();
+        api.reconnectVirtualRouter(vr.getUuid());
+        Assert.assertEquals(2, vconfig.applyConfigCmds.size());
+        cmd = vconfig.applyConfigCmds.get(1);
+        Assert.assertEquals(1, cmd.getVersion());
+        Assert.assertEquals(paths, getPaths(cmd));
+        Assert.assertEquals(1, vconfig.portForwardingRules.size());
+
+        EipInventory eip = deployer.eips.get("eip");
+        api.detachPortForwardingRule(rule.getUuid());
+        api.attachEip(eip.getUuid(), vm.getVmNics().get(0).getUuid());
+        api.reconnectVirtualRouter(vr.getUuid());
+        Assert.assertEquals(3, vconfig.applyConfigCmds.size());
+        ConfigSection eipSection = getSection(vconfig.applyConfigCmds.get(2), VirtualRouterConstant.VR_SYNC_EIP);
+        Assert.assertNotNull(eipSection);
+        Assert.assertEquals(1, vconfig.eips.size());
+
+        api.detachEip(eip.getUuid());
+        api.attachEip(eip.getUuid(), vm.getVmNics().get(0).getUuid());
+        Assert.assertFalse(vconfig.configDigests.get(vr.getUuid()).containsKey(VirtualRouterConstant.VR_SYNC_EIP));
+        vconfig.eips.clear();
+        api.reconnectVirtualRouter(vr.getUuid());
+        Assert.assertEquals(4, vconfig.applyConfigCmds.size());
+        cmd = vconfig.applyConfigCmds.get(3);
+        Assert.assertEquals(3, cmd.getVersion());
+        ConfigSection s = getSection(cmd, VirtualRouterConstant.VR_SYNC_EIP);
+        Assert.assertNotNull(s);
+        Assert.assertEquals(eipSection.getDigest(), s.getDigest());
+        Assert.assertEquals(1, vconfig.eips.size());
+    }
+}
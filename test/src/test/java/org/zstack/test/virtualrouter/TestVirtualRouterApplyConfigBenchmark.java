@@ -0,0 +1,154 @@
+package org.zstack.test.virtualrouter;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.appliancevm.ApplianceVmStatus;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.header.vm.VmNicVO;
+import org.zstack.header.volume.VolumeVO;
+import org.zstack.network.service.virtualrouter.ReconnectVirtualRouterVmMsg;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.ApplyConfigCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterVmVO;
+import org.zstack.network.service.virtualrouter.VirtualRouterVmVO_;
+import org.zstack.simulator.virtualrouter.VirtualRouterSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+
+/**
+ * the agents of the virtual routers support ApplyConfigCmd
+ *
+ * 1. make 1000 virtual routers by copying the deployed one in the database
+ * 2. reconnect all virtual routers at the same time
+ * 3. reconnect all virtual routers at the same time again
+ *
+ * confirm every virtual router gets one ApplyConfigCmd on the first reconnect
+ * confirm no ApplyConfigCmd is sent on the second reconnect as the config is not changed
+ * confirm all virtual routers are connected
+ */
+public class TestVirtualRouterApplyConfigBenchmark {
+    CLogger logger = Utils.getLogger(TestVirtualRouterApplyConfigBenchmark.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    VirtualRouterSimulatorConfig vconfig;
+    int num = 1000;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/eip/TestEipPortForwardingAttachableNic.xml", con);
+        deployer.addSpringConfig("VirtualRouter.xml");
+        deployer.addSpringConfig("VirtualRouterSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.addSpringConfig("vip.xml");
+        deployer.addSpringConfig("eip.xml");
+        deployer.addSpringConfig("PortForwarding.xml");
+        deployer.addSpringConfig("mediator.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        vconfig = loader.getComponent(VirtualRouterSimulatorConfig.class);
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private List<String> copyVirtualRouters(VirtualRouterVmVO vr, int count) {
+        List<String> uuids = new ArrayList<String>();
+        List<VirtualRouterVmVO> vrs = new ArrayList<VirtualRouterVmVO>();
+        List<VmNicVO> nics = new ArrayList<VmNicVO>();
+        int macIndex = 0;
+        for (int i = 0; i < count; i++) {
+            VirtualRouterVmVO vo = new VirtualRouterVmVO(vr);
+            vo.setUuid(Platform.getUuid());
+            vo.setName(String.format("vr-%s", i));
+            vo.setVmNics(new HashSet<VmNicVO>());
+            vo.setAllVolumes(new HashSet<VolumeVO>());
+            vo.setRootVolumes(null);
+            vrs.add(vo);
+            uuids.add(vo.getUuid());
+
+            for (VmNicVO nic : vr.getVmNics()) {
+                macIndex++;
+                VmNicVO n = new VmNicVO();
+                n.setUuid(Platform.getUuid());
+                n.setVmInstanceUuid(vo.getUuid());
+                n.setL3NetworkUuid(nic.getL3NetworkUuid());
+                n.setIp(nic.getIp());
+                n.setNetmask(nic.getNetmask());
+                n.setGateway(nic.getGateway());
+                n.setMetaData(nic.getMetaData());
+                n.setDeviceId(nic.getDeviceId());
+                n.setInternalName(nic.getInternalName());
+                n.setMac(String.format("fa:00:00:%02x:%02x:%02x", (macIndex >> 16) & 0xff, (macIndex >> 8) & 0xff, macIndex & 0xff));
+                nics.add(n);
+            }
+        }
+
+        dbf.persistCollection(vrs);
+        dbf.persistCollection(nics);
+        return uuids;
+    }
+
+    private long reconnect(List<String> uuids) {
+        List<ReconnectVirtualRouterVmMsg> msgs = new ArrayList<ReconnectVirtualRouterVmMsg>();
+        for (String uuid : uuids) {
+            ReconnectVirtualRouterVmMsg msg = new ReconnectVirtualRouterVmMsg();
+            msg.setVirtualRouterVmUuid(uuid);
+            bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, uuid);
+            msgs.add(msg);
+        }
+
+        long start = System.currentTimeMillis();
+        List<MessageReply> replies = bus.call(msgs);
+        long time = System.currentTimeMillis() - start;
+        for (MessageReply r : replies) {
+            Assert.assertTrue(String.valueOf(r.getError()), r.isSuccess());
+        }
+        return time;
+    }
+
+    @Test
+    public void test() {
+        VirtualRouterVmVO vr = dbf.listAll(VirtualRouterVmVO.class).get(0);
+        List<String> uuids = copyVirtualRouters(vr, num - 1);
+        uuids.add(vr.getUuid());
+
+        vconfig.applyConfigSupported = true;
+        long time = reconnect(uuids);
+        logger.debug(String.format("reconnected %s virtual routers pushing the whole config in %s ms", num, time));
+
+        Assert.assertEquals(num, vconfig.applyConfigCmds.size());
+        Set<String> applied = new HashSet<String>();
+        for (ApplyConfigCmd cmd : vconfig.applyConfigCmds) {
+            Assert.assertEquals(1, cmd.getVersion());
+            Assert.assertFalse(cmd.getSections().isEmpty());
+            applied.add(cmd.getUuid());
+        }
+        Assert.assertEquals(new HashSet<String>(uuids), applied);
+
+        time = reconnect(uuids);
+        logger.debug(String.format("reconnected %s virtual routers with unchanged config in %s ms", num, time));
+        Assert.assertEquals(num, vconfig.applyConfigCmds.size());
+
+        SimpleQuery<VirtualRouterVmVO> q = dbf.createQuery(VirtualRouterVmVO.class);
+        q.add(VirtualRouterVmVO_.status, Op.EQ, ApplianceVmStatus.Connected);
+        Assert.assertEquals(num, q.count().longValue());
+    }
+}
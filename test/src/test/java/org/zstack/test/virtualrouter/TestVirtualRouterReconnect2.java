@@ -0,0 +1,76 @@
+package org.zstack.test.virtualrouter;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.appliancevm.ApplianceVmStatus;
+import org.zstack.appliancevm.ApplianceVmVO;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.network.service.portforwarding.PortForwardingRuleInventory;
+import org.zstack.simulator.virtualrouter.VirtualRouterSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+
+/**
+ * 1. attach a port forwarding rule to a vm
+ * 2. reconnect the virtual router, its services are synced by a parallel flow chain
+ * <p>
+ * confirm the snat, the vip and the port forwarding rule are all synced to the virtual router
+ * confirm the virtual router is connected
+ */
+public class TestVirtualRouterReconnect2 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    SessionInventory session;
+    VirtualRouterSimulatorConfig vconfig;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/eip/TestEipPortForwardingAttachableNic.xml", con);
+        deployer.addSpringConfig("VirtualRouter.xml");
+        deployer.addSpringConfig("VirtualRouterSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.addSpringConfig("vip.xml");
+        deployer.addSpringConfig("eip.xml");
+        deployer.addSpringConfig("PortForwarding.xml");
+        deployer.addSpringConfig("mediator.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        vconfig = loader.getComponent(VirtualRouterSimulatorConfig.class);
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        session = api.loginAsAdmin();
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        PortForwardingRuleInventory rule = deployer.portForwardingRules.get("pfRule1");
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        api.attachPortForwardingRule(rule.getUuid(), vm.getVmNics().get(0).getUuid());
+
+        ApplianceVmVO vr = dbf.listAll(ApplianceVmVO.class).get(0);
+        vconfig.snatInfos.clear();
+        vconfig.vips.clear();
+        vconfig.portForwardingRules.clear();
+        api.reconnectVirtualRouter(vr.getUuid());
+
+        Assert.assertFalse(vconfig.snatInfos.isEmpty());
+        Assert.assertFalse(vconfig.vips.isEmpty());
+        Assert.assertEquals(1, vconfig.portForwardingRules.size());
+        vr = dbf.reload(vr);
+        Assert.assertEquals(ApplianceVmStatus.Connected, vr.getStatus());
+    }
+}
@@ -2,11 +2,27 @@ package org.zstack.utils;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by frank on 3/3/2016.
  */
 public class Digest {
+    private static class CachedDigest {
+        final long length;
+        final long lastModified;
+        final String md5;
+
+        CachedDigest(long length, long lastModified, String md5) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+    }
+
+    private static final Map<String, CachedDigest> md5Cache = new ConcurrentHashMap<String, CachedDigest>();
+
     public static String getMD5(String filePath) {
         try {
             FileInputStream fis = new FileInputStream(new File(filePath));
@@ -17,4 +33,22 @@ public class Digest {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * same as getMD5() but the file is only read again when its length or modification time changes,
+     * for files read many times like the agent packages deployed to hosts
+     */
+    public static String getCachedMD5(String filePath) {
+        File f = new File(filePath);
+        long length = f.length();
+        long lastModified = f.lastModified();
+        CachedDigest d = md5Cache.get(f.getAbsolutePath());
+        if (d != null && d.length == length && d.lastModified == lastModified) {
+            return d.md5;
+        }
+
+        String md5 = getMD5(filePath);
+        md5Cache.put(f.getAbsolutePath(), new CachedDigest(length, lastModified, md5));
+        return md5;
+    }
 }
@@ -0,0 +1,169 @@
+package org.zstack.utils.hash;
+
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+
+/**
+ * Consistent hashing with bounded loads on top of rendezvous hashing.
+ *
+ * Keys are hashed into a fixed number of partitions and every partition is assigned to
+ * the node with the highest rendezvous score for it, unless that node already holds
+ * loadFactor * partitionNum / nodeNum partitions, in which case it goes to the next
+ * highest scoring node that still has room. The assignment only depends on the set of
+ * nodes, so every process holding the same nodes builds the same table, and get() is a
+ * hash plus an array index instead of a search of a ring of virtual nodes.
+ *
+ * The partition of a key is derived from key.hashCode(), which must therefore be the same
+ * in every process, as it is for String.
+ */
+public class BoundedLoadHash<T> implements HashRing<T> {
+    private static final CLogger logger = Utils.getLogger(BoundedLoadHash.class);
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final int partitionNum;
+    private final double loadFactor;
+
+    private final Map<T, Long> nodeHashes = new HashMap<T, Long>();
+    // rebuilt on every membership change and published as a whole, get() never locks
+    private volatile Set<T> nodes = Collections.emptySet();
+    private volatile Object[] partitions;
+
+    public BoundedLoadHash(int partitionNum, double loadFactor, Collection<T> nodes) {
+        if (partitionNum <= 0) {
+            throw new IllegalArgumentException(String.format("partitionNum must be positive, got %s", partitionNum));
+        }
+        if (loadFactor < 1) {
+            throw new IllegalArgumentException(String.format("loadFactor must not be less than 1, got %s", loadFactor));
+        }
+
+        this.partitionNum = partitionNum;
+        this.loadFactor = loadFactor;
+
+        for (T node : nodes) {
+            nodeHashes.put(node, hashNode(node));
+        }
+        rebuild();
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long hashNode(Object node) {
+        // FNV-1a, String.hashCode() is too narrow to tell nodes apart reliably
+        String name = node.toString();
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private int partitionOf(Object key) {
+        return (int) ((mix(key.hashCode() * GOLDEN_GAMMA) >>> 1) % partitionNum);
+    }
+
+    private void rebuild() {
+        if (nodeHashes.isEmpty()) {
+            partitions = null;
+            nodes = Collections.emptySet();
+            return;
+        }
+
+        // sort by name so ties in score break the same way everywhere
+        List<Map.Entry<T, Long>> entries = new ArrayList<Map.Entry<T, Long>>(nodeHashes.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<T, Long>>() {
+            @Override
+            public int compare(Map.Entry<T, Long> o1, Map.Entry<T, Long> o2) {
+                return o1.getKey().toString().compareTo(o2.getKey().toString());
+            }
+        });
+
+        int nodeNum = entries.size();
+        long[] hashes = new long[nodeNum];
+        for (int i = 0; i < nodeNum; i++) {
+            hashes[i] = entries.get(i).getValue();
+        }
+
+        int capacity = (int) Math.ceil(loadFactor * partitionNum / nodeNum);
+        int[] loads = new int[nodeNum];
+        Object[] table = new Object[partitionNum];
+        for (int p = 0; p < partitionNum; p++) {
+            long salt = (p + 1) * GOLDEN_GAMMA;
+            int best = -1;
+            long bestScore = 0;
+            for (int i = 0; i < nodeNum; i++) {
+                if (loads[i] >= capacity) {
+                    continue;
+                }
+
+                long score = mix(hashes[i] ^ salt);
+                if (best == -1 || score > bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+
+            loads[best]++;
+            table[p] = entries.get(best).getKey();
+        }
+
+        Set<T> snapshot = new HashSet<T>();
+        for (Map.Entry<T, Long> e : entries) {
+            snapshot.add(e.getKey());
+        }
+
+        partitions = table;
+        nodes = Collections.unmodifiableSet(snapshot);
+    }
+
+    @Override
+    public synchronized void add(T node) {
+        if (nodeHashes.containsKey(node)) {
+            return;
+        }
+
+        nodeHashes.put(node, hashNode(node));
+        rebuild();
+        logger.debug(String.format("after adding, bounded load hash has nodes%s", nodes));
+    }
+
+    @Override
+    public synchronized void remove(T node) {
+        if (nodeHashes.remove(node) == null) {
+            return;
+        }
+
+        rebuild();
+        logger.debug(String.format("after removing, bounded load hash has nodes%s", nodes));
+    }
+
+    @Override
+    public boolean hasNode(T node) {
+        return nodes.contains(node);
+    }
+
+    @Override
+    public Set<T> getNodes() {
+        return nodes;
+    }
+
+    @Override
+    public T get(Object key) {
+        Object[] table = partitions;
+        if (table == null) {
+            return null;
+        }
+
+        return (T) table[partitionOf(key)];
+    }
+}
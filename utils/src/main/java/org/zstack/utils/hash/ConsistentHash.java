@@ -5,7 +5,7 @@ import org.zstack.utils.logging.CLogger;
 
 import java.util.*;
 
-public class ConsistentHash<T> {
+public class ConsistentHash<T> implements HashRing<T> {
     private final CLogger logger = Utils.getLogger(ConsistentHash.class);
     private final HashFunction hashFunction;
     private final int numberOfReplicas;
@@ -22,10 +22,12 @@ public class ConsistentHash<T> {
         }
     }
 
+    @Override
     public Set<T> getNodes() {
         return nodes;
     }
 
+    @Override
     public void add(T node) {
         nodes.add(node);
 
@@ -37,6 +39,7 @@ public class ConsistentHash<T> {
                 nodes, circle.size()));
     }
 
+    @Override
     public void remove(T node) {
         nodes.remove(node);
         logger.debug(String.format("the consistent hash ring currently has nodes%s", nodes));
@@ -49,6 +52,7 @@ public class ConsistentHash<T> {
                 nodes, circle.size()));
     }
 
+    @Override
     public boolean hasNode(T node) {
         for (int i = 0; i < numberOfReplicas; i++) {
             String nodeName = node.toString() + i;
@@ -60,6 +64,7 @@ public class ConsistentHash<T> {
         return false;
     }
 
+    @Override
     public T get(Object key) {
         if (circle.isEmpty()) {
             return null;
@@ -0,0 +1,22 @@
+package org.zstack.utils.hash;
+
+import java.util.Set;
+
+/**
+ * Maps keys to a changing set of nodes so that only a small part of the keys
+ * moves when a node is added or removed.
+ */
+public interface HashRing<T> {
+    void add(T node);
+
+    void remove(T node);
+
+    boolean hasNode(T node);
+
+    Set<T> getNodes();
+
+    /**
+     * @return the node the key maps to, or null if there is no node
+     */
+    T get(Object key);
+}
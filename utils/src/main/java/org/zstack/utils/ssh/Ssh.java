@@ -44,6 +44,13 @@ public class Ssh {
     private boolean closed = false;
     private boolean suppressException = false;
     private ScriptRunner script;
+    private boolean pooled = false;
+    private boolean fromPool = false;
+    // the connection was taken from the pool instead of being made by this object
+    private boolean reused = false;
+    // the last SSH failure happened before the command reached the host, it's safe to run it again
+    private boolean retriable = false;
+    private boolean broken = false;
 
     private boolean init = false;
 
@@ -190,6 +197,19 @@ public class Ssh {
         return this;
     }
 
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * takes the connection from SshConnectionPool and gives it back on close(),
+     * so following Ssh objects to the same host with the same credential reuse it
+     */
+    public Ssh setPooled(boolean pooled) {
+        this.pooled = pooled;
+        return this;
+    }
+
     public Ssh command(String...cmds) {
         for (String cmd : cmds) {
             commands.add(createCommand(cmd));
@@ -230,6 +250,7 @@ public class Ssh {
                } catch (Exception e) {
                    if (e instanceof ConnectionException || e instanceof IOException || e instanceof TransportException) {
                        ret.setSshFailure(true);
+                       retriable = sshCmd == null;
                    }
 
                    StringBuilder sb = new StringBuilder(String.format("exec ssh command: %s, exception\n", cmd));
@@ -283,6 +304,7 @@ public class Ssh {
                         logger.warn(String.format("[SCP failed]: %s", cmd), e);
                     }
                     ret.setSshFailure(true);
+                    retriable = true;
                     ret.setReturnCode(1);
                     ret.setExitErrorMessage(e.getMessage());
                 }
@@ -328,10 +350,26 @@ public class Ssh {
     }
 
     private void build() throws IOException {
+        build(true);
+    }
+
+    private void build(boolean acquire) throws IOException {
         if (init) {
             return;
         }
 
+        String poolKey = null;
+        if (pooled) {
+            poolKey = SshConnectionPool.makeKey(username, hostname, port, password, privateKey);
+            ssh = acquire ? SshConnectionPool.getInstance().acquire(poolKey) : null;
+            if (ssh != null) {
+                fromPool = true;
+                reused = true;
+                init = true;
+                return;
+            }
+        }
+
         ssh = new SSHClient();
         ssh.addHostKeyVerifier(new HostKeyVerifier() {
             @Override
@@ -348,9 +386,40 @@ public class Ssh {
             ssh.authPassword(username, password);
         }
 
+        if (pooled) {
+            SshConnectionPool.getInstance().add(poolKey, ssh);
+            fromPool = true;
+        }
+
         init = true;
     }
 
+    /**
+     * a pooled connection may have been dropped by the peer while it was idle, retire it and make
+     * a new one; only once and only if the failed command hasn't reached the host
+     *
+     * @return false if the command can't be run again
+     */
+    private boolean renewPooledConnection() throws IOException {
+        if (!reused || !retriable) {
+            return false;
+        }
+
+        if (!suppressException) {
+            logger.warn(String.format("the pooled ssh connection[host:%s, port:%s, user:%s] failed, retry on a new connection",
+                    hostname, port, username));
+        }
+
+        SshConnectionPool.getInstance().release(ssh, true);
+        ssh = null;
+        fromPool = false;
+        reused = false;
+        retriable = false;
+        init = false;
+        build(false);
+        return true;
+    }
+
     public void close() {
         if (closed) {
             return;
@@ -359,7 +428,11 @@ public class Ssh {
         closed = true;
 
         try {
-            ssh.disconnect();
+            if (fromPool) {
+                SshConnectionPool.getInstance().release(ssh, broken);
+            } else if (ssh != null) {
+                ssh.disconnect();
+            }
 
             if (privateKeyFile != null) {
                 privateKeyFile.delete();
@@ -407,12 +480,22 @@ public class Ssh {
                 if (logger.isTraceEnabled()) {
                     logger.trace(String.format("run script remotely[ip: %s, port: %s]:\n%s\n", hostname, port, script.scriptContent));
                 }
-                return script.run();
+                SshResult ret = script.run();
+                if (ret.isSshFailure() && renewPooledConnection()) {
+                    ret = script.run();
+                }
+                broken = broken || ret.isSshFailure();
+                return ret;
             } else {
                 SshResult ret = null;
                 for (SshRunner runner : commands) {
                     ret = runner.run();
+                    if (ret.isSshFailure() && renewPooledConnection()) {
+                        ret = runner.run();
+                    }
+
                     if (ret.getReturnCode() != 0) {
+                        broken = broken || ret.isSshFailure();
                         return ret;
                     }
                 }
@@ -430,6 +513,7 @@ public class Ssh {
             ret.setSshFailure(true);
             ret.setExitErrorMessage(e.getMessage());
             ret.setReturnCode(1);
+            broken = true;
             return ret;
         } finally {
             watch.stop();
@@ -0,0 +1,206 @@
+package org.zstack.utils.ssh;
+
+import net.schmizz.sshj.SSHClient;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps authenticated SSH connections so steps talking to the same host with the same credential,
+ * e.g. the checks before running ansible on a host, share one connection instead of doing a
+ * TCP and SSH handshake each time.
+ *
+ * A connection is shared by concurrent users, each of them opens its own session channel on it.
+ * It's closed when it's idle longer than the idle timeout or when a user reports an SSH failure on it.
+ */
+public class SshConnectionPool {
+    private static final CLogger logger = Utils.getLogger(SshConnectionPool.class);
+
+    private static final SshConnectionPool instance = new SshConnectionPool();
+
+    public static SshConnectionPool getInstance() {
+        return instance;
+    }
+
+    private static class Connection {
+        final String key;
+        final SSHClient client;
+        int refs;
+        long lastUsed;
+        // not handed out any more, closed when the last user releases it
+        boolean retired;
+
+        Connection(String key, SSHClient client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+
+    private final Map<String, Connection> connections = new HashMap<String, Connection>();
+    private final Map<SSHClient, Connection> allConnections = new HashMap<SSHClient, Connection>();
+    private long idleTimeout = TimeUnit.SECONDS.toMillis(60);
+    private ScheduledExecutorService reaper;
+
+    private SshConnectionPool() {
+    }
+
+    static String makeKey(String username, String hostname, int port, String password, String privateKey) {
+        String credential = privateKey != null ? "key:" + privateKey : "password:" + password;
+        return String.format("%s@%s:%s/%s", username, hostname, port, DigestUtils.sha256Hex(credential));
+    }
+
+    SSHClient acquire(String key) {
+        Connection dead;
+        synchronized (this) {
+            Connection c = connections.get(key);
+            if (c == null) {
+                return null;
+            }
+
+            if (c.client.isConnected() && c.client.isAuthenticated()) {
+                c.refs++;
+                return c.client;
+            }
+
+            retire(c);
+            dead = c.refs == 0 ? allConnections.remove(c.client) : null;
+        }
+
+        if (dead != null) {
+            disconnect(dead.client);
+        }
+        return null;
+    }
+
+    synchronized void add(String key, SSHClient client) {
+        Connection c = new Connection(key, client);
+        c.refs = 1;
+        if (connections.containsKey(key)) {
+            // others connected to the same host at the same time, let this one go after used
+            c.retired = true;
+        } else {
+            connections.put(key, c);
+        }
+        allConnections.put(client, c);
+        startReaper();
+    }
+
+    void release(SSHClient client, boolean broken) {
+        boolean close;
+        synchronized (this) {
+            Connection c = allConnections.get(client);
+            if (c == null) {
+                close = true;
+            } else {
+                c.refs--;
+                c.lastUsed = System.currentTimeMillis();
+                if (broken) {
+                    retire(c);
+                }
+
+                close = c.retired && c.refs == 0;
+                if (close) {
+                    allConnections.remove(client);
+                }
+            }
+        }
+
+        if (close) {
+            disconnect(client);
+        }
+    }
+
+    private void retire(Connection c) {
+        c.retired = true;
+        if (connections.get(c.key) == c) {
+            connections.remove(c.key);
+        }
+    }
+
+    private void reap() {
+        List<SSHClient> idle = new ArrayList<SSHClient>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Connection> it = allConnections.values().iterator();
+            while (it.hasNext()) {
+                Connection c = it.next();
+                if (c.refs == 0 && now - c.lastUsed > idleTimeout) {
+                    it.remove();
+                    if (connections.get(c.key) == c) {
+                        connections.remove(c.key);
+                    }
+                    idle.add(c.client);
+                }
+            }
+        }
+
+        for (SSHClient client : idle) {
+            disconnect(client);
+        }
+    }
+
+    private void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ssh-connection-pool-reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap();
+                } catch (Throwable t) {
+                    logger.warn("unhandled exception when closing idle ssh connections", t);
+                }
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+
+    private void disconnect(SSHClient client) {
+        try {
+            client.disconnect();
+        } catch (IOException e) {
+            logger.warn("failed to close ssh connection", e);
+        }
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout, TimeUnit unit) {
+        this.idleTimeout = unit.toMillis(idleTimeout);
+    }
+
+    public synchronized int size() {
+        return allConnections.size();
+    }
+
+    public void closeAll() {
+        List<SSHClient> clients;
+        synchronized (this) {
+            clients = new ArrayList<SSHClient>(allConnections.keySet());
+            allConnections.clear();
+            connections.clear();
+        }
+
+        for (SSHClient client : clients) {
+            disconnect(client);
+        }
+    }
+}
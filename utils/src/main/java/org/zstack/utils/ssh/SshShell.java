@@ -27,6 +27,7 @@ public class SshShell {
     private String password;
     private String privateKeyFile;
     private int port = 22;
+    private boolean pooled;
 
     private void checkParams() {
         DebugUtils.Assert(hostname != null, "hostname cannot be null");
@@ -34,8 +35,33 @@ public class SshShell {
         DebugUtils.Assert(password != null || privateKeyFile != null, "password and privateKeyFile must have at least one set");
     }
 
+    private SshResult runPooled(String cmd, String commandToExecute) {
+        Ssh ssh = new Ssh().setHostname(hostname).setUsername(username).setPort(port).setPooled(true);
+        if (privateKeyFile != null) {
+            try {
+                ssh.setPrivateKey(FileUtils.readFileToString(new File(privateKeyFile)));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            ssh.setPassword(password);
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("[ssh shell, pooled connection to %s@%s:%s]: %s", username, hostname, port, cmd));
+        }
+
+        SshResult ret = ssh.setSuppressException(true).command(cmd).runAndClose();
+        ret.setCommandToExecute(commandToExecute);
+        return ret;
+    }
+
     public SshResult runCommand(String cmd) {
         checkParams();
+        if (pooled) {
+            return runPooled(cmd, cmd);
+        }
+
         String ssh;
         File tempPasswordFile = null;
 
@@ -77,6 +103,20 @@ public class SshShell {
 
     public SshResult runScript(String script) {
         checkParams();
+        if (pooled) {
+            String cmd = ln(
+                    "s=`mktemp`",
+                    "cat << 'EOT' > $s",
+                    "{0}",
+                    "EOT",
+                    "bash $s",
+                    "ret=$?",
+                    "rm -f $s",
+                    "exit $ret"
+            ).format(script);
+            return runPooled(cmd, script);
+        }
+
         String ssh;
         File tempPasswordFile = null;
         try {
@@ -183,6 +223,17 @@ public class SshShell {
         this.privateKeyFile = privateKeyFile;
     }
 
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * runs commands over a connection from SshConnectionPool instead of forking an ssh process each time
+     */
+    public void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
     public int getPort() {
         return port;
     }
@@ -0,0 +1,144 @@
+package com.zstack.utils.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.zstack.utils.hash.ApacheHash;
+import org.zstack.utils.hash.BoundedLoadHash;
+import org.zstack.utils.hash.ConsistentHash;
+import org.zstack.utils.hash.HashRing;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compare ConsistentHash(500 virtual nodes) and BoundedLoadHash at 3, 10 and 50 nodes on
+ * lookup cost, the most loaded node against the average and keys moved when a node joins
+ *
+ * confirm BoundedLoadHash stays within its load factor and moves about 1/(n+1) of the keys
+ */
+public class TestBoundedLoadHash {
+    private static final CLogger logger = Utils.getLogger(TestBoundedLoadHash.class);
+
+    int keyNum = 100000;
+    int partitionNum = 16384;
+    double loadFactor = 1.1;
+
+    private String uuid() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private List<String> uuids(int num) {
+        List<String> ret = new ArrayList<String>();
+        for (int i = 0; i < num; i++) {
+            ret.add(uuid());
+        }
+        return ret;
+    }
+
+    private long lookupNanos(HashRing<String> ring, List<String> keys) {
+        // warm up
+        for (String key : keys) {
+            ring.get(key);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            for (String key : keys) {
+                ring.get(key);
+            }
+        }
+        return (System.nanoTime() - start) / (5L * keys.size());
+    }
+
+    private double maxLoadRatio(HashRing<String> ring, List<String> keys) {
+        Map<String, Integer> loads = new HashMap<String, Integer>();
+        for (String node : ring.getNodes()) {
+            loads.put(node, 0);
+        }
+        for (String key : keys) {
+            String node = ring.get(key);
+            loads.put(node, loads.get(node) + 1);
+        }
+
+        double avg = (double) keys.size() / loads.size();
+        return Collections.max(loads.values()) / avg;
+    }
+
+    private double movedRatio(HashRing<String> ring, List<String> keys) {
+        Map<String, String> before = new HashMap<String, String>();
+        for (String key : keys) {
+            before.put(key, ring.get(key));
+        }
+
+        ring.add(uuid());
+
+        int moved = 0;
+        for (String key : keys) {
+            if (!ring.get(key).equals(before.get(key))) {
+                moved++;
+            }
+        }
+        return (double) moved / keys.size();
+    }
+
+    @Test
+    public void test() {
+        List<String> keys = uuids(keyNum);
+        StringBuilder sb = new StringBuilder(String.format("\nHASH RING BENCHMARK: %s keys", keyNum));
+        for (int nodeNum : new int[]{3, 10, 50}) {
+            List<String> nodes = uuids(nodeNum);
+
+            long start = System.nanoTime();
+            HashRing<String> consistent = new ConsistentHash<String>(new ApacheHash(), 500, nodes);
+            long consistentBuild = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            start = System.nanoTime();
+            HashRing<String> bounded = new BoundedLoadHash<String>(partitionNum, loadFactor, nodes);
+            long boundedBuild = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+            long consistentLookup = lookupNanos(consistent, keys);
+            long boundedLookup = lookupNanos(bounded, keys);
+            double consistentLoad = maxLoadRatio(consistent, keys);
+            double boundedLoad = maxLoadRatio(bounded, keys);
+            double consistentMoved = movedRatio(consistent, keys);
+            double boundedMoved = movedRatio(bounded, keys);
+
+            sb.append(String.format("\n[ConsistentHash] nodes: %s, build: %s us, lookup: %s ns, max/avg load: %.3f, moved on join: %.3f",
+                    nodeNum, consistentBuild, consistentLookup, consistentLoad, consistentMoved));
+            sb.append(String.format("\n[BoundedLoadHash] nodes: %s, build: %s us, lookup: %s ns, max/avg load: %.3f, moved on join: %.3f",
+                    nodeNum, boundedBuild, boundedLookup, boundedLoad, boundedMoved));
+
+            // partitions are bounded by the load factor, leave room for how keys fall into partitions
+            Assert.assertTrue(String.format("max/avg load %s at %s nodes", boundedLoad, nodeNum), boundedLoad < loadFactor + 0.1);
+            double ideal = 1.0 / (nodeNum + 1);
+            Assert.assertTrue(String.format("%s of keys moved at %s nodes", boundedMoved, nodeNum), boundedMoved < ideal * 1.5);
+        }
+
+        logger.debug(sb.toString());
+    }
+
+    @Test
+    public void testSameNodesSameTable() {
+        List<String> nodes = uuids(10);
+        List<String> reversed = new ArrayList<String>(nodes);
+        Collections.reverse(reversed);
+
+        BoundedLoadHash<String> h1 = new BoundedLoadHash<String>(partitionNum, loadFactor, nodes);
+        BoundedLoadHash<String> h2 = new BoundedLoadHash<String>(partitionNum, loadFactor, new ArrayList<String>());
+        for (String node : reversed) {
+            h2.add(node);
+        }
+
+        for (String key : uuids(10000)) {
+            Assert.assertEquals(h1.get(key), h2.get(key));
+        }
+
+        String removed = nodes.get(3);
+        h1.remove(removed);
+        Assert.assertFalse(h1.hasNode(removed));
+        for (String key : uuids(10000)) {
+            Assert.assertFalse(removed.equals(h1.get(key)));
+        }
+    }
+}